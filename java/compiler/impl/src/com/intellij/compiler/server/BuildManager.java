@@ -26,6 +26,7 @@ import com.intellij.execution.configurations.GeneralCommandLine;
 import com.intellij.execution.configurations.RunProfile;
 import com.intellij.execution.process.*;
 import com.intellij.execution.ui.RunContentDescriptor;
+import com.intellij.ide.AppLifecycleListener;
 import com.intellij.ide.DataManager;
 import com.intellij.ide.PowerSaveMode;
 import com.intellij.openapi.Disposable;
@@ -57,7 +58,9 @@ import com.intellij.openapi.projectRoots.impl.JavaAwareProjectJdkTableImpl;
 import com.intellij.openapi.roots.*;
 import com.intellij.openapi.startup.StartupManager;
 import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.EmptyRunnable;
 import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.ShutDownTracker;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileUtil;
@@ -67,6 +70,8 @@ import com.intellij.openapi.vfs.CharsetToolkit;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.ManagingFS;
+import com.intellij.openapi.vfs.newvfs.RefreshQueue;
 import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
 import com.intellij.openapi.vfs.newvfs.impl.FileNameCache;
 import com.intellij.openapi.wm.IdeFrame;
@@ -102,12 +107,12 @@ import org.jetbrains.jps.model.serialization.JpsGlobalLoader;
 
 import javax.tools.*;
 import java.awt.*;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -130,6 +135,8 @@ public class BuildManager implements ApplicationComponent{
   private static final int DOCUMENT_SAVE_TRIGGER_DELAY = 1500 /*1.5 sec*/;
   private final boolean IS_UNIT_TEST_MODE;
   private static final String IWS_EXTENSION = ".iws";
+  // with more changes collected, a rescan of sources is cheaper than transferring and applying them
+  private static final int FS_JOURNAL_MAX_SIZE = 50000;
   private static final String IPR_EXTENSION = ".ipr";
   private static final String IDEA_PROJECT_DIR_PATTERN = "/.idea/";
   private static final Function<String, Boolean> PATH_FILTER =
@@ -155,6 +162,8 @@ public class BuildManager implements ApplicationComponent{
   private final BuildProcessClasspathManager myClasspathManager = new BuildProcessClasspathManager();
   private final SequentialTaskExecutor myRequestsProcessor = new SequentialTaskExecutor(PooledThreadExecutor.INSTANCE);
   private final Map<String, ProjectData> myProjectDataMap = Collections.synchronizedMap(new HashMap<String, ProjectData>());
+  // data of projects open until the application exit, guarded by myProjectDataMap
+  private final Map<String, ProjectData> myProjectsClosedOnExit = new HashMap<String, ProjectData>();
 
   private final BuildManagerPeriodicTask myAutoMakeTask = new BuildManagerPeriodicTask() {
     @Override
@@ -223,18 +232,58 @@ public class BuildManager implements ApplicationComponent{
       LOG.info(e);
     }
     mySystemDirectory = system;
+    if (!IS_UNIT_TEST_MODE) {
+      loadFSJournals();
+    }
 
     projectManager.addProjectManagerListener(new ProjectWatcher());
 
     final MessageBusConnection conn = application.getMessageBus().connect();
+    conn.subscribe(AppLifecycleListener.TOPIC, new AppLifecycleListener.Adapter() {
+      @Override
+      public void appClosing() {
+        // projects closed on a cancelled exit attempt are no longer open until shutdown
+        synchronized (myProjectDataMap) {
+          myProjectsClosedOnExit.clear();
+        }
+      }
+    });
     conn.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener.Adapter() {
       @Override
       public void after(@NotNull List<? extends VFileEvent> events) {
+        if (isConfigurationChanged(events)) {
+          stopKeptAliveProcesses();
+        }
         if (shouldTriggerMake(events)) {
           scheduleAutoMake();
         }
       }
 
+      private boolean isConfigurationChanged(List<? extends VFileEvent> events) {
+        String optionsPath = null;
+        for (VFileEvent event : events) {
+          final VirtualFile eventFile = event.getFile();
+          if (eventFile == null) {
+            continue;
+          }
+          final String name = eventFile.getName();
+          if (ProjectCoreUtil.isProjectOrWorkspaceFile(eventFile)) {
+            // of workspace files, the build reads only run configurations, which builders don't use
+            if (!name.endsWith(IWS_EXTENSION) && !name.equals("workspace.xml")) {
+              return true;
+            }
+            continue;
+          }
+          if (optionsPath == null) {
+            optionsPath = FileUtil.toSystemIndependentName(PathManager.getOptionsPath());
+          }
+          if (FileUtil.startsWith(eventFile.getPath(), optionsPath)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
       private boolean shouldTriggerMake(List<? extends VFileEvent> events) {
         if (PowerSaveMode.isEnabled()) {
           return false;
@@ -376,16 +425,37 @@ public class BuildManager implements ApplicationComponent{
       final ProjectData data = myProjectDataMap.get(projectPath);
       if (data != null) {
         data.dropChanges();
+        data.stopKeptAliveProcess();
       }
     }
     scheduleAutoMake();
   }
 
+  private void stopKeptAliveProcesses() {
+    synchronized (myProjectDataMap) {
+      for (ProjectData data : myProjectDataMap.values()) {
+        data.stopKeptAliveProcess();
+      }
+    }
+  }
+
+  private void offerKeptAliveProcess(String projectPath, KeptAliveProcess process, int configurationStamp) {
+    synchronized (myProjectDataMap) {
+      final ProjectData data = myProjectDataMap.get(projectPath);
+      if (data != null && data.myConfigurationStamp == configurationStamp && data.myKeptAliveProcess == null) {
+        data.myKeptAliveProcess = process;
+        return;
+      }
+    }
+    // the project has been closed or its configuration has changed since the process loaded it
+    process.stop();
+  }
+
   public boolean rescanRequired(Project project) {
     final String projectPath = getProjectPath(project);
     synchronized (myProjectDataMap) {
       final ProjectData data = myProjectDataMap.get(projectPath);
-      return data == null || data.myNeedRescan;
+      return data == null || data.isRescanRequired();
     }
   }
 
@@ -394,7 +464,7 @@ public class BuildManager implements ApplicationComponent{
     String projectPath = getProjectPath(project);
     synchronized (myProjectDataMap) {
       ProjectData data = myProjectDataMap.get(projectPath);
-      if (data != null && !data.myNeedRescan) {
+      if (data != null && !data.isRescanRequired()) {
         return convertToStringPaths(data.myChanged);
       }
       return null;
@@ -608,12 +678,16 @@ public class BuildManager implements ApplicationComponent{
               .build();
           CmdlineRemoteProto.Message.ControllerMessage.FSEvent currentFSChanges;
           final SequentialTaskExecutor projectTaskQueue;
+          final boolean keepAlive = Registry.is("compiler.process.keep.alive");
           synchronized (myProjectDataMap) {
             ProjectData data = myProjectDataMap.get(projectPath);
             if (data == null) {
               data = new ProjectData(new SequentialTaskExecutor(PooledThreadExecutor.INSTANCE));
               myProjectDataMap.put(projectPath, data);
             }
+            if (!keepAlive) {
+              data.stopKeptAliveProcess();
+            }
             if (isRebuild) {
               data.dropChanges();
             }
@@ -641,7 +715,18 @@ public class BuildManager implements ApplicationComponent{
                                                          userData, globals, currentFSChanges);
           }
 
+          // the connection to a kept alive process, known once the session has completed successfully
+          final Ref<Channel> completedSessionChannel = Ref.create(null);
           myMessageDispatcher.registerBuildMessageHandler(sessionId, new MessageHandlerWrapper(handler) {
+            @Override
+            public void handleBuildMessage(Channel channel, UUID sessionId, CmdlineRemoteProto.Message.BuilderMessage msg) {
+              super.handleBuildMessage(channel, sessionId, msg);
+              if (keepAlive && msg.getType() == CmdlineRemoteProto.Message.BuilderMessage.Type.BUILD_EVENT &&
+                  msg.getBuildEvent().getEventType() == CmdlineRemoteProto.Message.BuilderMessage.BuildEvent.Type.BUILD_COMPLETED) {
+                completedSessionChannel.set(channel);
+              }
+            }
+
             @Override
             public void sessionTerminated(UUID sessionId) {
               try {
@@ -651,7 +736,7 @@ public class BuildManager implements ApplicationComponent{
                 future.setDone();
               }
             }
-          }, params);
+          }, params, keepAlive);
 
           try {
             projectTaskQueue.submit(new Runnable() {
@@ -663,22 +748,55 @@ public class BuildManager implements ApplicationComponent{
                     return;
                   }
                   myBuildsInProgress.put(projectPath, future);
-                  final OSProcessHandler processHandler = launchBuildProcess(project, myListenPort, sessionId);
-                  final StringBuilder stdErrOutput = new StringBuilder();
-                  processHandler.addProcessListener(new ProcessAdapter() {
-                    @Override
-                    public void onTextAvailable(ProcessEvent event, Key outputType) {
-                      // re-translate builder's output to idea.log
-                      final String text = event.getText();
-                      if (!StringUtil.isEmptyOrSpaces(text)) {
-                        LOG.info("BUILDER_PROCESS [" + outputType.toString() + "]: " + text.trim());
-                        if (stdErrOutput.length() < 1024 && ProcessOutputTypes.STDERR.equals(outputType)) {
-                          stdErrOutput.append(text);
+                  final int configurationStamp;
+                  final KeptAliveProcess keptAliveProcess;
+                  synchronized (myProjectDataMap) {
+                    final ProjectData data = myProjectDataMap.get(projectPath);
+                    configurationStamp = data != null ? data.myConfigurationStamp : -1;
+                    keptAliveProcess = keepAlive && data != null ? data.takeKeptAliveProcess() : null;
+                  }
+                  final OSProcessHandler processHandler;
+                  final StringBuilder stdErrOutput;
+                  if (keptAliveProcess != null) {
+                    processHandler = keptAliveProcess.processHandler;
+                    stdErrOutput = keptAliveProcess.stdErrOutput;
+                    stdErrOutput.setLength(0);
+                    LOG.info("Reusing build process for " + projectPath);
+                    myMessageDispatcher.startSession(sessionId, keptAliveProcess.channel);
+                  }
+                  else {
+                    processHandler = launchBuildProcess(project, myListenPort, sessionId, keepAlive);
+                    stdErrOutput = new StringBuilder();
+                    processHandler.addProcessListener(new ProcessAdapter() {
+                      @Override
+                      public void onTextAvailable(ProcessEvent event, Key outputType) {
+                        // re-translate builder's output to idea.log
+                        final String text = event.getText();
+                        if (!StringUtil.isEmptyOrSpaces(text)) {
+                          LOG.info("BUILDER_PROCESS [" + outputType.toString() + "]: " + text.trim());
+                          if (stdErrOutput.length() < 1024 && ProcessOutputTypes.STDERR.equals(outputType)) {
+                            stdErrOutput.append(text);
+                          }
                         }
                       }
+                    });
+                    processHandler.startNotify();
+                  }
+
+                  if (keepAlive) {
+                    while (!future.waitFor(100L, TimeUnit.MILLISECONDS) && !processHandler.isProcessTerminated()) {
+                      // wait until the session is completed or the process dies
+                    }
+                    final Channel channel = completedSessionChannel.get();
+                    if (channel != null && channel.isActive() && !processHandler.isProcessTerminated()) {
+                      offerKeptAliveProcess(projectPath, new KeptAliveProcess(processHandler, channel, stdErrOutput), configurationStamp);
+                      return;
+                    }
+                    final Channel connected = myMessageDispatcher.getConnectedChannel(sessionId);
+                    if (connected != null) {
+                      connected.close(); // the process exits when disconnected
                     }
-                  });
-                  processHandler.startNotify();
+                  }
                   final boolean terminated = processHandler.waitFor();
                   if (terminated) {
                     final int exitValue = processHandler.getProcess().exitValue();
@@ -703,9 +821,10 @@ public class BuildManager implements ApplicationComponent{
                 }
                 finally {
                   myBuildsInProgress.remove(projectPath);
-                  if (myMessageDispatcher.getAssociatedChannel(sessionId) == null) {
+                  if (keepAlive || myMessageDispatcher.getAssociatedChannel(sessionId) == null) {
                     // either the connection has never been established (process not started or execution failed), or no messages were sent from the launched process.
-                    // in this case the session cannot be unregistered by the message dispatcher
+                    // in this case the session cannot be unregistered by the message dispatcher.
+                    // a session in a kept alive process is unregistered when completed, so the session is left registered only if the process has died
                     final BuilderMessageHandler unregistered = myMessageDispatcher.unregisterBuildMessageHandler(sessionId);
                     if (unregistered != null) {
                       if (execFailure != null) {
@@ -745,6 +864,60 @@ public class BuildManager implements ApplicationComponent{
   @Override
   public void disposeComponent() {
     stopListening();
+    if (!IS_UNIT_TEST_MODE) {
+      saveFSJournals();
+    }
+  }
+
+  /**
+   * Restores changes collected for projects open until the previous shutdown, so that the first build of a project after restart doesn't
+   * have to traverse all sources to find changed files. Changes made while the IDE wasn't running are reported by the VFS refresh
+   * after a project is opened, so a journal isn't used until it completes; if the VFS has been rebuilt since, the changes are lost
+   * and the journals are ignored.
+   */
+  private void loadFSJournals() {
+    final File[] dirs = getBuildSystemDirectory().listFiles();
+    if (dirs == null) {
+      return;
+    }
+    final long vfsStamp = ManagingFS.getInstance().getCreationTimestamp();
+    for (File dir : dirs) {
+      final FSJournalFile journal = FSJournalFile.read(dir, vfsStamp);
+      if (journal != null) {
+        final ProjectData data = new ProjectData(new SequentialTaskExecutor(PooledThreadExecutor.INSTANCE));
+        data.load(journal);
+        myProjectDataMap.put(journal.projectPath, data);
+      }
+    }
+  }
+
+  /**
+   * Saves journals of the projects closed on exit. Changes of a project closed earlier aren't fully reported (its roots are no longer
+   * watched, and content of new directories outside of open projects isn't registered), so such a project is rescanned when reopened.
+   */
+  private void saveFSJournals() {
+    // changes may still be waiting to be registered, and projects closed on exit to be moved
+    final Future<?> pending = myRequestsProcessor.submit(EmptyRunnable.getInstance());
+    try {
+      pending.get(1, TimeUnit.SECONDS);
+    }
+    catch (Exception e) {
+      LOG.info("Changed files are not saved: " + e.getMessage());
+      return;
+    }
+    final long vfsStamp = ManagingFS.getInstance().getCreationTimestamp();
+    synchronized (myProjectDataMap) {
+      for (Map.Entry<String, ProjectData> entry : myProjectsClosedOnExit.entrySet()) {
+        final String projectPath = entry.getKey();
+        final ProjectData data = entry.getValue();
+        final File dataRoot = Utils.getDataStorageRoot(getBuildSystemDirectory(), projectPath);
+        // there's nothing to apply the changes to if the project hasn't been built yet
+        if (!data.isRescanRequired() && dataRoot.isDirectory()) {
+          data.toJournal(projectPath).write(dataRoot, vfsStamp);
+        }
+      }
+      myProjectsClosedOnExit.clear();
+    }
   }
 
   @NotNull
@@ -753,7 +926,7 @@ public class BuildManager implements ApplicationComponent{
     return "com.intellij.compiler.server.BuildManager";
   }
 
-  private OSProcessHandler launchBuildProcess(Project project, final int port, final UUID sessionId) throws ExecutionException {
+  private OSProcessHandler launchBuildProcess(Project project, final int port, final UUID sessionId, boolean keepAlive) throws ExecutionException {
     final String compilerPath;
     final String vmExecutablePath;
     JavaSdkVersion sdkVersion = null;
@@ -897,6 +1070,16 @@ public class BuildManager implements ApplicationComponent{
     if (Registry.is("compiler.process.use.external.javac")) {
       cmdLine.addParameter("-D"+ GlobalOptions.USE_EXTERNAL_JAVAC_OPTION);
     }
+    if (keepAlive) {
+      cmdLine.addParameter("-D"+ GlobalOptions.KEEP_ALIVE_OPTION + "=true");
+    }
+    if (Registry.is("compiler.artifacts.incremental.archives")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.INCREMENTAL_ARCHIVES_OPTION + "=true");
+    }
+    if (Registry.is("compiler.build.cache")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.COMPILE_CACHE_OPTION + "=true");
+      cmdLine.addParameter("-D"+ GlobalOptions.COMPILE_CACHE_MAX_SIZE_OPTION + "=" + Registry.intValue("compiler.build.cache.max.size.mb"));
+    }
 
     // javac's VM should use the same default locale that IDEA uses in order for javac to print messages in 'correct' language
     if (mySystemCharset != null) {
@@ -1111,13 +1294,34 @@ public class BuildManager implements ApplicationComponent{
       Disposer.register(project, new Disposable() {
         @Override
         public void dispose() {
-          myProjectDataMap.remove(projectPath);
+          if (ApplicationManager.getApplication().isDisposeInProgress() && !IS_UNIT_TEST_MODE) {
+            return; // handled in projectClosed
+          }
+          synchronized (myProjectDataMap) {
+            final ProjectData data = myProjectDataMap.remove(projectPath);
+            if (data != null) {
+              data.stopKeptAliveProcess();
+            }
+          }
         }
       });
       StartupManager.getInstance(project).registerPostStartupActivity(new Runnable() {
         @Override
         public void run() {
-          scheduleAutoMake(); // run automake after project opened
+          // the refresh is launched after post-startup activities, so this session is queued after it
+          ApplicationManager.getApplication().invokeLater(new Runnable() {
+            @Override
+            public void run() {
+              RefreshQueue.getInstance().createSession(true, false, new Runnable() {
+                @Override
+                public void run() {
+                  if (!project.isDisposed()) {
+                    onInitialRefreshFinished(projectPath);
+                  }
+                }
+              }).launch();
+            }
+          }, project.getDisposed());
         }
       });
     }
@@ -1137,7 +1341,35 @@ public class BuildManager implements ApplicationComponent{
 
     @Override
     public void projectClosed(Project project) {
-      myProjectDataMap.remove(getProjectPath(project));
+      final String projectPath = getProjectPath(project);
+      if (ApplicationManager.getApplication().isDisposeInProgress() && !IS_UNIT_TEST_MODE) {
+        synchronized (myProjectDataMap) {
+          final ProjectData data = myProjectDataMap.get(projectPath);
+          if (data != null) {
+            data.stopKeptAliveProcess();
+          }
+        }
+        // the project stays open until shutdown: its journal is saved once the changes reported so far are registered
+        runCommand(new Runnable() {
+          @Override
+          public void run() {
+            synchronized (myProjectDataMap) {
+              final ProjectData data = myProjectDataMap.remove(projectPath);
+              if (data != null) {
+                myProjectsClosedOnExit.put(projectPath, data);
+              }
+            }
+          }
+        });
+      }
+      else {
+        synchronized (myProjectDataMap) {
+          final ProjectData data = myProjectDataMap.remove(projectPath);
+          if (data != null) {
+            data.stopKeptAliveProcess();
+          }
+        }
+      }
       final MessageBusConnection conn = myConnections.remove(project);
       if (conn != null) {
         conn.disconnect();
@@ -1145,12 +1377,34 @@ public class BuildManager implements ApplicationComponent{
     }
   }
 
+  private void onInitialRefreshFinished(final String projectPath) {
+    // changes are registered asynchronously, so the journal is complete once the changes reported by the refresh are registered
+    runCommand(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (myProjectDataMap) {
+          final ProjectData data = myProjectDataMap.get(projectPath);
+          if (data != null) {
+            data.myWaitingForRefresh = false;
+          }
+        }
+        scheduleAutoMake(); // run automake after project opened and synchronized
+      }
+    });
+  }
+
   private static class ProjectData {
     final SequentialTaskExecutor taskQueue;
     private final Set<InternedPath> myChanged = new THashSet<InternedPath>();
     private final Set<InternedPath> myDeleted = new THashSet<InternedPath>();
     private long myNextEventOrdinal = 0L;
     private boolean myNeedRescan = true;
+    // a journal restored on start misses changes made while the IDE wasn't running until the VFS refresh reports them
+    private boolean myWaitingForRefresh = false;
+    // an idle build process kept alive after a build of the project
+    @Nullable private KeptAliveProcess myKeptAliveProcess;
+    // changed when the configuration loaded by a build process may have changed
+    private int myConfigurationStamp = 0;
 
     private ProjectData(SequentialTaskExecutor taskQueue) {
       this.taskQueue = taskQueue;
@@ -1163,6 +1417,7 @@ public class BuildManager implements ApplicationComponent{
           myDeleted.remove(_path);
           myChanged.add(_path);
         }
+        checkSize();
       }
     }
 
@@ -1173,7 +1428,30 @@ public class BuildManager implements ApplicationComponent{
           myChanged.remove(_path);
           myDeleted.add(_path);
         }
+        checkSize();
+      }
+    }
+
+    private void checkSize() {
+      if (myChanged.size() + myDeleted.size() > FS_JOURNAL_MAX_SIZE) {
+        dropChanges();
+      }
+    }
+
+    public FSJournalFile toJournal(String projectPath) {
+      return new FSJournalFile(projectPath, myNextEventOrdinal, convertToStringPaths(myChanged), convertToStringPaths(myDeleted));
+    }
+
+    public void load(FSJournalFile journal) {
+      myNextEventOrdinal = journal.nextEventOrdinal;
+      for (String path : journal.changed) {
+        myChanged.add(InternedPath.create(path));
+      }
+      for (String path : journal.deleted) {
+        myDeleted.add(InternedPath.create(path));
       }
+      myNeedRescan = false;
+      myWaitingForRefresh = true;
     }
 
     public CmdlineRemoteProto.Message.ControllerMessage.FSEvent createNextEvent() {
@@ -1194,7 +1472,15 @@ public class BuildManager implements ApplicationComponent{
       return builder.build();
     }
 
+    public boolean isRescanRequired() {
+      return myNeedRescan || myWaitingForRefresh;
+    }
+
     public boolean getAndResetRescanFlag() {
+      if (myWaitingForRefresh) {
+        // the build process will scan sources and expect changes to be counted from the start again
+        dropChanges();
+      }
       final boolean rescan = myNeedRescan;
       myNeedRescan = false;
       return rescan;
@@ -1202,10 +1488,58 @@ public class BuildManager implements ApplicationComponent{
 
     public void dropChanges() {
       myNeedRescan = true;
+      myWaitingForRefresh = false;
       myNextEventOrdinal = 0L;
       myChanged.clear();
       myDeleted.clear();
     }
+
+    @Nullable
+    public KeptAliveProcess takeKeptAliveProcess() {
+      final KeptAliveProcess process = myKeptAliveProcess;
+      myKeptAliveProcess = null;
+      if (process != null && !process.isAlive()) {
+        process.stop();
+        return null;
+      }
+      return process;
+    }
+
+    /**
+     * Stops the idle build process, and makes a process currently running a build be stopped after the build.
+     */
+    public void stopKeptAliveProcess() {
+      myConfigurationStamp++;
+      final KeptAliveProcess process = myKeptAliveProcess;
+      myKeptAliveProcess = null;
+      if (process != null) {
+        process.stop();
+      }
+    }
+  }
+
+  /**
+   * A build process which has completed a build session and is kept running with the project loaded, so that the next build of the
+   * project doesn't have to start a process and load the project model and build data again.
+   */
+  private static class KeptAliveProcess {
+    final OSProcessHandler processHandler;
+    final Channel channel;
+    final StringBuilder stdErrOutput;
+
+    private KeptAliveProcess(OSProcessHandler processHandler, Channel channel, StringBuilder stdErrOutput) {
+      this.processHandler = processHandler;
+      this.channel = channel;
+      this.stdErrOutput = stdErrOutput;
+    }
+
+    public boolean isAlive() {
+      return channel.isActive() && !processHandler.isProcessTerminated();
+    }
+
+    public void stop() {
+      channel.close(); // the process exits when disconnected
+    }
   }
 
   private static abstract class InternedPath {
@@ -47,7 +47,38 @@ class BuildMessageDispatcher extends SimpleChannelInboundHandler<CmdlineRemotePr
   public void registerBuildMessageHandler(UUID sessionId,
                                           BuilderMessageHandler handler,
                                           CmdlineRemoteProto.Message.ControllerMessage params) {
-    myMessageHandlers.put(sessionId, new SessionData(sessionId, handler, params));
+    registerBuildMessageHandler(sessionId, handler, params, false);
+  }
+
+  /**
+   * @param keepAlive whether the session runs in a build process which is kept alive after the session. Such a session is terminated
+   *                  when the process reports the build completion, rather than when the connection is closed
+   */
+  public void registerBuildMessageHandler(UUID sessionId,
+                                          BuilderMessageHandler handler,
+                                          CmdlineRemoteProto.Message.ControllerMessage params,
+                                          boolean keepAlive) {
+    myMessageHandlers.put(sessionId, new SessionData(sessionId, handler, params, keepAlive));
+  }
+
+  /**
+   * Starts a registered session in a build process which has been kept alive after its previous session.
+   */
+  public void startSession(UUID sessionId, Channel channel) {
+    final SessionData data = myMessageHandlers.get(sessionId);
+    if (data == null) {
+      return;
+    }
+    data.channel = channel;
+    final CmdlineRemoteProto.Message.ControllerMessage params = data.params;
+    if (params != null) {
+      data.params = null;
+      data.handler.buildStarted(sessionId);
+      channel.writeAndFlush(CmdlineProtoUtil.toMessage(sessionId, params));
+    }
+    if (myCanceledSessions.contains(sessionId)) {
+      channel.writeAndFlush(CmdlineProtoUtil.toMessage(sessionId, CmdlineProtoUtil.createCancelCommand()));
+    }
   }
 
   @Nullable
@@ -113,6 +144,9 @@ class BuildMessageDispatcher extends SimpleChannelInboundHandler<CmdlineRemotePr
     switch (messageType) {
       case FAILURE:
         handler.handleFailure(sessionId, message.getFailure());
+        if (sessionData.keepAlive) {
+          terminateSession(context, sessionData);
+        }
         break;
 
       case BUILDER_MESSAGE:
@@ -131,6 +165,9 @@ class BuildMessageDispatcher extends SimpleChannelInboundHandler<CmdlineRemotePr
         }
         else {
           handler.handleBuildMessage(context.channel(), sessionId, builderMessage);
+          if (sessionData.keepAlive && isBuildCompletedEvent(builderMessage)) {
+            terminateSession(context, sessionData);
+          }
         }
         break;
 
@@ -140,6 +177,20 @@ class BuildMessageDispatcher extends SimpleChannelInboundHandler<CmdlineRemotePr
     }
   }
 
+  private static boolean isBuildCompletedEvent(CmdlineRemoteProto.Message.BuilderMessage message) {
+    return message.getType() == CmdlineRemoteProto.Message.BuilderMessage.Type.BUILD_EVENT &&
+           message.getBuildEvent().getEventType() == CmdlineRemoteProto.Message.BuilderMessage.BuildEvent.Type.BUILD_COMPLETED;
+  }
+
+  private void terminateSession(ChannelHandlerContext context, SessionData sessionData) {
+    // the connection stays open for the next session
+    context.attr(SESSION_DATA).set(null);
+    final BuilderMessageHandler handler = unregisterBuildMessageHandler(sessionData.sessionId);
+    if (handler != null) {
+      handler.sessionTerminated(sessionData.sessionId);
+    }
+  }
+
   @Override
   public void channelInactive(ChannelHandlerContext context) throws Exception {
     try {
@@ -167,13 +218,16 @@ class BuildMessageDispatcher extends SimpleChannelInboundHandler<CmdlineRemotePr
   private static final class SessionData {
     final UUID sessionId;
     final BuilderMessageHandler handler;
+    final boolean keepAlive;
     volatile CmdlineRemoteProto.Message.ControllerMessage params;
     volatile Channel channel;
 
-    private SessionData(UUID sessionId, BuilderMessageHandler handler, CmdlineRemoteProto.Message.ControllerMessage params) {
+    private SessionData(UUID sessionId, BuilderMessageHandler handler, CmdlineRemoteProto.Message.ControllerMessage params,
+                        boolean keepAlive) {
       this.sessionId = sessionId;
       this.handler = handler;
       this.params = params;
+      this.keepAlive = keepAlive;
     }
   }
 }
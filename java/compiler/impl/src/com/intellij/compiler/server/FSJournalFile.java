@@ -0,0 +1,125 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.compiler.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Changed and deleted paths of a project collected by the IDE until shutdown, stored under the project's build data directory.
+ * A journal is deleted once read: it stays valid only while changes keep being collected, so it's written anew on every shutdown.
+ */
+final class FSJournalFile {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.server.FSJournalFile");
+  private static final String FILE_NAME = "fs_journal.dat";
+  private static final int VERSION = 1;
+
+  final String projectPath;
+  final long nextEventOrdinal;
+  final List<String> changed;
+  final List<String> deleted;
+
+  FSJournalFile(@NotNull String projectPath, long nextEventOrdinal, @NotNull List<String> changed, @NotNull List<String> deleted) {
+    this.projectPath = projectPath;
+    this.nextEventOrdinal = nextEventOrdinal;
+    this.changed = changed;
+    this.deleted = deleted;
+  }
+
+  /**
+   * @param vfsStamp creation timestamp of the VFS the changes were collected from
+   */
+  void write(@NotNull File dataRoot, long vfsStamp) {
+    final File file = new File(dataRoot, FILE_NAME);
+    try {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      try {
+        out.writeInt(VERSION);
+        out.writeLong(vfsStamp);
+        out.writeUTF(projectPath);
+        out.writeLong(nextEventOrdinal);
+        writePaths(out, changed);
+        writePaths(out, deleted);
+      }
+      finally {
+        out.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      FileUtil.delete(file);
+    }
+  }
+
+  /**
+   * Reads and deletes the journal stored in the data directory.
+   *
+   * @return null if there's no journal, or it was collected from another VFS, whose changes may have been lost
+   */
+  @Nullable
+  static FSJournalFile read(@NotNull File dataRoot, long vfsStamp) {
+    final File file = new File(dataRoot, FILE_NAME);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != VERSION || in.readLong() != vfsStamp) {
+          return null;
+        }
+        final String projectPath = in.readUTF();
+        final long nextEventOrdinal = in.readLong();
+        final List<String> changed = readPaths(in);
+        final List<String> deleted = readPaths(in);
+        return new FSJournalFile(projectPath, nextEventOrdinal, changed, deleted);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      return null;
+    }
+    finally {
+      FileUtil.delete(file);
+    }
+  }
+
+  private static void writePaths(DataOutput out, Collection<String> paths) throws IOException {
+    out.writeInt(paths.size());
+    for (String path : paths) {
+      out.writeUTF(path);
+    }
+  }
+
+  private static List<String> readPaths(DataInput in) throws IOException {
+    final int count = in.readInt();
+    final List<String> paths = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      paths.add(in.readUTF());
+    }
+    return paths;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.compiler.server;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class FSJournalFileTest extends TestCase {
+  private File myDataRoot;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDataRoot = FileUtil.createTempDirectory("build-data", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDataRoot);
+    super.tearDown();
+  }
+
+  public void testReadWhatWasWritten() {
+    new FSJournalFile("/project", 42, Arrays.asList("/project/src/A.java", "/project/src/B.java"),
+                      Collections.singletonList("/project/src/C.java")).write(myDataRoot, 1);
+
+    FSJournalFile journal = FSJournalFile.read(myDataRoot, 1);
+    assertNotNull(journal);
+    assertEquals("/project", journal.projectPath);
+    assertEquals(42, journal.nextEventOrdinal);
+    assertEquals(Arrays.asList("/project/src/A.java", "/project/src/B.java"), journal.changed);
+    assertEquals(Collections.singletonList("/project/src/C.java"), journal.deleted);
+  }
+
+  public void testJournalIsReadOnce() {
+    new FSJournalFile("/project", 1, Collections.<String>emptyList(), Collections.<String>emptyList()).write(myDataRoot, 1);
+    assertNotNull(FSJournalFile.read(myDataRoot, 1));
+    assertNull(FSJournalFile.read(myDataRoot, 1));
+  }
+
+  public void testJournalOfAnotherVfsIsIgnored() {
+    new FSJournalFile("/project", 1, Collections.singletonList("/project/src/A.java"), Collections.<String>emptyList())
+      .write(myDataRoot, 1);
+    assertNull(FSJournalFile.read(myDataRoot, 2));
+    assertNull(FSJournalFile.read(myDataRoot, 1));
+  }
+
+  public void testNoJournal() {
+    assertNull(FSJournalFile.read(myDataRoot, 1));
+    assertNull(FSJournalFile.read(new File(myDataRoot, "missing"), 1));
+  }
+}
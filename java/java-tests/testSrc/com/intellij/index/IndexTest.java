@@ -24,6 +24,7 @@ import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Eugene Zhuravlev
@@ -93,6 +94,79 @@ public class IndexTest extends IdeaTestCase {
     }
   }
 
+  public void testBatchUpdate() throws StorageException, IOException {
+    final File storageFile = FileUtil.createTempFile("indextest", "storage");
+    final File metaIndexFile = FileUtil.createTempFile("indextest_inputs", "storage");
+    final MapIndexStorage indexStorage = new MapIndexStorage(storageFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(), 16 * 1024);
+    final StringIndex index = new StringIndex(indexStorage, new Factory<PersistentHashMap<Integer, Collection<String>>>() {
+      @Override
+      public PersistentHashMap<Integer, Collection<String>> create() {
+        try {
+          return createMetaIndex(metaIndexFile);
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+
+    try {
+      index.update("com/ppp/a.java", "a b c d", null);
+
+      final AtomicInteger flushed = new AtomicInteger();
+      final Runnable flushedCounter = new Runnable() {
+        @Override
+        public void run() {
+          flushed.incrementAndGet();
+        }
+      };
+      assertFalse(index.runAfterBatchFlushed(flushedCounter));
+      assertEquals(0, flushed.get());
+
+      index.startBatchUpdate(1024 * 1024);
+      index.updateBatched("com/ppp/a.java", "a b");
+      index.updateBatched("com/ppp/b.java", "a b g h");
+      index.updateBatched("com/ppp/c.java", "a z f");
+      index.updateBatched("com/ppp/c.java", "a z");
+      assertTrue(index.runAfterBatchFlushed(flushedCounter));
+
+      // nothing is written until the batch is flushed
+      assertDataEquals(index.getFilesByWord("a"), "com/ppp/a.java");
+      assertDataEquals(index.getFilesByWord("c"), "com/ppp/a.java");
+      assertEquals(0, flushed.get());
+
+      index.flushBatch();
+      assertEquals(1, flushed.get());
+      assertDataEquals(index.getFilesByWord("a"), "com/ppp/a.java", "com/ppp/b.java", "com/ppp/c.java");
+      assertDataEquals(index.getFilesByWord("b"), "com/ppp/a.java", "com/ppp/b.java");
+      assertDataEquals(index.getFilesByWord("c"));
+      assertDataEquals(index.getFilesByWord("z"), "com/ppp/c.java");
+      assertDataEquals(index.getFilesByWord("f"));
+
+      index.updateBatched("com/ppp/b.java", null);
+      assertTrue(index.runAfterBatchFlushed(flushedCounter));
+      index.finishBatchUpdate();
+      assertEquals(2, flushed.get());
+      assertDataEquals(index.getFilesByWord("a"), "com/ppp/a.java", "com/ppp/c.java");
+      assertDataEquals(index.getFilesByWord("g"));
+
+      // batch size limit exceeded
+      index.startBatchUpdate(1);
+      index.updateBatched("com/ppp/d.java", "a u");
+      assertDataEquals(index.getFilesByWord("u"), "com/ppp/d.java");
+      index.finishBatchUpdate();
+
+      // batch update is over
+      index.updateBatched("com/ppp/e.java", "a e");
+      assertDataEquals(index.getFilesByWord("e"), "com/ppp/e.java");
+      assertFalse(index.runAfterBatchFlushed(flushedCounter));
+    }
+    finally {
+      indexStorage.close();
+      FileUtil.delete(storageFile);
+    }
+  }
+
   private PersistentHashMap<Integer, Collection<String>> createMetaIndex(File metaIndexFile) throws IOException {
     return new PersistentHashMap<Integer, Collection<String>>(metaIndexFile, new EnumeratorIntegerDescriptor(), new DataExternalizer<Collection<String>>() {
       @Override
@@ -36,6 +36,26 @@ public class StringIndex {
     myIndex.update(path.hashCode(), toInput(path, content)).compute();
   }
   
+  public void updateBatched(final String path, @Nullable String content) {
+    myIndex.updateBatched(path.hashCode(), toInput(path, content)).compute();
+  }
+
+  public void startBatchUpdate(long sizeLimit) {
+    myIndex.startBatchUpdate(sizeLimit);
+  }
+
+  public boolean runAfterBatchFlushed(Runnable runnable) {
+    return myIndex.runAfterBatchFlushed(runnable);
+  }
+
+  public void flushBatch() {
+    myIndex.flushBatch();
+  }
+
+  public void finishBatchUpdate() {
+    myIndex.finishBatchUpdate();
+  }
+
   @Nullable 
   private PathContentPair toInput(@NotNull String path, @Nullable String content) {
     return content != null ? new PathContentPair(path, content) : null;
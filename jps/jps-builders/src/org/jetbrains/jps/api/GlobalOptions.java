@@ -27,4 +27,8 @@ public interface GlobalOptions {
   String COMPILE_PARALLEL_MAX_THREADS_OPTION = "compile.parallel.max.threads";
   String REBUILD_ON_DEPENDENCY_CHANGE_OPTION = "rebuild.on.dependency.change";
   String LOG_DIR_OPTION = "log.dir";
+  String KEEP_ALIVE_OPTION = "build.process.keep.alive";
+  String INCREMENTAL_ARCHIVES_OPTION = "artifacts.incremental.archives";
+  String COMPILE_CACHE_OPTION = "compile.cache";
+  String COMPILE_CACHE_MAX_SIZE_OPTION = "compile.cache.max.size";
 }
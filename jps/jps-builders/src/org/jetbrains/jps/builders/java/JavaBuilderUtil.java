@@ -27,6 +27,7 @@ import org.jetbrains.jps.builders.BuildRootIndex;
 import org.jetbrains.jps.builders.DirtyFilesHolder;
 import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
 import org.jetbrains.jps.builders.java.dependencyView.Mappings;
+import org.jetbrains.jps.cmdline.BuildRunner;
 import org.jetbrains.jps.incremental.*;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
@@ -187,6 +188,13 @@ public class JavaBuilderUtil {
     }
     finally {
       context.processMessage(new ProgressMessage("")); // clean progress messages
+      final long lockWaitMs = delta.getLockWaitTime() / 1000000;
+      if (BuildRunner.PARALLEL_BUILD_ENABLED) {
+        LOG.info("Dependency info for " + chunk.getName() + " waited " + lockWaitMs + " ms for mappings lock");
+      }
+      else if (LOG.isDebugEnabled()) {
+        LOG.debug("Dependency info for " + chunk.getName() + " waited " + lockWaitMs + " ms for mappings lock");
+      }
     }
   }
 
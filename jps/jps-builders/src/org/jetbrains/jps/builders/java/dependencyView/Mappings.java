@@ -35,6 +35,7 @@ import java.lang.annotation.RetentionPolicy;
 import java.util.*;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author: db
@@ -67,6 +68,7 @@ public class Mappings {
   private final Set<ClassRepr> myDeletedClasses;
   private final Object myLock;
   private final File myRootDir;
+  private final AtomicLong myLockWaitTime = new AtomicLong();
 
   private DependencyContext myContext;
   private final int myInitName;
@@ -91,7 +93,8 @@ public class Mappings {
   private Collection<String> myRemovedFiles;
 
   private Mappings(final Mappings base) throws IOException {
-    myLock = base.myLock;
+    // a transient delta is filled by a single chunk only, so there is no need to contend with other chunks for the base lock
+    myLock = base.myDeltaIsTransient ? new Object() : base.myLock;
     myIsDelta = true;
     myChangedClasses = new TIntHashSet(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
     myChangedFiles = new THashSet(FileUtil.FILE_HASHING_STRATEGY);
@@ -1879,7 +1882,9 @@ public class Mappings {
     }
 
     boolean differentiate() {
+      final long started = System.nanoTime();
       synchronized (myLock) {
+        myDelta.myLockWaitTime.addAndGet(System.nanoTime() - started);
         myDelta.myIsDifferentiated = true;
 
         if (myDelta.myIsRebuild) {
@@ -1995,7 +2000,9 @@ public class Mappings {
   }
 
   public void integrate(final Mappings delta) {
+    final long started = System.nanoTime();
     synchronized (myLock) {
+      delta.myLockWaitTime.addAndGet(System.nanoTime() - started);
       try {
         assert (delta.isDifferentiated());
 
@@ -2139,13 +2146,22 @@ public class Mappings {
     }
   }
 
+  /**
+   * @return total time in nanoseconds this delta has spent waiting for the mappings lock while being filled, differentiated and integrated
+   */
+  public long getLockWaitTime() {
+    return myLockWaitTime.get();
+  }
+
   public Callbacks.Backend getCallback() {
     return new Callbacks.Backend() {
       public void associate(final String classFileName, final String sourceFileName, final ClassReader cr) {
+        final int classFileNameS = myContext.get(classFileName);
+        final Pair<ClassRepr, Set<UsageRepr.Usage>> result = new ClassfileAnalyzer(myContext).analyze(classFileNameS, cr);
+        final ClassRepr repr = result.first;
+        final long started = System.nanoTime();
         synchronized (myLock) {
-          final int classFileNameS = myContext.get(classFileName);
-          final Pair<ClassRepr, Set<UsageRepr.Usage>> result = new ClassfileAnalyzer(myContext).analyze(classFileNameS, cr);
-          final ClassRepr repr = result.first;
+          myLockWaitTime.addAndGet(System.nanoTime() - started);
           if (repr != null) {
             final Set<UsageRepr.Usage> localUsages = result.second;
             final File sourceFile = new File(sourceFileName);
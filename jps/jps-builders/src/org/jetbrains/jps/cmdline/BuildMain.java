@@ -18,6 +18,7 @@ package org.jetbrains.jps.cmdline;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.concurrency.SequentialTaskExecutor;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -64,6 +65,8 @@ public class BuildMain {
   private static final int SYSTEM_DIR_ARG = SESSION_ID_ARG + 1;
 
   private static NioEventLoopGroup ourEventLoopGroup;
+  @Nullable
+  private static ProjectDescriptorCache ourDescriptorCache;
 
   public static void main(String[] args){
     System.out.println("Build process started. Classpath: " + System.getProperty("java.class.path"));
@@ -73,6 +76,9 @@ public class BuildMain {
     @SuppressWarnings("ConstantConditions")
     final File systemDir = new File(FileUtil.toCanonicalPath(args[SYSTEM_DIR_ARG]));
     Utils.setSystemRoot(systemDir);
+    if (Boolean.parseBoolean(System.getProperty(GlobalOptions.KEEP_ALIVE_OPTION))) {
+      ourDescriptorCache = new ProjectDescriptorCache();
+    }
 
     ourEventLoopGroup = new NioEventLoopGroup(1, SharedThreadPool.getInstance());
     final Bootstrap bootstrap = new Bootstrap().group(ourEventLoopGroup).channel(NioSocketChannel.class).handler(new ChannelInitializer() {
@@ -106,6 +112,8 @@ public class BuildMain {
   private static class MyMessageHandler extends SimpleChannelInboundHandler<CmdlineRemoteProto.Message> {
     private final UUID mySessionId;
     private volatile BuildSession mySession;
+    // sessions of a process which is kept alive; the controller starts a session when the previous one has reported its completion
+    private final SequentialTaskExecutor mySessionQueue = new SequentialTaskExecutor(SharedThreadPool.getInstance());
 
     private MyMessageHandler(UUID sessionId) {
       mySessionId = sessionId;
@@ -121,7 +129,16 @@ public class BuildMain {
         switch (controllerMessage.getType()) {
 
           case BUILD_PARAMETERS: {
-            if (mySession == null) {
+            final ProjectDescriptorCache descriptorCache = ourDescriptorCache;
+            if (descriptorCache != null) {
+              final CmdlineRemoteProto.Message.UUID id = message.getSessionId();
+              final UUID sessionId = new UUID(id.getMostSigBits(), id.getLeastSigBits());
+              final CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta = controllerMessage.hasFsEvent()? controllerMessage.getFsEvent() : null;
+              final BuildSession session = new BuildSession(sessionId, channel, controllerMessage.getParamsMessage(), delta, descriptorCache);
+              mySession = session;
+              mySessionQueue.submit(session);
+            }
+            else if (mySession == null) {
               final CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta = controllerMessage.hasFsEvent()? controllerMessage.getFsEvent() : null;
               final BuildSession session = new BuildSession(mySessionId, channel, controllerMessage.getParamsMessage(), delta);
               mySession = session;
@@ -190,6 +207,10 @@ public class BuildMain {
           public void run() {
             //noinspection finally
             try {
+              final ProjectDescriptorCache descriptorCache = ourDescriptorCache;
+              if (descriptorCache != null) {
+                descriptorCache.drop();
+              }
               ourEventLoopGroup.shutdownGracefully();
             }
             finally {
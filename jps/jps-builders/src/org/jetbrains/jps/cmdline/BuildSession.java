@@ -42,6 +42,7 @@ import org.jetbrains.jps.model.module.JpsModule;
 import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -62,6 +63,7 @@ final class BuildSession implements Runnable, CanceledStatus {
   private final Channel myChannel;
   private volatile boolean myCanceled = false;
   private final String myProjectPath;
+  private final String myGlobalOptionsPath;
   @Nullable
   private CmdlineRemoteProto.Message.ControllerMessage.FSEvent myInitialFSDelta;
   // state
@@ -74,17 +76,32 @@ final class BuildSession implements Runnable, CanceledStatus {
   private final boolean myForceModelLoading;
   private final BuildType myBuildType;
   private final List<TargetTypeBuildScope> myScopes;
+  @Nullable
+  private final ProjectDescriptorCache myDescriptorCache;
+  private static final AtomicBoolean ourFirstSession = new AtomicBoolean(true);
 
   BuildSession(UUID sessionId,
                Channel channel,
                CmdlineRemoteProto.Message.ControllerMessage.ParametersMessage params,
                @Nullable CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta) {
+    this(sessionId, channel, params, delta, null);
+  }
+
+  /**
+   * @param descriptorCache if not null, the loaded project descriptor is kept there for the next sessions of the build process
+   */
+  BuildSession(UUID sessionId,
+               Channel channel,
+               CmdlineRemoteProto.Message.ControllerMessage.ParametersMessage params,
+               @Nullable CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta,
+               @Nullable ProjectDescriptorCache descriptorCache) {
     mySessionId = sessionId;
     myChannel = channel;
+    myDescriptorCache = descriptorCache;
 
     final CmdlineRemoteProto.Message.ControllerMessage.GlobalSettings globals = params.getGlobalSettings();
     myProjectPath = FileUtil.toCanonicalPath(params.getProjectId());
-    String globalOptionsPath = FileUtil.toCanonicalPath(globals.getGlobalOptionsPath());
+    myGlobalOptionsPath = FileUtil.toCanonicalPath(globals.getGlobalOptionsPath());
     myBuildType = convertCompileType(params.getBuildType());
     myScopes = params.getScopeList();
     List<String> filePaths = params.getFilePathList();
@@ -93,7 +110,7 @@ final class BuildSession implements Runnable, CanceledStatus {
       builderParams.put(pair.getKey(), pair.getValue());
     }
     myInitialFSDelta = delta;
-    JpsModelLoaderImpl loader = new JpsModelLoaderImpl(myProjectPath, globalOptionsPath, null);
+    JpsModelLoaderImpl loader = new JpsModelLoaderImpl(myProjectPath, myGlobalOptionsPath, null);
     myForceModelLoading = Boolean.parseBoolean(builderParams.get(BuildParametersKeys.FORCE_MODEL_LOADING));
     myBuildRunner = new BuildRunner(loader, filePaths, builderParams);
   }
@@ -103,6 +120,9 @@ final class BuildSession implements Runnable, CanceledStatus {
     Throwable error = null;
     final Ref<Boolean> hasErrors = new Ref<Boolean>(false);
     final Ref<Boolean> doneSomething = new Ref<Boolean>(false);
+    final long sessionStart = System.currentTimeMillis();
+    final boolean firstSession = ourFirstSession.getAndSet(false);
+    final Ref<Boolean> firstTargetStarted = new Ref<Boolean>(false);
     try {
       ProfilingHelper profilingHelper = null;
       if (Utils.IS_PROFILING_MODE) {
@@ -141,16 +161,21 @@ final class BuildSession implements Runnable, CanceledStatus {
             CustomBuilderMessage builderMessage = (CustomBuilderMessage)buildMessage;
             response = CmdlineProtoUtil.createCustomBuilderMessage(builderMessage.getBuilderId(), builderMessage.getMessageType(), builderMessage.getMessageText());
           }
-          else if (!(buildMessage instanceof BuildingTargetProgressMessage)) {
+          else if (buildMessage instanceof BuildingTargetProgressMessage) {
+            if (((BuildingTargetProgressMessage)buildMessage).getEventType() == BuildingTargetProgressMessage.Event.STARTED &&
+                !firstTargetStarted.get()) {
+              firstTargetStarted.set(true);
+              logFirstTargetStarted(sessionStart, firstSession);
+            }
+            response = null;
+          }
+          else {
             float done = -1.0f;
             if (buildMessage instanceof ProgressMessage) {
               done = ((ProgressMessage)buildMessage).getDone();
             }
             response = CmdlineProtoUtil.createCompileProgressMessageResponse(buildMessage.getMessageText(), done);
           }
-          else {
-            response = null;
-          }
           if (response != null) {
             myChannel.writeAndFlush(CmdlineProtoUtil.toMessage(mySessionId, response));
           }
@@ -164,12 +189,27 @@ final class BuildSession implements Runnable, CanceledStatus {
     catch (Throwable e) {
       LOG.info(e);
       error = e;
+      if (myDescriptorCache != null) {
+        // the storages may be in an inconsistent state
+        myDescriptorCache.drop();
+      }
     }
     finally {
       finishBuild(error, hasErrors.get(), doneSomething.get());
     }
   }
 
+  private static void logFirstTargetStarted(long sessionStart, boolean firstSession) {
+    final long now = System.currentTimeMillis();
+    final StringBuilder message = new StringBuilder();
+    message.append("First build target started ").append(now - sessionStart).append(" ms after build session start");
+    if (firstSession) {
+      final long processStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+      message.append(", ").append(now - processStart).append(" ms after build process start");
+    }
+    LOG.info(message.toString());
+  }
+
   private void runBuild(final MessageHandler msgHandler, CanceledStatus cs) throws Throwable{
     final File dataStorageRoot = Utils.getDataStorageRoot(myProjectPath);
     if (dataStorageRoot == null) {
@@ -179,6 +219,9 @@ final class BuildSession implements Runnable, CanceledStatus {
     if (!dataStorageRoot.exists()) {
       // invoked the very first time for this project
       myBuildRunner.setForceCleanCaches(true);
+      if (myDescriptorCache != null) {
+        myDescriptorCache.drop();
+      }
     }
 
     final DataInputStream fsStateStream = createFSDataStream(dataStorageRoot);
@@ -193,9 +236,26 @@ final class BuildSession implements Runnable, CanceledStatus {
       }
     }
 
-    final BuildFSState fsState = new BuildFSState(false);
+    final ProjectDescriptor cached = myDescriptorCache != null ? myDescriptorCache.acquire(myProjectPath, dataStorageRoot, myGlobalOptionsPath) : null;
+    final BuildFSState fsState = cached != null ? cached.fsState : new BuildFSState(false);
+    if (cached != null) {
+      // the state is reloaded from disk below, so that the events the controller has sent since are applied in the usual way
+      fsState.clearAll();
+    }
     try {
-      final ProjectDescriptor pd = myBuildRunner.load(msgHandler, dataStorageRoot, fsState);
+      final ProjectDescriptor pd;
+      if (cached != null) {
+        pd = cached;
+        LOG.info("Project descriptor reused from the previous build session");
+      }
+      else {
+        final long loadStart = System.currentTimeMillis();
+        pd = myBuildRunner.load(msgHandler, dataStorageRoot, fsState);
+        LOG.info("Project descriptor loaded in " + (System.currentTimeMillis() - loadStart) + " ms");
+        if (myDescriptorCache != null) {
+          myDescriptorCache.put(myProjectPath, dataStorageRoot, myGlobalOptionsPath, pd);
+        }
+      }
       TimingLog.LOG.debug("Project descriptor loaded");
       myProjectDescriptor = pd;
       if (fsStateStream != null) {
@@ -16,6 +16,7 @@
 package org.jetbrains.jps.cmdline;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.TestOnly;
 import org.jetbrains.jps.builders.BuildRootIndex;
 import org.jetbrains.jps.builders.BuildTargetIndex;
 import org.jetbrains.jps.builders.logging.BuildLoggingManager;
@@ -128,6 +129,11 @@ public final class ProjectDescriptor {
     myUseCounter++;
   }
 
+  @TestOnly
+  synchronized boolean isReleased() {
+    return myUseCounter == 0;
+  }
+
   public void release() {
     boolean shouldClose;
     synchronized (this) {
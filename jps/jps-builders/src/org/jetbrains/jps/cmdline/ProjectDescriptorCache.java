@@ -0,0 +1,141 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.cmdline;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.model.serialization.JpsModelSerializationDataService;
+import org.jetbrains.jps.model.serialization.PathMacroUtil;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Keeps the descriptor of the last built project (the loaded model, opened timestamp and dependency storages) between
+ * build sessions of a build process which is kept alive. A descriptor is reused as long as the project, its data storage root
+ * and the configuration files the model was loaded from are the same: although the controller restarts the process when
+ * the project configuration changes, files changed outside of the IDE are noticed only here.
+ */
+final class ProjectDescriptorCache {
+  private static final String WORKSPACE_FILE_NAME = "workspace.xml";
+  private String myProjectPath;
+  private File myDataStorageRoot;
+  private String myGlobalOptionsPath;
+  private List<File> myModuleFiles;
+  private Map<String, String> myConfigurationStamps;
+  private ProjectDescriptor myDescriptor;
+
+  /**
+   * @return the cached descriptor, which must be released by the caller, or null if the cache contains no descriptor for the project
+   * or its configuration has changed since the descriptor was loaded
+   */
+  @Nullable
+  public synchronized ProjectDescriptor acquire(@NotNull String projectPath, @NotNull File dataStorageRoot, @NotNull String globalOptionsPath) {
+    if (myDescriptor != null && projectPath.equals(myProjectPath) && FileUtil.filesEqual(dataStorageRoot, myDataStorageRoot) &&
+        globalOptionsPath.equals(myGlobalOptionsPath) &&
+        myConfigurationStamps.equals(collectConfigurationStamps(projectPath, globalOptionsPath, myModuleFiles))) {
+      myDescriptor.incUsageCounter();
+      return myDescriptor;
+    }
+    drop();
+    return null;
+  }
+
+  /**
+   * Should be called right after the descriptor is loaded, so that configuration changes made during the build are noticed
+   * by the next session.
+   */
+  public synchronized void put(@NotNull String projectPath, @NotNull File dataStorageRoot, @NotNull String globalOptionsPath,
+                               @NotNull ProjectDescriptor descriptor) {
+    drop();
+    final List<File> moduleFiles = new ArrayList<File>();
+    for (JpsModule module : descriptor.getProject().getModules()) {
+      final File baseDir = JpsModelSerializationDataService.getBaseDirectory(module);
+      if (baseDir != null) {
+        moduleFiles.add(new File(baseDir, module.getName() + ".iml"));
+      }
+    }
+    descriptor.incUsageCounter();
+    myProjectPath = projectPath;
+    myDataStorageRoot = dataStorageRoot;
+    myGlobalOptionsPath = globalOptionsPath;
+    myModuleFiles = moduleFiles;
+    myConfigurationStamps = collectConfigurationStamps(projectPath, globalOptionsPath, moduleFiles);
+    myDescriptor = descriptor;
+  }
+
+  /**
+   * Releases the cached descriptor; its storages are closed as soon as no build session uses it.
+   */
+  public synchronized void drop() {
+    final ProjectDescriptor descriptor = myDescriptor;
+    myDescriptor = null;
+    myProjectPath = null;
+    myDataStorageRoot = null;
+    myGlobalOptionsPath = null;
+    myModuleFiles = null;
+    myConfigurationStamps = null;
+    if (descriptor != null) {
+      descriptor.release();
+    }
+  }
+
+  private static Map<String, String> collectConfigurationStamps(String projectPath, String globalOptionsPath, List<File> moduleFiles) {
+    final Map<String, String> stamps = new HashMap<String, String>();
+    final File projectFile = new File(projectPath);
+    if (projectFile.isFile()) {
+      addStamp(stamps, projectFile);
+    }
+    else {
+      final File dotIdea = new File(projectFile, PathMacroUtil.DIRECTORY_STORE_NAME);
+      addDirectoryStamps(stamps, dotIdea.isDirectory() ? dotIdea : projectFile);
+    }
+    final File[] optionFiles = new File(globalOptionsPath).listFiles();
+    if (optionFiles != null) {
+      for (File file : optionFiles) {
+        if (file.isFile()) {
+          addStamp(stamps, file);
+        }
+      }
+    }
+    for (File moduleFile : moduleFiles) {
+      addStamp(stamps, moduleFile);
+    }
+    return stamps;
+  }
+
+  private static void addDirectoryStamps(Map<String, String> stamps, File dir) {
+    final File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        addDirectoryStamps(stamps, child);
+      }
+      else if (!child.getName().equals(WORKSPACE_FILE_NAME)) {
+        // of workspace files, the build reads only run configurations, which builders don't use
+        addStamp(stamps, child);
+      }
+    }
+  }
+
+  private static void addStamp(Map<String, String> stamps, File file) {
+    stamps.put(file.getPath(), file.length() + ":" + file.lastModified());
+  }
+}
@@ -35,6 +35,7 @@ import org.jetbrains.jps.incremental.storage.Timestamps;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author Eugene Zhuravlev
@@ -64,6 +65,52 @@ public class BuildOperations {
     }
   }
 
+  /**
+   * Performs the initial file system scan for the targets which haven't been scanned yet, several targets at a time. This is the case
+   * when the state of the file system left by the previous build is unknown or stale. Targets whose sources will be recompiled anyway
+   * are left to {@link #ensureFSStateInitialized(CompileContext, BuildTarget)}.
+   */
+  public static void ensureFSStateInitialized(final CompileContext context, Collection<? extends BuildTarget<?>> targets, Executor executor)
+    throws IOException {
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (final BuildTarget<?> target : targets) {
+      final BuildTargetConfiguration configuration = pd.getTargetsState().getTargetConfiguration(target);
+      if (pd.fsState.isInitialScanPerformed(target) ||
+          context.getScope().isBuildForced(target) ||
+          configuration.isTargetDirty(context) ||
+          configuration.outputRootWasDeleted(context)) {
+        continue;
+      }
+      final FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          if (!context.getCancelStatus().isCanceled()) {
+            initTargetFSState(context, target, false);
+          }
+          return null;
+        }
+      });
+      executor.execute(task);
+      futures.add(task);
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      }
+      catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException)cause;
+        }
+        throw new RuntimeException(cause);
+      }
+    }
+  }
+
   private static void initTargetFSState(CompileContext context, BuildTarget<?> target, final boolean forceMarkDirty) throws IOException {
     final ProjectDescriptor pd = context.getProjectDescriptor();
     final Timestamps timestamps = pd.timestamps.getStorage();
@@ -340,6 +340,9 @@ public class IncProjectBuilder {
       TimingLog.LOG.debug("'before' tasks finished");
 
       context.processMessage(new ProgressMessage("Checking sources"));
+      if (!context.isProjectRebuild()) {
+        scanSources(context);
+      }
       buildChunks(context);
       TimingLog.LOG.debug("Building targets finished");
 
@@ -566,6 +569,23 @@ public class IncProjectBuilder {
     }
   }
 
+  private void scanSources(CompileContext context) throws ProjectBuildException {
+    final List<BuildTarget<?>> targets = new ArrayList<BuildTarget<?>>();
+    for (BuildTarget<?> target : myProjectDescriptor.getBuildTargetIndex().getAllTargets()) {
+      if (context.getScope().isAffected(target)) {
+        targets.add(target);
+      }
+    }
+    final long start = System.currentTimeMillis();
+    try {
+      BuildOperations.ensureFSStateInitialized(context, targets, new BoundedTaskExecutor(SharedThreadPool.getInstance(), MAX_BUILDER_THREADS));
+    }
+    catch (IOException e) {
+      throw new ProjectBuildException(e);
+    }
+    TimingLog.LOG.debug("Sources scanned in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
   private void buildChunks(final CompileContextImpl context) throws ProjectBuildException {
     try {
       if (BuildRunner.PARALLEL_BUILD_ENABLED) {
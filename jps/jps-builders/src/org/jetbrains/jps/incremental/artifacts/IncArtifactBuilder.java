@@ -19,9 +19,11 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.containers.MultiMap;
+import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.DirtyFilesHolder;
 import org.jetbrains.jps.builders.FileProcessor;
@@ -137,42 +139,23 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
         return;
       }
 
-      deleteOutdatedFiles(filesToDelete, context, srcOutMapping, outSrcMapping);
-      context.checkCanceled();
-
-      context.processMessage(new ProgressMessage("Building artifact '" + artifact.getName() + "': copying files..."));
-      final Set<JarInfo> changedJars = new THashSet<JarInfo>();
-      for (ArtifactRootDescriptor descriptor : pd.getBuildRootIndex().getTargetRoots(target, context)) {
-        context.checkCanceled();
-        final Set<String> sourcePaths = filesToProcess.get(descriptor.getRootIndex());
-        if (sourcePaths == null) continue;
-
-        for (String sourcePath : sourcePaths) {
-          if (!descriptor.getFilter().shouldBeCopied(sourcePath, pd)) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("File " + sourcePath + " will be skipped because it isn't accepted by filter");
-            }
-            continue;
-          }
-          DestinationInfo destination = descriptor.getDestinationInfo();
-          if (destination instanceof ExplodedDestinationInfo) {
-            descriptor.copyFromRoot(sourcePath, descriptor.getRootIndex(), destination.getOutputPath(), context,
-                                    outputConsumer, outSrcMapping);
-          }
-          else {
-            List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> sources = outSrcMapping.getState(destination.getOutputFilePath());
-            if (sources == null || sources.size() > 0 && sources.get(0).getRootIndex() == descriptor.getRootIndex()) {
-              outSrcMapping.update(destination.getOutputFilePath(),
-                                   Collections.<ArtifactOutputToSourceMapping.SourcePathAndRootIndex>emptyList());
-              changedJars.add(((JarDestinationInfo)destination).getJarInfo());
-            }
-          }
+      final Map<String, File> previousArchives;
+      if (JarsBuilder.isIncrementalPackagingEnabled()) {
+        previousArchives = new THashMap<String, File>(FileUtil.PATH_HASHING_STRATEGY);
+      }
+      else {
+        previousArchives = null;
+      }
+      final File previousArchivesDir = new File(pd.dataManager.getDataPaths().getTargetDataRoot(target), "previous-archives");
+      try {
+        buildOutdatedFiles(target, outputConsumer, context, filesToProcess, filesToDelete, srcOutMapping, outSrcMapping, previousArchives,
+                           previousArchivesDir);
+      }
+      finally {
+        if (previousArchives != null) {
+          FileUtil.delete(previousArchivesDir);
         }
       }
-      context.checkCanceled();
-
-      JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping);
-      builder.buildJars();
       runArtifactTasks(context, artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase.FINISHING_BUILD);
       runArtifactTasks(context, artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase.POST_PROCESSING);
     }
@@ -181,6 +164,59 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
     }
   }
 
+  private static void buildOutdatedFiles(ArtifactBuildTarget target, BuildOutputConsumer outputConsumer, CompileContext context,
+                                         TIntObjectHashMap<Set<String>> filesToProcess, MultiMap<String, String> filesToDelete,
+                                         SourceToOutputMapping srcOutMapping, ArtifactOutputToSourceMapping outSrcMapping,
+                                         @Nullable Map<String, File> previousArchives, File previousArchivesDir)
+    throws IOException, ProjectBuildException {
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final JpsArtifact artifact = target.getArtifact();
+    final Set<String> archivePaths = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
+    if (previousArchives != null) {
+      for (ArtifactRootDescriptor descriptor : pd.getBuildRootIndex().getTargetRoots(target, context)) {
+        if (descriptor.getDestinationInfo() instanceof JarDestinationInfo) {
+          archivePaths.add(FileUtil.toSystemIndependentName(descriptor.getDestinationInfo().getOutputFilePath()));
+        }
+      }
+    }
+    deleteOutdatedFiles(filesToDelete, context, srcOutMapping, outSrcMapping, archivePaths, previousArchives, previousArchivesDir);
+    context.checkCanceled();
+
+    context.processMessage(new ProgressMessage("Building artifact '" + artifact.getName() + "': copying files..."));
+    final Set<JarInfo> changedJars = new THashSet<JarInfo>();
+    for (ArtifactRootDescriptor descriptor : pd.getBuildRootIndex().getTargetRoots(target, context)) {
+      context.checkCanceled();
+      final Set<String> sourcePaths = filesToProcess.get(descriptor.getRootIndex());
+      if (sourcePaths == null) continue;
+
+      for (String sourcePath : sourcePaths) {
+        if (!descriptor.getFilter().shouldBeCopied(sourcePath, pd)) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("File " + sourcePath + " will be skipped because it isn't accepted by filter");
+          }
+          continue;
+        }
+        DestinationInfo destination = descriptor.getDestinationInfo();
+        if (destination instanceof ExplodedDestinationInfo) {
+          descriptor.copyFromRoot(sourcePath, descriptor.getRootIndex(), destination.getOutputPath(), context,
+                                  outputConsumer, outSrcMapping);
+        }
+        else {
+          List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> sources = outSrcMapping.getState(destination.getOutputFilePath());
+          if (sources == null || sources.size() > 0 && sources.get(0).getRootIndex() == descriptor.getRootIndex()) {
+            outSrcMapping.update(destination.getOutputFilePath(),
+                                 Collections.<ArtifactOutputToSourceMapping.SourcePathAndRootIndex>emptyList());
+            changedJars.add(((JarDestinationInfo)destination).getJarInfo());
+          }
+        }
+      }
+    }
+    context.checkCanceled();
+
+    JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping, previousArchives);
+    builder.buildJars();
+  }
+
   private static void runArtifactTasks(CompileContext context, JpsArtifact artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase phase)
     throws ProjectBuildException {
     for (ArtifactBuildTaskProvider provider : JpsServiceManager.getInstance().getExtensions(ArtifactBuildTaskProvider.class)) {
@@ -208,7 +244,8 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
 
   private static void deleteOutdatedFiles(MultiMap<String, String> filesToDelete, CompileContext context,
                                           SourceToOutputMapping srcOutMapping,
-                                          ArtifactOutputToSourceMapping outSrcMapping) throws IOException {
+                                          ArtifactOutputToSourceMapping outSrcMapping, Set<String> archivePaths,
+                                          @Nullable Map<String, File> previousArchives, File previousArchivesDir) throws IOException {
     if (filesToDelete.isEmpty()) return;
 
     context.processMessage(new ProgressMessage("Deleting outdated files..."));
@@ -223,7 +260,18 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
 
       boolean deleted = deletedPaths.contains(filePath);
       if (!deleted) {
-        deleted = FileUtil.delete(new File(filePath));
+        final File file = new File(filePath);
+        if (previousArchives != null && archivePaths.contains(FileUtil.toSystemIndependentName(filePath)) && file.isFile()) {
+          //the previous version of the archive is kept until the archive is rebuilt, its unchanged entries are copied to the new version
+          final File previous = new File(previousArchivesDir, previousArchives.size() + ".jar");
+          deleted = FileUtil.delete(previous) && FileUtil.createParentDirs(previous) && file.renameTo(previous);
+          if (deleted) {
+            previousArchives.put(filePath, previous);
+          }
+        }
+        if (!deleted) {
+          deleted = FileUtil.delete(file);
+        }
       }
 
       if (deleted) {
@@ -19,6 +19,7 @@ package org.jetbrains.jps.incremental.artifacts.impl;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileSystemUtil;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
@@ -26,14 +27,19 @@ import com.intellij.util.ArrayUtil;
 import com.intellij.util.graph.CachingSemiGraph;
 import com.intellij.util.graph.DFSTBuilder;
 import com.intellij.util.graph.GraphGenerator;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.io.ZipUtil;
+import com.intellij.util.io.zip.JBZipEntry;
+import com.intellij.util.io.zip.JBZipFile;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.logging.ProjectBuilderLogger;
 import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.incremental.IncProjectBuilder;
 import org.jetbrains.jps.incremental.ProjectBuildException;
 import org.jetbrains.jps.incremental.artifacts.ArtifactOutputToSourceMapping;
 import org.jetbrains.jps.incremental.artifacts.IncArtifactBuilder;
@@ -41,14 +47,20 @@ import org.jetbrains.jps.incremental.artifacts.instructions.*;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
 import org.jetbrains.jps.incremental.messages.ProgressMessage;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * @author nik
@@ -60,11 +72,27 @@ public class JarsBuilder {
   private Map<JarInfo, File> myBuiltJars;
   private final BuildOutputConsumer myOutputConsumer;
   private final ArtifactOutputToSourceMapping myOutSrcMapping;
+  @Nullable private final Map<String, File> myPreviousArchives;
+  private final Map<JarInfo, File> myPreviousJars = new HashMap<JarInfo, File>();
+  private final List<File> myExtractedPreviousJars = new ArrayList<File>();
+  private final AtomicInteger myCopiedEntriesCount = new AtomicInteger();
+  private final AtomicInteger myCompressedEntriesCount = new AtomicInteger();
 
   public JarsBuilder(Set<JarInfo> jarsToBuild, CompileContext context, BuildOutputConsumer outputConsumer,
                      ArtifactOutputToSourceMapping outSrcMapping) {
+    this(jarsToBuild, context, outputConsumer, outSrcMapping, null);
+  }
+
+  /**
+   * @param previousArchives if not <code>null</code>, archives are rewritten incrementally: entries which weren't changed are copied from
+   *                         the previous version of the archive without recompression. The map contains previous versions of archives
+   *                         which were moved away from the output, other previous versions are taken from the output itself.
+   */
+  public JarsBuilder(Set<JarInfo> jarsToBuild, CompileContext context, BuildOutputConsumer outputConsumer,
+                     ArtifactOutputToSourceMapping outSrcMapping, @Nullable Map<String, File> previousArchives) {
     myOutputConsumer = outputConsumer;
     myOutSrcMapping = outSrcMapping;
+    myPreviousArchives = previousArchives;
     DependentJarsEvaluator evaluator = new DependentJarsEvaluator();
     for (JarInfo jarInfo : jarsToBuild) {
       evaluator.addJarWithDependencies(jarInfo);
@@ -81,11 +109,20 @@ public class JarsBuilder {
       return false;
     }
 
-    myBuiltJars = new HashMap<JarInfo, File>();
+    myBuiltJars = Collections.synchronizedMap(new HashMap<JarInfo, File>());
+    final long start = System.currentTimeMillis();
     try {
+      //a nested archive must be built before the archive containing it, archives of the same nesting level are independent
+      final List<List<JarInfo>> levels = new ArrayList<List<JarInfo>>();
       for (JarInfo jar : sortedJars) {
-        myContext.checkCanceled();
-        buildJar(jar);
+        final int level = getNestingLevel(jar);
+        while (levels.size() <= level) {
+          levels.add(new ArrayList<JarInfo>());
+        }
+        levels.get(level).add(jar);
+      }
+      for (int i = levels.size() - 1; i >= 0; i--) {
+        buildJars(levels.get(i));
       }
 
       myContext.processMessage(new ProgressMessage("Copying archives..."));
@@ -95,14 +132,132 @@ public class JarsBuilder {
       deleteTemporaryJars();
     }
 
-
+    String message = sortedJars.length + " archives built in " + (System.currentTimeMillis() - start) + "ms";
+    if (myPreviousArchives != null) {
+      message += ", " + myCopiedEntriesCount.get() + " entries copied, " + myCompressedEntriesCount.get() + " entries compressed";
+    }
+    LOG.info(message);
     return true;
   }
 
+  public static boolean isIncrementalPackagingEnabled() {
+    return Boolean.parseBoolean(System.getProperty(GlobalOptions.INCREMENTAL_ARCHIVES_OPTION));
+  }
+
+  private static int getNestingLevel(JarInfo jar) {
+    int level = 0;
+    DestinationInfo destination = jar.getDestination();
+    while (destination instanceof JarDestinationInfo) {
+      level++;
+      destination = ((JarDestinationInfo)destination).getJarInfo().getDestination();
+    }
+    return level;
+  }
+
+  private void buildJars(List<JarInfo> jars) throws IOException, ProjectBuildException {
+    if (jars.size() == 1 || IncProjectBuilder.MAX_BUILDER_THREADS <= 1) {
+      for (JarInfo jar : jars) {
+        myContext.checkCanceled();
+        buildJar(jar);
+      }
+      return;
+    }
+
+    final BoundedTaskExecutor executor = new BoundedTaskExecutor(SharedThreadPool.getInstance(), IncProjectBuilder.MAX_BUILDER_THREADS);
+    final List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (final JarInfo jar : jars) {
+      final FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          myContext.checkCanceled();
+          buildJar(jar);
+          return null;
+        }
+      });
+      executor.execute(task);
+      futures.add(task);
+    }
+
+    Throwable error = null;
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      }
+      catch (InterruptedException e) {
+        if (error == null) error = e;
+      }
+      catch (ExecutionException e) {
+        if (error == null) error = e.getCause();
+      }
+    }
+    if (error instanceof IOException) throw (IOException)error;
+    if (error instanceof ProjectBuildException) throw (ProjectBuildException)error;
+    if (error instanceof RuntimeException) throw (RuntimeException)error;
+    if (error instanceof Error) throw (Error)error;
+    if (error != null) throw new ProjectBuildException(error);
+  }
+
   private void deleteTemporaryJars() {
     for (File file : myBuiltJars.values()) {
       FileUtil.delete(file);
     }
+    for (File file : myExtractedPreviousJars) {
+      FileUtil.delete(file);
+    }
+  }
+
+  /**
+   * Returns the previous version of the archive or <code>null</code> if the archive didn't exist
+   */
+  @Nullable
+  private synchronized File getPreviousJar(JarInfo jar) throws IOException {
+    if (myPreviousJars.containsKey(jar)) {
+      return myPreviousJars.get(jar);
+    }
+
+    File previous = null;
+    final DestinationInfo destination = jar.getDestination();
+    if (destination instanceof ExplodedDestinationInfo) {
+      final String outputPath = destination.getOutputPath();
+      previous = myPreviousArchives != null ? myPreviousArchives.get(outputPath) : null;
+      if (previous == null) {
+        final File file = new File(FileUtil.toSystemDependentName(outputPath));
+        previous = file.isFile() ? file : null;
+      }
+    }
+    else if (destination instanceof JarDestinationInfo) {
+      final File parent = getPreviousJar(((JarDestinationInfo)destination).getJarInfo());
+      if (parent != null) {
+        previous = extractPreviousJar(parent, JpsArtifactPathUtil.trimForwardSlashes(((JarDestinationInfo)destination).getPathInJar()));
+      }
+    }
+    myPreviousJars.put(jar, previous);
+    return previous;
+  }
+
+  @Nullable
+  private File extractPreviousJar(File parentJar, String pathInJar) throws IOException {
+    final JBZipFile zipFile;
+    try {
+      zipFile = new JBZipFile(parentJar);
+    }
+    catch (IOException e) {
+      LOG.info("Cannot read previous version of archive " + parentJar + ": " + e.getMessage());
+      return null;
+    }
+    try {
+      final JBZipEntry entry = zipFile.getEntry(pathInJar);
+      if (entry == null || entry.isDirectory()) {
+        return null;
+      }
+      final File file = FileUtil.createTempFile("artifactCompiler", "prev");
+      myExtractedPreviousJars.add(file);
+      FileUtil.writeToFile(file, entry.getData());
+      return file;
+    }
+    finally {
+      zipFile.close();
+    }
   }
 
   private void copyJars() throws IOException {
@@ -142,6 +297,7 @@ public class JarsBuilder {
     }
 
     myContext.processMessage(new ProgressMessage("Building " + jar.getPresentableDestination() + "..."));
+    final long start = System.currentTimeMillis();
     File jarFile = FileUtil.createTempFile("artifactCompiler", "tmp");
     myBuiltJars.put(jar, jarFile);
 
@@ -149,7 +305,9 @@ public class JarsBuilder {
     final String targetJarPath = jar.getDestination().getOutputFilePath();
     List<String> packedFilePaths = new ArrayList<String>();
     Manifest manifest = loadManifest(jar, packedFilePaths);
-    final JarOutputStream jarOutputStream = createJarOutputStream(jarFile, manifest);
+    final ArchiveWriter writer = myPreviousArchives != null
+                                 ? new IncrementalArchiveWriter(jarFile, getPreviousJar(jar), manifest)
+                                 : new StreamArchiveWriter(createJarOutputStream(jarFile, manifest));
 
     final THashSet<String> writtenPaths = new THashSet<String>();
     try {
@@ -163,21 +321,21 @@ public class JarsBuilder {
           final ArtifactRootDescriptor descriptor = (ArtifactRootDescriptor)pair.getSecond();
           final int rootIndex = descriptor.getRootIndex();
           if (descriptor instanceof FileBasedArtifactRootDescriptor) {
-            addFileToJar(jarOutputStream, jarFile, descriptor.getRootFile(), descriptor.getFilter(), relativePath, targetJarPath, writtenPaths,
+            addFileToJar(writer, jarFile, descriptor.getRootFile(), descriptor.getFilter(), relativePath, targetJarPath, writtenPaths,
                          packedFilePaths, rootIndex);
           }
           else {
             final String filePath = FileUtil.toSystemIndependentName(descriptor.getRootFile().getAbsolutePath());
             packedFilePaths.add(filePath);
             myOutSrcMapping.appendData(targetJarPath, rootIndex, filePath);
-            extractFileAndAddToJar(jarOutputStream, (JarBasedArtifactRootDescriptor)descriptor, relativePath, writtenPaths);
+            extractFileAndAddToJar(writer, (JarBasedArtifactRootDescriptor)descriptor, relativePath, writtenPaths);
           }
         }
         else {
           JarInfo nestedJar = (JarInfo)pair.getSecond();
           File nestedJarFile = myBuiltJars.get(nestedJar);
           if (nestedJarFile != null) {
-            addFileToJar(jarOutputStream, jarFile, nestedJarFile, SourceFileFilter.ALL, relativePath, targetJarPath, writtenPaths,
+            addFileToJar(writer, jarFile, nestedJarFile, SourceFileFilter.ALL, relativePath, targetJarPath, writtenPaths,
                          packedFilePaths, -1);
           }
           else {
@@ -191,17 +349,18 @@ public class JarsBuilder {
         return;
       }
 
-      final ProjectBuilderLogger logger = myContext.getLoggingManager().getProjectBuilderLogger();
-      if (logger.isEnabled()) {
-        logger.logCompiledPaths(packedFilePaths, IncArtifactBuilder.BUILDER_NAME, "Packing files:");
+      synchronized (myOutputConsumer) {
+        final ProjectBuilderLogger logger = myContext.getLoggingManager().getProjectBuilderLogger();
+        if (logger.isEnabled()) {
+          logger.logCompiledPaths(packedFilePaths, IncArtifactBuilder.BUILDER_NAME, "Packing files:");
+        }
+        myOutputConsumer.registerOutputFile(new File(targetJarPath), packedFilePaths);
       }
-      myOutputConsumer.registerOutputFile(new File(targetJarPath), packedFilePaths);
-
     }
     finally {
       if (writtenPaths.isEmpty()) {
         try {
-          jarOutputStream.close();
+          writer.close();
         }
         catch (IOException ignored) {
         }
@@ -209,7 +368,10 @@ public class JarsBuilder {
         myBuiltJars.remove(jar);
       }
       else {
-        jarOutputStream.close();
+        writer.close();
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Archive " + jar.getPresentableDestination() + " built in " + (System.currentTimeMillis() - start) + "ms");
+        }
       }
     }
   }
@@ -278,48 +440,39 @@ public class JarsBuilder {
     }
   }
 
-  private static void extractFileAndAddToJar(final JarOutputStream jarOutputStream, final JarBasedArtifactRootDescriptor root,
+  private static void extractFileAndAddToJar(final ArchiveWriter writer, final JarBasedArtifactRootDescriptor root,
                                              final String relativeOutputPath, final Set<String> writtenPaths)
     throws IOException {
     final long timestamp = FileSystemUtil.lastModified(root.getRootFile());
     root.processEntries(new JarBasedArtifactRootDescriptor.EntryProcessor() {
       @Override
       public void process(@Nullable InputStream inputStream, @NotNull String relativePath, ZipEntry entry) throws IOException {
-        String pathInJar = addParentDirectories(jarOutputStream, writtenPaths, JpsArtifactPathUtil
+        String pathInJar = addParentDirectories(writer, writtenPaths, JpsArtifactPathUtil
           .appendToPath(relativeOutputPath, relativePath));
 
         if (inputStream == null) {
-          addDirectoryEntry(jarOutputStream, pathInJar + "/", writtenPaths);
+          addDirectoryEntry(writer, pathInJar + "/", writtenPaths);
         }
         else if (writtenPaths.add(pathInJar)) {
-          ZipEntry newEntry = new ZipEntry(pathInJar);
-          newEntry.setTime(timestamp);
-          if (entry.getMethod() == ZipEntry.STORED) {
-            newEntry.setMethod(ZipEntry.STORED);
-            newEntry.setSize(entry.getSize());
-            newEntry.setCrc(entry.getCrc());
-          }
-          jarOutputStream.putNextEntry(newEntry);
-          FileUtil.copy(inputStream, jarOutputStream);
-          jarOutputStream.closeEntry();
+          writer.addEntry(pathInJar, timestamp, entry, inputStream);
         }
       }
     });
 
   }
 
-  private void addFileToJar(final @NotNull JarOutputStream jarOutputStream, final @NotNull File jarFile, @NotNull File file,
+  private void addFileToJar(final @NotNull ArchiveWriter writer, final @NotNull File jarFile, @NotNull File file,
                             SourceFileFilter filter, @NotNull String relativePath, String targetJarPath,
                             final @NotNull Set<String> writtenPaths, List<String> packedFilePaths, final int rootIndex) throws IOException {
     if (!file.exists() || FileUtil.isAncestor(file, jarFile, false)) {
       return;
     }
 
-    relativePath = addParentDirectories(jarOutputStream, writtenPaths, relativePath);
-    addFileOrDirRecursively(jarOutputStream, file, filter, relativePath, targetJarPath, writtenPaths, packedFilePaths, rootIndex);
+    relativePath = addParentDirectories(writer, writtenPaths, relativePath);
+    addFileOrDirRecursively(writer, file, filter, relativePath, targetJarPath, writtenPaths, packedFilePaths, rootIndex);
   }
 
-  private void addFileOrDirRecursively(@NotNull ZipOutputStream jarOutputStream,
+  private void addFileOrDirRecursively(@NotNull ArchiveWriter writer,
                                        @NotNull File file,
                                        SourceFileFilter filter,
                                        @NotNull String relativePath,
@@ -335,19 +488,22 @@ public class JarsBuilder {
     if (file.isDirectory()) {
       final String directoryPath = relativePath.length() == 0 ? "" : relativePath + "/";
       if (!directoryPath.isEmpty()) {
-        addDirectoryEntry(jarOutputStream, directoryPath, writtenItemRelativePaths);
+        addDirectoryEntry(writer, directoryPath, writtenItemRelativePaths);
       }
       final File[] children = file.listFiles();
       if (children != null) {
         for (File child : children) {
-          addFileOrDirRecursively(jarOutputStream, child, filter, directoryPath + child.getName(), targetJarPath, writtenItemRelativePaths,
+          addFileOrDirRecursively(writer, child, filter, directoryPath + child.getName(), targetJarPath, writtenItemRelativePaths,
                                   packedFilePaths, rootIndex);
         }
       }
       return;
     }
 
-    final boolean added = ZipUtil.addFileToZip(jarOutputStream, file, relativePath, writtenItemRelativePaths, null);
+    final boolean added = writtenItemRelativePaths.add(relativePath);
+    if (added) {
+      writer.addFile(relativePath, file);
+    }
     if (rootIndex != -1) {
       myOutSrcMapping.appendData(targetJarPath, rootIndex, filePath);
       if (added) {
@@ -357,7 +513,7 @@ public class JarsBuilder {
   }
 
 
-  private static String addParentDirectories(JarOutputStream jarOutputStream, Set<String> writtenPaths, String relativePath) throws IOException {
+  private static String addParentDirectories(ArchiveWriter writer, Set<String> writtenPaths, String relativePath) throws IOException {
     while (StringUtil.startsWithChar(relativePath, '/')) {
       relativePath = relativePath.substring(1);
     }
@@ -365,22 +521,170 @@ public class JarsBuilder {
     while (i != -1) {
       String prefix = relativePath.substring(0, i+1);
       if (prefix.length() > 1) {
-        addDirectoryEntry(jarOutputStream, prefix, writtenPaths);
+        addDirectoryEntry(writer, prefix, writtenPaths);
       }
       i = relativePath.indexOf('/', i + 1);
     }
     return relativePath;
   }
 
-  private static void addDirectoryEntry(final ZipOutputStream output, @NonNls final String relativePath, Set<String> writtenPaths) throws IOException {
+  private static void addDirectoryEntry(final ArchiveWriter output, @NonNls final String relativePath, Set<String> writtenPaths) throws IOException {
     if (!writtenPaths.add(relativePath)) return;
 
-    ZipEntry e = new ZipEntry(relativePath);
-    e.setMethod(ZipEntry.STORED);
-    e.setSize(0);
-    e.setCrc(0);
-    output.putNextEntry(e);
-    output.closeEntry();
+    output.addDirectory(relativePath);
+  }
+
+  private interface ArchiveWriter {
+    void addDirectory(@NotNull String relativePath) throws IOException;
+
+    void addFile(@NotNull String relativePath, @NotNull File file) throws IOException;
+
+    void addEntry(@NotNull String relativePath, long timestamp, @NotNull ZipEntry entry, @NotNull InputStream content) throws IOException;
+
+    void close() throws IOException;
+  }
+
+  private static class StreamArchiveWriter implements ArchiveWriter {
+    private final JarOutputStream myOutput;
+
+    private StreamArchiveWriter(JarOutputStream output) {
+      myOutput = output;
+    }
+
+    @Override
+    public void addDirectory(@NotNull String relativePath) throws IOException {
+      ZipEntry e = new ZipEntry(relativePath);
+      e.setMethod(ZipEntry.STORED);
+      e.setSize(0);
+      e.setCrc(0);
+      myOutput.putNextEntry(e);
+      myOutput.closeEntry();
+    }
+
+    @Override
+    public void addFile(@NotNull String relativePath, @NotNull File file) throws IOException {
+      ZipUtil.addFileToZip(myOutput, file, relativePath, null, null);
+    }
+
+    @Override
+    public void addEntry(@NotNull String relativePath, long timestamp, @NotNull ZipEntry entry, @NotNull InputStream content)
+      throws IOException {
+      ZipEntry newEntry = new ZipEntry(relativePath);
+      newEntry.setTime(timestamp);
+      if (entry.getMethod() == ZipEntry.STORED) {
+        newEntry.setMethod(ZipEntry.STORED);
+        newEntry.setSize(entry.getSize());
+        newEntry.setCrc(entry.getCrc());
+      }
+      myOutput.putNextEntry(newEntry);
+      FileUtil.copy(content, myOutput);
+      myOutput.closeEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+      myOutput.close();
+    }
+  }
+
+  /**
+   * Writes an archive using its previous version: data of entries which weren't changed is copied as is, so only changed entries are
+   * compressed. Directory entries and the manifest keep their previous timestamps, so an archive with unchanged content (e.g. a nested
+   * archive) is written exactly as before.
+   */
+  private class IncrementalArchiveWriter implements ArchiveWriter {
+    private final JBZipFile myArchive;
+    @Nullable private final JBZipFile myPreviousArchive;
+
+    private IncrementalArchiveWriter(File file, @Nullable File previousFile, @Nullable Manifest manifest) throws IOException {
+      myArchive = new JBZipFile(file);
+      JBZipFile previousArchive = null;
+      if (previousFile != null) {
+        try {
+          previousArchive = new JBZipFile(previousFile);
+        }
+        catch (IOException e) {
+          LOG.info("Cannot read previous version of archive " + previousFile + ": " + e.getMessage());
+        }
+      }
+      myPreviousArchive = previousArchive;
+      if (manifest != null) {
+        final BufferExposingByteArrayOutputStream output = new BufferExposingByteArrayOutputStream();
+        manifest.write(output);
+        addData(JarFile.MANIFEST_NAME, output.toByteArray(), -1, ZipEntry.DEFLATED);
+      }
+    }
+
+    @Override
+    public void addDirectory(@NotNull String relativePath) throws IOException {
+      addData(relativePath, ArrayUtil.EMPTY_BYTE_ARRAY, -1, ZipEntry.STORED);
+    }
+
+    @Override
+    public void addFile(@NotNull String relativePath, @NotNull File file) throws IOException {
+      final byte[] content = FileUtil.loadFileBytes(file);
+      addData(relativePath, content, file.lastModified(), content.length == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED);
+    }
+
+    @Override
+    public void addEntry(@NotNull String relativePath, long timestamp, @NotNull ZipEntry entry, @NotNull InputStream content)
+      throws IOException {
+      final int method = entry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED;
+      final JBZipEntry previous = getPreviousEntry(relativePath);
+      if (previous != null && entry.getCrc() != -1 && isSame(previous, entry.getSize(), entry.getCrc(), method)) {
+        copyEntry(relativePath, timestamp, previous);
+      }
+      else {
+        addData(relativePath, FileUtil.loadBytes(content), timestamp, method);
+      }
+    }
+
+    /**
+     * @param timestamp -1 means that the timestamp of the previous version of the entry is kept
+     */
+    private void addData(@NotNull String relativePath, byte[] content, long timestamp, int method) throws IOException {
+      final JBZipEntry previous = getPreviousEntry(relativePath);
+      if (previous != null) {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        if (isSame(previous, content.length, crc.getValue(), method)) {
+          copyEntry(relativePath, timestamp, previous);
+          return;
+        }
+      }
+      final JBZipEntry newEntry = myArchive.getOrCreateEntry(relativePath);
+      newEntry.setMethod(method);
+      newEntry.setData(content, timestamp == -1 && previous != null ? previous.getTime() : timestamp);
+      myCompressedEntriesCount.incrementAndGet();
+    }
+
+    private void copyEntry(String relativePath, long timestamp, JBZipEntry previous) throws IOException {
+      final JBZipEntry newEntry = myArchive.getOrCreateEntry(relativePath);
+      newEntry.setTime(timestamp);
+      newEntry.setRawDataFrom(previous);
+      myCopiedEntriesCount.incrementAndGet();
+    }
+
+    @Nullable
+    private JBZipEntry getPreviousEntry(String relativePath) {
+      return myPreviousArchive != null ? myPreviousArchive.getEntry(relativePath) : null;
+    }
+
+    private boolean isSame(JBZipEntry entry, long size, long crc, int method) {
+      return entry.getSize() == size && entry.getCrc() == crc && entry.getMethod() == method;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        myArchive.close();
+      }
+      finally {
+        if (myPreviousArchive != null) {
+          myPreviousArchive.close();
+        }
+      }
+    }
   }
 
   private class JarsGraph implements GraphGenerator.SemiGraph<JarInfo> {
@@ -0,0 +1,470 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.java;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.io.FileUtil;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.incremental.BinaryContent;
+import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.javac.OutputFileConsumer;
+import org.jetbrains.jps.javac.OutputFileObject;
+
+import javax.tools.JavaFileObject;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Local cache of compiler output. An entry contains the files produced by compilation of a set of sources and is identified by a hash of
+ * the sources' content, the compiler options and the content of the classpath, so if exactly the same sources are compiled against the same
+ * classpath again (e.g. after switching back to a branch), the compiler output is restored from the cache instead of invoking the compiler.
+ * <p/>
+ * Jars and other file roots are identified by their path, length and timestamp, they are not rewritten in place. The content of directory
+ * roots (module outputs) is hashed, since a class may be rewritten with the same length within the file system's timestamp resolution.
+ * Digests of directory roots are computed once per build, except for the output roots of the chunk being compiled, which change between
+ * compilation rounds; their files are read again only if their length or timestamp changed, or if they were modified within the timestamp
+ * resolution of the time they were hashed. Roots of other chunks are complete by the time a chunk depending on them is compiled.
+ * <p/>
+ * Entries are stored in separate files; when the total size of the entries exceeds the limit, the least recently used entries are deleted.
+ */
+class CompileOutputCache {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.java.CompileOutputCache");
+  private static final Key<CompileOutputCache> CACHE_KEY = Key.create("_compile_output_cache_");
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int VERSION = 3;
+  private static final String ENTRY_EXTENSION = ".dat";
+  private static final int DEFAULT_MAX_SIZE_MB = 512;
+  private static final long TIMESTAMP_RESOLUTION = 2000;
+  private final File myDirectory;
+  private final long myMaxSize;
+  private final AtomicInteger myHitCount = new AtomicInteger();
+  private final AtomicInteger myMissCount = new AtomicInteger();
+  private final AtomicInteger myEvictionCount = new AtomicInteger();
+  private final AtomicInteger myHashedFileCount = new AtomicInteger();
+  private final ConcurrentMap<File, byte[]> myRootDigests = new ConcurrentHashMap<File, byte[]>();
+  private final ConcurrentMap<File, FileDigest> myFileDigests = new ConcurrentHashMap<File, FileDigest>();
+
+  CompileOutputCache(@NotNull File directory, long maxSize) {
+    myDirectory = directory;
+    myMaxSize = maxSize;
+  }
+
+  static void initialize(@NotNull CompileContext context) {
+    if (!Boolean.parseBoolean(System.getProperty(GlobalOptions.COMPILE_CACHE_OPTION))) {
+      CACHE_KEY.set(context, null);
+      return;
+    }
+    int maxSizeMb = DEFAULT_MAX_SIZE_MB;
+    final String maxSize = System.getProperty(GlobalOptions.COMPILE_CACHE_MAX_SIZE_OPTION);
+    if (maxSize != null) {
+      try {
+        maxSizeMb = Integer.parseInt(maxSize);
+      }
+      catch (NumberFormatException e) {
+        LOG.info("Incorrect compile cache size: " + maxSize);
+      }
+    }
+    final File root = context.getProjectDescriptor().dataManager.getDataPaths().getDataStorageRoot();
+    CACHE_KEY.set(context, new CompileOutputCache(new File(root, "compile-cache"), maxSizeMb * 1024L * 1024L));
+  }
+
+  @Nullable
+  static CompileOutputCache getInstance(@NotNull CompileContext context) {
+    return CACHE_KEY.get(context);
+  }
+
+  /**
+   * @param changingRoots output roots of the chunk being compiled, their changed files are hashed anew on every call
+   */
+  @NotNull
+  String computeKey(@NotNull Collection<File> files, @NotNull Collection<String> options, @NotNull Collection<File> classpath,
+                    @NotNull Collection<File> platformClasspath, @NotNull Collection<File> sourcePath,
+                    @NotNull Collection<File> changingRoots) throws IOException {
+    final MessageDigest digest = createDigest();
+    update(digest, String.valueOf(VERSION));
+    update(digest, System.getProperty("java.version"));
+    for (String option : options) {
+      update(digest, option);
+    }
+
+    final List<File> sortedFiles = new ArrayList<File>(files);
+    Collections.sort(sortedFiles);
+    update(digest, "sources");
+    for (File file : sortedFiles) {
+      update(digest, file.getPath());
+      digest.update(FileUtil.loadFileBytes(file));
+    }
+
+    final Set<File> changing = new THashSet<File>(changingRoots, FileUtil.FILE_HASHING_STRATEGY);
+    update(digest, "classpath");
+    for (File file : classpath) {
+      updateWithRootDigest(digest, file, changing.contains(file));
+    }
+    update(digest, "platform classpath");
+    for (File file : platformClasspath) {
+      updateWithRootDigest(digest, file, changing.contains(file));
+    }
+    update(digest, "sourcepath");
+    for (File file : sourcePath) {
+      updateWithRootDigest(digest, file, changing.contains(file));
+    }
+
+    final StringBuilder key = new StringBuilder();
+    for (byte b : digest.digest()) {
+      key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return key.toString();
+  }
+
+  private void updateWithRootDigest(MessageDigest digest, File root, boolean changing) throws IOException {
+    update(digest, root.getPath());
+    if (root.isFile()) {
+      update(digest, root.length() + ":" + root.lastModified());
+      return;
+    }
+    byte[] rootDigest = changing ? null : myRootDigests.get(root);
+    if (rootDigest == null) {
+      final MessageDigest contentDigest = createDigest();
+      updateWithContent(contentDigest, root, "", new byte[64 * 1024]);
+      rootDigest = contentDigest.digest();
+      if (!changing) {
+        myRootDigests.put(root, rootDigest);
+      }
+    }
+    digest.update(rootDigest);
+  }
+
+  private void updateWithContent(MessageDigest digest, File file, String relativePath, byte[] buffer) throws IOException {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      Arrays.sort(children);
+      for (File child : children) {
+        updateWithContent(digest, child, relativePath + "/" + child.getName(), buffer);
+      }
+    }
+    else if (file.isFile()) {
+      update(digest, relativePath);
+      digest.update(getFileDigest(file, buffer));
+    }
+  }
+
+  private byte[] getFileDigest(File file, byte[] buffer) throws IOException {
+    final long length = file.length();
+    final long timestamp = file.lastModified();
+    final FileDigest cached = myFileDigests.get(file);
+    if (cached != null && cached.myLength == length && cached.myTimestamp == timestamp &&
+        timestamp + TIMESTAMP_RESOLUTION < cached.myHashingTime) {
+      return cached.myDigest;
+    }
+
+    final long hashingTime = System.currentTimeMillis();
+    final MessageDigest digest = createDigest();
+    final InputStream input = new FileInputStream(file);
+    try {
+      int read;
+      while ((read = input.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    finally {
+      input.close();
+    }
+    myHashedFileCount.incrementAndGet();
+    final byte[] fileDigest = digest.digest();
+    myFileDigests.put(file, new FileDigest(length, timestamp, hashingTime, fileDigest));
+    return fileDigest;
+  }
+
+  private static MessageDigest createDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static void update(MessageDigest digest, String s) {
+    digest.update(s.getBytes(UTF_8));
+    digest.update((byte)0);
+  }
+
+  /**
+   * Passes files stored in the entry to the consumer as if they were produced by the compiler.
+   *
+   * @return false if there is no entry for the key
+   */
+  boolean restore(@NotNull String key, @NotNull OutputFileConsumer consumer) {
+    final File entryFile = getEntryFile(key);
+    List<CachedFile> files = null;
+    if (entryFile.isFile()) {
+      try {
+        files = readEntry(entryFile);
+      }
+      catch (IOException e) {
+        LOG.info("Cannot read compile cache entry " + entryFile + ": " + e.getMessage());
+        FileUtil.delete(entryFile);
+      }
+    }
+    if (files == null) {
+      myMissCount.incrementAndGet();
+      return false;
+    }
+
+    myHitCount.incrementAndGet();
+    //noinspection ResultOfMethodCallIgnored
+    entryFile.setLastModified(System.currentTimeMillis());
+    for (CachedFile file : files) {
+      final File outputFile = new File(file.myPath);
+      final File sourceFile = file.mySourcePath != null ? new File(file.mySourcePath) : null;
+      consumer.save(new OutputFileObject(null, file.myOutputRoot != null ? new File(file.myOutputRoot) : null, file.myRelativePath,
+                                         outputFile, file.myKind, file.myClassName, sourceFile != null ? sourceFile.toURI() : null,
+                                         new BinaryContent(file.myContent)));
+    }
+    return true;
+  }
+
+  private static List<CachedFile> readEntry(File entryFile) throws IOException {
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(entryFile))));
+    try {
+      if (input.readInt() != VERSION) {
+        throw new IOException("Unsupported version");
+      }
+      final List<CachedFile> files = new ArrayList<CachedFile>();
+      while (input.readBoolean()) {
+        final JavaFileObject.Kind kind = JavaFileObject.Kind.valueOf(input.readUTF());
+        final String outputRoot = readNullableString(input);
+        final String relativePath = readNullableString(input);
+        final String path = input.readUTF();
+        final String className = readNullableString(input);
+        final String sourcePath = readNullableString(input);
+        final byte[] content = new byte[input.readInt()];
+        input.readFully(content);
+        files.add(new CachedFile(kind, outputRoot, relativePath, path, className, sourcePath, content));
+      }
+      return files;
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Returns a consumer which records files passed to the delegate consumer in a new entry; the entry becomes available after
+   * {@link Recorder#commit()}.
+   */
+  @NotNull
+  Recorder startRecording(@NotNull String key, @NotNull OutputFileConsumer delegate) throws IOException {
+    FileUtil.createDirectory(myDirectory);
+    return new Recorder(key, File.createTempFile("entry_" + key, ".tmp", myDirectory), delegate);
+  }
+
+  private File getEntryFile(String key) {
+    return new File(myDirectory, key + ENTRY_EXTENSION);
+  }
+
+  private synchronized void evictEntries() {
+    final File[] entries = myDirectory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().endsWith(ENTRY_EXTENSION);
+      }
+    });
+    if (entries == null) {
+      return;
+    }
+    long totalSize = 0;
+    for (File entry : entries) {
+      totalSize += entry.length();
+    }
+    if (totalSize <= myMaxSize) {
+      return;
+    }
+    Arrays.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File o1, File o2) {
+        final long modified1 = o1.lastModified();
+        final long modified2 = o2.lastModified();
+        return modified1 < modified2 ? -1 : modified1 == modified2 ? 0 : 1;
+      }
+    });
+    for (File entry : entries) {
+      if (totalSize <= myMaxSize) break;
+      final long length = entry.length();
+      if (FileUtil.delete(entry)) {
+        totalSize -= length;
+        myEvictionCount.incrementAndGet();
+      }
+    }
+  }
+
+  int getHitCount() {
+    return myHitCount.get();
+  }
+
+  int getMissCount() {
+    return myMissCount.get();
+  }
+
+  int getEvictionCount() {
+    return myEvictionCount.get();
+  }
+
+  int getHashedFileCount() {
+    return myHashedFileCount.get();
+  }
+
+  @Nullable
+  private static String readNullableString(DataInput input) throws IOException {
+    return input.readBoolean() ? input.readUTF() : null;
+  }
+
+  private static void writeNullableString(DataOutput output, @Nullable String s) throws IOException {
+    output.writeBoolean(s != null);
+    if (s != null) {
+      output.writeUTF(s);
+    }
+  }
+
+  class Recorder implements OutputFileConsumer {
+    private final String myKey;
+    private final File myTempFile;
+    private final OutputFileConsumer myDelegate;
+    private final DataOutputStream myOutput;
+    private boolean myFailed;
+
+    private Recorder(String key, File tempFile, OutputFileConsumer delegate) throws IOException {
+      myKey = key;
+      myTempFile = tempFile;
+      myDelegate = delegate;
+      myOutput = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(new FileOutputStream(tempFile))));
+      myOutput.writeInt(VERSION);
+    }
+
+    @Override
+    public void save(@NotNull OutputFileObject fileObject) {
+      final BinaryContent content = fileObject.getContent();
+      myDelegate.save(fileObject);
+      synchronized (this) {
+        if (content == null) {
+          myFailed = true;
+        }
+        if (!myFailed) {
+          try {
+            myOutput.writeBoolean(true);
+            myOutput.writeUTF(fileObject.getKind().name());
+            final File outputRoot = fileObject.getOutputRoot();
+            writeNullableString(myOutput, outputRoot != null ? outputRoot.getPath() : null);
+            writeNullableString(myOutput, fileObject.getRelativePath());
+            myOutput.writeUTF(fileObject.getFile().getPath());
+            writeNullableString(myOutput, fileObject.getClassName());
+            final File sourceFile = fileObject.getSourceFile();
+            writeNullableString(myOutput, sourceFile != null ? sourceFile.getPath() : null);
+            myOutput.writeInt(content.getLength());
+            myOutput.write(content.getBuffer(), content.getOffset(), content.getLength());
+          }
+          catch (IOException e) {
+            LOG.info("Cannot write compile cache entry " + myTempFile + ": " + e.getMessage());
+            myFailed = true;
+          }
+        }
+      }
+    }
+
+    /**
+     * Stores the recorded files as the entry for the key
+     */
+    synchronized void commit() {
+      try {
+        myOutput.writeBoolean(false);
+      }
+      catch (IOException e) {
+        myFailed = true;
+      }
+      close();
+      if (!myFailed) {
+        final File entryFile = getEntryFile(myKey);
+        FileUtil.delete(entryFile);
+        if (myTempFile.renameTo(entryFile)) {
+          evictEntries();
+          return;
+        }
+      }
+      FileUtil.delete(myTempFile);
+    }
+
+    synchronized void discard() {
+      close();
+      FileUtil.delete(myTempFile);
+    }
+
+    private void close() {
+      try {
+        myOutput.close();
+      }
+      catch (IOException e) {
+        myFailed = true;
+      }
+    }
+  }
+
+  private static class FileDigest {
+    private final long myLength;
+    private final long myTimestamp;
+    private final long myHashingTime;
+    private final byte[] myDigest;
+
+    private FileDigest(long length, long timestamp, long hashingTime, byte[] digest) {
+      myLength = length;
+      myTimestamp = timestamp;
+      myHashingTime = hashingTime;
+      myDigest = digest;
+    }
+  }
+
+  private static class CachedFile {
+    private final JavaFileObject.Kind myKind;
+    @Nullable private final String myOutputRoot;
+    @Nullable private final String myRelativePath;
+    private final String myPath;
+    @Nullable private final String myClassName;
+    @Nullable private final String mySourcePath;
+    private final byte[] myContent;
+
+    private CachedFile(JavaFileObject.Kind kind, @Nullable String outputRoot, @Nullable String relativePath, String path,
+                       @Nullable String className, @Nullable String sourcePath, byte[] content) {
+      myKind = kind;
+      myOutputRoot = outputRoot;
+      myRelativePath = relativePath;
+      myPath = path;
+      myClassName = className;
+      mySourcePath = sourcePath;
+      myContent = content;
+    }
+  }
+}
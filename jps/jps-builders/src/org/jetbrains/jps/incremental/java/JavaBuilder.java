@@ -146,6 +146,16 @@ public class JavaBuilder extends ModuleLevelBuilder {
       messageText = "Using eclipse compiler to compile java sources";
     }
     COMPILER_VERSION_INFO.set(context, new AtomicReference<String>(messageText));
+    CompileOutputCache.initialize(context);
+  }
+
+  @Override
+  public void buildFinished(CompileContext context) {
+    final CompileOutputCache cache = CompileOutputCache.getInstance(context);
+    if (cache != null && cache.getHitCount() + cache.getMissCount() > 0) {
+      LOG.info("Compile cache: " + cache.getHitCount() + " hits, " + cache.getMissCount() + " misses, " +
+               cache.getEvictionCount() + " entries evicted");
+    }
   }
 
   @Override
@@ -304,8 +314,14 @@ public class JavaBuilder extends ModuleLevelBuilder {
       }
     }
     finally {
-      if (JavaBuilderUtil.updateMappings(context, delta, dirtyFilesHolder, chunk, files, outputSink.getSuccessfullyCompiled())) {
-        exitCode = ExitCode.ADDITIONAL_PASS_REQUIRED;
+      if (outputSink.waitForPendingAnalyses()) {
+        if (JavaBuilderUtil.updateMappings(context, delta, dirtyFilesHolder, chunk, files, outputSink.getSuccessfullyCompiled())) {
+          exitCode = ExitCode.ADDITIONAL_PASS_REQUIRED;
+        }
+      }
+      else {
+        // the delta misses some of the compiled classes, so don't integrate it and compile the chunk again next time
+        FSOperations.markDirty(context, chunk, null);
       }
     }
 
@@ -369,18 +385,43 @@ public class JavaBuilder extends ModuleLevelBuilder {
     if (LOG.isDebugEnabled()) {
       LOG.debug("Compiling chunk [" + chunk.getName() + "] with options: \"" + StringUtil.join(options, " ") + "\"");
     }
+
+    // output of annotation processors may depend on anything, so it isn't cached
+    final CompileOutputCache cache = profile != null && profile.isEnabled() ? null : CompileOutputCache.getInstance(context);
+    CompileOutputCache.Recorder recorder = null;
+    if (cache != null) {
+      try {
+        final String key = cache.computeKey(files, options, classpath, platformCp, sourcePath, outs.keySet());
+        try {
+          if (cache.restore(key, classesConsumer)) {
+            LOG.info("Compiler output for chunk [" + chunk.getName() + "] restored from compile cache");
+            context.processMessage(new ProgressMessage("Restored java classes from compile cache [" + chunk.getName() + "]"));
+            return true;
+          }
+        }
+        finally {
+          counter.await();
+        }
+        recorder = cache.startRecording(key, classesConsumer);
+      }
+      catch (IOException e) {
+        LOG.info("Compile cache isn't used for chunk [" + chunk.getName() + "]: " + e.getMessage());
+      }
+    }
+
+    boolean rc = false;
     try {
-      final boolean rc;
+      final OutputFileConsumer compilerOutputSink = recorder != null ? recorder : classesConsumer;
       if (USE_EMBEDDED_JAVAC) {
         final boolean useEclipse = useEclipseCompiler(context);
         rc = JavacMain.compile(
-          options, files, classpath, platformCp, sourcePath, outs, diagnosticSink, classesConsumer, context.getCancelStatus(), useEclipse
+          options, files, classpath, platformCp, sourcePath, outs, diagnosticSink, compilerOutputSink, context.getCancelStatus(), useEclipse
         );
       }
       else {
         final JavacServerClient client = ensureJavacServerLaunched(context);
         final RequestFuture<JavacServerResponseHandler> future = client.sendCompileRequest(
-          options, files, classpath, platformCp, sourcePath, outs, diagnosticSink, classesConsumer
+          options, files, classpath, platformCp, sourcePath, outs, diagnosticSink, compilerOutputSink
         );
         while (!future.waitFor(100L, TimeUnit.MILLISECONDS)) {
           if (context.getCancelStatus().isCanceled()) {
@@ -393,6 +434,14 @@ public class JavaBuilder extends ModuleLevelBuilder {
     }
     finally {
       counter.await();
+      if (recorder != null) {
+        if (rc && !context.getCancelStatus().isCanceled()) {
+          recorder.commit();
+        }
+        else {
+          recorder.discard();
+        }
+      }
     }
   }
 
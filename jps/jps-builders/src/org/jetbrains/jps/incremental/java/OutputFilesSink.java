@@ -17,23 +17,31 @@ package org.jetbrains.jps.incremental.java;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
 import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
+import org.jetbrains.jps.cmdline.BuildRunner;
 import org.jetbrains.jps.incremental.*;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
 import org.jetbrains.jps.incremental.messages.ProgressMessage;
 import org.jetbrains.jps.javac.OutputFileConsumer;
 import org.jetbrains.jps.javac.OutputFileObject;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import javax.tools.JavaFileObject;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
 * @author Eugene Zhuravlev
@@ -46,15 +54,31 @@ class OutputFilesSink implements OutputFileConsumer {
   private final Callbacks.Backend myMappingsCallback;
   private final String myChunkName;
   private final Set<File> mySuccessfullyCompiled = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+  private final List<Future<?>> myPendingAnalyses = new ArrayList<Future<?>>();
+  // class files are analyzed off the compiler thread when chunks are built in parallel and have own mappings deltas
+  private static final BoundedTaskExecutor ourAnalysisExecutor = BuildRunner.PARALLEL_BUILD_ENABLED ?
+    new BoundedTaskExecutor(SharedThreadPool.getInstance(), IncProjectBuilder.MAX_BUILDER_THREADS) : null;
+  @Nullable private final BoundedTaskExecutor myAnalysisExecutor;
+  private volatile boolean myAnalysesCancelled;
+  private volatile boolean myAnalysesSkipped;
 
   public OutputFilesSink(CompileContext context,
                          ModuleLevelBuilder.OutputConsumer outputConsumer,
                          Callbacks.Backend callback,
                          String chunkName) {
+    this(context, outputConsumer, callback, chunkName, ourAnalysisExecutor);
+  }
+
+  OutputFilesSink(CompileContext context,
+                  ModuleLevelBuilder.OutputConsumer outputConsumer,
+                  Callbacks.Backend callback,
+                  String chunkName,
+                  @Nullable BoundedTaskExecutor analysisExecutor) {
     myContext = context;
     myOutputConsumer = outputConsumer;
     myMappingsCallback = callback;
     myChunkName = "[" +chunkName + "]";
+    myAnalysisExecutor = analysisExecutor;
   }
 
   public void save(final @NotNull OutputFileObject fileObject) {
@@ -86,18 +110,7 @@ class OutputFilesSink implements OutputFileConsumer {
 
       if (!isTemp && outKind == JavaFileObject.Kind.CLASS && !Utils.errorsDetected(myContext)) {
         // register in mappings any non-temp class file
-        try {
-          final ClassReader reader = new ClassReader(content.getBuffer(), content.getOffset(), content.getLength());
-          myMappingsCallback.associate(FileUtil.toSystemIndependentName(fileObject.getFile().getPath()), sourcePath, reader);
-        }
-        catch (Throwable e) {
-          // need this to make sure that unexpected errors in, for example, ASM will not ruin the compilation  
-          final String message = "Class dependency information may be incomplete! Error parsing generated class " + fileObject.getFile().getPath();
-          LOG.info(message, e);
-          myContext.processMessage(new CompilerMessage(
-            JavaBuilder.BUILDER_NAME, BuildMessage.Kind.WARNING, message + "\n" + CompilerMessage.getTextFromThrowable(e), sourcePath)
-          );
-        }
+        registerInMappings(fileObject.getFile(), sourcePath, content);
       }
     }
 
@@ -109,6 +122,77 @@ class OutputFilesSink implements OutputFileConsumer {
     }
   }
 
+  void registerInMappings(@NotNull final File classFile, @NotNull final String sourcePath, @NotNull final BinaryContent content) {
+    if (myAnalysisExecutor == null) {
+      associate(classFile, sourcePath, content);
+      return;
+    }
+    final Future<?> future = myAnalysisExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        if (myAnalysesCancelled) {
+          myAnalysesSkipped = true;
+        }
+        else {
+          associate(classFile, sourcePath, content);
+        }
+      }
+    });
+    synchronized (myPendingAnalyses) {
+      myPendingAnalyses.add(future);
+    }
+  }
+
+  private void associate(@NotNull File classFile, @NotNull String sourcePath, @NotNull BinaryContent content) {
+    try {
+      final ClassReader reader = new ClassReader(content.getBuffer(), content.getOffset(), content.getLength());
+      myMappingsCallback.associate(FileUtil.toSystemIndependentName(classFile.getPath()), sourcePath, reader);
+    }
+    catch (Throwable e) {
+      // need this to make sure that unexpected errors in, for example, ASM will not ruin the compilation  
+      final String message = "Class dependency information may be incomplete! Error parsing generated class " + classFile.getPath();
+      LOG.info(message, e);
+      myContext.processMessage(new CompilerMessage(
+        JavaBuilder.BUILDER_NAME, BuildMessage.Kind.WARNING, message + "\n" + CompilerMessage.getTextFromThrowable(e), sourcePath)
+      );
+    }
+  }
+
+  /**
+   * Waits until all class files saved so far are registered in mappings. If the thread is interrupted, analyses that haven't started
+   * yet are skipped, the running ones are still waited for, so that nothing writes into the mappings delta after this method returns.
+   *
+   * @return false if some class files were not registered in mappings because of the interruption
+   */
+  public boolean waitForPendingAnalyses() {
+    final List<Future<?>> pending;
+    synchronized (myPendingAnalyses) {
+      pending = new ArrayList<Future<?>>(myPendingAnalyses);
+      myPendingAnalyses.clear();
+    }
+    boolean interrupted = false;
+    for (Future<?> future : pending) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+          myAnalysesCancelled = true;
+        }
+        catch (ExecutionException e) {
+          LOG.error(e); // not expected: associate() reports its own failures
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return !myAnalysesSkipped;
+  }
+
   public Set<File> getSuccessfullyCompiled() {
     return Collections.unmodifiableSet(mySuccessfullyCompiled);
   }
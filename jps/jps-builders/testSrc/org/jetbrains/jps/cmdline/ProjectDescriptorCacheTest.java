@@ -0,0 +1,221 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.cmdline;
+
+import com.intellij.openapi.util.io.FileUtil;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jetbrains.jps.api.BuildParametersKeys;
+import org.jetbrains.jps.api.CmdlineProtoUtil;
+import org.jetbrains.jps.api.CmdlineRemoteProto;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+public class ProjectDescriptorCacheTest extends JpsBuildTestCase {
+  private File myOldSystemRoot;
+  private File mySystemRoot;
+  private File myOptionsDir;
+  private String myProjectPath;
+  private ProjectDescriptorCache myCache;
+  private long myEventOrdinal;
+  private boolean myBrokenConnection;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myOldSystemRoot = Utils.getSystemRoot();
+    mySystemRoot = FileUtil.createTempDirectory("system", null);
+    Utils.setSystemRoot(mySystemRoot);
+    myOptionsDir = FileUtil.createTempDirectory("options", null);
+    myCache = new ProjectDescriptorCache();
+
+    createFile(".idea/misc.xml", "<project version=\"4\">\n" +
+                                 "  <component name=\"ProjectRootManager\" version=\"2\">\n" +
+                                 "    <output url=\"file://$PROJECT_DIR$/out\" />\n" +
+                                 "  </component>\n" +
+                                 "</project>");
+    createFile(".idea/modules.xml", "<project version=\"4\">\n" +
+                                    "  <component name=\"ProjectModuleManager\">\n" +
+                                    "    <modules>\n" +
+                                    "      <module fileurl=\"file://$PROJECT_DIR$/m.iml\" filepath=\"$PROJECT_DIR$/m.iml\" />\n" +
+                                    "    </modules>\n" +
+                                    "  </component>\n" +
+                                    "</project>");
+    createFile(".idea/compiler.xml", "<project version=\"4\">\n" +
+                                     "  <component name=\"CompilerConfiguration\">\n" +
+                                     "    <wildcardResourcePatterns>\n" +
+                                     "      <entry name=\"?*.txt\" />\n" +
+                                     "    </wildcardResourcePatterns>\n" +
+                                     "  </component>\n" +
+                                     "</project>");
+    createModuleFile("src");
+    createFile("src/a.txt", "a");
+    createFile("res/b.txt", "b");
+    myProjectPath = FileUtil.toCanonicalPath(getOrCreateProjectDir().getPath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myCache.drop();
+      Utils.setSystemRoot(myOldSystemRoot);
+      FileUtil.delete(mySystemRoot);
+      FileUtil.delete(myOptionsDir);
+      FileUtil.delete(getOrCreateProjectDir());
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testDescriptorIsReusedBySessionsOfProcess() {
+    assertTrue(runSession());
+    ProjectDescriptor descriptor = acquireCached();
+    assertNotNull(descriptor);
+    descriptor.release();
+    assertFalse(descriptor.isReleased());
+    assertTrue(new File(getAbsolutePath("out/production/m/a.txt")).isFile());
+
+    assertTrue(runSession(createFile("src/c.txt", "c")));
+    assertTrue(new File(getAbsolutePath("out/production/m/c.txt")).isFile());
+    ProjectDescriptor reused = acquireCached();
+    assertSame(descriptor, reused);
+    reused.release();
+
+    myCache.drop();
+    assertTrue(descriptor.isReleased());
+  }
+
+  public void testFailedSessionDropsDescriptor() {
+    assertTrue(runSession());
+    ProjectDescriptor descriptor = acquireCached();
+    assertNotNull(descriptor);
+    descriptor.release();
+
+    // the storages of a build which failed with an internal error can't be trusted by the next session
+    myBrokenConnection = true;
+    assertFalse(runSession(createFile("src/c.txt", "c")));
+    myBrokenConnection = false;
+    assertTrue(descriptor.isReleased());
+
+    assertTrue(runSession());
+    ProjectDescriptor reloaded = acquireCached();
+    assertNotSame(descriptor, reloaded);
+    reloaded.release();
+  }
+
+  public void testMissingDataRootDropsDescriptor() {
+    assertTrue(runSession());
+    ProjectDescriptor descriptor = acquireCached();
+    assertNotNull(descriptor);
+    descriptor.release();
+
+    assertTrue(FileUtil.delete(Utils.getDataStorageRoot(myProjectPath)));
+    assertTrue(runSession());
+    assertTrue(descriptor.isReleased());
+    ProjectDescriptor reloaded = acquireCached();
+    assertNotSame(descriptor, reloaded);
+    reloaded.release();
+  }
+
+  public void testConfigurationChangeDropsDescriptor() throws IOException {
+    assertTrue(runSession());
+    ProjectDescriptor descriptor = acquireCached();
+    assertNotNull(descriptor);
+    descriptor.release();
+
+    change(createModuleFile("res"));
+    assertTrue(runSession());
+    assertTrue(descriptor.isReleased());
+    assertTrue(new File(getAbsolutePath("out/production/m/b.txt")).isFile());
+    ProjectDescriptor reloaded = acquireCached();
+    assertNotSame(descriptor, reloaded);
+    reloaded.release();
+
+    change(createFile(".idea/workspace.xml", "<project version=\"4\" />"));
+    assertTrue(runSession());
+    ProjectDescriptor reused = acquireCached();
+    assertSame(reloaded, reused);
+    reused.release();
+
+    File jdkTable = new File(myOptionsDir, "jdk.table.xml");
+    FileUtil.writeToFile(jdkTable, "<application />");
+    change(jdkTable.getPath());
+    assertTrue(runSession());
+    assertTrue(reloaded.isReleased());
+    myCache.drop();
+  }
+
+  private String createModuleFile(String sourceRoot) {
+    return createFile("m.iml", "<module type=\"JAVA_MODULE\" version=\"4\">\n" +
+                               "  <component name=\"NewModuleRootManager\" inherit-compiler-output=\"true\">\n" +
+                               "    <content url=\"file://$MODULE_DIR$\">\n" +
+                               "      <sourceFolder url=\"file://$MODULE_DIR$/" + sourceRoot + "\" isTestSource=\"false\" />\n" +
+                               "    </content>\n" +
+                               "    <orderEntry type=\"sourceFolder\" forTests=\"false\" />\n" +
+                               "  </component>\n" +
+                               "</module>");
+  }
+
+  private ProjectDescriptor acquireCached() {
+    return myCache.acquire(myProjectPath, Utils.getDataStorageRoot(myProjectPath), FileUtil.toCanonicalPath(myOptionsDir.getPath()));
+  }
+
+  /**
+   * @return false if the session failed with an internal error
+   */
+  private boolean runSession(String... changedPaths) {
+    CmdlineRemoteProto.Message.ControllerMessage.GlobalSettings globals =
+      CmdlineRemoteProto.Message.ControllerMessage.GlobalSettings.newBuilder().setGlobalOptionsPath(myOptionsDir.getPath()).build();
+    CmdlineRemoteProto.Message.ControllerMessage.FSEvent event =
+      CmdlineRemoteProto.Message.ControllerMessage.FSEvent.newBuilder().setOrdinal(++myEventOrdinal).addAllChangedPaths(Arrays.asList(changedPaths)).build();
+    CmdlineRemoteProto.Message.ControllerMessage request = CmdlineProtoUtil.createBuildRequest(
+      myProjectPath, CmdlineProtoUtil.createAllModulesScopes(false), Collections.<String>emptyList(),
+      Collections.singletonMap(BuildParametersKeys.FORCE_MODEL_LOADING, "true"), globals, event);
+
+    EmbeddedChannel channel = new EmbeddedChannel() {
+      @Override
+      public ChannelFuture writeAndFlush(Object msg) {
+        final CmdlineRemoteProto.Message message = (CmdlineRemoteProto.Message)msg;
+        // let the final message of the session through
+        if (myBrokenConnection && message.getType() == CmdlineRemoteProto.Message.Type.BUILDER_MESSAGE &&
+            message.getBuilderMessage().getType() != CmdlineRemoteProto.Message.BuilderMessage.Type.BUILD_EVENT) {
+          throw new IllegalStateException("connection is broken");
+        }
+        return super.writeAndFlush(msg);
+      }
+    };
+    new BuildSession(UUID.randomUUID(), channel, request.getParamsMessage(), request.getFsEvent(), myCache).run();
+
+    CmdlineRemoteProto.Message last = null;
+    for (Object message = channel.readOutbound(); message != null; message = channel.readOutbound()) {
+      last = (CmdlineRemoteProto.Message)message;
+    }
+    assertNotNull(last);
+    if (last.getType() == CmdlineRemoteProto.Message.Type.FAILURE) {
+      return false;
+    }
+    assertEquals(CmdlineRemoteProto.Message.BuilderMessage.BuildEvent.Type.BUILD_COMPLETED,
+                 last.getBuilderMessage().getBuildEvent().getEventType());
+    return true;
+  }
+}
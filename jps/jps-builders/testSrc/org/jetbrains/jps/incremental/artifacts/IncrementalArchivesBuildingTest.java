@@ -0,0 +1,76 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts;
+
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.model.artifact.JpsArtifact;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.intellij.util.io.TestFileSystemItem.fs;
+import static org.jetbrains.jps.incremental.artifacts.LayoutElementTestUtil.archive;
+
+/**
+ * Runs the incremental building tests with archives rewritten incrementally.
+ */
+public class IncrementalArchivesBuildingTest extends IncrementalArtifactBuildingTest {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    System.setProperty(GlobalOptions.INCREMENTAL_ARCHIVES_OPTION, "true");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.INCREMENTAL_ARCHIVES_OPTION);
+    super.tearDown();
+  }
+
+  public void testUnchangedNestedArchiveIsPreserved() throws IOException {
+    String file1 = createFile("dir/a.txt", "aaa");
+    String file2 = createFile("b.txt", "bbb");
+    final JpsArtifact a = addArtifact(archive("a.jar").fileCopy(file2).archive("c.jar").parentDirCopy(file1));
+    buildAll();
+    final ZipEntry nested = getEntry(a, "c.jar");
+
+    change(file2, "xxx");
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("b.txt", "xxx").archive("c.jar").file("a.txt", "aaa"));
+    final ZipEntry rebuiltNested = getEntry(a, "c.jar");
+    assertEquals(nested.getSize(), rebuiltNested.getSize());
+    assertEquals(nested.getCrc(), rebuiltNested.getCrc());
+
+    change(file1, "yyy");
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("b.txt", "xxx").archive("c.jar").file("a.txt", "yyy"));
+    buildAllAndAssertUpToDate();
+  }
+
+  private static ZipEntry getEntry(JpsArtifact artifact, String name) throws IOException {
+    final ZipFile zipFile = new ZipFile(new File(artifact.getOutputPath(), "a.jar"));
+    try {
+      final ZipEntry entry = zipFile.getEntry(name);
+      assertNotNull(entry);
+      return entry;
+    }
+    finally {
+      zipFile.close();
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.java;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.BuildResult;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.BinaryContent;
+import org.jetbrains.jps.incremental.messages.BuildMessage;
+import org.jetbrains.jps.javac.OutputFileConsumer;
+import org.jetbrains.jps.javac.OutputFileObject;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import javax.tools.JavaFileObject;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class CompileOutputCacheTest extends JpsBuildTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    System.setProperty(GlobalOptions.COMPILE_CACHE_OPTION, "true");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.COMPILE_CACHE_OPTION);
+    super.tearDown();
+  }
+
+  public void testRestoreOutputAfterRevertingChange() {
+    String a = createFile("src/A.java", "public class A {}");
+    JpsModule module = addModule("m", PathUtil.getParentPath(a));
+    assertFalse(isRestoredFromCache(makeAll()));
+    File classFile = new File(JpsJavaExtensionService.getInstance().getOutputDirectory(module, false), "A.class");
+    byte[] content = loadBytes(classFile);
+
+    change(a, "public class A { public void foo() {} }");
+    assertFalse(isRestoredFromCache(makeAll()));
+    assertFalse(Arrays.equals(content, loadBytes(classFile)));
+
+    change(a, "public class A {}");
+    assertTrue(isRestoredFromCache(makeAll()));
+    assertTrue(Arrays.equals(content, loadBytes(classFile)));
+    makeAll().assertUpToDate();
+  }
+
+  public void testKeyDependsOnSourcesAndOptions() throws IOException {
+    CompileOutputCache cache = new CompileOutputCache(new File(getOrCreateProjectDir(), "cache"), 1024 * 1024);
+    List<File> files = Collections.singletonList(new File(createFile("src/A.java", "class A {}")));
+    List<File> classpath = Collections.singletonList(new File(createFile("lib/a.jar", "")));
+    List<File> empty = Collections.emptyList();
+    String key = cache.computeKey(files, Collections.singletonList("-g"), classpath, empty, empty, empty);
+    assertEquals(key, cache.computeKey(files, Collections.singletonList("-g"), classpath, empty, empty, empty));
+    assertFalse(key.equals(cache.computeKey(files, Collections.<String>emptyList(), classpath, empty, empty, empty)));
+    assertFalse(key.equals(cache.computeKey(files, Collections.singletonList("-g"), empty, empty, empty, empty)));
+
+    change(files.get(0).getPath(), "class A { int i; }");
+    assertFalse(key.equals(cache.computeKey(files, Collections.singletonList("-g"), classpath, empty, empty, empty)));
+  }
+
+  public void testKeyDependsOnContentOfChangingRoots() throws IOException {
+    CompileOutputCache cache = new CompileOutputCache(new File(getOrCreateProjectDir(), "cache"), 1024 * 1024);
+    List<File> files = Collections.singletonList(new File(createFile("src/A.java", "class A {}")));
+    File constants = new File(createFile("out/B.class", "X = 1"));
+    List<File> classpath = Collections.singletonList(constants.getParentFile());
+    List<File> empty = Collections.emptyList();
+    String key = cache.computeKey(files, Collections.<String>emptyList(), classpath, empty, empty, classpath);
+
+    long timestamp = constants.lastModified();
+    FileUtil.writeToFile(constants, "X = 2");
+    assertTrue(constants.setLastModified(timestamp));
+    assertFalse(key.equals(cache.computeKey(files, Collections.<String>emptyList(), classpath, empty, empty, classpath)));
+  }
+
+  public void testJarsAreIdentifiedByStamps() throws IOException {
+    CompileOutputCache cache = new CompileOutputCache(new File(getOrCreateProjectDir(), "cache"), 1024 * 1024);
+    List<File> files = Collections.singletonList(new File(createFile("src/A.java", "class A {}")));
+    File jar = new File(createFile("lib/a.jar", "content 1"));
+    List<File> classpath = Collections.singletonList(jar);
+    List<File> empty = Collections.emptyList();
+    String key = cache.computeKey(files, Collections.<String>emptyList(), classpath, empty, empty, empty);
+
+    long timestamp = jar.lastModified();
+    FileUtil.writeToFile(jar, "content 2");
+    assertTrue(jar.setLastModified(timestamp));
+    assertEquals(key, new CompileOutputCache(new File(getOrCreateProjectDir(), "cache"), 1024 * 1024)
+      .computeKey(files, Collections.<String>emptyList(), classpath, empty, empty, empty));
+    assertTrue(jar.setLastModified(timestamp - 10000));
+    assertFalse(key.equals(cache.computeKey(files, Collections.<String>emptyList(), classpath, empty, empty, empty)));
+    assertEquals(0, cache.getHashedFileCount());
+  }
+
+  public void testOnlyChangedFilesOfChangingRootsAreHashedAgain() throws IOException {
+    CompileOutputCache cache = new CompileOutputCache(new File(getOrCreateProjectDir(), "cache"), 1024 * 1024);
+    List<File> files = Collections.singletonList(new File(createFile("src/A.java", "class A {}")));
+    File b = new File(createFile("out/B.class", "B"));
+    File c = new File(createFile("out/C.class", "C"));
+    long timestamp = System.currentTimeMillis() - 10000;
+    assertTrue(b.setLastModified(timestamp));
+    assertTrue(c.setLastModified(timestamp));
+    List<File> classpath = Collections.singletonList(b.getParentFile());
+    List<File> empty = Collections.emptyList();
+    String key = cache.computeKey(files, Collections.<String>emptyList(), classpath, empty, empty, classpath);
+    assertEquals(2, cache.getHashedFileCount());
+    assertEquals(key, cache.computeKey(files, Collections.<String>emptyList(), classpath, empty, empty, classpath));
+    assertEquals(2, cache.getHashedFileCount());
+
+    FileUtil.writeToFile(c, "D");
+    assertFalse(key.equals(cache.computeKey(files, Collections.<String>emptyList(), classpath, empty, empty, classpath)));
+    assertEquals(3, cache.getHashedFileCount());
+  }
+
+  public void testLeastRecentlyUsedEntriesAreEvicted() throws IOException {
+    File dir = new File(getOrCreateProjectDir(), "cache");
+    CompileOutputCache cache = new CompileOutputCache(dir, 2500);
+    store(cache, "a", 1000);
+    store(cache, "b", 1000);
+    assertTrue(new File(dir, "b.dat").setLastModified(System.currentTimeMillis() - 10000));
+    store(cache, "c", 1000);
+    assertEquals(1, cache.getEvictionCount());
+
+    CollectingConsumer consumer = new CollectingConsumer();
+    assertTrue(cache.restore("a", consumer));
+    assertFalse(cache.restore("b", consumer));
+    assertTrue(cache.restore("c", consumer));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(2, consumer.myFiles.size());
+    assertEquals("a", consumer.myFiles.get(0).getClassName());
+    assertEquals(1000, consumer.myFiles.get(0).getContent().getLength());
+  }
+
+  private static void store(CompileOutputCache cache, String key, int size) throws IOException {
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    CompileOutputCache.Recorder recorder = cache.startRecording(key, new CollectingConsumer());
+    recorder.save(new OutputFileObject(null, null, key + ".class", new File(key + ".class"), JavaFileObject.Kind.CLASS, key, null,
+                                       new BinaryContent(content)));
+    recorder.commit();
+  }
+
+  private static boolean isRestoredFromCache(BuildResult result) {
+    result.assertSuccessful();
+    for (BuildMessage message : result.getMessages(BuildMessage.Kind.INFO)) {
+      if (message.getMessageText().startsWith("Restored java classes from compile cache")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static byte[] loadBytes(File file) {
+    try {
+      return FileUtil.loadFileBytes(file);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class CollectingConsumer implements OutputFileConsumer {
+    private final List<OutputFileObject> myFiles = new ArrayList<OutputFileObject>();
+
+    @Override
+    public void save(@NotNull OutputFileObject fileObject) {
+      myFiles.add(fileObject);
+    }
+  }
+}
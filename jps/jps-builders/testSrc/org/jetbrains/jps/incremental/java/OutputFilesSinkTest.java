@@ -0,0 +1,166 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.java;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import junit.framework.TestCase;
+import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
+import org.jetbrains.jps.builders.java.dependencyView.Mappings;
+import org.jetbrains.jps.incremental.BinaryContent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OutputFilesSinkTest extends TestCase {
+  private static final String[] CLASSES = {
+    "java/lang/Object", "java/lang/Iterable", "java/util/Collection", "java/util/List", "java/util/AbstractCollection",
+    "java/util/AbstractList", "java/util/ArrayList", "java/util/LinkedList", "java/util/Map", "java/util/AbstractMap",
+    "java/util/HashMap", "java/util/TreeMap", "java/util/Set", "java/util/HashSet", "java/util/Iterator", "java/util/Collections"
+  };
+  private ExecutorService myPool;
+  private File myDataDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myPool = Executors.newFixedThreadPool(4);
+    myDataDir = FileUtil.createTempDirectory("mappings", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myPool.shutdownNow();
+    myPool.awaitTermination(10, TimeUnit.SECONDS);
+    FileUtil.delete(myDataDir);
+    super.tearDown();
+  }
+
+  public void testConcurrentAnalysisFillsSameDelta() throws Exception {
+    Mappings sequentialMappings = new Mappings(new File(myDataDir, "sequential"), true);
+    Mappings concurrentMappings = new Mappings(new File(myDataDir, "concurrent"), true);
+    try {
+      Mappings sequentialDelta = sequentialMappings.createDelta();
+      Mappings concurrentDelta = concurrentMappings.createDelta();
+      OutputFilesSink sequential = new OutputFilesSink(null, null, sequentialDelta.getCallback(), "sequential", null);
+      OutputFilesSink concurrent = new OutputFilesSink(null, null, concurrentDelta.getCallback(), "concurrent",
+                                                       new BoundedTaskExecutor(myPool, 4));
+      for (int i = 0; i < 5; i++) {
+        for (String name : CLASSES) {
+          BinaryContent content = loadClass(name);
+          sequential.registerInMappings(new File("out/" + name + ".class"), "src/" + name + ".java", content);
+          concurrent.registerInMappings(new File("out/" + name + ".class"), "src/" + name + ".java", content);
+        }
+      }
+      assertTrue(sequential.waitForPendingAnalyses());
+      assertTrue(concurrent.waitForPendingAnalyses());
+
+      String expected = dump(sequentialDelta);
+      assertTrue(expected, expected.contains("java/util/ArrayList"));
+      assertEquals(expected, dump(concurrentDelta));
+    }
+    finally {
+      sequentialMappings.close();
+      concurrentMappings.close();
+    }
+  }
+
+  public void testInterruptedWaitSkipsQueuedAnalysesAndWaitsForRunningOne() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger associated = new AtomicInteger();
+    final AtomicInteger finished = new AtomicInteger();
+    Callbacks.Backend backend = new Callbacks.Backend() {
+      @Override
+      public void associate(String classFileName, String sourceFileName, ClassReader cr) {
+        if (associated.incrementAndGet() == 1) {
+          started.countDown();
+          try {
+            release.await();
+          }
+          catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        finished.incrementAndGet();
+      }
+
+      @Override
+      public void registerImports(String className, Collection<String> imports, Collection<String> staticImports) {
+      }
+    };
+    OutputFilesSink sink = new OutputFilesSink(null, null, backend, "chunk", new BoundedTaskExecutor(myPool, 1));
+    for (String name : CLASSES) {
+      sink.registerInMappings(new File("out/" + name + ".class"), "src/" + name + ".java", loadClass(name));
+    }
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    final Thread waiting = Thread.currentThread();
+    Thread releaser = new Thread("releaser") {
+      @Override
+      public void run() {
+        try {
+          // the waiting thread parks only after it has seen the interruption
+          while (waiting.getState() != State.WAITING) {
+            Thread.sleep(10);
+          }
+        }
+        catch (InterruptedException ignored) {
+        }
+        release.countDown();
+      }
+    };
+    releaser.start();
+    waiting.interrupt();
+    boolean complete = sink.waitForPendingAnalyses();
+    assertTrue(Thread.interrupted());
+    releaser.join();
+
+    assertFalse(complete);
+    assertEquals(1, finished.get());
+    myPool.shutdown();
+    assertTrue(myPool.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(1, associated.get());
+  }
+
+  private static BinaryContent loadClass(String name) throws Exception {
+    InputStream stream = ClassLoader.getSystemResourceAsStream(name + ".class");
+    assertNotNull(name, stream);
+    try {
+      return new BinaryContent(FileUtil.loadBytes(stream));
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static String dump(Mappings mappings) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintStream stream = new PrintStream(out);
+    mappings.toStream(stream);
+    stream.flush();
+    return out.toString();
+  }
+}
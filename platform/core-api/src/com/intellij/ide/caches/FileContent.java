@@ -19,8 +19,11 @@ package com.intellij.ide.caches;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.ArrayUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author max
@@ -28,6 +31,7 @@ import java.io.IOException;
 public class FileContent extends UserDataHolderBase {
   private final VirtualFile myVirtualFile;
   private byte[] myCachedBytes;
+  private ByteBuffer myCachedBuffer;
   private long myCachedLength = -1;
   private long myCachedTimeStamp = -1;
   private Boolean myCachedWritable;
@@ -45,14 +49,34 @@ public class FileContent extends UserDataHolderBase {
 
   public byte[] getBytes() throws IOException {
     if (myCachedBytes == null) {
-      myCachedBytes = myVirtualFile.contentsToByteArray(false);
+      if (myCachedBuffer != null) {
+        myCachedBytes = new byte[myCachedBuffer.remaining()];
+        myCachedBuffer.duplicate().get(myCachedBytes);
+      }
+      else {
+        myCachedBytes = myVirtualFile.contentsToByteArray(false);
+      }
     }
 
     return myCachedBytes;
   }
 
+  /**
+   * @return content set by {@link #setBuffer(ByteBuffer)}, so that it can be consumed without copying into {@link #getBytes()} array
+   */
+  @Nullable
+  public ByteBuffer getBuffer() {
+    return myCachedBuffer;
+  }
+
+  public void setBuffer(@NotNull ByteBuffer buffer) {
+    myCachedBuffer = buffer;
+    myCachedLength = buffer.remaining();
+  }
+
   public void setEmptyContent() {
     myCachedBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
+    myCachedBuffer = null;
     myCachedLength = 0;
   }
 
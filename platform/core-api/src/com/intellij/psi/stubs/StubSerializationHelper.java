@@ -21,11 +21,14 @@ import com.intellij.util.containers.RecentStringInterner;
 import com.intellij.util.io.AbstractStringEnumerator;
 import com.intellij.util.io.DataInputOutputUtil;
 import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -59,35 +62,108 @@ public class StubSerializationHelper {
     return myNameStorage.enumerate(serializer.getExternalId());
   }
 
-  private void doSerialize(@NotNull Stub rootStub, @NotNull StubOutputStream stream) throws IOException {
+  /**
+   * @return number of stubs in the subtree
+   */
+  private int doSerialize(@NotNull Stub rootStub, @NotNull StubOutputStream stream, @NotNull BufferExposingByteArrayOutputStream out,
+                          @NotNull TIntArrayList offsets, @NotNull TIntArrayList subtreeSizes) throws IOException {
     final ObjectStubSerializer serializer = StubSerializationUtil.getSerializer(rootStub);
 
+    final int index = offsets.size();
+    offsets.add(out.size());
+    subtreeSizes.add(0);
     DataInputOutputUtil.writeINT(stream, getClassId(serializer));
     serializer.serialize(rootStub, stream);
 
     final List<? extends Stub> children = rootStub.getChildrenStubs();
     final int childrenSize = children.size();
     DataInputOutputUtil.writeINT(stream, childrenSize);
+    int subtreeSize = 1;
     for (int i = 0; i < childrenSize; ++i) {
-      doSerialize(children.get(i), stream);
+      subtreeSize += doSerialize(children.get(i), stream, out, offsets, subtreeSizes);
     }
+    subtreeSizes.set(index, subtreeSize);
+    return subtreeSize;
   }
 
+  /**
+   * Writes strings used by the stubs, the table of stub offsets and the stubs themselves in depth-first order.
+   * For every stub the table contains the offset of its data (relative to the previous stub) and the number of stubs in its subtree,
+   * which allows {@link #deserializeStub(byte[], int, int)} to skip subtrees not containing the requested stub.
+   */
   public void serialize(@NotNull Stub rootStub, @NotNull OutputStream stream) throws IOException {
-    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
-    FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
-    StubOutputStream stubOutputStream = new StubOutputStream(out, storage);
+    SerializationBuffers buffers = ourBuffers.get();
+    if (buffers.myInUse) {
+      buffers = new SerializationBuffers(); // stub serializers aren't expected to serialize other stubs, but just in case
+    }
+    buffers.myInUse = true;
+    try {
+      BufferExposingByteArrayOutputStream out = buffers.myStubs;
+      FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
+      StubOutputStream stubOutputStream = new StubOutputStream(out, storage);
+      TIntArrayList offsets = buffers.myOffsets;
+      TIntArrayList subtreeSizes = buffers.mySubtreeSizes;
 
-    doSerialize(rootStub, stubOutputStream);
-    DataOutputStream resultStream = new DataOutputStream(stream);
-    DataInputOutputUtil.writeINT(resultStream, storage.myStrings.size());
-    byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
-    for(String s:storage.myStrings) {
-      IOUtil.writeUTFFast(buffer, resultStream, s);
+      doSerialize(rootStub, stubOutputStream, out, offsets, subtreeSizes);
+      DataOutputStream resultStream = new DataOutputStream(stream);
+      DataInputOutputUtil.writeINT(resultStream, storage.myStrings.size());
+      byte[] buffer = buffers.myUTFBuffer;
+      for(String s:storage.myStrings) {
+        IOUtil.writeUTFFast(buffer, resultStream, s);
+      }
+
+      BufferExposingByteArrayOutputStream table = buffers.myTable;
+      DataOutputStream tableStream = new DataOutputStream(table);
+      DataInputOutputUtil.writeINT(tableStream, offsets.size());
+      for (int i = 0; i < offsets.size(); i++) {
+        DataInputOutputUtil.writeINT(tableStream, i == 0 ? offsets.get(i) : offsets.get(i) - offsets.get(i - 1));
+        DataInputOutputUtil.writeINT(tableStream, subtreeSizes.get(i));
+      }
+      DataInputOutputUtil.writeINT(resultStream, table.size());
+      resultStream.write(table.getInternalBuffer(), 0, table.size());
+
+      resultStream.write(out.getInternalBuffer(), 0, out.size());
+    }
+    finally {
+      buffers.myInUse = false;
+      if (!buffers.reset()) {
+        ourBuffers.remove();
+      }
     }
-    resultStream.write(out.getInternalBuffer(), 0, out.size());
   }
 
+  /**
+   * Scratch buffers of {@link #serialize}, reused by a thread for consecutive trees unless they have grown too large.
+   */
+  private static class SerializationBuffers {
+    private static final int MAX_REUSED_SIZE = 1024 * 1024;
+
+    private final BufferExposingByteArrayOutputStream myStubs = new BufferExposingByteArrayOutputStream(8192);
+    private final BufferExposingByteArrayOutputStream myTable = new BufferExposingByteArrayOutputStream(1024);
+    private final TIntArrayList myOffsets = new TIntArrayList();
+    private final TIntArrayList mySubtreeSizes = new TIntArrayList();
+    private final byte[] myUTFBuffer = IOUtil.allocReadWriteUTFBuffer();
+    private boolean myInUse;
+
+    /**
+     * @return false if the buffers are too large to be kept for reuse
+     */
+    private boolean reset() {
+      myStubs.reset();
+      myTable.reset();
+      myOffsets.resetQuick();
+      mySubtreeSizes.resetQuick();
+      return myStubs.getInternalBuffer().length <= MAX_REUSED_SIZE && myTable.getInternalBuffer().length <= MAX_REUSED_SIZE;
+    }
+  }
+
+  private static final ThreadLocal<SerializationBuffers> ourBuffers = new ThreadLocal<SerializationBuffers>() {
+    @Override
+    protected SerializationBuffers initialValue() {
+      return new SerializationBuffers();
+    }
+  };
+
   private int getClassId(final ObjectStubSerializer serializer) {
     final int idValue = mySerializerToId.get(serializer);
     assert idValue != 0: "No ID found for serializer " + LogUtil.objectAndClass(serializer);
@@ -100,6 +176,68 @@ public class StubSerializationHelper {
   public Stub deserialize(@NotNull InputStream stream) throws IOException, SerializerNotFoundException {
     FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
     StubInputStream inputStream = new StubInputStream(stream, storage);
+    readStrings(inputStream, storage);
+    inputStream.skipBytes(DataInputOutputUtil.readINT(inputStream)); // stub offsets aren't needed to read the whole tree
+    return deserialize(inputStream, null);
+  }
+
+  /**
+   * Deserializes the stub with the given index in the depth-first order of the serialized tree without reading other stubs
+   * except for its ancestors. The ancestors have only the children on the path to the stub, and the stub has no children.
+   */
+  @NotNull
+  public Stub deserializeStub(@NotNull byte[] bytes, int length, int stubIndex) throws IOException, SerializerNotFoundException {
+    UnsyncByteArrayInputStream stream = new UnsyncByteArrayInputStream(bytes, 0, length);
+    LazyStringEnumerator storage = new LazyStringEnumerator(bytes, length);
+    StubInputStream inputStream = new StubInputStream(stream, storage);
+
+    // strings are only decoded when they are used by the stubs being read
+    final int stringCount = DataInputOutputUtil.readINT(inputStream);
+    storage.myOffsets = new int[stringCount];
+    for (int i = 0; i < stringCount; i++) {
+      int offset = length - stream.available();
+      storage.myOffsets[i] = offset;
+      int stringLength = bytes[offset] & 0xFF;
+      if (stringLength == 0xFF) {
+        IOUtil.readUTFFast(storage.myBuffer, inputStream); // not ASCII or too long string
+      }
+      else {
+        inputStream.skipBytes(stringLength + 1);
+      }
+    }
+
+    DataInputOutputUtil.readINT(inputStream); // table size
+    final int count = DataInputOutputUtil.readINT(inputStream);
+    if (stubIndex < 0 || stubIndex >= count) {
+      throw new IndexOutOfBoundsException("Stub index " + stubIndex + " is out of [0, " + count + ")");
+    }
+    final int[] offsets = new int[count];
+    final int[] subtreeSizes = new int[count];
+    for (int i = 0; i < count; i++) {
+      offsets[i] = DataInputOutputUtil.readINT(inputStream) + (i == 0 ? 0 : offsets[i - 1]);
+      subtreeSizes[i] = DataInputOutputUtil.readINT(inputStream);
+    }
+
+    final int treeStart = length - stream.available();
+    Stub stub = null;
+    int index = 0;
+    while (true) {
+      inputStream.skipBytes(treeStart + offsets[index] - (length - stream.available()));
+      stub = deserializeStubData(inputStream, stub);
+      if (stub instanceof ObjectStubBase) {
+        ((ObjectStubBase)stub).id = index;
+      }
+      if (index == stubIndex) return stub;
+
+      int child = index + 1;
+      while (child + subtreeSizes[child] <= stubIndex) {
+        child += subtreeSizes[child];
+      }
+      index = child;
+    }
+  }
+
+  private void readStrings(@NotNull StubInputStream inputStream, @NotNull FileLocalStringEnumerator storage) throws IOException {
     final int size = DataInputOutputUtil.readINT(inputStream);
     byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
 
@@ -110,7 +248,6 @@ public class StubSerializationHelper {
       storage.myEnumerates.put(s, i);
       ++i;
     }
-    return deserialize(inputStream, null);
   }
 
   String intern(String str) {
@@ -119,13 +256,7 @@ public class StubSerializationHelper {
 
   @NotNull
   private Stub deserialize(@NotNull StubInputStream stream, @Nullable Stub parentStub) throws IOException, SerializerNotFoundException {
-    final int id = DataInputOutputUtil.readINT(stream);
-    final ObjectStubSerializer serializer = getClassById(id);
-    if (serializer == null) {
-      throw new SerializerNotFoundException("No serializer registered for stub: ID=" + id + "; parent stub class=" + (parentStub != null? parentStub.getClass().getName() : "null"));
-    }
-
-    Stub stub = serializer.deserialize(stream, parentStub);
+    Stub stub = deserializeStubData(stream, parentStub);
     int childCount = DataInputOutputUtil.readINT(stream);
     for (int i = 0; i < childCount; i++) {
       deserialize(stream, stub);
@@ -133,11 +264,69 @@ public class StubSerializationHelper {
     return stub;
   }
 
+  @NotNull
+  private Stub deserializeStubData(@NotNull StubInputStream stream, @Nullable Stub parentStub) throws IOException, SerializerNotFoundException {
+    final int id = DataInputOutputUtil.readINT(stream);
+    final ObjectStubSerializer serializer = getClassById(id);
+    if (serializer == null) {
+      throw new SerializerNotFoundException("No serializer registered for stub: ID=" + id + "; parent stub class=" + (parentStub != null? parentStub.getClass().getName() : "null"));
+    }
+
+    return serializer.deserialize(stream, parentStub);
+  }
 
   private ObjectStubSerializer getClassById(int id) {
     return myIdToSerializer.get(id);
   }
 
+  private class LazyStringEnumerator implements AbstractStringEnumerator {
+    private final byte[] myBytes;
+    private final int myLength;
+    private final byte[] myBuffer = IOUtil.allocReadWriteUTFBuffer();
+    private int[] myOffsets;
+    private String[] myStrings;
+
+    private LazyStringEnumerator(@NotNull byte[] bytes, int length) {
+      myBytes = bytes;
+      myLength = length;
+    }
+
+    @Override
+    public int enumerate(@Nullable String value) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String valueOf(int idx) throws IOException {
+      if (idx == 0) return null;
+      if (myStrings == null) myStrings = new String[myOffsets.length];
+      String s = myStrings[idx - 1];
+      if (s == null) {
+        int offset = myOffsets[idx - 1];
+        DataInputStream stream = new DataInputStream(new UnsyncByteArrayInputStream(myBytes, offset, myLength));
+        myStrings[idx - 1] = s = myStringInterner.get(IOUtil.readUTFFast(myBuffer, stream));
+      }
+      return s;
+    }
+
+    @Override
+    public void markCorrupted() {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public boolean isDirty() {
+      return false;
+    }
+
+    @Override
+    public void force() {
+    }
+  }
+
   private static class FileLocalStringEnumerator implements AbstractStringEnumerator {
     private final TObjectIntHashMap<String> myEnumerates = new TObjectIntHashMap<String>();
     private final ArrayList<String> myStrings = new ArrayList<String>();
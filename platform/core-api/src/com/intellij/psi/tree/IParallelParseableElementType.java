@@ -0,0 +1,42 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.tree;
+
+import com.intellij.lang.Language;
+import org.jetbrains.annotations.NonNls;
+
+/**
+ * Type of an independent top-level region of a file (e.g. a declaration in a large generated file), which can be parsed
+ * separately from the rest of the file. Parsers mark such regions by collapsing them with
+ * {@link com.intellij.lang.PsiBuilder.Marker#collapse(IElementType)}, and the regions are parsed by {@link #parseContents}.
+ * <p/>
+ * Like other lazy-parseable elements, the regions are parsed on first access. Callers which are going to walk the whole
+ * file can parse its top-level regions of this type concurrently with {@code LazyParseableElement.parseChunksConcurrently}.
+ * Override {@link #isParsable} to allow a changed region to be reparsed alone.
+ */
+public class IParallelParseableElementType extends IReparseableElementType {
+  public IParallelParseableElementType(@NonNls String debugName) {
+    super(debugName);
+  }
+
+  public IParallelParseableElementType(@NonNls String debugName, Language language) {
+    super(debugName, language);
+  }
+
+  public IParallelParseableElementType(@NonNls String debugName, Language language, boolean register) {
+    super(debugName, language, register);
+  }
+}
@@ -52,9 +52,8 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.lang.reflect.Field;
 import java.util.AbstractList;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -75,7 +74,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   private IElementType[] myLexTypes;
   private int myCurrentLexeme;
 
-  private final MyList myProduction = new MyList();
+  private final ProductionList myProduction = new ProductionList();
 
   private final Lexer myLexer;
   private final TokenSet myWhitespaces;
@@ -110,18 +109,6 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     }
   });
 
-  private final LimitedPool<DoneMarker> DONE_MARKERS = new LimitedPool<DoneMarker>(2000, new LimitedPool.ObjectFactory<DoneMarker>() {
-    @Override
-    public DoneMarker create() {
-      return new DoneMarker();
-    }
-
-    @Override
-    public void cleanup(final DoneMarker doneMarker) {
-      doneMarker.clean();
-    }
-  });
-
   private static final WhitespacesAndCommentsBinder DEFAULT_LEFT_EDGE_TOKEN_BINDER = new WhitespacesAndCommentsBinder() {
     @Override
     public int getEdgePosition(final List<IElementType> tokens, final boolean atStreamEdge, final TokenTextGetter getter) {
@@ -257,8 +244,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   public LighterASTNode getLatestDoneMarker() {
     int index = myProduction.size() - 1;
     while (index >= 0) {
-      ProductionMarker marker = myProduction.get(index);
-      if (marker instanceof DoneMarker) return ((DoneMarker)marker).myStart;
+      if (myProduction.isDone(index)) return (StartMarker)myProduction.get(index);
       --index;
     }
     return null;
@@ -284,10 +270,17 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     }
   }
 
+  /**
+   * A marker is added to the production twice: when it's started and when it's done. The state of the done entry
+   * is kept here too, so that no object is allocated for it.
+   */
   private static class StartMarker extends ProductionMarker implements Marker {
     private PsiBuilderImpl myBuilder;
     private IElementType myType;
-    private DoneMarker myDoneMarker;
+    private int myDoneLexemeIndex = -1;
+    private WhitespacesAndCommentsBinder myDoneEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+    private boolean myCollapse;
+    private String myErrorMessage;
     private Throwable myDebugAllocationPosition;
     private ProductionMarker myFirstChild;
     private ProductionMarker myLastChild;
@@ -302,13 +295,20 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       super.clean();
       myBuilder = null;
       myType = null;
-      myDoneMarker = null;
+      myDoneLexemeIndex = -1;
+      myDoneEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+      myCollapse = false;
+      myErrorMessage = null;
       myDebugAllocationPosition = null;
       myFirstChild = myLastChild = null;
       myHC = -1;
       myEdgeTokenBinder = DEFAULT_LEFT_EDGE_TOKEN_BINDER;
     }
 
+    private boolean isDone() {
+      return myDoneLexemeIndex >= 0;
+    }
+
     @Override
     public int hc() {
       if (myHC == -1) {
@@ -327,12 +327,12 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
           lexIdx = lastLeaf;
           hc += child.hc();
           if (child instanceof StartMarker) {
-            lexIdx = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+            lexIdx = ((StartMarker)child).myDoneLexemeIndex;
           }
           child = child.myNext;
         }
 
-        for (int i = builder.myLexStarts[lexIdx]; i < builder.myLexStarts[myDoneMarker.myLexemeIndex]; i++) {
+        for (int i = builder.myLexStarts[lexIdx]; i < builder.myLexStarts[myDoneLexemeIndex]; i++) {
           hc += bufArray != null ? bufArray[i] : buf.charAt(i);
         }
 
@@ -349,7 +349,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
     @Override
     public int getEndOffset() {
-      return myBuilder.myLexStarts[myDoneMarker.myLexemeIndex];
+      return myBuilder.myLexStarts[myDoneLexemeIndex];
     }
 
     public void addChild(ProductionMarker node) {
@@ -399,8 +399,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     @Override
     public void doneBefore(final IElementType type, final Marker before, final String errorMessage) {
       final StartMarker marker = (StartMarker)before;
-      myBuilder.myProduction.add(myBuilder.myProduction.lastIndexOf(marker),
-                                 new ErrorItem(myBuilder, errorMessage, marker.myLexemeIndex));
+      myBuilder.myProduction.add(myBuilder.myProduction.lastIndexOf(marker, false),
+                                 new ErrorItem(myBuilder, errorMessage, marker.myLexemeIndex), false);
       doneBefore(type, before);
     }
 
@@ -434,19 +434,19 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       }
 
       if (right != null) {
-        if (myDoneMarker == null) throw new IllegalArgumentException("Cannot set right-edge processor for unclosed marker");
-        myDoneMarker.myEdgeTokenBinder = right;
+        if (!isDone()) throw new IllegalArgumentException("Cannot set right-edge processor for unclosed marker");
+        myDoneEdgeTokenBinder = right;
       }
     }
   }
 
   private Marker precede(final StartMarker marker) {
-    int idx = myProduction.lastIndexOf(marker);
+    int idx = myProduction.lastIndexOf(marker, false);
     if (idx < 0) {
       LOG.error("Cannot precede dropped or rolled-back marker");
     }
     StartMarker pre = createMarker(marker.myLexemeIndex);
-    myProduction.add(idx, pre);
+    myProduction.add(idx, pre, false);
     return pre;
   }
 
@@ -559,63 +559,6 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     }
   }
 
-  private static class DoneMarker extends ProductionMarker {
-    private StartMarker myStart;
-    private boolean myCollapse = false;
-
-    public DoneMarker() {
-      myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
-    }
-
-    public DoneMarker(final StartMarker marker, final int currentLexeme) {
-      this();
-      myLexemeIndex = currentLexeme;
-      myStart = marker;
-    }
-
-    @Override
-    public void clean() {
-      super.clean();
-      myStart = null;
-      myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
-    }
-
-    @Override
-    public int hc() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @Override
-    public IElementType getTokenType() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @Override
-    public int getEndOffset() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @Override
-    public int getStartOffset() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-  }
-
-  private static class DoneWithErrorMarker extends DoneMarker {
-    private String myMessage;
-
-    public DoneWithErrorMarker(final StartMarker marker, final int currentLexeme, final String message) {
-      super(marker, currentLexeme);
-      myMessage = message;
-    }
-
-    @Override
-    public void clean() {
-      super.clean();
-      myMessage = null;
-    }
-  }
-
   private static class ErrorItem extends ProductionMarker {
     private final PsiBuilderImpl myBuilder;
     private String myMessage;
@@ -805,7 +748,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     }
     StartMarker marker = createMarker(myCurrentLexeme);
 
-    myProduction.add(marker);
+    myProduction.add(marker, false);
     return marker;
   }
 
@@ -833,7 +776,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   private void rollbackTo(Marker marker) {
     myCurrentLexeme = ((StartMarker)marker).myLexemeIndex;
     myTokenTypeChecked = true;
-    int idx = myProduction.lastIndexOf(marker);
+    int idx = myProduction.lastIndexOf((StartMarker)marker, false);
     if (idx < 0) {
       LOG.error("The marker must be added before rolled back to.");
     }
@@ -842,14 +785,11 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     clearCachedTokenType();
   }
 
-  @SuppressWarnings({"SuspiciousMethodCalls"})
   public void drop(Marker marker) {
-    final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
-    if (doneMarker != null) {
-      myProduction.remove(myProduction.lastIndexOf(doneMarker));
-      DONE_MARKERS.recycle(doneMarker);
+    if (((StartMarker)marker).isDone()) {
+      myProduction.remove(myProduction.lastIndexOf((StartMarker)marker, true));
     }
-    final boolean removed = myProduction.remove(myProduction.lastIndexOf(marker)) == marker;
+    final boolean removed = myProduction.remove(myProduction.lastIndexOf((StartMarker)marker, false)) == marker;
     if (!removed) {
       LOG.error("The marker must be added before it is dropped.");
     }
@@ -859,57 +799,52 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   public void error(Marker marker, String message) {
     doValidityChecks(marker, null);
 
-    DoneWithErrorMarker doneMarker = new DoneWithErrorMarker((StartMarker)marker, myCurrentLexeme, message);
-    boolean tieToTheLeft = isEmpty(((StartMarker)marker).myLexemeIndex, myCurrentLexeme);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+    final StartMarker startMarker = (StartMarker)marker;
+    boolean tieToTheLeft = isEmpty(startMarker.myLexemeIndex, myCurrentLexeme);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(doneMarker);
+    startMarker.myDoneLexemeIndex = myCurrentLexeme;
+    startMarker.myErrorMessage = message;
+    myProduction.add(startMarker, true);
   }
 
-  @SuppressWarnings({"SuspiciousMethodCalls"})
   public void errorBefore(Marker marker, String message, Marker before) {
     doValidityChecks(marker, before);
 
-    int beforeIndex = myProduction.lastIndexOf(before);
+    int beforeIndex = myProduction.lastIndexOf((StartMarker)before, false);
 
-    DoneWithErrorMarker doneMarker = new DoneWithErrorMarker((StartMarker)marker, ((StartMarker)before).myLexemeIndex, message);
-    boolean tieToTheLeft = isEmpty(((StartMarker)marker).myLexemeIndex, ((StartMarker)before).myLexemeIndex);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+    final StartMarker startMarker = (StartMarker)marker;
+    boolean tieToTheLeft = isEmpty(startMarker.myLexemeIndex, ((StartMarker)before).myLexemeIndex);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(beforeIndex, doneMarker);
+    startMarker.myDoneLexemeIndex = ((StartMarker)before).myLexemeIndex;
+    startMarker.myErrorMessage = message;
+    myProduction.add(beforeIndex, startMarker, true);
   }
 
   public void done(final Marker marker) {
     doValidityChecks(marker, null);
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
-    doneMarker.myStart = (StartMarker)marker;
-    doneMarker.myLexemeIndex = myCurrentLexeme;
-    boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() &&
-                           isEmpty(((StartMarker)marker).myLexemeIndex, myCurrentLexeme);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+    final StartMarker startMarker = (StartMarker)marker;
+    boolean tieToTheLeft = startMarker.myType.isLeftBound() && isEmpty(startMarker.myLexemeIndex, myCurrentLexeme);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(doneMarker);
+    startMarker.myDoneLexemeIndex = myCurrentLexeme;
+    myProduction.add(startMarker, true);
   }
 
-  @SuppressWarnings({"SuspiciousMethodCalls"})
   public void doneBefore(Marker marker, Marker before) {
     doValidityChecks(marker, before);
 
-    int beforeIndex = myProduction.lastIndexOf(before);
+    int beforeIndex = myProduction.lastIndexOf((StartMarker)before, false);
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
-    doneMarker.myLexemeIndex = ((StartMarker)before).myLexemeIndex;
-    doneMarker.myStart = (StartMarker)marker;
-    boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() &&
-                           isEmpty(((StartMarker)marker).myLexemeIndex, ((StartMarker)before).myLexemeIndex);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+    final StartMarker startMarker = (StartMarker)marker;
+    boolean tieToTheLeft = startMarker.myType.isLeftBound() &&
+                           isEmpty(startMarker.myLexemeIndex, ((StartMarker)before).myLexemeIndex);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(beforeIndex, doneMarker);
+    startMarker.myDoneLexemeIndex = ((StartMarker)before).myLexemeIndex;
+    myProduction.add(beforeIndex, startMarker, true);
   }
 
   private boolean isEmpty(final int startIdx, final int endIdx) {
@@ -922,26 +857,25 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
   public void collapse(final Marker marker) {
     done(marker);
-    ((StartMarker)marker).myDoneMarker.myCollapse = true;
+    ((StartMarker)marker).myCollapse = true;
   }
 
-  @SuppressWarnings({"UseOfSystemOutOrSystemErr", "SuspiciousMethodCalls", "ThrowableResultOfMethodCallIgnored"})
+  @SuppressWarnings({"UseOfSystemOutOrSystemErr", "ThrowableResultOfMethodCallIgnored"})
   private void doValidityChecks(final Marker marker, @Nullable final Marker before) {
-    final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
-    if (doneMarker != null) {
+    if (((StartMarker)marker).isDone()) {
       LOG.error("Marker already done.");
     }
 
     if (!myDebugMode) return;
 
-    int idx = myProduction.lastIndexOf(marker);
+    int idx = myProduction.lastIndexOf((StartMarker)marker, false);
     if (idx < 0) {
       LOG.error("Marker has never been added.");
     }
 
     int endIdx = myProduction.size();
     if (before != null) {
-      endIdx = myProduction.lastIndexOf(before);
+      endIdx = myProduction.lastIndexOf((StartMarker)before, false);
       if (endIdx < 0) {
         LOG.error("'Before' marker has never been added.");
       }
@@ -954,7 +888,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       Object item = myProduction.get(i);
       if (item instanceof StartMarker) {
         StartMarker otherMarker = (StartMarker)item;
-        if (otherMarker.myDoneMarker == null) {
+        if (!otherMarker.isDone()) {
           final Throwable debugAllocOther = otherMarker.myDebugAllocationPosition;
           final Throwable debugAllocThis = ((StartMarker)marker).myDebugAllocationPosition;
           if (debugAllocOther != null) {
@@ -974,7 +908,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     if (lastMarker instanceof ErrorItem && lastMarker.myLexemeIndex == myCurrentLexeme) {
       return;
     }
-    myProduction.add(new ErrorItem(this, messageText, myCurrentLexeme));
+    myProduction.add(new ErrorItem(this, messageText, myCurrentLexeme), false);
   }
 
   @Override
@@ -983,13 +917,11 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       return buildTree();
     }
     finally {
-      for (ProductionMarker marker : myProduction) {
-        if (marker instanceof StartMarker) {
+      for (int i = 0; i < myProduction.size(); i++) {
+        ProductionMarker marker = myProduction.get(i);
+        if (marker instanceof StartMarker && !myProduction.isDone(i)) {
           START_MARKERS.recycle((StartMarker)marker);
         }
-        else if (marker instanceof DoneMarker) {
-          DONE_MARKERS.recycle((DoneMarker)marker);
-        }
       }
     }
   }
@@ -1097,6 +1029,13 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
       if (curNode == null) LOG.error("Unexpected end of the production");
 
+      if (myProduction.isDone(i)) {
+        if (item != curNode) LOG.error(UNBALANCED_MESSAGE);
+        curNode = nodes.pop();
+        curDepth--;
+        continue;
+      }
+
       item.myParent = curNode;
       if (item instanceof StartMarker) {
         final StartMarker marker = (StartMarker)item;
@@ -1107,11 +1046,6 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
         curDepth++;
         if (curDepth > maxDepth) maxDepth = curDepth;
       }
-      else if (item instanceof DoneMarker) {
-        if (((DoneMarker)item).myStart != curNode) LOG.error(UNBALANCED_MESSAGE);
-        curNode = nodes.pop();
-        curDepth--;
-      }
       else if (item instanceof ErrorItem) {
         int curToken = item.myLexemeIndex;
         if (curToken == lastErrorIndex) continue;
@@ -1125,8 +1059,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       LOG.error("Tokens " + missed + " were not inserted into the tree. " +(myFile != null? myFile.getLanguage()+", ":"")+"Text:\n" + myText);
     }
 
-    if (rootMarker.myDoneMarker.myLexemeIndex < myLexemeCount) {
-      final List<IElementType> missed = ContainerUtil.newArrayList(myLexTypes, rootMarker.myDoneMarker.myLexemeIndex, myLexemeCount);
+    if (rootMarker.myDoneLexemeIndex < myLexemeCount) {
+      final List<IElementType> missed = ContainerUtil.newArrayList(myLexTypes, rootMarker.myDoneLexemeIndex, myLexemeCount);
       LOG.error("Tokens " + missed + " are outside of root element \"" + rootMarker.myType + "\". Text:\n" + myText);
     }
 
@@ -1153,16 +1087,17 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     for (int i = 1, size = myProduction.size() - 1; i < size; i++) {
       final ProductionMarker item = myProduction.get(i);
 
-      if (item instanceof StartMarker && ((StartMarker)item).myDoneMarker == null) {
+      if (item instanceof StartMarker && !((StartMarker)item).isDone()) {
         LOG.error(UNBALANCED_MESSAGE);
       }
 
-      final int prevProductionLexIndex = myProduction.get(i - 1).myLexemeIndex;
-      int idx = item.myLexemeIndex;
+      final int prevProductionLexIndex = myProduction.getLexemeIndex(i - 1);
+      final int lexemeIndex = myProduction.getLexemeIndex(i);
+      int idx = lexemeIndex;
       while (idx > prevProductionLexIndex && whitespaceOrComment(myLexTypes[idx - 1])) idx--;
       final int wsStartIndex = idx;
 
-      int wsEndIndex = item.myLexemeIndex;
+      int wsEndIndex = lexemeIndex;
       while (wsEndIndex < myLexemeCount && whitespaceOrComment(myLexTypes[wsEndIndex])) wsEndIndex++;
 
       if (wsTokens == null) wsTokens = new RelativeTokenTypesView();
@@ -1171,7 +1106,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       if (tokenTextGetter == null) tokenTextGetter = new RelativeTokenTextView();
       tokenTextGetter.configure(wsStartIndex);
 
-      item.myLexemeIndex = wsStartIndex + item.myEdgeTokenBinder.getEdgePosition(wsTokens, atEnd, tokenTextGetter);
+      final WhitespacesAndCommentsBinder binder = myProduction.getEdgeTokenBinder(i);
+      myProduction.setLexemeIndex(i, wsStartIndex + binder.getEdgePosition(wsTokens, atEnd, tokenTextGetter));
     }
   }
 
@@ -1227,22 +1163,30 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     CompositeElement curNode = rootNode;
 
     int lexIndex = rootMarker.myLexemeIndex;
-    ProductionMarker item = rootMarker.myFirstChild != null ? rootMarker.myFirstChild : rootMarker.myDoneMarker;
+    ProductionMarker item = rootMarker.myFirstChild;
     while (true) {
-      lexIndex = insertLeaves(lexIndex, item.myLexemeIndex, curNode);
+      if (item == null) { // end of the current marker
+        lexIndex = insertLeaves(lexIndex, curMarker.myDoneLexemeIndex, curNode);
+        if (curMarker == rootMarker) break;
+
+        item = curMarker.myNext;
+        curMarker = (StartMarker)curMarker.myParent;
+        curNode = curNode.getTreeParent();
+        continue;
+      }
 
-      if (item == rootMarker.myDoneMarker) break;
+      lexIndex = insertLeaves(lexIndex, item.myLexemeIndex, curNode);
 
       if (item instanceof StartMarker) {
         final StartMarker marker = (StartMarker)item;
-        if (!marker.myDoneMarker.myCollapse) {
+        if (!marker.myCollapse) {
           curMarker = marker;
 
           final CompositeElement childNode = createComposite(marker);
           curNode.rawAddChildrenWithoutNotifications(childNode);
           curNode = childNode;
 
-          item = marker.myFirstChild != null ? marker.myFirstChild : marker.myDoneMarker;
+          item = marker.myFirstChild;
           continue;
         }
         else {
@@ -1253,13 +1197,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
         final CompositeElement errorElement = Factory.createErrorElement(((ErrorItem)item).myMessage);
         curNode.rawAddChildrenWithoutNotifications(errorElement);
       }
-      else if (item instanceof DoneMarker) {
-        curMarker = (StartMarker)((DoneMarker)item).myStart.myParent;
-        curNode = curNode.getTreeParent();
-        item = ((DoneMarker)item).myStart;
-      }
 
-      item = item.myNext != null ? item.myNext : curMarker.myDoneMarker;
+      item = item.myNext;
     }
   }
 
@@ -1282,17 +1221,16 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
   private int collapseLeaves(final CompositeElement ast, final StartMarker startMarker) {
     final int start = myLexStarts[startMarker.myLexemeIndex];
-    final int end = myLexStarts[startMarker.myDoneMarker.myLexemeIndex];
+    final int end = myLexStarts[startMarker.myDoneLexemeIndex];
     final TreeElement leaf = createLeaf(startMarker.myType, start, end);
     ast.rawAddChildrenWithoutNotifications(leaf);
-    return startMarker.myDoneMarker.myLexemeIndex;
+    return startMarker.myDoneLexemeIndex;
   }
 
   private static CompositeElement createComposite(final StartMarker marker) {
     final IElementType type = marker.myType;
     if (type == TokenType.ERROR_ELEMENT) {
-      String message = marker.myDoneMarker instanceof DoneWithErrorMarker ? ((DoneWithErrorMarker)marker.myDoneMarker).myMessage : null;
-      return Factory.createErrorElement(message);
+      return Factory.createErrorElement(marker.myErrorMessage);
     }
 
     if (type == null) {
@@ -1307,8 +1245,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     if (node instanceof ErrorItem) return ((ErrorItem)node).myMessage;
     if (node instanceof StartMarker) {
       final StartMarker marker = (StartMarker)node;
-      if (marker.myType == TokenType.ERROR_ELEMENT && marker.myDoneMarker instanceof DoneWithErrorMarker) {
-        return ((DoneWithErrorMarker)marker.myDoneMarker).myMessage;
+      if (marker.myType == TokenType.ERROR_ELEMENT) {
+        return marker.myErrorMessage;
       }
     }
 
@@ -1500,13 +1438,14 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       StartMarker marker = (StartMarker)item;
 
       count = 0;
+      nodes = into.get();
       ProductionMarker child = marker.myFirstChild;
       int lexIndex = marker.myLexemeIndex;
       while (child != null) {
         lexIndex = insertLeaves(lexIndex, child.myLexemeIndex, marker.myBuilder);
 
-        if (child instanceof StartMarker && ((StartMarker)child).myDoneMarker.myCollapse) {
-          int lastIndex = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+        if (child instanceof StartMarker && ((StartMarker)child).myCollapse) {
+          int lastIndex = ((StartMarker)child).myDoneLexemeIndex;
           insertLeaf(child.getTokenType(), marker.myBuilder, child.myLexemeIndex, lastIndex);
         }
         else {
@@ -1515,12 +1454,12 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
         }
 
         if (child instanceof StartMarker) {
-          lexIndex = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+          lexIndex = ((StartMarker)child).myDoneLexemeIndex;
         }
         child = child.myNext;
       }
 
-      insertLeaves(lexIndex, marker.myDoneMarker.myLexemeIndex, marker.myBuilder);
+      insertLeaves(lexIndex, marker.myDoneLexemeIndex, marker.myBuilder);
       into.set(nodes);
       nodes = null;
 
@@ -1548,7 +1487,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
         nodes = old;
       }
       else if (count >= old.length) {
-        LighterASTNode[] newStore = new LighterASTNode[count * 3 / 2];
+        LighterASTNode[] newStore = new LighterASTNode[Math.max(10, count * 3 / 2)];
         System.arraycopy(old, 0, newStore, 0, count);
         nodes = newStore;
       }
@@ -1643,61 +1582,85 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   }
 
   /**
-   * just to make removeRange method available.
+   * Sequence of start and done entries of markers and error items. A done entry refers to the same {@link StartMarker}
+   * as the start entry and is told apart by a flag in a parallel array.
    */
-  private static class MyList extends ArrayList<ProductionMarker> {
-    private static final Field ourElementDataField;
-
-    static {
-      Field f;
-      try {
-        f = ArrayList.class.getDeclaredField("elementData");
-        f.setAccessible(true);
-      }
-      catch(NoSuchFieldException e) {
-        // IBM J9 does not have the field
-        f = null;
+  private static class ProductionList {
+    private ProductionMarker[] myMarkers = new ProductionMarker[256];
+    private boolean[] myDoneFlags = new boolean[256];
+    private int mySize;
 
-      }
-      ourElementDataField = f;
+    public int size() {
+      return mySize;
     }
 
-    private Object[] cachedElementData;
+    public boolean isEmpty() {
+      return mySize == 0;
+    }
 
-    @Override
-    public void removeRange(final int fromIndex, final int toIndex) {
-      super.removeRange(fromIndex, toIndex);
+    public ProductionMarker get(int index) {
+      return myMarkers[index];
     }
 
-    MyList() {
-      super(256);
+    public boolean isDone(int index) {
+      return myDoneFlags[index];
     }
 
-    @Override
-    public int lastIndexOf(final Object o) {
-      if (cachedElementData == null) return super.lastIndexOf(o);
-      for (int i = size() - 1; i >= 0; i--) {
-        if (cachedElementData[i] == o) return i;
-      }
-      return -1;
+    public int getLexemeIndex(int index) {
+      return myDoneFlags[index] ? ((StartMarker)myMarkers[index]).myDoneLexemeIndex : myMarkers[index].myLexemeIndex;
     }
 
-    @Override
-    public void ensureCapacity(final int minCapacity) {
-      if (cachedElementData == null || minCapacity >= cachedElementData.length) {
-        super.ensureCapacity(minCapacity);
-        initCachedField();
+    public void setLexemeIndex(int index, int lexemeIndex) {
+      if (myDoneFlags[index]) {
+        ((StartMarker)myMarkers[index]).myDoneLexemeIndex = lexemeIndex;
+      }
+      else {
+        myMarkers[index].myLexemeIndex = lexemeIndex;
       }
     }
 
-    private void initCachedField() {
-      if (ourElementDataField == null) return;
-      try {
-        cachedElementData = (Object[])ourElementDataField.get(this);
+    public WhitespacesAndCommentsBinder getEdgeTokenBinder(int index) {
+      return myDoneFlags[index] ? ((StartMarker)myMarkers[index]).myDoneEdgeTokenBinder : myMarkers[index].myEdgeTokenBinder;
+    }
+
+    public void add(ProductionMarker marker, boolean done) {
+      add(mySize, marker, done);
+    }
+
+    public void add(int index, ProductionMarker marker, boolean done) {
+      if (mySize == myMarkers.length) {
+        int capacity = mySize * 3 / 2;
+        myMarkers = Arrays.copyOf(myMarkers, capacity);
+        myDoneFlags = Arrays.copyOf(myDoneFlags, capacity);
+      }
+      if (index < mySize) {
+        System.arraycopy(myMarkers, index, myMarkers, index + 1, mySize - index);
+        System.arraycopy(myDoneFlags, index, myDoneFlags, index + 1, mySize - index);
       }
-      catch (Exception e) {
-        LOG.error(e);
+      myMarkers[index] = marker;
+      myDoneFlags[index] = done;
+      mySize++;
+    }
+
+    public ProductionMarker remove(int index) {
+      ProductionMarker marker = myMarkers[index];
+      removeRange(index, index + 1);
+      return marker;
+    }
+
+    public void removeRange(int fromIndex, int toIndex) {
+      System.arraycopy(myMarkers, toIndex, myMarkers, fromIndex, mySize - toIndex);
+      System.arraycopy(myDoneFlags, toIndex, myDoneFlags, fromIndex, mySize - toIndex);
+      int newSize = mySize - (toIndex - fromIndex);
+      Arrays.fill(myMarkers, newSize, mySize, null);
+      mySize = newSize;
+    }
+
+    public int lastIndexOf(StartMarker marker, boolean done) {
+      for (int i = mySize - 1; i >= 0; i--) {
+        if (myMarkers[i] == marker && myDoneFlags[i] == done) return i;
       }
+      return -1;
     }
   }
 
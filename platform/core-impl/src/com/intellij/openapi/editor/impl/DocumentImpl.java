@@ -33,11 +33,9 @@ import com.intellij.openapi.util.*;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiDocumentManager;
-import com.intellij.util.ArrayUtil;
 import com.intellij.util.LocalTimeCounter;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.ContainerUtil;
-import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -45,6 +43,8 @@ import org.jetbrains.annotations.TestOnly;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -59,7 +59,11 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
   private ReadonlyFragmentModificationHandler myReadonlyFragmentModificationHandler;
 
   private final LineSet myLineSet = new LineSet();
-  private final CharArray myText;
+  private volatile ImmutableText myText;
+  private volatile Reference<String> myTextString; // buffers String value of myText - for not to generate it every time
+  private volatile char[] myTextArray; // myText as a flat array for clients working with raw chars, built on demand
+  private final CharSequence myMutableCharSequence = new MutableCharSequence();
+  private int myBufferSize;
 
   private boolean myIsReadOnly = false;
   private boolean isStripTrailingSpacesEnabled = true;
@@ -87,7 +91,7 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
 
   public DocumentImpl(@NotNull CharSequence chars, boolean forUseInNonAWTThread) {
     assertValidSeparators(chars);
-    myText = new MyCharArray(CharArrayUtil.fromSequence(chars), chars.length());
+    myText = ImmutableText.valueOf(chars);
     myLineSet.documentCreated(this);
     setCyclicBufferSize(0);
     setModificationStamp(LocalTimeCounter.currentTime());
@@ -103,14 +107,23 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     }
   }
 
+  /**
+   * @return current text as an array which must not be modified. The array is built on the first request after a change,
+   * consider using {@link #getImmutableCharSequence()} instead.
+   */
+  @NotNull
   public char[] getRawChars() {
-    return myText.getChars();
+    char[] array = myTextArray;
+    if (array == null) {
+      myTextArray = array = myText.toCharArray();
+    }
+    return array;
   }
 
   @Override
   @NotNull
   public char[] getChars() {
-    return ArrayUtil.realloc(CharArrayUtil.fromSequence(getCharsSequence()), myText.length());
+    return myText.toCharArray();
   }
 
   @Override
@@ -136,7 +149,7 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     }
 
     boolean markAsNeedsStrippingLater = false;
-    CharSequence text = myText.getCharArray();
+    CharSequence text = myText;
     RangeMarker caretMarker = caretOffset < 0 || caretOffset > getTextLength() ? null : createRangeMarker(caretOffset, caretOffset);
     try {
       for (int line = 0; line < myLineSet.getLineCount(); line++) {
@@ -174,7 +187,7 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
               });
             }
           });
-          text = myText.getCharArray();
+          text = myText;
         }
       }
     }
@@ -356,7 +369,8 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
       throwGuardedFragment(marker, offset, null, s.toString());
     }
 
-    myText.insert(s, offset);
+    updateText(myText.insert(offset, s), offset, null, s, false, LocalTimeCounter.currentTime());
+    trimToSize();
   }
 
   @Override
@@ -368,14 +382,14 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     if (startOffset == endOffset) return;
     assertNotNestedModification();
 
-    CharSequence sToDelete = myText.substring(startOffset, endOffset);
+    CharSequence sToDelete = myText.subSequence(startOffset, endOffset);
 
     RangeMarker marker = getRangeGuard(startOffset, endOffset);
     if (marker != null) {
       throwGuardedFragment(marker, startOffset, sToDelete.toString(), null);
     }
 
-    myText.remove(startOffset, endOffset, sToDelete);
+    updateText(myText.delete(startOffset, endOffset), startOffset, sToDelete, null, false, LocalTimeCounter.currentTime());
   }
 
   @Override
@@ -441,13 +455,33 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     }
 
     s = s.subSequence(newStartInString, newEndInString);
-    CharSequence sToDelete = myText.substring(startOffset, endOffset);
+    CharSequence sToDelete = myText.subSequence(startOffset, endOffset);
     RangeMarker guard = getRangeGuard(startOffset, endOffset);
     if (guard != null) {
       throwGuardedFragment(guard, startOffset, sToDelete.toString(), s.toString());
     }
 
-    myText.replace(startOffset, endOffset, sToDelete, s, newModificationStamp, wholeTextReplaced);
+    updateText(myText.replace(startOffset, endOffset, s), startOffset, sToDelete, s, wholeTextReplaced, newModificationStamp);
+    trimToSize();
+  }
+
+  private void trimToSize() {
+    if (myBufferSize != 0 && getTextLength() > myBufferSize) {
+      deleteString(0, getTextLength() - myBufferSize);
+    }
+  }
+
+  private void updateText(@NotNull ImmutableText newText,
+                          int offset,
+                          @Nullable CharSequence oldString,
+                          @Nullable CharSequence newString,
+                          boolean wholeTextReplaced,
+                          long newModificationStamp) {
+    DocumentEvent event = beforeChangedUpdate(offset, oldString, newString, wholeTextReplaced);
+    myText = newText;
+    myTextString = null;
+    myTextArray = null;
+    changedUpdate(event, newModificationStamp);
   }
 
   private void assertBounds(final int startOffset, final int endOffset) {
@@ -611,18 +645,28 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return ApplicationManager.getApplication().runReadAction(new Computable<String>() {
       @Override
       public String compute() {
-        return myText.toString();
+        return doGetText();
       }
     });
   }
 
+  @NotNull
+  private String doGetText() {
+    Reference<String> ref = myTextString;
+    String s = ref == null ? null : ref.get();
+    if (s == null) {
+      myTextString = new SoftReference<String>(s = myText.toString());
+    }
+    return s;
+  }
+
   @NotNull
   @Override
   public String getText(@NotNull final TextRange range) {
     return ApplicationManager.getApplication().runReadAction(new Computable<String>() {
       @Override
       public String compute() {
-        return myText.substring(range.getStartOffset(), range.getEndOffset()).toString();
+        return myText.subSequence(range.getStartOffset(), range.getEndOffset()).toString();
       }
     });
   }
@@ -642,10 +686,23 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return getCharsSequence();
   }
 
+  /**
+   * @return live view of the document text, see {@link #getImmutableCharSequence()} for the text which doesn't change
+   * with the document
+   */
   @Override
   @NotNull
   public CharSequence getCharsSequence() {
-    return myText.getCharArray();
+    return myMutableCharSequence;
+  }
+
+  /**
+   * @return current document text. Unlike {@link #getCharsSequence()}, the result doesn't reflect subsequent changes,
+   * so it can be processed outside of read action, e.g. by background highlighting. Taking it doesn't copy anything.
+   */
+  @NotNull
+  public CharSequence getImmutableCharSequence() {
+    return myText;
   }
 
 
@@ -783,7 +840,8 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
 
   @Override
   public void setCyclicBufferSize(int bufferSize) {
-    myText.setBufferSize(bufferSize);
+    assert bufferSize >= 0 : bufferSize;
+    myBufferSize = bufferSize;
   }
 
   @Override
@@ -823,7 +881,6 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
       return;
     }
     myDoingBulkUpdate = value;
-    myText.setDeferredChangeMode(value);
     if (value) {
       getPublisher().updateStarted(this);
     }
@@ -854,7 +911,7 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
   @NotNull
   public String dumpState() {
     @NonNls StringBuilder result = new StringBuilder();
-    result.append("deferred mode: ").append(myText.isDeferredChangeMode() ? "on" : "off");
+    result.append("bulk update: ").append(myDoingBulkUpdate ? "on" : "off");
     result.append(", intervals:\n");
     for (int line = 0; line < getLineCount(); line++) {
       result.append(line).append(": ").append(getLineStartOffset(line)).append("-")
@@ -866,32 +923,31 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return result.toString();
   }
 
-  private class MyCharArray extends CharArray {
-    private MyCharArray(@NotNull char[] chars, int length) {
-      super(0, chars, length);
+  private class MutableCharSequence implements CharSequence {
+    @Override
+    public int length() {
+      return myText.length();
     }
 
     @Override
-    @NotNull
-    protected DocumentEvent beforeChangedUpdate(int offset,
-                                                CharSequence oldString,
-                                                CharSequence newString,
-                                                boolean wholeTextReplaced) {
-      return DocumentImpl.this.beforeChangedUpdate(offset, oldString, newString, wholeTextReplaced);
+    public char charAt(int index) {
+      return myText.charAt(index);
     }
 
+    @NotNull
     @Override
-    protected void afterChangedUpdate(@NotNull DocumentEvent event, long newModificationStamp) {
-      ((DocumentImpl)event.getDocument()).changedUpdate(event, newModificationStamp);
+    public CharSequence subSequence(int start, int end) {
+      assertReadAccess();
+      return myText.subSequence(start, end);
     }
 
+    @NotNull
     @Override
-    protected void assertWriteAccess() {
-      DocumentImpl.this.assertWriteAccess();
+    public String toString() {
+      return doGetText();
     }
 
-    @Override
-    protected void assertReadAccess() {
+    private void assertReadAccess() {
       if (myAssertThreading) {
         final Application application = ApplicationManager.getApplication();
         if (application != null) {
@@ -901,4 +957,3 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     }
   }
 }
-
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable text stored as a rope: a balanced binary tree whose leaves hold chunks of at most {@link #BLOCK_SIZE} chars.
+ * Insertion, deletion and {@link #subSequence(int, int) sub-sequence} take O(log(n)) time and share all untouched
+ * chunks with the original text, so any version of the text can be safely passed to another thread as is.
+ * <p/>
+ * Random access is O(log(n)) as well, but the last accessed chunk is remembered, so sequential {@link #charAt(int)} calls
+ * (e.g. from lexers) are nearly as fast as for a flat array.
+ */
+public final class ImmutableText implements CharSequence {
+  static final int BLOCK_SIZE = 1 << 10;
+
+  public static final ImmutableText EMPTY = new ImmutableText(new LeafNode(new char[0]));
+
+  @NotNull private final Node myRoot;
+  private volatile LeafPosition myLastLeaf; // cache for sequential access
+
+  private ImmutableText(@NotNull Node root) {
+    myRoot = root;
+  }
+
+  @NotNull
+  public static ImmutableText valueOf(@NotNull CharSequence text) {
+    if (text instanceof ImmutableText) return (ImmutableText)text;
+    if (text.length() == 0) return EMPTY;
+    return new ImmutableText(nodeOf(text, 0, text.length()));
+  }
+
+  @NotNull
+  private static Node nodeOf(@NotNull CharSequence text, int start, int end) {
+    int length = end - start;
+    if (length <= BLOCK_SIZE) {
+      char[] chars = new char[length];
+      if (text instanceof String) {
+        ((String)text).getChars(start, end, chars, 0);
+      }
+      else {
+        for (int i = 0; i < length; i++) {
+          chars[i] = text.charAt(start + i);
+        }
+      }
+      return new LeafNode(chars);
+    }
+    // split at block boundary, so all leaves except the last one are full
+    int half = Math.max(BLOCK_SIZE, (length >> 1) & -BLOCK_SIZE);
+    return new CompositeNode(nodeOf(text, start, start + half), nodeOf(text, start + half, end));
+  }
+
+  @NotNull
+  public ImmutableText concat(@NotNull CharSequence text) {
+    if (text.length() == 0) return this;
+    if (length() == 0) return valueOf(text);
+    return new ImmutableText(concatNodes(myRoot, valueOf(text).myRoot));
+  }
+
+  @NotNull
+  public ImmutableText insert(int index, @NotNull CharSequence text) {
+    checkIndex(index, length());
+    return replace(index, index, text);
+  }
+
+  @NotNull
+  public ImmutableText delete(int start, int end) {
+    return replace(start, end, "");
+  }
+
+  @NotNull
+  public ImmutableText replace(int start, int end, @NotNull CharSequence text) {
+    checkRange(start, end);
+    if (start == end && text.length() == 0) return this;
+    // small changes (typing) are applied to the leaf they touch, otherwise every keystroke would split a leaf in two
+    Node patched = text.length() < BLOCK_SIZE ? myRoot.replaceInLeaf(start, end, text) : null;
+    if (patched != null) return new ImmutableText(patched);
+    return subtext(0, start).concat(text).concat(subtext(end, length()));
+  }
+
+  @NotNull
+  public ImmutableText subtext(int start, int end) {
+    checkRange(start, end);
+    if (start == 0 && end == length()) return this;
+    if (start == end) return EMPTY;
+    return new ImmutableText(myRoot.subNode(start, end));
+  }
+
+  @Override
+  public int length() {
+    return myRoot.length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    LeafPosition last = myLastLeaf;
+    if (last != null && index >= last.myOffset && index < last.myOffset + last.myLeaf.myChars.length) {
+      return last.myLeaf.myChars[index - last.myOffset];
+    }
+
+    if (index < 0 || index >= length()) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + index + "; length: " + length());
+    }
+    Node node = myRoot;
+    int offset = 0;
+    while (node instanceof CompositeNode) {
+      CompositeNode composite = (CompositeNode)node;
+      int headLength = composite.myHead.length();
+      if (index - offset < headLength) {
+        node = composite.myHead;
+      }
+      else {
+        offset += headLength;
+        node = composite.myTail;
+      }
+    }
+    LeafNode leaf = (LeafNode)node;
+    myLastLeaf = new LeafPosition(leaf, offset);
+    return leaf.myChars[index - offset];
+  }
+
+  @NotNull
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return subtext(start, end);
+  }
+
+  /**
+   * Copies chars from the given range to <code>dest</code> array starting from <code>destPos</code>.
+   */
+  public void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+    checkRange(start, end);
+    myRoot.getChars(start, end, dest, destPos);
+  }
+
+  @NotNull
+  public char[] toCharArray() {
+    char[] chars = new char[length()];
+    myRoot.getChars(0, chars.length, chars, 0);
+    return chars;
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return new String(toCharArray());
+  }
+
+  /**
+   * @return depth of the underlying tree, used in tests
+   */
+  int getDepth() {
+    return myRoot.depth();
+  }
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || end > length() || start > end) {
+      throw new IndexOutOfBoundsException("Wrong range: [" + start + ", " + end + "); length: " + length());
+    }
+  }
+
+  private static void checkIndex(int index, int length) {
+    if (index < 0 || index > length) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + index + "; length: " + length);
+    }
+  }
+
+  /**
+   * Concatenation keeps the tree balanced: when one part is more than twice as long as the other one, it is split
+   * and the smaller part is concatenated with the nearest half of it (rotating the tree if necessary).
+   */
+  @NotNull
+  private static Node concatNodes(@NotNull Node head, @NotNull Node tail) {
+    int length = head.length() + tail.length();
+    if (length <= BLOCK_SIZE) {
+      char[] chars = new char[length];
+      head.getChars(0, head.length(), chars, 0);
+      tail.getChars(0, tail.length(), chars, head.length());
+      return new LeafNode(chars);
+    }
+
+    if (head.length() << 1 < tail.length() && tail instanceof CompositeNode) {
+      CompositeNode composite = (CompositeNode)tail;
+      if (composite.myHead.length() > composite.myTail.length()) {
+        composite = composite.rightRotation();
+      }
+      head = concatNodes(head, composite.myHead);
+      tail = composite.myTail;
+    }
+    else if (tail.length() << 1 < head.length() && head instanceof CompositeNode) {
+      CompositeNode composite = (CompositeNode)head;
+      if (composite.myTail.length() > composite.myHead.length()) {
+        composite = composite.leftRotation();
+      }
+      tail = concatNodes(composite.myTail, tail);
+      head = composite.myHead;
+    }
+    return new CompositeNode(head, tail);
+  }
+
+  private abstract static class Node {
+    abstract int length();
+
+    abstract int depth();
+
+    @NotNull
+    abstract Node subNode(int start, int end);
+
+    abstract void getChars(int start, int end, @NotNull char[] dest, int destPos);
+
+    /**
+     * @return the node with the given range replaced, if the range lies within a single leaf and the result still fits
+     * into it, <code>null</code> otherwise
+     */
+    @Nullable
+    abstract Node replaceInLeaf(int start, int end, @NotNull CharSequence text);
+  }
+
+  private static class LeafNode extends Node {
+    private final char[] myChars;
+
+    private LeafNode(@NotNull char[] chars) {
+      myChars = chars;
+    }
+
+    @Override
+    int length() {
+      return myChars.length;
+    }
+
+    @Override
+    int depth() {
+      return 0;
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == myChars.length) return this;
+      char[] chars = new char[end - start];
+      System.arraycopy(myChars, start, chars, 0, chars.length);
+      return new LeafNode(chars);
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+      System.arraycopy(myChars, start, dest, destPos, end - start);
+    }
+
+    @Nullable
+    @Override
+    Node replaceInLeaf(int start, int end, @NotNull CharSequence text) {
+      int length = myChars.length - (end - start) + text.length();
+      if (length == 0 || length > BLOCK_SIZE) return null;
+      char[] chars = new char[length];
+      System.arraycopy(myChars, 0, chars, 0, start);
+      for (int i = 0; i < text.length(); i++) {
+        chars[start + i] = text.charAt(i);
+      }
+      System.arraycopy(myChars, end, chars, start + text.length(), myChars.length - end);
+      return new LeafNode(chars);
+    }
+  }
+
+  private static class CompositeNode extends Node {
+    private final Node myHead;
+    private final Node myTail;
+    private final int myLength;
+    private final int myDepth;
+
+    private CompositeNode(@NotNull Node head, @NotNull Node tail) {
+      myHead = head;
+      myTail = tail;
+      myLength = head.length() + tail.length();
+      myDepth = Math.max(head.depth(), tail.depth()) + 1;
+    }
+
+    @Override
+    int length() {
+      return myLength;
+    }
+
+    @Override
+    int depth() {
+      return myDepth;
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      int headLength = myHead.length();
+      if (end <= headLength) return myHead.subNode(start, end);
+      if (start >= headLength) return myTail.subNode(start - headLength, end - headLength);
+      if (start == 0 && end == myLength) return this;
+      return concatNodes(myHead.subNode(start, headLength), myTail.subNode(0, end - headLength));
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+      int headLength = myHead.length();
+      if (start < headLength) {
+        int headEnd = Math.min(end, headLength);
+        myHead.getChars(start, headEnd, dest, destPos);
+        destPos += headEnd - start;
+      }
+      if (end > headLength) {
+        myTail.getChars(Math.max(start - headLength, 0), end - headLength, dest, destPos);
+      }
+    }
+
+    @Nullable
+    @Override
+    Node replaceInLeaf(int start, int end, @NotNull CharSequence text) {
+      int headLength = myHead.length();
+      if (end <= headLength) {
+        Node head = myHead.replaceInLeaf(start, end, text);
+        if (head != null) return new CompositeNode(head, myTail);
+      }
+      // an insertion at the boundary may go to the tail when the head's last leaf is full
+      if (start >= headLength) {
+        Node tail = myTail.replaceInLeaf(start - headLength, end - headLength, text);
+        if (tail != null) return new CompositeNode(myHead, tail);
+      }
+      return null;
+    }
+
+    @NotNull
+    private CompositeNode rightRotation() {
+      if (!(myHead instanceof CompositeNode)) return this;
+      CompositeNode head = (CompositeNode)myHead;
+      return new CompositeNode(head.myHead, new CompositeNode(head.myTail, myTail));
+    }
+
+    @NotNull
+    private CompositeNode leftRotation() {
+      if (!(myTail instanceof CompositeNode)) return this;
+      CompositeNode tail = (CompositeNode)myTail;
+      return new CompositeNode(new CompositeNode(myHead, tail.myHead), tail.myTail);
+    }
+  }
+
+  private static class LeafPosition {
+    private final LeafNode myLeaf;
+    private final int myOffset;
+
+    private LeafPosition(@NotNull LeafNode leaf, int offset) {
+      myLeaf = leaf;
+      myOffset = offset;
+    }
+  }
+}
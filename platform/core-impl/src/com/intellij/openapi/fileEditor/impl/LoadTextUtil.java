@@ -40,6 +40,7 @@ import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
 
 public final class LoadTextUtil {
+  private static final int BOM_MAX_LENGTH = 4;
   private static final Key<String> DETECTED_LINE_SEPARATOR_KEY = Key.create("DETECTED_LINE_SEPARATOR_KEY");
   @Nls private static final String AUTO_DETECTED_FROM_BOM = "auto-detected from BOM";
 
@@ -431,11 +432,31 @@ public final class LoadTextUtil {
     return result.getFirst();
   }
 
+  /**
+   * Same as {@link #getTextByBinaryPresentation(byte[], Charset)} but decodes the buffer without copying it into byte array.
+   * Position of the buffer is not changed.
+   */
+  @NotNull
+  public static CharSequence getTextByBinaryPresentation(@NotNull ByteBuffer bytes, Charset charset) {
+    byte[] head = new byte[Math.min(BOM_MAX_LENGTH, bytes.remaining())];
+    bytes.duplicate().get(head);
+    Pair<Charset, byte[]> pair = getBOMAndCharset(head, charset);
+    byte[] bom = pair.getSecond();
+    int offset = bom == null ? 0 : bom.length;
+
+    ByteBuffer byteBuffer = bytes.duplicate();
+    byteBuffer.position(byteBuffer.position() + offset);
+    return convertBytes(byteBuffer, charset).getFirst();
+  }
+
   // do not need to think about BOM here. it is processed outside
   @NotNull
   private static Pair<CharSequence, String> convertBytes(@NotNull byte[] bytes, Charset charset, final int startOffset) {
-    ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, startOffset, bytes.length - startOffset);
+    return convertBytes(ByteBuffer.wrap(bytes, startOffset, bytes.length - startOffset), charset);
+  }
 
+  @NotNull
+  private static Pair<CharSequence, String> convertBytes(@NotNull ByteBuffer byteBuffer, Charset charset) {
     if (charset == null) {
       charset = CharsetToolkit.getDefaultSystemCharset();
     }
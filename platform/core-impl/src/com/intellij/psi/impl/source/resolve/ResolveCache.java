@@ -22,24 +22,48 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicatorProvider;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.*;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.psi.*;
 import com.intellij.psi.impl.AnyPsiChangeListener;
 import com.intellij.psi.impl.PsiManagerImpl;
 import com.intellij.reference.SoftReference;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.containers.ConcurrentWeakHashMap;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.messages.MessageBus;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Caches results of reference resolve, sharded by the file containing the reference.
+ * <p/>
+ * A change of physical psi drops all results, a change of non-physical psi drops all results for references in non-physical files:
+ * results in any file can depend on declarations in the changed one, directly or through other results.
+ * <p/>
+ * The number of cached results is bounded by <code>psi.resolve.cache.size</code> registry key, results for the least
+ * recently used files are evicted first.
+ */
 public class ResolveCache {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.source.resolve.ResolveCache");
-  private final ConcurrentMap[] myMaps = new ConcurrentMap[2*2*2]; //boolean physical, boolean incompleteCode, boolean isPoly
+  private final ConcurrentMap<PsiFile, Shard> myPhysicalShards = createWeakMap(100);
+  private final ConcurrentMap<PsiFile, Shard> myNonPhysicalShards = createWeakMap(100);
+  private volatile Shard myPhysicalFilelessShard; // for references outside any file
+  private volatile Shard myNonPhysicalFilelessShard;
   private final RecursionGuard myGuard = RecursionManager.createGuard("resolveCache");
 
+  private final int myMaxSize;
+  private final AtomicInteger mySize = new AtomicInteger(); // may exceed the actual size until recounted in evict()
+  private final Object myEvictionLock = new Object();
+  private volatile int myClock;
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myEvictions = new AtomicLong();
+
   public static ResolveCache getInstance(Project project) {
     ProgressIndicatorProvider.checkCanceled(); // We hope this method is being called often enough to cancel daemon processes smoothly
     return ServiceManager.getService(project, ResolveCache.class);
@@ -58,9 +82,13 @@ public class ResolveCache {
   }
 
   public ResolveCache(@NotNull MessageBus messageBus) {
-    for (int i = 0; i < myMaps.length; i++) {
-      myMaps[i] = createWeakMap();
-    }
+    this(messageBus, Registry.intValue("psi.resolve.cache.size", 200000));
+  }
+
+  ResolveCache(@NotNull MessageBus messageBus, int maxSize) {
+    myMaxSize = maxSize;
+    myPhysicalFilelessShard = new Shard(true);
+    myNonPhysicalFilelessShard = new Shard(false);
     messageBus.connect().subscribe(PsiManagerImpl.ANY_PSI_CHANGE_TOPIC, new AnyPsiChangeListener() {
       @Override
       public void beforePsiChanged(boolean isPhysical) {
@@ -73,13 +101,20 @@ public class ResolveCache {
     });
   }
 
-  private static <K,V> ConcurrentWeakHashMap<K, V> createWeakMap() {
-    return new ConcurrentWeakHashMap<K,V>(100, 0.75f, Runtime.getRuntime().availableProcessors(), ContainerUtil.<K>canonicalStrategy());
+  private static <K,V> ConcurrentWeakHashMap<K, V> createWeakMap(int initialCapacity) {
+    return new ConcurrentWeakHashMap<K,V>(initialCapacity, 0.75f, Runtime.getRuntime().availableProcessors(), ContainerUtil.<K>canonicalStrategy());
   }
 
   public void clearCache(boolean isPhysical) {
-    int startIndex = isPhysical ? 0 : 1;
-    for (int i=startIndex;i<2;i++)for (int j=0;j<2;j++)for (int k=0;k<2;k++) myMaps[i*4+j*2+k].clear();
+    if (isPhysical) {
+      myPhysicalShards.clear();
+      myPhysicalFilelessShard = new Shard(true);
+    }
+    myNonPhysicalShards.clear();
+    myNonPhysicalFilelessShard = new Shard(false);
+    if (isPhysical) {
+      mySize.set(0);
+    }
   }
 
   @Nullable
@@ -88,16 +123,24 @@ public class ResolveCache {
                                                                boolean needToPreventRecursion,
                                                                final boolean incompleteCode,
                                                                boolean isPoly,
-                                                               boolean isPhysical) {
+                                                               boolean isPhysical,
+                                                               @Nullable PsiFile containingFile) {
     ProgressIndicatorProvider.checkCanceled();
     ApplicationManager.getApplication().assertReadAccessAllowed();
 
-    ConcurrentMap<TRef, Getter<TResult>> map = getMap(isPhysical, incompleteCode, isPoly);
+    Shard shard = getShard(containingFile, isPhysical, true);
+    ConcurrentMap<TRef, Getter<TResult>> map = shard.getMap(incompleteCode, isPoly);
     Getter<TResult> reference = map.get(ref);
     TResult result = reference == null ? null : reference.get();
+    int clock = myClock;
+    if (shard.myLastUse != clock) {
+      shard.myLastUse = clock;
+    }
     if (result != null) {
+      myHits.incrementAndGet();
       return result;
     }
+    myMisses.incrementAndGet();
 
     RecursionGuard.StackStamp stamp = myGuard.markStack();
     result = needToPreventRecursion ? myGuard.doPreventingRecursion(Trinity.create(ref, incompleteCode, isPoly), true, new Computable<TResult>() {
@@ -110,7 +153,13 @@ public class ResolveCache {
     LOG.assertTrue(element == null || element.isValid(), result);
 
     if (stamp.mayCacheNow()) {
-      cache(ref, map, result, isPoly);
+      if (cache(ref, map, result, isPoly)) {
+        shard.mySize.incrementAndGet();
+        myClock = clock + 1;
+        if (myMaxSize > 0 && mySize.incrementAndGet() > myMaxSize) {
+          evict();
+        }
+      }
     }
     return result;
   }
@@ -128,13 +177,15 @@ public class ResolveCache {
                                                                                 boolean needToPreventRecursion,
                                                                                 boolean incompleteCode,
                                                                                 @NotNull PsiFile containingFile) {
-    ResolveResult[] result = resolve(ref, resolver, needToPreventRecursion, incompleteCode, true, containingFile.isPhysical());
+    ResolveResult[] result = resolve(ref, resolver, needToPreventRecursion, incompleteCode, true, containingFile.isPhysical(), containingFile);
     return result == null ? ResolveResult.EMPTY_ARRAY : result;
   }
 
   @Nullable
   public <T extends PsiPolyVariantReference> ResolveResult[] getCachedResults(@NotNull T ref, boolean physical, boolean incompleteCode, boolean isPoly) {
-    Map<T, Getter<ResolveResult[]>> map = getMap(physical, incompleteCode, isPoly);
+    Shard shard = getShard(ref.getElement().getContainingFile(), physical, false);
+    if (shard == null) return null;
+    Map<T, Getter<ResolveResult[]>> map = shard.getMap(incompleteCode, isPoly);
     Getter<ResolveResult[]> reference = map.get(ref);
     return reference == null ? null : reference.get();
   }
@@ -145,12 +196,123 @@ public class ResolveCache {
                                     @NotNull AbstractResolver<TRef, TResult> resolver,
                                     boolean needToPreventRecursion,
                                     boolean incompleteCode) {
-    return resolve(ref, resolver, needToPreventRecursion, incompleteCode, false, ref.getElement().isPhysical());
+    PsiElement element = ref.getElement();
+    // isPhysical() of most elements goes to the containing file as well, so take it only once
+    PsiFile containingFile = element.getContainingFile();
+    boolean physical = containingFile != null ? containingFile.isPhysical() : element.isPhysical();
+    return resolve(ref, resolver, needToPreventRecursion, incompleteCode, false, physical, containingFile);
+  }
+
+  public long getHitCount() {
+    return myHits.get();
+  }
+
+  public long getMissCount() {
+    return myMisses.get();
+  }
+
+  /**
+   * @return number of results dropped to keep the cache within its size bound, results dropped because of psi changes aren't counted
+   */
+  public long getEvictionCount() {
+    return myEvictions.get();
+  }
+
+  public double getHitRate() {
+    long hits = myHits.get();
+    long requests = hits + myMisses.get();
+    return requests == 0 ? 0 : (double)hits / requests;
+  }
+
+  @Override
+  public String toString() {
+    return "ResolveCache: " + myPhysicalShards.size() + " physical files, " + myNonPhysicalShards.size() + " non-physical files, " +
+           "hits=" + myHits + ", misses=" + myMisses + ", evictions=" + myEvictions;
   }
 
-  private <TRef extends PsiReference,TResult> ConcurrentMap<TRef, Getter<TResult>> getMap(boolean physical, boolean incompleteCode, boolean isPoly) {
-    //noinspection unchecked
-    return myMaps[(physical ? 0 : 1)*4 + (incompleteCode ? 0 : 1)*2 + (isPoly ? 0 : 1)];
+  private Shard getShard(@Nullable PsiFile file, boolean physical, boolean create) {
+    if (file == null) {
+      return physical ? myPhysicalFilelessShard : myNonPhysicalFilelessShard;
+    }
+    ConcurrentMap<PsiFile, Shard> shards = physical ? myPhysicalShards : myNonPhysicalShards;
+    Shard shard = shards.get(file);
+    if (shard != null || !create) return shard;
+
+    return ConcurrencyUtil.cacheOrGet(shards, file, new Shard(physical));
+  }
+
+  private void evict() {
+    synchronized (myEvictionLock) {
+      if (mySize.get() <= myMaxSize) return;
+
+      List<Trinity<PsiFile, Shard, Integer>> shards = new ArrayList<Trinity<PsiFile, Shard, Integer>>();
+      int size = 0;
+      for (ConcurrentMap<PsiFile, Shard> map : Arrays.asList(myPhysicalShards, myNonPhysicalShards)) {
+        for (Map.Entry<PsiFile, Shard> entry : map.entrySet()) {
+          // last use time is updated concurrently, so it's taken once to keep the order consistent while sorting
+          shards.add(Trinity.create(entry.getKey(), entry.getValue(), entry.getValue().myLastUse));
+          size += entry.getValue().mySize.get();
+        }
+      }
+      shards.add(Trinity.<PsiFile, Shard, Integer>create(null, myPhysicalFilelessShard, myPhysicalFilelessShard.myLastUse));
+      shards.add(Trinity.<PsiFile, Shard, Integer>create(null, myNonPhysicalFilelessShard, myNonPhysicalFilelessShard.myLastUse));
+      size += myPhysicalFilelessShard.mySize.get() + myNonPhysicalFilelessShard.mySize.get();
+
+      if (size > myMaxSize) {
+        Collections.sort(shards, new Comparator<Trinity<PsiFile, Shard, Integer>>() {
+          @Override
+          public int compare(Trinity<PsiFile, Shard, Integer> o1, Trinity<PsiFile, Shard, Integer> o2) {
+            return o1.third - o2.third;
+          }
+        });
+        int target = myMaxSize / 4 * 3;
+        for (int i = 0; i < shards.size() && size > target; i++) {
+          PsiFile file = shards.get(i).first;
+          Shard shard = shards.get(i).second;
+          if (file != null) {
+            ConcurrentMap<PsiFile, Shard> map = shard.myPhysical ? myPhysicalShards : myNonPhysicalShards;
+            if (!map.remove(file, shard)) continue;
+          }
+          else if (shard.myPhysical) {
+            myPhysicalFilelessShard = new Shard(true);
+          }
+          else {
+            myNonPhysicalFilelessShard = new Shard(false);
+          }
+          int evicted = shard.mySize.get();
+          size -= evicted;
+          myEvictions.addAndGet(evicted);
+        }
+      }
+      mySize.set(size);
+    }
+  }
+
+  private class Shard {
+    private final boolean myPhysical;
+    private final ConcurrentMap[] myMaps = new ConcurrentMap[2*2]; //boolean incompleteCode, boolean isPoly
+    private final AtomicInteger mySize = new AtomicInteger();
+    private volatile int myLastUse = myClock;
+
+    private Shard(boolean physical) {
+      myPhysical = physical;
+    }
+
+    @NotNull
+    private <TRef extends PsiReference,TResult> ConcurrentMap<TRef, Getter<TResult>> getMap(boolean incompleteCode, boolean isPoly) {
+      int index = (incompleteCode ? 0 : 1)*2 + (isPoly ? 0 : 1);
+      ConcurrentMap map = myMaps[index];
+      if (map == null) {
+        synchronized (this) {
+          map = myMaps[index];
+          if (map == null) {
+            myMaps[index] = map = createWeakMap(16);
+          }
+        }
+      }
+      //noinspection unchecked
+      return map;
+    }
   }
 
   private static class SoftGetter<T> extends SoftReference<T> implements Getter<T> {
@@ -160,14 +322,16 @@ public class ResolveCache {
   }
   private static final Getter<ResolveResult[]> EMPTY_POLY_RESULT = new StaticGetter<ResolveResult[]>(ResolveResult.EMPTY_ARRAY);
   private static final Getter<Object> NULL_RESULT = new StaticGetter<Object>(null);
-  private static <TRef extends PsiReference, TResult> void cache(@NotNull TRef ref,
-                                                                 @NotNull ConcurrentMap<TRef, Getter<TResult>> map,
-                                                                 TResult result,
-                                                                 boolean isPoly) {
+
+  // returns true if a result has been cached for a reference which had no result before
+  private static <TRef extends PsiReference, TResult> boolean cache(@NotNull TRef ref,
+                                                                    @NotNull ConcurrentMap<TRef, Getter<TResult>> map,
+                                                                    TResult result,
+                                                                    boolean isPoly) {
     // optimization: less contention
     Getter<TResult> cached = map.get(ref);
     if (cached != null && cached.get() == result) {
-      return;
+      return false;
     }
     if (result == null) {
       // no use in creating SoftReference to null
@@ -182,6 +346,6 @@ public class ResolveCache {
     else {
       cached = new SoftGetter<TResult>(result);
     }
-    map.put(ref, cached);
+    return map.put(ref, cached) == null;
   }
 }
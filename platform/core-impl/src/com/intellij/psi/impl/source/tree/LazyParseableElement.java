@@ -19,20 +19,29 @@
  */
 package com.intellij.psi.impl.source.tree;
 
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.lang.ASTNode;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.LogUtil;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicatorProvider;
+import com.intellij.psi.PsiLock;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.ILazyParseableElementType;
+import com.intellij.psi.tree.IParallelParseableElementType;
+import com.intellij.util.Processor;
 import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class LazyParseableElement extends CompositeElement {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.source.tree.LazyParseableElement");
+  private static final int PARALLEL_PARSING_THRESHOLD = 64 * 1024;
 
   private static class ChameleonLock {
     private ChameleonLock() {}
@@ -186,6 +195,46 @@ public class LazyParseableElement extends CompositeElement {
     createAllChildrenPsiIfNecessary();
   }
 
+  /**
+   * Parses the file and all its top-level {@link IParallelParseableElementType} children, for callers about to walk
+   * the whole tree anyway. Large enough chunks are parsed concurrently under read actions of the worker threads.
+   * They are parsed in this thread if it holds {@link PsiLock#LOCK}, because the workers need it to create PSI,
+   * or if read actions can't be started in other threads, e.g. when a write action is running.
+   */
+  public static void parseChunksConcurrently(@NotNull FileElement fileElement) {
+    ApplicationManager.getApplication().assertReadAccessAllowed();
+    ((LazyParseableElement)fileElement).ensureParsed();
+
+    List<LazyParseableElement> chunks = new ArrayList<LazyParseableElement>();
+    int length = 0;
+    for (TreeElement child = fileElement.rawFirstChild(); child != null; child = child.getTreeNext()) {
+      if (child instanceof LazyParseableElement && child.getElementType() instanceof IParallelParseableElementType) {
+        CharSequence text = ((LazyParseableElement)child).myText();
+        if (text != null) {
+          chunks.add((LazyParseableElement)child);
+          length += text.length();
+        }
+      }
+    }
+
+    Processor<LazyParseableElement> parser = new Processor<LazyParseableElement>() {
+      @Override
+      public boolean process(LazyParseableElement chunk) {
+        chunk.ensureParsed();
+        return true;
+      }
+    };
+    JobLauncher launcher = JobLauncher.getInstance();
+    if (chunks.size() < 2 || length < PARALLEL_PARSING_THRESHOLD || launcher == null || Thread.holdsLock(PsiLock.LOCK)) {
+      for (LazyParseableElement chunk : chunks) {
+        parser.process(chunk);
+      }
+    }
+    else {
+      launcher.invokeConcurrentlyUnderProgress(chunks, ProgressIndicatorProvider.getGlobalProgressIndicator(), true, false, parser);
+    }
+  }
+
   @Override
   public void rawAddChildrenWithoutNotifications(@NotNull TreeElement first) {
     if (myText() != null) {
@@ -21,6 +21,8 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.List;
+
 /**
  * @author yole
  */
@@ -35,6 +37,18 @@ public abstract class StubTreeLoader {
 
   @Nullable
   public abstract ObjectStubTree readFromVFile(Project project, final VirtualFile vFile);
+
+  /**
+   * Reads the stub with the given index in {@link ObjectStubTree#getPlainList()} of the file's stub tree from index.
+   * Implementations may avoid deserializing the rest of the tree, so the stub is only guaranteed to have its ancestors.
+   */
+  @Nullable
+  public Stub readStubFromVFile(Project project, final VirtualFile vFile, int stubIndex) {
+    ObjectStubTree tree = readFromVFile(project, vFile);
+    if (tree == null) return null;
+    List plainList = tree.getPlainList();
+    return stubIndex < plainList.size() ? (Stub)plainList.get(stubIndex) : null;
+  }
   
   public abstract void rebuildStubTree(VirtualFile virtualFile);
 
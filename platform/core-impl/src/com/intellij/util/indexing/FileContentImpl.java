@@ -32,6 +32,7 @@ import org.jetbrains.annotations.TestOnly;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 /**
@@ -43,6 +44,7 @@ public final class FileContentImpl extends UserDataHolderBase implements FileCon
   private final FileType myFileType;
   private final Charset myCharset;
   private byte[] myContent;
+  private ByteBuffer myContentBuffer; // read-only content, copied into myContent only when requested
   private CharSequence myContentAsText;
   private final long myStamp;
 
@@ -98,14 +100,34 @@ public final class FileContentImpl extends UserDataHolderBase implements FileCon
     this(file, null, content, LoadTextUtil.detectCharsetAndSetBOM(file, content), -1);
   }
 
+  public FileContentImpl(@NotNull final VirtualFile file, @NotNull final ByteBuffer content) {
+    this(file, null, null, content, file.isCharsetSet() ? file.getCharset() : null, -1);
+  }
+
   public FileContentImpl(@NotNull final VirtualFile file) {
     this(file, null, null, null, -1);
   }
 
   private FileContentImpl(@NotNull VirtualFile file, CharSequence contentAsText, byte[] content, Charset charset, long stamp) {
+    this(file, contentAsText, content, null, charset, stamp);
+  }
+
+  private FileContentImpl(@NotNull VirtualFile file,
+                          CharSequence contentAsText,
+                          byte[] content,
+                          ByteBuffer contentBuffer,
+                          Charset charset,
+                          long stamp) {
+    if (contentBuffer != null && charset == null && !file.getFileType().isBinary()) {
+      // charset detection needs the bytes anyway
+      content = toByteArray(contentBuffer);
+      contentBuffer = null;
+      charset = LoadTextUtil.detectCharsetAndSetBOM(file, content);
+    }
     myFile = file;
     myContentAsText = contentAsText;
     myContent = content;
+    myContentBuffer = contentBuffer;
     myCharset = charset;
     myFileType = file.getFileType();
     // remember name explicitly because the file could be renamed afterwards
@@ -164,10 +186,21 @@ public final class FileContentImpl extends UserDataHolderBase implements FileCon
     return myStamp;
   }
 
+  @NotNull
+  private static byte[] toByteArray(@NotNull ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
   @Override
   public byte[] getContent() {
     if (myContent == null) {
-      if (myContentAsText != null) {
+      if (myContentBuffer != null) {
+        myContent = toByteArray(myContentBuffer);
+        myContentBuffer = null;
+      }
+      else if (myContentAsText != null) {
         try {
           myContent = myCharset != null ? myContentAsText.toString().getBytes(myCharset.name()) : myContentAsText.toString().getBytes();
         }
@@ -190,7 +223,11 @@ public final class FileContentImpl extends UserDataHolderBase implements FileCon
       return content;
     }
     if (myContentAsText == null) {
-      if (myContent != null) {
+      if (myContentBuffer != null) {
+        myContentAsText = LoadTextUtil.getTextByBinaryPresentation(myContentBuffer, myCharset);
+        myContentBuffer = null; // help gc, indices are expected to use bytes or chars but not both
+      }
+      else if (myContent != null) {
         myContentAsText = LoadTextUtil.getTextByBinaryPresentation(myContent, myCharset);
         myContent = null; // help gc, indices are expected to use bytes or chars but not both
       }
@@ -28,12 +28,14 @@ import com.intellij.openapi.editor.ex.PrioritizedDocumentListener;
 import com.intellij.openapi.editor.highlighter.EditorHighlighter;
 import com.intellij.openapi.editor.highlighter.HighlighterClient;
 import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.impl.DocumentImpl;
 import com.intellij.openapi.editor.impl.EditorDocumentPriorities;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.fileTypes.PlainSyntaxHighlighter;
 import com.intellij.openapi.fileTypes.SyntaxHighlighter;
 import com.intellij.openapi.project.DumbAwareRunnable;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.ui.UIUtil;
@@ -53,6 +55,19 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   private EditorColorsScheme myScheme;
   private final int myInitialState;
 
+  // Lazy lexing of large documents: segments are built only up to the offsets requested by iterators (plus a look-ahead
+  // lexed in background), and relexing after a change stops after some distance, leaving the rest for lexing on demand.
+  // Lexing always stops before a token starting in the initial lexer state, so it can be resumed from the last segment end.
+  private static final int LAZY_CHUNK_SIZE = 32 * 1024;
+  private static final int LAZY_LOOK_AHEAD = 1024 * 1024;
+  private boolean myLazy;
+  private volatile boolean myPartial; // segments end before the end of the text
+  private CharSequence myLazyText; // immutable text the segments correspond to
+  private int myLazyTextVersion;
+  private int myRequestedEnd;
+  private boolean myBackgroundLexing;
+  private Lexer myBackgroundLexer;
+
   public LexerEditorHighlighter(@NotNull SyntaxHighlighter highlighter, @NotNull EditorColorsScheme scheme) {
     myScheme = scheme;
     myLexer = highlighter.getHighlightingLexer();
@@ -114,6 +129,10 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
         doSetText(document.getCharsSequence());
       }
 
+      if (myPartial) {
+        ensureLexed(startOffset);
+      }
+
       final int latestValidOffset = mySegments.getLastValidOffset();
       return new HighlighterIteratorImpl(startOffset <= latestValidOffset ? startOffset : latestValidOffset);
     }
@@ -143,6 +162,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     if (document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate()) {
       mySegments.removeAll();
+      myPartial = false;
       return;
     }
 
@@ -151,6 +171,15 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       return;
     }
 
+    final int oldLexedEnd = mySegments.getLastValidOffset();
+    if (myLazy) {
+      myLazyText = ((DocumentImpl)document).getImmutableCharSequence();
+      myLazyTextVersion++;
+      if (myPartial && e.getOffset() > oldLexedEnd) {
+        return; // nothing is lexed there yet
+      }
+    }
+
     CharSequence text = document.getCharsSequence();
     int oldStartOffset = e.getOffset();
 
@@ -224,6 +253,11 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       data = packData(myLexer.getTokenType(), lexerState);
       if(tokenStart >= newEndOffset && lexerState == myInitialState) {
         int shiftedTokenStart = tokenStart - e.getNewLength() + e.getOldLength();
+        if (myPartial && shiftedTokenStart >= oldLexedEnd || myLazy && tokenStart >= newEndOffset + LAZY_CHUNK_SIZE) {
+          // the rest of the text will be lexed on demand, old segments after this point are dropped
+          myPartial = true;
+          break;
+        }
         int index = mySegments.findSegmentIndex(shiftedTokenStart);
         if (mySegments.getSegmentStart(index) == shiftedTokenStart && mySegments.getSegmentData(index) == data) {
           repaintEnd = tokenStart;
@@ -236,6 +270,10 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       myLexer.advance();
     }
 
+    if (myPartial && myLexer.getTokenType() == null) {
+      myPartial = false; // the text is relexed up to the end
+    }
+
     final int shift = e.getNewLength() - e.getOldLength();
     if (repaintEnd > 0) {
       while (insertSegmentCount > 0 && oldEndIndex > startIndex) {
@@ -259,6 +297,11 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     mySegments.shiftSegments(oldEndIndex, shift);
     mySegments.replace(startIndex, oldEndIndex, insertSegments);
 
+    if (myPartial) {
+      myRequestedEnd = Math.max(myRequestedEnd, oldLexedEnd + shift);
+      scheduleBackgroundLexing();
+    }
+
     if (insertSegmentCount == 0 ||
         oldEndIndex == startIndex + 1 && insertSegmentCount == 1 && data == mySegments.getSegmentData(startIndex)) {
       return;
@@ -303,6 +346,12 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   }
 
   private void doSetText(final CharSequence text) {
+    myLazy = shouldLexLazily(text);
+    myPartial = false;
+    myLazyText = myLazy ? ((DocumentImpl)getDocument()).getImmutableCharSequence() : null;
+    myLazyTextVersion++;
+    myRequestedEnd = LAZY_LOOK_AHEAD;
+
     final TokenProcessor processor = createTokenProcessor(0);
     myLexer.start(text, 0, text.length(),myInitialState);
     mySegments.removeAll();
@@ -310,6 +359,11 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     while (true) {
       final IElementType tokenType = myLexer.getTokenType();
       if (tokenType == null) break;
+      if (myLazy && myLexer.getTokenStart() >= LAZY_CHUNK_SIZE && myLexer.getState() == myInitialState) {
+        myPartial = true;
+        scheduleBackgroundLexing();
+        break;
+      }
 
       int data = packData(tokenType, myLexer.getState());
       processor.addToken(i, myLexer.getTokenStart(), myLexer.getTokenEnd(), data, tokenType);
@@ -332,6 +386,117 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     return new TokenProcessor();
   }
 
+  /**
+   * @return whether the highlighter may keep segments only for the beginning of the text, see {@link #LAZY_CHUNK_SIZE}.
+   * Subclasses which keep additional data for segments via {@link #createSegments()} or {@link #createTokenProcessor(int)}
+   * should return false.
+   */
+  protected boolean isLazyLexingSupported() {
+    return true;
+  }
+
+  private boolean shouldLexLazily(@NotNull CharSequence text) {
+    Document document = getDocument();
+    return document instanceof DocumentImpl && text == document.getCharsSequence() && isLazyLexingSupported() &&
+           text.length() >= Registry.intValue("editor.highlighter.lazyLexingThresholdKb", 2048) * 1024;
+  }
+
+  /**
+   * Lexes the text following the last segment until the segments cover the given offset.
+   */
+  private void ensureLexed(int offset) {
+    if (!myPartial) return;
+    myRequestedEnd = Math.max(myRequestedEnd, offset + LAZY_LOOK_AHEAD);
+    int start = mySegments.getLastValidOffset();
+    if (offset >= start) {
+      myPartial = lexChunk(myLexer, myLazyText, start, offset + 1, mySegments);
+    }
+    scheduleBackgroundLexing();
+  }
+
+  /**
+   * Appends segments for tokens from <code>start</code> offset, stopping after <code>end</code> offset is reached
+   * before the first token starting in the initial lexer state.
+   *
+   * @return true if lexing was stopped before the end of the text
+   */
+  private boolean lexChunk(@NotNull Lexer lexer, @NotNull CharSequence text, int start, int end, @NotNull SegmentArrayWithData segments) {
+    int limit = Math.max(end, start + LAZY_CHUNK_SIZE);
+    int i = segments.getSegmentCount();
+    lexer.start(text, start, text.length(), myInitialState);
+    IElementType tokenType;
+    while ((tokenType = lexer.getTokenType()) != null) {
+      int state = lexer.getState();
+      if (lexer.getTokenStart() >= limit && state == myInitialState) break;
+      segments.setElementAt(i++, lexer.getTokenStart(), lexer.getTokenEnd(), packData(tokenType, state));
+      lexer.advance();
+    }
+    return tokenType != null;
+  }
+
+  private void scheduleBackgroundLexing() {
+    if (!myPartial || myBackgroundLexing || mySegments.getLastValidOffset() >= myRequestedEnd) return;
+    myBackgroundLexing = true;
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          lexInBackground();
+        }
+        catch (RuntimeException e) {
+          synchronized (LexerEditorHighlighter.this) {
+            myBackgroundLexing = false;
+          }
+          LOG.error(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Lexes the text by chunks up to {@link #myRequestedEnd}. Chunks are lexed without lock on immutable text and are dropped
+   * if the document or segments were changed meanwhile.
+   */
+  private void lexInBackground() {
+    if (myBackgroundLexer == null) {
+      myBackgroundLexer = myHighlighter.getHighlightingLexer();
+    }
+    while (true) {
+      CharSequence text;
+      int version;
+      int start;
+      synchronized (this) {
+        if (!myPartial || mySegments.getLastValidOffset() >= myRequestedEnd) {
+          myBackgroundLexing = false;
+          return;
+        }
+        text = myLazyText;
+        version = myLazyTextVersion;
+        start = mySegments.getLastValidOffset();
+      }
+
+      SegmentArrayWithData chunk = new SegmentArrayWithData();
+      boolean partial = lexChunk(myBackgroundLexer, text, start, start, chunk);
+
+      synchronized (this) {
+        if (version == myLazyTextVersion && myPartial && mySegments.getLastValidOffset() == start) {
+          mySegments.insert(chunk, mySegments.getSegmentCount());
+          myPartial = partial;
+          if (myEditor != null && !ApplicationManager.getApplication().isHeadlessEnvironment()) {
+            final int repaintStart = start;
+            final int repaintEnd = chunk.getLastValidOffset();
+            UIUtil.invokeLaterIfNeeded(new DumbAwareRunnable() {
+              @Override
+              public void run() {
+                myEditor.repaint(repaintStart, repaintEnd);
+              }
+            });
+          }
+        }
+      }
+    }
+  }
+
   protected SyntaxHighlighter getSyntaxHighlighter() {
     return myHighlighter;
   }
@@ -375,17 +540,23 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     @Override
     public int getStart() {
-      return mySegments.getSegmentStart(mySegmentIndex);
+      synchronized (LexerEditorHighlighter.this) {
+        return mySegments.getSegmentStart(mySegmentIndex);
+      }
     }
 
     @Override
     public int getEnd() {
-      return mySegments.getSegmentEnd(mySegmentIndex);
+      synchronized (LexerEditorHighlighter.this) {
+        return mySegments.getSegmentEnd(mySegmentIndex);
+      }
     }
 
     @Override
     public IElementType getTokenType(){
-      return unpackToken(mySegments.getSegmentData(mySegmentIndex));
+      synchronized (LexerEditorHighlighter.this) {
+        return unpackToken(mySegments.getSegmentData(mySegmentIndex));
+      }
     }
 
     @Override
@@ -400,7 +571,13 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     @Override
     public boolean atEnd() {
-      return mySegmentIndex >= mySegments.getSegmentCount() || mySegmentIndex < 0;
+      if (mySegmentIndex < 0) return true;
+      synchronized (LexerEditorHighlighter.this) {
+        while (myPartial && mySegmentIndex >= mySegments.getSegmentCount()) {
+          ensureLexed(mySegments.getLastValidOffset());
+        }
+        return mySegmentIndex >= mySegments.getSegmentCount();
+      }
     }
 
     @Override
@@ -34,6 +34,13 @@ public abstract class SerializationManagerEx extends SerializationManager {
   @NotNull
   public abstract Stub deserialize(@NotNull InputStream stream) throws SerializerNotFoundException;
 
+  /**
+   * Deserializes only the stub with the given index in the depth-first order and its ancestors.
+   * @see StubSerializationHelper#deserializeStub(byte[], int, int)
+   */
+  @NotNull
+  public abstract Stub deserializeStub(@NotNull byte[] bytes, int length, int stubIndex) throws SerializerNotFoundException;
+
   public abstract boolean isNameStorageCorrupted();
 
   public abstract void repairNameStorage();
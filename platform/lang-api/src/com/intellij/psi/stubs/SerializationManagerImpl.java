@@ -182,4 +182,19 @@ public class SerializationManagerImpl extends SerializationManagerEx implements
       throw new RuntimeException(e);
     }
   }
+
+  @NotNull
+  @Override
+  public Stub deserializeStub(@NotNull byte[] bytes, int length, int stubIndex) throws SerializerNotFoundException {
+    initSerializers();
+
+    try {
+      return myStubSerializationHelper.deserializeStub(bytes, length, stubIndex);
+    }
+    catch (IOException e) {
+      nameStorageCrashed();
+      LOG.info(e);
+      throw new RuntimeException(e);
+    }
+  }
 }
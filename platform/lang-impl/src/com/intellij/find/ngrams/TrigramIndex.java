@@ -21,17 +21,26 @@ package com.intellij.find.ngrams;
 
 import com.intellij.openapi.util.text.TrigramBuilder;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.Processor;
+import com.intellij.util.containers.SLRUMap;
 import com.intellij.util.indexing.*;
+import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.EnumeratorIntegerDescriptor;
 import com.intellij.util.io.KeyDescriptor;
 import gnu.trove.THashMap;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntProcedure;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
-public class TrigramIndex extends ScalarIndexExtension<Integer> {
+public class TrigramIndex extends CustomImplementationFileBasedIndexExtension<Integer, Void, FileContent> {
   public static final boolean ENABLED = "true".equals(System.getProperty("idea.internal.trigramindex.enabled"));
 
   public static final ID<Integer,Void> INDEX_ID = ID.create("Trigram.Index");
@@ -76,6 +85,11 @@ public class TrigramIndex extends ScalarIndexExtension<Integer> {
     };
   }
 
+  @Override
+  public DataExternalizer<Void> getValueExternalizer() {
+    return ScalarIndexExtension.VOID_DATA_EXTERNALIZER;
+  }
+
   @Override
   public KeyDescriptor<Integer> getKeyDescriptor() {
     return EnumeratorIntegerDescriptor.INSTANCE;
@@ -100,4 +114,185 @@ public class TrigramIndex extends ScalarIndexExtension<Integer> {
   public int getVersion() {
     return ENABLED ? 2 : 1;
   }
+
+  @NotNull
+  @Override
+  public UpdatableIndex<Integer, Void, FileContent> createIndexImplementation(ID<Integer, Void> indexId,
+                                                                             @NotNull FileBasedIndex owner,
+                                                                             @NotNull IndexStorage<Integer, Void> storage)
+    throws StorageException {
+    return new MyIndex(indexId, getIndexer(), storage);
+  }
+
+  /**
+   * Keeps recently used trigrams as compressed {@link TrigramPostings}, so the files containing all trigrams of the searched
+   * string are found without reading and hashing id sets of common trigrams again. Posting lists are cached in several
+   * independently locked shards and are dropped as soon as the trigram is updated in the storage.
+   */
+  private static class MyIndex extends MapReduceIndex<Integer, Void, FileContent> implements KeysIntersectingIndex<Integer> {
+    private static final int SHARDS = 16;
+    private static final int SHARD_CACHE_SIZE = 32;
+
+    private final IndexStorage<Integer, Void> myIndexStorage;
+    private final SLRUMap<Integer, TrigramPostings>[] myShards;
+
+    private MyIndex(ID<Integer, Void> indexId, DataIndexer<Integer, Void, FileContent> indexer, @NotNull IndexStorage<Integer, Void> storage) {
+      this(indexId, indexer, storage, createShards());
+    }
+
+    private MyIndex(ID<Integer, Void> indexId,
+                    DataIndexer<Integer, Void, FileContent> indexer,
+                    @NotNull IndexStorage<Integer, Void> storage,
+                    @NotNull SLRUMap<Integer, TrigramPostings>[] shards) {
+      super(indexId, indexer, new InvalidatingStorage(storage, shards));
+      myIndexStorage = storage;
+      myShards = shards;
+      if (storage instanceof MemoryIndexStorage) {
+        ((MemoryIndexStorage)storage).addBufferingStateListsner(new MemoryIndexStorage.BufferingStateListener() {
+          @Override
+          public void bufferingStateChanged(boolean newState) {
+            clearShards(myShards);
+          }
+
+          @Override
+          public void memoryStorageCleared() {
+            clearShards(myShards);
+          }
+        });
+      }
+    }
+
+    @NotNull
+    @Override
+    public IndexStorage<Integer, Void> getStorage() {
+      return myIndexStorage;
+    }
+
+    @NotNull
+    @Override
+    public int[] getInputIdsWithAllKeys(@NotNull Collection<Integer> keys) throws StorageException {
+      // unsaved changes are kept in memory storage only while buffering is enabled, they should not get into the cache
+      final boolean cacheable = !(myIndexStorage instanceof MemoryIndexStorage) || !((MemoryIndexStorage)myIndexStorage).isBufferingEnabled();
+      final List<TrigramPostings> postings = new ArrayList<TrigramPostings>(keys.size());
+      for (Integer key : keys) {
+        TrigramPostings keyPostings = cacheable ? getCachedPostings(key) : null;
+        if (keyPostings == null) {
+          keyPostings = TrigramPostings.create(myStorage.read(key));
+          if (cacheable) {
+            cachePostings(key, keyPostings);
+          }
+        }
+        if (keyPostings.size() == 0) {
+          return ArrayUtil.EMPTY_INT_ARRAY;
+        }
+        postings.add(keyPostings);
+      }
+      return TrigramPostings.intersect(postings);
+    }
+
+    @Nullable
+    private TrigramPostings getCachedPostings(int key) {
+      final SLRUMap<Integer, TrigramPostings> shard = getShard(myShards, key);
+      synchronized (shard) {
+        return shard.get(key);
+      }
+    }
+
+    private void cachePostings(int key, @NotNull TrigramPostings postings) {
+      final SLRUMap<Integer, TrigramPostings> shard = getShard(myShards, key);
+      synchronized (shard) {
+        shard.put(key, postings);
+      }
+    }
+  }
+
+  @NotNull
+  private static SLRUMap<Integer, TrigramPostings>[] createShards() {
+    //noinspection unchecked
+    final SLRUMap<Integer, TrigramPostings>[] shards = new SLRUMap[MyIndex.SHARDS];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new SLRUMap<Integer, TrigramPostings>(MyIndex.SHARD_CACHE_SIZE, MyIndex.SHARD_CACHE_SIZE);
+    }
+    return shards;
+  }
+
+  @NotNull
+  private static SLRUMap<Integer, TrigramPostings> getShard(@NotNull SLRUMap<Integer, TrigramPostings>[] shards, int key) {
+    // trigrams are three packed characters, mix the bits so neighbouring trigrams get into different shards
+    final int hash = key * 0x9E3779B9;
+    return shards[(hash >>> 16) & (shards.length - 1)];
+  }
+
+  private static void clearShards(@NotNull SLRUMap<Integer, TrigramPostings>[] shards) {
+    for (SLRUMap<Integer, TrigramPostings> shard : shards) {
+      synchronized (shard) {
+        shard.clear();
+      }
+    }
+  }
+
+  /**
+   * Drops cached posting lists of the keys updated in the storage.
+   */
+  private static class InvalidatingStorage implements IndexStorage<Integer, Void> {
+    private final IndexStorage<Integer, Void> myDelegate;
+    private final SLRUMap<Integer, TrigramPostings>[] myShards;
+
+    private InvalidatingStorage(@NotNull IndexStorage<Integer, Void> delegate, @NotNull SLRUMap<Integer, TrigramPostings>[] shards) {
+      myDelegate = delegate;
+      myShards = shards;
+    }
+
+    @Override
+    public void addValue(Integer key, int inputId, Void value) throws StorageException {
+      invalidate(key);
+      myDelegate.addValue(key, inputId, value);
+    }
+
+    @Override
+    public void removeAllValues(Integer key, int inputId) throws StorageException {
+      invalidate(key);
+      myDelegate.removeAllValues(key, inputId);
+    }
+
+    @Override
+    public void clear() throws StorageException {
+      clearShards(myShards);
+      myDelegate.clear();
+    }
+
+    private void invalidate(int key) {
+      final SLRUMap<Integer, TrigramPostings> shard = getShard(myShards, key);
+      synchronized (shard) {
+        shard.remove(key);
+      }
+    }
+
+    @NotNull
+    @Override
+    public ValueContainer<Void> read(Integer key) throws StorageException {
+      return myDelegate.read(key);
+    }
+
+    @Override
+    public boolean processKeys(Processor<Integer> processor, @Nullable IdFilter idFilter) throws StorageException {
+      return myDelegate.processKeys(processor, idFilter);
+    }
+
+    @Override
+    public Collection<Integer> getKeys() throws StorageException {
+      return myDelegate.getKeys();
+    }
+
+    @Override
+    public void close() throws StorageException {
+      clearShards(myShards);
+      myDelegate.close();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      myDelegate.flush();
+    }
+  }
 }
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.indexing.ValueContainer;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable sorted list of input ids containing some trigram. Ids are split into blocks of {@link #BLOCK_SIZE},
+ * first id of every block is kept in skip list together with the offset of the block, other ids are stored as
+ * variable-length deltas from the previous id. Skip list allows to {@link Cursor#advanceTo(int) advance} to some id
+ * without decoding the ids before it, so intersection of small posting list with a large one costs about the size of the small one.
+ */
+class TrigramPostings {
+  static final int BLOCK_SIZE = 64;
+
+  static final TrigramPostings EMPTY = new TrigramPostings(0, ArrayUtil.EMPTY_INT_ARRAY, ArrayUtil.EMPTY_INT_ARRAY, ArrayUtil.EMPTY_BYTE_ARRAY);
+
+  private final int mySize;
+  private final int[] mySkipIds;
+  private final int[] mySkipOffsets;
+  private final byte[] myDeltas;
+
+  private TrigramPostings(int size, @NotNull int[] skipIds, @NotNull int[] skipOffsets, @NotNull byte[] deltas) {
+    mySize = size;
+    mySkipIds = skipIds;
+    mySkipOffsets = skipOffsets;
+    myDeltas = deltas;
+  }
+
+  @NotNull
+  static TrigramPostings create(@NotNull ValueContainer<Void> container) {
+    final TIntArrayList ids = new TIntArrayList();
+    container.forEach(new ValueContainer.ContainerAction<Void>() {
+      @Override
+      public boolean perform(int id, Void value) {
+        ids.add(id);
+        return true;
+      }
+    });
+    return create(ids.toNativeArray(), ids.size());
+  }
+
+  /**
+   * @param ids input ids in any order, the array is sorted in place
+   */
+  @NotNull
+  static TrigramPostings create(@NotNull int[] ids, int count) {
+    if (count == 0) return EMPTY;
+    Arrays.sort(ids, 0, count);
+
+    int[] skipIds = new int[(count + BLOCK_SIZE - 1) / BLOCK_SIZE];
+    int[] skipOffsets = new int[skipIds.length];
+    byte[] deltas = new byte[count * 5];
+    int offset = 0;
+    int size = 0;
+    int previous = 0;
+    for (int i = 0; i < count; i++) {
+      int id = ids[i];
+      if (size > 0 && id == previous) continue; // several values of the same input
+
+      if (size % BLOCK_SIZE == 0) {
+        skipIds[size / BLOCK_SIZE] = id;
+        skipOffsets[size / BLOCK_SIZE] = offset;
+      }
+      else {
+        offset = writeVarInt(deltas, offset, id - previous);
+      }
+      previous = id;
+      size++;
+    }
+    int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    return new TrigramPostings(size,
+                               blocks == skipIds.length ? skipIds : Arrays.copyOf(skipIds, blocks),
+                               blocks == skipOffsets.length ? skipOffsets : Arrays.copyOf(skipOffsets, blocks),
+                               Arrays.copyOf(deltas, offset));
+  }
+
+  private static int writeVarInt(@NotNull byte[] bytes, int offset, int value) {
+    while ((value & ~0x7F) != 0) {
+      bytes[offset++] = (byte)((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes[offset++] = (byte)value;
+    return offset;
+  }
+
+  int size() {
+    return mySize;
+  }
+
+  @NotNull
+  int[] toArray() {
+    int[] result = new int[mySize];
+    Cursor cursor = new Cursor();
+    for (int i = 0; i < mySize; i++) {
+      result[i] = cursor.next();
+    }
+    return result;
+  }
+
+  @NotNull
+  Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * Ids contained in all posting lists. Posting lists are processed from the shortest one, so common trigrams
+   * are only probed for the few candidates left by rare ones.
+   *
+   * @return sorted ids
+   */
+  @NotNull
+  static int[] intersect(@NotNull List<TrigramPostings> postings) {
+    if (postings.isEmpty()) return ArrayUtil.EMPTY_INT_ARRAY;
+    List<TrigramPostings> sorted = new ArrayList<TrigramPostings>(postings);
+    Collections.sort(sorted, new Comparator<TrigramPostings>() {
+      @Override
+      public int compare(TrigramPostings o1, TrigramPostings o2) {
+        return o1.mySize - o2.mySize;
+      }
+    });
+
+    int[] candidates = sorted.get(0).toArray();
+    int count = candidates.length;
+    for (int i = 1; i < sorted.size() && count > 0; i++) {
+      Cursor cursor = sorted.get(i).cursor();
+      int kept = 0;
+      for (int j = 0; j < count; j++) {
+        int candidate = candidates[j];
+        if (!cursor.advanceTo(candidate)) break;
+        if (cursor.current() == candidate) {
+          candidates[kept++] = candidate;
+        }
+      }
+      count = kept;
+    }
+    return count == candidates.length ? candidates : Arrays.copyOf(candidates, count);
+  }
+
+  class Cursor {
+    private int myBlock = -1;
+    private int myIndexInBlock;
+    private int myOffset;
+    private int myCurrent;
+
+    private Cursor() {
+    }
+
+    boolean hasNext() {
+      return myBlock < 0 ? mySize > 0 : myBlock * BLOCK_SIZE + myIndexInBlock + 1 < mySize;
+    }
+
+    int next() {
+      if (myBlock >= 0 && myIndexInBlock + 1 < blockLength(myBlock)) {
+        myIndexInBlock++;
+        int delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = myDeltas[myOffset++];
+          delta |= (b & 0x7F) << shift;
+          shift += 7;
+        }
+        while (b < 0);
+        myCurrent += delta;
+      }
+      else {
+        jumpToBlock(myBlock + 1);
+      }
+      return myCurrent;
+    }
+
+    int current() {
+      return myCurrent;
+    }
+
+    /**
+     * Moves the cursor to the first id which is not less than the given one.
+     *
+     * @return false if there are no such ids
+     */
+    boolean advanceTo(int id) {
+      if (myBlock >= 0 && myCurrent >= id) return true;
+
+      // the last block starting not after the id
+      int low = Math.max(myBlock + 1, 0);
+      int high = mySkipIds.length - 1;
+      int block = -1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (mySkipIds[mid] <= id) {
+          block = mid;
+          low = mid + 1;
+        }
+        else {
+          high = mid - 1;
+        }
+      }
+      if (block >= 0) {
+        jumpToBlock(block);
+      }
+      else if (myBlock < 0) {
+        if (mySize == 0) return false;
+        jumpToBlock(0);
+      }
+
+      while (myCurrent < id) {
+        if (!hasNext()) return false;
+        next();
+      }
+      return true;
+    }
+
+    private void jumpToBlock(int block) {
+      myBlock = block;
+      myIndexInBlock = 0;
+      myOffset = mySkipOffsets[block];
+      myCurrent = mySkipIds[block];
+    }
+
+    private int blockLength(int block) {
+      return Math.min(BLOCK_SIZE, mySize - block * BLOCK_SIZE);
+    }
+  }
+}
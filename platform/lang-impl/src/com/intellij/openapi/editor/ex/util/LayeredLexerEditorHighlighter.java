@@ -58,6 +58,11 @@ public class LayeredLexerEditorHighlighter extends LexerEditorHighlighter {
     return new MappingSegments();
   }
 
+  @Override
+  protected boolean isLazyLexingSupported() {
+    return false;
+  }
+
   public synchronized void registerLayer(IElementType tokenType, LayerDescriptor layerHighlighter) {
     myTokensToLayer.put(tokenType, layerHighlighter);
     getSegments().removeAll();
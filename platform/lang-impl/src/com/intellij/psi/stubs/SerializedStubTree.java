@@ -69,6 +69,18 @@ public class SerializedStubTree {
     return SerializationManagerEx.getInstanceEx().deserialize(new UnsyncByteArrayInputStream(myBytes));
   }
 
+  /**
+   * @return the stub with the given index in {@link ObjectStubTree#getPlainList()} order, with only its ancestors deserialized
+   */
+  @NotNull
+  public Stub getStub(int stubIndex) throws SerializerNotFoundException {
+    return SerializationManagerEx.getInstanceEx().deserializeStub(myBytes, myLength, stubIndex);
+  }
+
+  int getLength() {
+    return myLength;
+  }
+
   public boolean contentLengthMatches(long byteContentLength, int charContentLength) {
     if (myCharContentLength >= 0 && charContentLength >= 0) {
       return myCharContentLength == charContentLength;
@@ -46,6 +46,7 @@ import com.intellij.util.indexing.*;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
 import gnu.trove.THashMap;
+import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -437,6 +438,31 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     }
   }
 
+  /**
+   * Same as {@link #updateIndex(StubIndexKey, int, Map, Map)} for many files at once, every key of the index is updated once for all of them.
+   *
+   * @param oldValues old values of the index keyed by file id, absent for files which had no values
+   * @param newValues new values of the index keyed by file id, absent for files having no values
+   */
+  public <K> void updateIndex(@NotNull StubIndexKey key,
+                              @NotNull int[] fileIds,
+                              @NotNull TIntObjectHashMap<Map<K, StubIdList>> oldValues,
+                              @NotNull TIntObjectHashMap<Map<K, StubIdList>> newValues) {
+    final TIntObjectHashMap<Collection<K>> oldKeys = new TIntObjectHashMap<Collection<K>>();
+    for (int fileId : fileIds) {
+      final Map<K, StubIdList> values = oldValues.get(fileId);
+      if (values != null) oldKeys.put(fileId, values.keySet());
+    }
+    try {
+      final MyIndex<K> index = (MyIndex<K>)myIndices.get(key);
+      index.updateWithMaps(fileIds, newValues, oldKeys);
+    }
+    catch (StorageException e) {
+      LOG.info(e);
+      requestRebuild();
+    }
+  }
+
   private static class MyIndex<K> extends MapReduceIndex<K, StubIdList, Void> {
     public MyIndex(final IndexStorage<K, StubIdList> storage) {
       super(null, null, storage);
@@ -446,6 +472,13 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     public void updateWithMap(final int inputId, @NotNull final Map<K, StubIdList> newData, @NotNull Callable<Collection<K>> oldKeysGetter) throws StorageException {
       super.updateWithMap(inputId, newData, oldKeysGetter);
     }
+
+    @Override
+    protected void updateWithMaps(@NotNull int[] inputIds,
+                                  @NotNull TIntObjectHashMap<Map<K, StubIdList>> newData,
+                                  @NotNull TIntObjectHashMap<Collection<K>> oldKeys) throws StorageException {
+      super.updateWithMaps(inputIds, newData, oldKeys);
+    }
   }
 
   @Override
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.StubBasedPsiElement;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps stub trees recently read from the stub index strongly reachable, so that they survive the soft references
+ * in {@link com.intellij.psi.impl.source.PsiFileImpl} being cleared, and the file doesn't need to deserialize them again.
+ * <p/>
+ * Entries are evicted in LRU order when the total size of their serialized form exceeds the budget
+ * set by <code>stubs.cache.budgetKb</code> registry key. A cached tree is returned only to the file it was bound to,
+ * only while its serialized form in the index is the same, and only while none of its psi has been switched to AST.
+ */
+public class StubTreeCache {
+  private final Map<Integer, Entry> myEntries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+  private final int myBudget;
+  private long mySize;
+  private long myHits;
+  private long myMisses;
+
+  public StubTreeCache() {
+    this(Registry.intValue("stubs.cache.budgetKb", 4096) * 1024);
+  }
+
+  StubTreeCache(int budget) {
+    myBudget = budget;
+  }
+
+  public static StubTreeCache getInstance(@NotNull Project project) {
+    return ServiceManager.getService(project, StubTreeCache.class);
+  }
+
+  @Nullable
+  synchronized StubTree get(int fileId, @NotNull SerializedStubTree serialized, @NotNull PsiFile psiFile) {
+    Entry entry = myEntries.get(fileId);
+    if (entry != null && !isReusable(entry, serialized, psiFile)) {
+      remove(fileId);
+      entry = null;
+    }
+    if (entry == null) {
+      myMisses++;
+      return null;
+    }
+    myHits++;
+    return entry.myTree;
+  }
+
+  synchronized void put(int fileId, @NotNull SerializedStubTree serialized, @NotNull StubTree tree) {
+    remove(fileId);
+    int size = serialized.getLength();
+    if (size > myBudget) return;
+
+    myEntries.put(fileId, new Entry(serialized, tree));
+    mySize += size;
+    for (Iterator<Entry> iterator = myEntries.values().iterator(); mySize > myBudget && iterator.hasNext(); ) {
+      mySize -= iterator.next().mySerialized.getLength();
+      iterator.remove();
+    }
+  }
+
+  synchronized void remove(int fileId) {
+    Entry entry = myEntries.remove(fileId);
+    if (entry != null) {
+      mySize -= entry.mySerialized.getLength();
+    }
+  }
+
+  public synchronized void clear() {
+    myEntries.clear();
+    mySize = 0;
+  }
+
+  public synchronized int getSize() {
+    return (int)mySize;
+  }
+
+  public synchronized long getHitCount() {
+    return myHits;
+  }
+
+  public synchronized long getMissCount() {
+    return myMisses;
+  }
+
+  public synchronized double getHitRate() {
+    long requests = myHits + myMisses;
+    return requests == 0 ? 0 : (double)myHits / requests;
+  }
+
+  private static boolean isReusable(@NotNull Entry entry, @NotNull SerializedStubTree serialized, @NotNull PsiFile psiFile) {
+    if (entry.mySerialized != serialized && !entry.mySerialized.equals(serialized)) return false;
+
+    List<StubElement<?>> stubs = entry.myTree.getPlainList();
+    if (stubs.get(0).getPsi() != psiFile) return false;
+    for (int i = 1; i < stubs.size(); i++) {
+      StubElement<?> stub = stubs.get(i);
+      PsiElement psi = stub instanceof StubBase ? ((StubBase<?>)stub).getCachedPsi() : null;
+      if (psi != null && (!(psi instanceof StubBasedPsiElement) || ((StubBasedPsiElement)psi).getStub() != stub)) {
+        return false; // psi has been switched to AST since the tree was bound
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "StubTreeCache: " + myEntries.size() + " trees, " + mySize / 1024 + " of " + myBudget / 1024 + " KB, " +
+           "hits=" + myHits + ", misses=" + myMisses;
+  }
+
+  private static class Entry {
+    private final SerializedStubTree mySerialized;
+    private final StubTree myTree;
+
+    private Entry(@NotNull SerializedStubTree serialized, @NotNull StubTree tree) {
+      mySerialized = serialized;
+      myTree = tree;
+    }
+  }
+}
@@ -43,7 +43,7 @@ public class StubTreeLoaderImpl extends StubTreeLoader {
   @Override
   @Nullable
   public ObjectStubTree readOrBuild(Project project, final VirtualFile vFile, @Nullable PsiFile psiFile) {
-    final ObjectStubTree fromIndices = readFromVFile(project, vFile);
+    final ObjectStubTree fromIndices = readFromVFile(project, vFile, psiFile);
     if (fromIndices != null) {
       return fromIndices;
     }
@@ -87,6 +87,62 @@ public class StubTreeLoaderImpl extends StubTreeLoader {
   @Override
   @Nullable
   public ObjectStubTree readFromVFile(Project project, final VirtualFile vFile) {
+    return readFromVFile(project, vFile, null);
+  }
+
+  /**
+   * @param psiFile the file the stub tree is read for, trees read for a file are kept in {@link StubTreeCache}
+   */
+  @Nullable
+  private static ObjectStubTree readFromVFile(Project project, final VirtualFile vFile, @Nullable PsiFile psiFile) {
+    SerializedStubTree stubTree = readSerializedTree(project, vFile);
+    if (stubTree == null) {
+      return null;
+    }
+
+    final int id = Math.abs(FileBasedIndex.getFileId(vFile));
+    StubTreeCache cache = psiFile != null ? StubTreeCache.getInstance(project) : null;
+    if (cache != null) {
+      StubTree cached = cache.get(id, stubTree, psiFile);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    Stub stub;
+    try {
+      stub = stubTree.getStub(false);
+    }
+    catch (SerializerNotFoundException e) {
+      return processError(vFile, "No stub serializer: " + vFile.getPresentableUrl() + ": " + e.getMessage(), e);
+    }
+    ObjectStubTree tree = stub instanceof PsiFileStub ? new StubTree((PsiFileStub)stub) : new ObjectStubTree((ObjectStubBase)stub, true);
+    tree.setDebugInfo("created from index");
+    if (cache != null && tree instanceof StubTree) {
+      cache.put(id, stubTree, (StubTree)tree);
+    }
+    return tree;
+  }
+
+  @Override
+  @Nullable
+  public Stub readStubFromVFile(Project project, VirtualFile vFile, int stubIndex) {
+    SerializedStubTree stubTree = readSerializedTree(project, vFile);
+    if (stubTree == null) {
+      return null;
+    }
+
+    try {
+      return stubTree.getStub(stubIndex);
+    }
+    catch (SerializerNotFoundException e) {
+      processError(vFile, "No stub serializer: " + vFile.getPresentableUrl() + ": " + e.getMessage(), e);
+      return null;
+    }
+  }
+
+  @Nullable
+  private static SerializedStubTree readSerializedTree(Project project, final VirtualFile vFile) {
     if (DumbService.getInstance(project).isDumb()) {
       return null;
     }
@@ -96,8 +152,6 @@ public class StubTreeLoaderImpl extends StubTreeLoader {
       return null;
     }
 
-    boolean wasIndexedAlready = ((FileBasedIndexImpl)FileBasedIndex.getInstance()).isFileUpToDate(vFile);
-
     Document document = FileDocumentManager.getInstance().getCachedDocument(vFile);
     boolean saved = document == null || !FileDocumentManager.getInstance().isDocumentUnsaved(document);
 
@@ -109,27 +163,18 @@ public class StubTreeLoaderImpl extends StubTreeLoader {
       SerializedStubTree stubTree = datas.get(0);
       
       if (!stubTree.contentLengthMatches(vFile.getLength(), getCurrentTextContentLength(project, vFile, document))) {
-        return processError(vFile,
-                            "Outdated stub in index: " + StubUpdatingIndex.getIndexingStampInfo(vFile) +
-                            ", docSaved=" + saved +
-                            ", queried at " + vFile.getTimeStamp(),
-                            null);
-      }
-
-      Stub stub;
-      try {
-        stub = stubTree.getStub(false);
-      }
-      catch (SerializerNotFoundException e) {
-        return processError(vFile, "No stub serializer: " + vFile.getPresentableUrl() + ": " + e.getMessage(), e);
+        processError(vFile,
+                     "Outdated stub in index: " + StubUpdatingIndex.getIndexingStampInfo(vFile) +
+                     ", docSaved=" + saved +
+                     ", queried at " + vFile.getTimeStamp(),
+                     null);
+        return null;
       }
-      ObjectStubTree tree = stub instanceof PsiFileStub ? new StubTree((PsiFileStub)stub) : new ObjectStubTree((ObjectStubBase)stub, true);
-      tree.setDebugInfo("created from index");
-      return tree;
+      return stubTree;
     }
     else if (size != 0) {
-      return processError(vFile, "Twin stubs: " + vFile.getPresentableUrl() + " has " + size + " stub versions. Should only have one. id=" + id,
-                          null);
+      processError(vFile, "Twin stubs: " + vFile.getPresentableUrl() + " has " + size + " stub versions. Should only have one. id=" + id,
+                   null);
     }
 
     return null;
@@ -33,6 +33,7 @@ import com.intellij.util.indexing.*;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.IntInlineKeyDescriptor;
 import com.intellij.util.io.KeyDescriptor;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
@@ -50,7 +51,16 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
 
   public static final ID<Integer, SerializedStubTree> INDEX_ID = ID.create("Stubs");
 
-  private static final int VERSION = 26;
+  private static final int VERSION = 27;
+
+  // serialized trees are copied out of the buffer, so a thread can reuse it for the next file unless it's grown too large
+  private static final int MAX_REUSED_BUFFER_SIZE = 1024 * 1024;
+  private static final ThreadLocal<BufferExposingByteArrayOutputStream> SERIALIZATION_BUFFER = new ThreadLocal<BufferExposingByteArrayOutputStream>() {
+    @Override
+    protected BufferExposingByteArrayOutputStream initialValue() {
+      return new BufferExposingByteArrayOutputStream(8192);
+    }
+  };
 
   private static final DataExternalizer<SerializedStubTree> KEY_EXTERNALIZER = new DataExternalizer<SerializedStubTree>() {
     @Override
@@ -128,18 +138,32 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
         ApplicationManager.getApplication().runReadAction(new Runnable() {
           @Override
           public void run() {
+            final long started = System.nanoTime();
             final Stub rootStub = StubTreeBuilder.buildStubTree(inputData);
+            final long built = System.nanoTime();
+            stageFinished("build", built - started);
             if (rootStub == null) return;
 
             VirtualFile file = inputData.getFile();
             int contentLength = file.getFileType().isBinary() ? -1 : inputData.getContentAsText().length();
             rememberIndexingStamp(file, contentLength);
 
-            final BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
-            SerializationManagerEx.getInstanceEx().serialize(rootStub, bytes);
+            final BufferExposingByteArrayOutputStream buffer = SERIALIZATION_BUFFER.get();
+            final byte[] bytes;
+            try {
+              SerializationManagerEx.getInstanceEx().serialize(rootStub, buffer);
+              bytes = buffer.toByteArray();
+            }
+            finally {
+              buffer.reset();
+              if (buffer.getInternalBuffer().length > MAX_REUSED_BUFFER_SIZE) {
+                SERIALIZATION_BUFFER.remove();
+              }
+            }
 
             final int key = Math.abs(FileBasedIndex.getFileId(file));
-            result.put(key, new SerializedStubTree(bytes.getInternalBuffer(), bytes.size(), rootStub, file.getLength(), contentLength));
+            result.put(key, new SerializedStubTree(bytes, bytes.length, rootStub, file.getLength(), contentLength));
+            stageFinished("serialize", System.nanoTime() - built);
           }
         });
 
@@ -148,6 +172,13 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     };
   }
 
+  private static void stageFinished(@NotNull String stage, long nanos) {
+    final FileBasedIndex index = FileBasedIndex.getInstance();
+    if (index instanceof FileBasedIndexImpl) {
+      ((FileBasedIndexImpl)index).getIndexingStatistics().stageFinished(INDEX_ID, stage, nanos);
+    }
+  }
+
   private static void rememberIndexingStamp(final VirtualFile file, long contentLength) {
     try {
       DataOutputStream stream = INDEXED_STAMP.writeAttribute(file);
@@ -267,6 +298,31 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     }
   }
 
+  /**
+   * Updates stub indices for many files key by key, so that each stub index is updated once for all of them.
+   */
+  private static void updateStubIndices(@NotNull final int[] inputIds,
+                                        @NotNull final TIntObjectHashMap<Map<StubIndexKey, Map<Object, StubIdList>>> oldStubTrees,
+                                        @NotNull final TIntObjectHashMap<Map<StubIndexKey, Map<Object, StubIdList>>> newStubTrees) {
+    final Set<StubIndexKey> allIndices = new HashSet<StubIndexKey>();
+    for (int inputId : inputIds) {
+      allIndices.addAll(getAffectedIndices(oldStubTrees.get(inputId), newStubTrees.get(inputId)));
+    }
+
+    final StubIndexImpl stubIndex = (StubIndexImpl)StubIndex.getInstance();
+    for (StubIndexKey key : allIndices) {
+      final TIntObjectHashMap<Map<Object, StubIdList>> oldMaps = new TIntObjectHashMap<Map<Object, StubIdList>>();
+      final TIntObjectHashMap<Map<Object, StubIdList>> newMaps = new TIntObjectHashMap<Map<Object, StubIdList>>();
+      for (int inputId : inputIds) {
+        final Map<Object, StubIdList> oldMap = oldStubTrees.get(inputId).get(key);
+        if (oldMap != null) oldMaps.put(inputId, oldMap);
+        final Map<Object, StubIdList> newMap = newStubTrees.get(inputId).get(key);
+        if (newMap != null) newMaps.put(inputId, newMap);
+      }
+      stubIndex.updateIndex(key, inputIds, oldMaps, newMaps);
+    }
+  }
+
   @NotNull
   private static Collection<StubIndexKey> getAffectedIndices(@NotNull final Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree,
                                                              @NotNull final Map<StubIndexKey, Map<Object, StubIdList>> newStubTree) {
@@ -297,10 +353,75 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
       }
     }
 
+    @Override
+    protected long estimateBatchSize(@NotNull Map<Integer, SerializedStubTree> data) {
+      long size = super.estimateBatchSize(data);
+      for (SerializedStubTree tree : data.values()) {
+        size += tree.getLength() * 4L; // the built stub tree is kept along with the serialized one
+      }
+      return size;
+    }
+
+    @Override
+    protected void updateWithBatch(@NotNull TIntObjectHashMap<Map<Integer, SerializedStubTree>> data) throws StorageException {
+      final long started = System.nanoTime();
+      checkNameStorage();
+      final int[] inputIds = data.keys();
+      Arrays.sort(inputIds);
+      final TIntObjectHashMap<Map<StubIndexKey, Map<Object, StubIdList>>> newStubTrees =
+        new TIntObjectHashMap<Map<StubIndexKey, Map<Object, StubIdList>>>();
+      try {
+        for (int inputId : inputIds) {
+          newStubTrees.put(inputId, getStubTree(data.get(inputId)));
+        }
+      }
+      catch (SerializerNotFoundException e) {
+        throw new StorageException(e);
+      }
+
+      final StubIndexImpl stubIndex = getStubIndex();
+      final Collection<StubIndexKey> allStubIndices = stubIndex.getAllStubIndexKeys();
+      try {
+        // first write-lock affected stub indices to avoid deadlocks
+        for (StubIndexKey key : allStubIndices) {
+          stubIndex.getWriteLock(key).lock();
+        }
+
+        try {
+          getWriteLock().lock();
+
+          final TIntObjectHashMap<Map<StubIndexKey, Map<Object, StubIdList>>> oldStubTrees =
+            new TIntObjectHashMap<Map<StubIndexKey, Map<Object, StubIdList>>>();
+          try {
+            for (int inputId : inputIds) {
+              oldStubTrees.put(inputId, getStubTree(readOldData(inputId)));
+            }
+          }
+          catch (SerializerNotFoundException e) {
+            throw new StorageException(e);
+          }
+
+          super.updateWithBatch(data);
+
+          updateStubIndices(inputIds, oldStubTrees, newStubTrees);
+        }
+        finally {
+          getWriteLock().unlock();
+        }
+      }
+      finally {
+        for (StubIndexKey key : allStubIndices) {
+          stubIndex.getWriteLock(key).unlock();
+        }
+      }
+      stageFinished("store", System.nanoTime() - started);
+    }
+
     @Override
     protected void updateWithMap(final int inputId, @NotNull final Map<Integer, SerializedStubTree> newData, @NotNull Callable<Collection<Integer>> oldKeysGetter)
       throws StorageException {
 
+      final long started = System.nanoTime();
       checkNameStorage();
       final Map<StubIndexKey, Map<Object, StubIdList>> newStubTree;
       try {
@@ -343,6 +464,7 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
           stubIndex.getWriteLock(key).unlock();
         }
       }
+      stageFinished("store", System.nanoTime() - started);
     }
 
     private StubIndexImpl getStubIndex() {
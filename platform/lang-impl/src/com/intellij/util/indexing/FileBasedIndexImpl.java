@@ -80,6 +80,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.*;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledFuture;
@@ -133,6 +134,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private volatile int myFilesModCount;
   private final AtomicInteger myUpdatingFiles = new AtomicInteger();
   private final ConcurrentHashSet<Project> myProjectsBeingUpdated = new ConcurrentHashSet<Project>();
+  private final IndexingStatistics myIndexingStatistics = new IndexingStatistics();
+  private final Object myBatchUpdateLock = new Object();
+  private int myBatchUpdatesCount; // guarded by myBatchUpdateLock
+  @Nullable private volatile List<ID<?, ?>> myBatchedIndices; // indices with started batch update
 
   @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"}) private volatile boolean myInitialized;
   // need this variable for memory barrier
@@ -672,6 +677,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       LOG.info("START INDEX SHUTDOWN");
       try {
         myChangedFilesCollector.forceUpdate(null, null, null, true);
+        flushBatchUpdates(null);
         IndexingStamp.flushCaches();
 
         for (ID<?, ?> indexId : myIndices.keySet()) {
@@ -819,6 +825,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     myReentrancyGuard.set(Boolean.TRUE);
 
     try {
+      flushBatchUpdates(indexId);
       myChangedFilesCollector.ensureAllInvalidateTasksCompleted();
       if (isUpToDateCheckEnabled()) {
         try {
@@ -1077,16 +1084,87 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   void filesUpdateStarted(Project project) {
+    myIndexingStatistics.reset();
     myContentlessIndicesUpdateQueue.signalUpdateStart();
     myContentlessIndicesUpdateQueue.ensureUpToDate();
     myProjectsBeingUpdated.add(project);
+    startBatchUpdates();
   }
 
   void filesUpdateFinished(@NotNull Project project) {
+    finishBatchUpdates();
     myProjectsBeingUpdated.remove(project);
     ++myFilesModCount;
   }
 
+  private void startBatchUpdates() {
+    final long sizeLimit = Registry.intValue("indexing.batchUpdateSizeKb") * 1024L;
+    if (sizeLimit <= 0) return;
+
+    synchronized (myBatchUpdateLock) {
+      if (myBatchUpdatesCount++ > 0) return;
+
+      final List<ID<?, ?>> batchedIndices = new ArrayList<ID<?, ?>>();
+      for (ID<?, ?> indexId : myIndices.keySet()) {
+        if (needsFileContentLoading(indexId) && getMapReduceIndex(indexId) != null) batchedIndices.add(indexId);
+      }
+      for (ID<?, ?> indexId : batchedIndices) {
+        final MapReduceIndex<?, ?, FileContent> index = getMapReduceIndex(indexId);
+        assert index != null;
+        index.startBatchUpdate(sizeLimit / batchedIndices.size());
+      }
+      myBatchedIndices = batchedIndices;
+    }
+  }
+
+  private void finishBatchUpdates() {
+    final List<ID<?, ?>> batchedIndices;
+    synchronized (myBatchUpdateLock) {
+      if (myBatchUpdatesCount == 0 || --myBatchUpdatesCount > 0) return;
+      batchedIndices = myBatchedIndices;
+      myBatchedIndices = null;
+    }
+    if (batchedIndices == null) return;
+
+    final StorageGuard.Holder guard = setDataBufferingEnabled(false);
+    try {
+      for (ID<?, ?> indexId : batchedIndices) {
+        final MapReduceIndex<?, ?, FileContent> index = getMapReduceIndex(indexId);
+        if (index != null) index.finishBatchUpdate();
+      }
+    }
+    finally {
+      guard.leave();
+    }
+    IndexingStamp.flushCaches();
+  }
+
+  private void flushBatchUpdates(@Nullable ID<?, ?> onlyIndexId) {
+    final List<ID<?, ?>> batchedIndices = myBatchedIndices;
+    if (batchedIndices == null || onlyIndexId != null && !batchedIndices.contains(onlyIndexId)) return;
+
+    final StorageGuard.Holder guard = setDataBufferingEnabled(false);
+    try {
+      for (ID<?, ?> indexId : batchedIndices) {
+        if (onlyIndexId != null && !onlyIndexId.equals(indexId)) continue;
+        final MapReduceIndex<?, ?, FileContent> index = getMapReduceIndex(indexId);
+        if (index != null) index.flushBatch();
+      }
+    }
+    finally {
+      guard.leave();
+    }
+  }
+
+  /**
+   * @return the index if it supports batch updates, <code>null</code> for custom index implementations
+   */
+  @Nullable
+  private MapReduceIndex<?, ?, FileContent> getMapReduceIndex(@NotNull ID<?, ?> indexId) {
+    final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
+    return index instanceof MapReduceIndex ? (MapReduceIndex<?, ?, FileContent>)index : null;
+  }
+
   private final Lock myCalcIndexableFilesLock = new SequenceLock();
 
   @Nullable
@@ -1235,37 +1313,26 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       try {
         index.getReadLock().lock();
-        final List<TIntHashSet> locals = new ArrayList<TIntHashSet>();
-        for (K dataKey : dataKeys) {
-          TIntHashSet local = new TIntHashSet();
-          locals.add(local);
-          final ValueContainer<V> container = index.getData(dataKey);
-
-          for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
-            final V value = valueIt.next();
-            for (final ValueContainer.IntIterator inputIdsIterator = container.getInputIdsIterator(value); inputIdsIterator.hasNext(); ) {
-              final int id = inputIdsIterator.next();
-              local.add(id);
-            }
-          }
-        }
-
-        if (locals.isEmpty()) {
+        if (dataKeys.isEmpty()) {
           return true;
         }
 
-        Collections.sort(locals, new Comparator<TIntHashSet>() {
-          @Override
-          public int compare(TIntHashSet o1, TIntHashSet o2) {
-            return o1.size() - o2.size();
+        final int[] ids;
+        if (index instanceof KeysIntersectingIndex) {
+          //noinspection unchecked
+          ids = ((KeysIntersectingIndex<K>)index).getInputIdsWithAllKeys(dataKeys);
+        }
+        else {
+          final List<ValueContainer<V>> containers = new ArrayList<ValueContainer<V>>(dataKeys.size());
+          for (K dataKey : dataKeys) {
+            containers.add(index.getData(dataKey));
           }
-        });
+          ids = intersect(containers).toArray();
+        }
 
         final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-        TIntIterator ids = join(locals).iterator();
         ProjectIndexableFilesFilter projectIndexableFilesFilter = projectIndexableFiles(project);
-        while (ids.hasNext()) {
-          int id = ids.next();
+        for (int id : ids) {
           if (projectIndexableFilesFilter != null && !projectIndexableFilesFilter.containsFileId(id)) continue;
           //VirtualFile file = IndexInfrastructure.findFileById(fs, id);
           VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
@@ -1295,25 +1362,59 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return true;
   }
 
+  /**
+   * Only ids of the container with the fewest ids are collected, other containers are probed by their association predicates,
+   * so large id sets of common keys are not copied.
+   */
   @NotNull
-  private static TIntHashSet join(@NotNull List<TIntHashSet> locals) {
-    TIntHashSet result = locals.get(0);
-    if (locals.size() > 1) {
-      TIntIterator it = result.iterator();
-
-      while (it.hasNext()) {
-        int id = it.next();
-        for (int i = 1; i < locals.size(); i++) {
-          if (!locals.get(i).contains(id)) {
-            it.remove();
-            break;
-          }
+  private static <V> TIntHashSet intersect(@NotNull List<ValueContainer<V>> containers) {
+    final TObjectIntHashMap<ValueContainer<V>> sizes = new TObjectIntHashMap<ValueContainer<V>>();
+    for (ValueContainer<V> container : containers) {
+      int size = 0;
+      for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+        size += container.getInputIdsIterator(valueIt.next()).size();
+      }
+      sizes.put(container, size);
+    }
+    final List<ValueContainer<V>> sorted = new ArrayList<ValueContainer<V>>(containers);
+    Collections.sort(sorted, new Comparator<ValueContainer<V>>() {
+      @Override
+      public int compare(ValueContainer<V> o1, ValueContainer<V> o2) {
+        return sizes.get(o1) - sizes.get(o2);
+      }
+    });
+
+    final List<List<ValueContainer.IntPredicate>> predicates = new ArrayList<List<ValueContainer.IntPredicate>>(sorted.size() - 1);
+    for (ValueContainer<V> container : sorted.subList(1, sorted.size())) {
+      final List<ValueContainer.IntPredicate> containerPredicates = new SmartList<ValueContainer.IntPredicate>();
+      for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+        containerPredicates.add(container.getValueAssociationPredicate(valueIt.next()));
+      }
+      predicates.add(containerPredicates);
+    }
+
+    final ValueContainer<V> smallest = sorted.get(0);
+    final TIntHashSet result = new TIntHashSet(sizes.get(smallest));
+    for (final Iterator<V> valueIt = smallest.getValueIterator(); valueIt.hasNext(); ) {
+      nextId:
+      for (final ValueContainer.IntIterator inputIdsIterator = smallest.getInputIdsIterator(valueIt.next()); inputIdsIterator.hasNext(); ) {
+        final int id = inputIdsIterator.next();
+        for (List<ValueContainer.IntPredicate> containerPredicates : predicates) {
+          if (!containsId(containerPredicates, id)) continue nextId;
         }
+        result.add(id);
       }
     }
     return result;
   }
 
+  private static boolean containsId(@NotNull List<ValueContainer.IntPredicate> predicates, int id) {
+    for (ValueContainer.IntPredicate predicate : predicates) {
+      if (predicate.contains(id)) return true;
+    }
+    return false;
+  }
+
   @Override
   public <K> void scheduleRebuild(@NotNull final ID<K, ?> indexId, @NotNull final Throwable e) {
     requestRebuild(indexId, new Throwable(e));
@@ -1705,14 +1806,20 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         final ID<?, ?> indexId = affectedIndexCandidates.get(i);
         if (shouldIndexFile(file, indexId)) {
           if (fc == null) {
-            byte[] currentBytes;
-            try {
-              currentBytes = content.getBytes();
+            ByteBuffer buffer = content.getBuffer();
+            if (buffer != null) {
+              fc = new FileContentImpl(file, buffer);
             }
-            catch (IOException e) {
-              currentBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
+            else {
+              byte[] currentBytes;
+              try {
+                currentBytes = content.getBytes();
+              }
+              catch (IOException e) {
+                currentBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
+              }
+              fc = new FileContentImpl(file, currentBytes);
             }
-            fc = new FileContentImpl(file, currentBytes);
             if (project == null) {
               project = ProjectUtil.guessProjectForFile(file);
             }
@@ -1782,16 +1889,49 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
     assert index != null;
 
-    // important: no hard referencing currentFC to avoid OOME, the methods introduced for this purpose!
-    final Computable<Boolean> update = index.update(inputId, currentFC);
     final FileType fileType = file.getFileType();
+    final long mapStarted = System.nanoTime();
+    // important: no hard referencing currentFC to avoid OOME, the methods introduced for this purpose!
+    final Computable<Boolean> indexUpdate = index instanceof MapReduceIndex
+                                            ? ((MapReduceIndex<?, ?, FileContent>)index).updateBatched(inputId, currentFC)
+                                            : index.update(inputId, currentFC);
+    Computable<Boolean> update = createUpdateComputableWithBufferingDisabled(indexUpdate);
+    if (currentFC != null) {
+      myIndexingStatistics.fileMapped(indexId, fileType, file.getLength(), System.nanoTime() - mapStarted);
+      update = createUpdateComputableWithStatistics(indexId, fileType, update);
+    }
 
     scheduleUpdate(indexId,
-                   createUpdateComputableWithBufferingDisabled(update),
+                   update,
                    createIndexedStampUpdateRunnable(indexId, file, fileType, currentFC != null)
     );
   }
 
+  private Computable<Boolean> createUpdateComputableWithStatistics(@NotNull final ID<?, ?> indexId,
+                                                                   @NotNull final FileType fileType,
+                                                                   @NotNull final Computable<Boolean> update) {
+    return new Computable<Boolean>() {
+      @Override
+      public Boolean compute() {
+        final long started = System.nanoTime();
+        try {
+          return update.compute();
+        }
+        finally {
+          myIndexingStatistics.storageUpdated(indexId, fileType, System.nanoTime() - started);
+        }
+      }
+    };
+  }
+
+  /**
+   * @return per index and per file type indexing counters accumulated since the last unindexed files update started
+   */
+  @NotNull
+  public IndexingStatistics getIndexingStatistics() {
+    return myIndexingStatistics;
+  }
+
   private Runnable createIndexedStampUpdateRunnable(final ID<?, ?> indexId,
                                                     final VirtualFile file,
                                                     final FileType fileType,
@@ -1836,7 +1976,13 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       myContentlessIndicesUpdateQueue.submit(update, successRunnable);
     } else {
       Boolean result = update.compute();
-      if (result == Boolean.TRUE) ApplicationManager.getApplication().runReadAction(successRunnable);
+      if (result == Boolean.TRUE) {
+        // while the data is in batch the file should not be considered indexed
+        final MapReduceIndex<?, ?, FileContent> index = myBatchedIndices != null ? getMapReduceIndex(indexId) : null;
+        if (index == null || !index.runAfterBatchFlushed(successRunnable)) {
+          ApplicationManager.getApplication().runReadAction(successRunnable);
+        }
+      }
     }
   }
 
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Sorted set of input ids kept as a bitmap starting at the smallest id. Used by {@link ValueContainerImpl} instead of
+ * hash set for values associated with a considerable part of all inputs (e.g. common identifiers), since input ids are dense.
+ */
+class IdBitSet implements Cloneable {
+  private static final int SHIFT = 6;
+  private static final int MASK = (1 << SHIFT) - 1;
+
+  // bitmap of 32 ids takes as much memory as one id in hash set
+  private static final int MAX_RANGE_PER_ID = 32;
+  static final int MIN_SIZE = 256;
+
+  private long[] myWords;
+  private int myBase; // id corresponding to the first bit, multiple of 64
+  private int mySize;
+
+  private IdBitSet(int minId, int maxId) {
+    myBase = minId & ~MASK;
+    myWords = new long[((maxId - myBase) >> SHIFT) + 1];
+  }
+
+  @NotNull
+  static IdBitSet create(@NotNull int[] sortedIds, int count) {
+    IdBitSet set = new IdBitSet(sortedIds[0], sortedIds[count - 1]);
+    for (int i = 0; i < count; i++) {
+      set.add(sortedIds[i]);
+    }
+    return set;
+  }
+
+  @NotNull
+  static IdBitSet create(@NotNull TIntHashSet ids) {
+    final int[] minMax = getMinMax(ids);
+    final IdBitSet set = new IdBitSet(minMax[0], minMax[1]);
+    ids.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int id) {
+        set.add(id);
+        return true;
+      }
+    });
+    return set;
+  }
+
+  static boolean isDense(int size, int minId, int maxId) {
+    return size >= MIN_SIZE && (long)maxId - minId < (long)size * MAX_RANGE_PER_ID;
+  }
+
+  static boolean isDense(@NotNull TIntHashSet ids) {
+    if (ids.size() < MIN_SIZE) return false;
+    final int[] minMax = getMinMax(ids);
+    return isDense(ids.size(), minMax[0], minMax[1]);
+  }
+
+  boolean isDense() {
+    return mySize > 0 && isDense(mySize, first(), last());
+  }
+
+  /**
+   * @return whether the set would still be dense after adding the given id. Ids within the current bitmap don't grow it.
+   */
+  boolean isDenseWith(int id) {
+    if (id >= myBase && (id - myBase) >> SHIFT < myWords.length) return true;
+    return mySize > 0 && isDense(mySize + 1, Math.min(first(), id), Math.max(last(), id));
+  }
+
+  @NotNull
+  private static int[] getMinMax(@NotNull TIntHashSet ids) {
+    final int[] minMax = {Integer.MAX_VALUE, Integer.MIN_VALUE};
+    ids.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int id) {
+        if (id < minMax[0]) minMax[0] = id;
+        if (id > minMax[1]) minMax[1] = id;
+        return true;
+      }
+    });
+    return minMax;
+  }
+
+  boolean add(int id) {
+    ensureCapacity(id);
+    final int word = (id - myBase) >> SHIFT;
+    final long bit = 1L << (id & MASK);
+    if ((myWords[word] & bit) != 0) return false;
+    myWords[word] |= bit;
+    mySize++;
+    return true;
+  }
+
+  boolean remove(int id) {
+    if (!contains(id)) return false;
+    myWords[(id - myBase) >> SHIFT] &= ~(1L << (id & MASK));
+    mySize--;
+    return true;
+  }
+
+  boolean contains(int id) {
+    if (id < myBase) return false;
+    final int word = (id - myBase) >> SHIFT;
+    return word < myWords.length && (myWords[word] & (1L << (id & MASK))) != 0;
+  }
+
+  int size() {
+    return mySize;
+  }
+
+  boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  private void ensureCapacity(int id) {
+    if (id < myBase) {
+      final int newBase = id & ~MASK;
+      final int shift = (myBase - newBase) >> SHIFT;
+      final long[] words = new long[myWords.length + shift];
+      System.arraycopy(myWords, 0, words, shift, myWords.length);
+      myWords = words;
+      myBase = newBase;
+    }
+    else {
+      final int word = (id - myBase) >> SHIFT;
+      if (word >= myWords.length) {
+        myWords = Arrays.copyOf(myWords, Math.max(word + 1, myWords.length + (myWords.length >> 2)));
+      }
+    }
+  }
+
+  private int first() {
+    for (int i = 0; i < myWords.length; i++) {
+      if (myWords[i] != 0) return myBase + (i << SHIFT) + Long.numberOfTrailingZeros(myWords[i]);
+    }
+    return -1;
+  }
+
+  private int last() {
+    for (int i = myWords.length - 1; i >= 0; i--) {
+      if (myWords[i] != 0) return myBase + (i << SHIFT) + MASK - Long.numberOfLeadingZeros(myWords[i]);
+    }
+    return -1;
+  }
+
+  /**
+   * @return ids in ascending order
+   */
+  @NotNull
+  ValueContainer.IntIterator iterator() {
+    return new ValueContainer.IntIterator() {
+      private int myWord = -1;
+      private long myBits;
+      private final int mySize = IdBitSet.this.mySize;
+
+      {
+        advance();
+      }
+
+      private void advance() {
+        while (myBits == 0 && ++myWord < myWords.length) {
+          myBits = myWords[myWord];
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return myBits != 0;
+      }
+
+      @Override
+      public int next() {
+        final int bit = Long.numberOfTrailingZeros(myBits);
+        myBits &= myBits - 1;
+        final int id = myBase + (myWord << SHIFT) + bit;
+        if (myBits == 0) advance();
+        return id;
+      }
+
+      @Override
+      public int size() {
+        return mySize;
+      }
+    };
+  }
+
+  @Override
+  public IdBitSet clone() {
+    try {
+      IdBitSet clone = (IdBitSet)super.clone();
+      clone.myWords = myWords.clone();
+      return clone;
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
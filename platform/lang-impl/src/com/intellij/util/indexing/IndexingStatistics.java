@@ -0,0 +1,197 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.util.ConcurrencyUtil;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per index and per file type counters of indexed files, their bytes and time spent in {@link DataIndexer#map(Object)}
+ * and in index storage update. Indices may also report time of their own stages (see {@link #stageFinished}).
+ */
+public class IndexingStatistics {
+  private final ConcurrentMap<ID<?, ?>, ConcurrentMap<String, Counters>> myCounters = ContainerUtil.newConcurrentMap();
+  private final ConcurrentMap<ID<?, ?>, ConcurrentMap<String, AtomicLong>> myStageNanos = ContainerUtil.newConcurrentMap();
+
+  public static class Counters {
+    private final AtomicLong myFiles = new AtomicLong();
+    private final AtomicLong myBytes = new AtomicLong();
+    private final AtomicLong myMapNanos = new AtomicLong();
+    private final AtomicLong myStorageUpdateNanos = new AtomicLong();
+
+    public long getFiles() {
+      return myFiles.get();
+    }
+
+    public long getBytes() {
+      return myBytes.get();
+    }
+
+    public long getMapNanos() {
+      return myMapNanos.get();
+    }
+
+    public long getStorageUpdateNanos() {
+      return myStorageUpdateNanos.get();
+    }
+
+    private void add(@NotNull Counters counters) {
+      myFiles.addAndGet(counters.getFiles());
+      myBytes.addAndGet(counters.getBytes());
+      myMapNanos.addAndGet(counters.getMapNanos());
+      myStorageUpdateNanos.addAndGet(counters.getStorageUpdateNanos());
+    }
+
+    private long getTotalNanos() {
+      return getMapNanos() + getStorageUpdateNanos();
+    }
+  }
+
+  void fileMapped(@NotNull ID<?, ?> indexId, @NotNull FileType fileType, long bytes, long mapNanos) {
+    Counters counters = getCounters(indexId, fileType);
+    counters.myFiles.incrementAndGet();
+    counters.myBytes.addAndGet(bytes);
+    counters.myMapNanos.addAndGet(mapNanos);
+  }
+
+  void storageUpdated(@NotNull ID<?, ?> indexId, @NotNull FileType fileType, long storageUpdateNanos) {
+    getCounters(indexId, fileType).myStorageUpdateNanos.addAndGet(storageUpdateNanos);
+  }
+
+  /**
+   * Adds time spent by the index in a stage of its own, e.g. in building a data structure which is then mapped to index data.
+   */
+  public void stageFinished(@NotNull ID<?, ?> indexId, @NotNull String stage, long nanos) {
+    ConcurrentMap<String, AtomicLong> stages = myStageNanos.get(indexId);
+    if (stages == null) {
+      stages = ConcurrencyUtil.cacheOrGet(myStageNanos, indexId, ContainerUtil.<String, AtomicLong>newConcurrentMap());
+    }
+    AtomicLong nanosCounter = stages.get(stage);
+    if (nanosCounter == null) {
+      nanosCounter = ConcurrencyUtil.cacheOrGet(stages, stage, new AtomicLong());
+    }
+    nanosCounter.addAndGet(nanos);
+  }
+
+  /**
+   * @return time spent in stages reported by the index keyed by stage name, sorted by name
+   */
+  @NotNull
+  public Map<String, Long> getStageNanos(@NotNull ID<?, ?> indexId) {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    Map<String, AtomicLong> stages = myStageNanos.get(indexId);
+    if (stages != null) {
+      for (Map.Entry<String, AtomicLong> entry : stages.entrySet()) {
+        result.put(entry.getKey(), entry.getValue().get());
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private Counters getCounters(@NotNull ID<?, ?> indexId, @NotNull FileType fileType) {
+    ConcurrentMap<String, Counters> perFileType = myCounters.get(indexId);
+    if (perFileType == null) {
+      perFileType = ConcurrencyUtil.cacheOrGet(myCounters, indexId, ContainerUtil.<String, Counters>newConcurrentMap());
+    }
+    Counters counters = perFileType.get(fileType.getName());
+    if (counters == null) {
+      counters = ConcurrencyUtil.cacheOrGet(perFileType, fileType.getName(), new Counters());
+    }
+    return counters;
+  }
+
+  @NotNull
+  public Set<ID<?, ?>> getIndexIds() {
+    return Collections.unmodifiableSet(myCounters.keySet());
+  }
+
+  /**
+   * @return counters of the index keyed by file type name
+   */
+  @NotNull
+  public Map<String, Counters> getCountersByFileType(@NotNull ID<?, ?> indexId) {
+    Map<String, Counters> perFileType = myCounters.get(indexId);
+    return perFileType != null ? Collections.unmodifiableMap(perFileType) : Collections.<String, Counters>emptyMap();
+  }
+
+  @NotNull
+  public Counters getTotalCounters(@NotNull ID<?, ?> indexId) {
+    Counters total = new Counters();
+    for (Counters counters : getCountersByFileType(indexId).values()) {
+      total.add(counters);
+    }
+    return total;
+  }
+
+  public void reset() {
+    myCounters.clear();
+    myStageNanos.clear();
+  }
+
+  /**
+   * @return indices sorted by total time descending with per file type breakdown
+   */
+  @NotNull
+  public String createReport() {
+    final Map<ID<?, ?>, Counters> totals = new HashMap<ID<?, ?>, Counters>();
+    for (ID<?, ?> indexId : myCounters.keySet()) {
+      totals.put(indexId, getTotalCounters(indexId));
+    }
+    List<ID<?, ?>> ids = new ArrayList<ID<?, ?>>(totals.keySet());
+    Collections.sort(ids, new Comparator<ID<?, ?>>() {
+      @Override
+      public int compare(ID<?, ?> o1, ID<?, ?> o2) {
+        long t1 = totals.get(o1).getTotalNanos();
+        long t2 = totals.get(o2).getTotalNanos();
+        return t1 < t2 ? 1 : t1 == t2 ? 0 : -1;
+      }
+    });
+
+    StringBuilder report = new StringBuilder("Indexing statistics (index: files, bytes, map ms, storage update ms):");
+    for (ID<?, ?> indexId : ids) {
+      report.append("\n  ").append(indexId.toString()).append(": ");
+      appendCounters(report, totals.get(indexId));
+      Map<String, Long> stages = getStageNanos(indexId);
+      if (!stages.isEmpty()) {
+        report.append("\n    stages:");
+        for (Map.Entry<String, Long> entry : stages.entrySet()) {
+          report.append(' ').append(entry.getKey()).append(' ').append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append(" ms,");
+        }
+        report.setLength(report.length() - 1);
+      }
+      for (Map.Entry<String, Counters> entry : getCountersByFileType(indexId).entrySet()) {
+        report.append("\n    ").append(entry.getKey()).append(": ");
+        appendCounters(report, entry.getValue());
+      }
+    }
+    return report.toString();
+  }
+
+  private static void appendCounters(@NotNull StringBuilder report, @NotNull Counters counters) {
+    report.append(counters.getFiles()).append(", ")
+      .append(counters.getBytes()).append(", ")
+      .append(TimeUnit.NANOSECONDS.toMillis(counters.getMapNanos())).append(", ")
+      .append(TimeUnit.NANOSECONDS.toMillis(counters.getStorageUpdateNanos()));
+  }
+}
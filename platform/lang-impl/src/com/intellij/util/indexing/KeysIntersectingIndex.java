@@ -0,0 +1,34 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
+/**
+ * Index which finds inputs associated with all given keys faster than intersection of their {@link ValueContainer}s,
+ * used by {@link FileBasedIndex#getFilesWithKey}.
+ */
+public interface KeysIntersectingIndex<Key> {
+  /**
+   * Called under the index read lock.
+   *
+   * @return sorted ids of inputs associated with every key
+   */
+  @NotNull
+  int[] getInputIdsWithAllKeys(@NotNull Collection<Key> keys) throws StorageException;
+}
@@ -16,6 +16,7 @@
 
 package com.intellij.util.indexing;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.util.Computable;
@@ -25,6 +26,9 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.Processor;
 import com.intellij.util.io.PersistentHashMap;
 import gnu.trove.THashMap;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntLongHashMap;
+import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TObjectObjectProcedure;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -51,6 +55,15 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
 
   private Factory<PersistentHashMap<Integer, Collection<Key>>> myInputsIndexFactory;
 
+  // rough estimate of memory taken by one buffered key-value pair, used to respect batch size limit
+  private static final int BATCH_ENTRY_SIZE_ESTIMATE = 64;
+
+  private final Object myBatchLock = new Object();
+  private final Object myBatchFlushLock = new Object();
+  private int myBatchUpdateStarts; // guarded by myBatchLock
+  private long myBatchSizeLimit; // guarded by myBatchLock
+  @Nullable private UpdateBatch<Key, Value> myBatch; // guarded by myBatchLock, not null while batch update is started
+
   public MapReduceIndex(@Nullable final ID<Key, Value> indexId, DataIndexer<Key, Value, Input> indexer, @NotNull IndexStorage<Key, Value> storage) {
     myIndexId = indexId;
     myIndexer = indexer;
@@ -66,6 +79,9 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   public void clear() throws StorageException {
     try {
       getWriteLock().lock();
+      synchronized (myBatchLock) {
+        if (myBatch != null) myBatch = new UpdateBatch<Key, Value>();
+      }
       myStorage.clear();
       if (myInputsIndex != null) {
         final File baseFile = myInputsIndex.getBaseFile();
@@ -203,6 +219,20 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
 
   @Override
   public final Computable<Boolean> update(final int inputId, @Nullable Input content) {
+    return update(inputId, content, false);
+  }
+
+  /**
+   * Same as {@link #update(int, Object)}, but while batch update is started (see {@link #startBatchUpdate(long)}) the data
+   * is only added to the batch and is written to the storage when the batch is flushed.
+   * Computable returns <code>true</code> as soon as the data is accepted by the batch, so anything that marks the input as indexed
+   * should be passed to {@link #runAfterBatchFlushed(Runnable)}.
+   */
+  public final Computable<Boolean> updateBatched(final int inputId, @Nullable Input content) {
+    return update(inputId, content, true);
+  }
+
+  private Computable<Boolean> update(final int inputId, @Nullable Input content, final boolean batched) {
     assert myInputsIndex != null;
 
     final Map<Key, Value> data = content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
@@ -213,6 +243,9 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     return new Computable<Boolean>() {
       @Override
       public Boolean compute() {
+        if (batched && addToBatch(inputId, data)) {
+          return Boolean.TRUE;
+        }
         final Ref<StorageException> exRef = new Ref<StorageException>(null);
         ProgressManager.getInstance().executeNonCancelableSection(new Runnable() {
           @Override
@@ -242,6 +275,266 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     };
   }
 
+  /**
+   * Indices that update something besides {@link #myStorage} and inputs index in {@link #updateWithMap} should not be batched.
+   */
+  protected boolean isBatchUpdateSupported() {
+    return true;
+  }
+
+  /**
+   * Starts accumulating data passed to {@link #updateBatched(int, Object)} in memory. The data of many inputs is merged per key
+   * and written in key order under single write lock acquisition when estimated batch size exceeds <code>sizeLimit</code>,
+   * on {@link #flushBatch()} and on {@link #finishBatchUpdate()}. Batch updates may be nested.
+   */
+  public void startBatchUpdate(long sizeLimit) {
+    if (!isBatchUpdateSupported() || myInputsIndex == null) return;
+    synchronized (myBatchLock) {
+      if (myBatchUpdateStarts++ == 0) {
+        myBatchSizeLimit = sizeLimit;
+        myBatch = new UpdateBatch<Key, Value>();
+      }
+    }
+  }
+
+  public void finishBatchUpdate() {
+    synchronized (myBatchLock) {
+      if (myBatchUpdateStarts == 0 || --myBatchUpdateStarts > 0) return;
+    }
+    flushBatch();
+  }
+
+  /**
+   * Runs <code>runnable</code> in read action after the data currently in batch is written to the storage.
+   * @return <code>false</code> if batch update is not started, the runnable is not run then
+   */
+  public boolean runAfterBatchFlushed(@NotNull Runnable runnable) {
+    synchronized (myBatchLock) {
+      if (myBatch == null) return false;
+      myBatch.myFlushedRunnables.add(runnable);
+      return true;
+    }
+  }
+
+  private boolean addToBatch(int inputId, @NotNull Map<Key, Value> data) {
+    final boolean sizeLimitExceeded;
+    synchronized (myBatchLock) {
+      if (myBatch == null) return false;
+      myBatch.put(inputId, data, estimateBatchSize(data));
+      sizeLimitExceeded = myBatch.myEstimatedSize > myBatchSizeLimit;
+    }
+    if (sizeLimitExceeded) flushBatch();
+    return true;
+  }
+
+  public void flushBatch() {
+    final UpdateBatch<Key, Value> batch;
+    // flushes are serialized so that newer data of some input is never overwritten with older one
+    synchronized (myBatchFlushLock) {
+      synchronized (myBatchLock) {
+        batch = myBatch;
+        if (batch == null) return;
+        if (myBatchUpdateStarts == 0) {
+          myBatch = null;
+        }
+        else if (batch.isEmpty()) {
+          return;
+        }
+        else {
+          myBatch = new UpdateBatch<Key, Value>();
+        }
+      }
+
+      final Ref<StorageException> exRef = new Ref<StorageException>(null);
+      ProgressManager.getInstance().executeNonCancelableSection(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            updateWithBatch(batch.myData);
+          }
+          catch (StorageException ex) {
+            exRef.set(ex);
+          }
+        }
+      });
+
+      if (exRef.get() != null) {
+        LOG.info(exRef.get());
+        FileBasedIndex.getInstance().requestRebuild(myIndexId);
+        return; // inputs of the batch stay not indexed
+      }
+    }
+
+    if (!batch.myFlushedRunnables.isEmpty()) {
+      ApplicationManager.getApplication().runReadAction(new Runnable() {
+        @Override
+        public void run() {
+          for (Runnable runnable : batch.myFlushedRunnables) {
+            runnable.run();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * @return rough estimate of memory taken by the data of one input while it's kept in batch
+   */
+  protected long estimateBatchSize(@NotNull Map<Key, Value> data) {
+    return (data.size() + 1) * BATCH_ENTRY_SIZE_ESTIMATE;
+  }
+
+  /**
+   * Writes the data of a flushed batch, keyed by input id.
+   */
+  protected void updateWithBatch(@NotNull TIntObjectHashMap<Map<Key, Value>> data) throws StorageException {
+    final int[] inputIds = data.keys();
+    Arrays.sort(inputIds);
+
+    getWriteLock().lock();
+    try {
+      final TIntObjectHashMap<Collection<Key>> oldKeys = new TIntObjectHashMap<Collection<Key>>();
+      if (myInputsIndex != null) {
+        try {
+          for (int inputId : inputIds) {
+            final Collection<Key> keys = myInputsIndex.get(inputId);
+            if (keys != null) oldKeys.put(inputId, keys);
+          }
+        }
+        catch (IOException e) {
+          throw new StorageException(e);
+        }
+      }
+
+      updateWithMaps(inputIds, data, oldKeys);
+
+      if (myInputsIndex != null) {
+        try {
+          for (int inputId : inputIds) {
+            final Set<Key> newKeys = data.get(inputId).keySet();
+            if (newKeys.size() > 0) {
+              myInputsIndex.put(inputId, newKeys);
+            }
+            else {
+              myInputsIndex.remove(inputId);
+            }
+          }
+        }
+        catch (IOException e) {
+          throw new StorageException(e);
+        }
+      }
+    }
+    finally {
+      getWriteLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces values of many inputs at once: removed and added values of all inputs are merged per key and applied in key order,
+   * so that every key is read and written once. Doesn't update inputs index.
+   *
+   * @param oldKeys keys of the values currently stored for each input, absent for inputs having no values
+   */
+  protected void updateWithMaps(@NotNull int[] inputIds,
+                                @NotNull TIntObjectHashMap<Map<Key, Value>> newData,
+                                @NotNull TIntObjectHashMap<Collection<Key>> oldKeys) throws StorageException {
+    getWriteLock().lock();
+    try {
+      final Map<Key, BatchedKeyUpdate<Value>> updates = new THashMap<Key, BatchedKeyUpdate<Value>>();
+      for (final int inputId : inputIds) {
+        final Collection<Key> keys = oldKeys.get(inputId);
+        if (keys != null) {
+          for (Key key : keys) {
+            getKeyUpdate(updates, key).myRemovedInputs.add(inputId);
+          }
+        }
+        final Map<Key, Value> data = newData.get(inputId);
+        if (data != null) {
+          for (Map.Entry<Key, Value> entry : data.entrySet()) {
+            BatchedKeyUpdate<Value> update = getKeyUpdate(updates, entry.getKey());
+            update.myAddedInputs.add(inputId);
+            update.myAddedValues.add(entry.getValue());
+          }
+        }
+      }
+
+      for (Key key : sortKeys(updates.keySet())) {
+        final BatchedKeyUpdate<Value> update = updates.get(key);
+        for (int i = 0; i < update.myRemovedInputs.size(); i++) {
+          myStorage.removeAllValues(key, update.myRemovedInputs.get(i));
+        }
+        for (int i = 0; i < update.myAddedInputs.size(); i++) {
+          myStorage.addValue(key, update.myAddedInputs.get(i), update.myAddedValues.get(i));
+        }
+      }
+    }
+    finally {
+      getWriteLock().unlock();
+    }
+  }
+
+  @NotNull
+  private static <Key, Value> BatchedKeyUpdate<Value> getKeyUpdate(@NotNull Map<Key, BatchedKeyUpdate<Value>> updates, Key key) {
+    BatchedKeyUpdate<Value> update = updates.get(key);
+    if (update == null) {
+      update = new BatchedKeyUpdate<Value>();
+      updates.put(key, update);
+    }
+    return update;
+  }
+
+  /**
+   * Keys are written in their natural order when they are comparable and in hash code order otherwise, so that
+   * consecutive writes touch neighbouring storage pages.
+   */
+  @NotNull
+  private static <Key> List<Key> sortKeys(@NotNull Collection<Key> keys) {
+    final List<Key> sorted = new ArrayList<Key>(keys);
+    if (sorted.isEmpty()) return sorted;
+    if (sorted.get(0) instanceof Comparable) {
+      try {
+        //noinspection unchecked
+        Collections.sort((List)sorted);
+        return sorted;
+      }
+      catch (ClassCastException ignored) {
+      }
+    }
+    Collections.sort(sorted, new Comparator<Key>() {
+      @Override
+      public int compare(Key o1, Key o2) {
+        int h1 = o1 != null ? o1.hashCode() : 0;
+        int h2 = o2 != null ? o2.hashCode() : 0;
+        return h1 < h2 ? -1 : h1 == h2 ? 0 : 1;
+      }
+    });
+    return sorted;
+  }
+
+  private static class UpdateBatch<Key, Value> {
+    private final TIntObjectHashMap<Map<Key, Value>> myData = new TIntObjectHashMap<Map<Key, Value>>();
+    private final TIntLongHashMap mySizes = new TIntLongHashMap();
+    private final List<Runnable> myFlushedRunnables = new ArrayList<Runnable>();
+    private long myEstimatedSize;
+
+    private void put(int inputId, @NotNull Map<Key, Value> data, long size) {
+      // the latest data of the input wins
+      myData.put(inputId, data);
+      myEstimatedSize += size - mySizes.put(inputId, size);
+    }
+
+    private boolean isEmpty() {
+      return myData.isEmpty() && myFlushedRunnables.isEmpty();
+    }
+  }
+
+  private static class BatchedKeyUpdate<Value> {
+    private final TIntArrayList myRemovedInputs = new TIntArrayList(1);
+    private final TIntArrayList myAddedInputs = new TIntArrayList(1);
+    private final List<Value> myAddedValues = new ArrayList<Value>(1);
+  }
+
   protected void updateWithMap(final int inputId, @NotNull Map<Key, Value> newData, @NotNull Callable<Collection<Key>> oldKeysGetter) throws StorageException {
     getWriteLock().lock();
     try {
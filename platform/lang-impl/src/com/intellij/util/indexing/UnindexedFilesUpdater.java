@@ -79,6 +79,7 @@ public class UnindexedFilesUpdater implements CacheUpdater {
     if (myFinishedUpdate.compareAndSet(false, true)) {
       myIndex.filesUpdateFinished(myProject);
       LOG.info("Unindexed files update done in " + (System.currentTimeMillis() - myStarted) + " ms");
+      LOG.info(myIndex.getIndexingStatistics().createReport());
     }
   }
 
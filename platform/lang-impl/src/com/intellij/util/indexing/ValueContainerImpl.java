@@ -24,6 +24,8 @@ import gnu.trove.THashMap;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntIterator;
 import gnu.trove.TObjectObjectProcedure;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.TestOnly;
 
 import java.util.*;
 
@@ -37,6 +39,7 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   // there is no volatile as we modify under write lock and read under read lock
   // Most often (80%) we store 0 or one mapping, then we store them in two fields: myInputIdMapping, myInputIdMappingValue
   // when there are several value mapped, myInputIdMapping is THashMap<Value, Data>, myInputIdMappingValue = null
+  // Data is Integer for single input id, IdSet for several ids and IdBitSet when the ids are dense
   private Object myInputIdMapping;
   private Object myInputIdMappingValue;
 
@@ -47,6 +50,18 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input == null) {
       attachFileSetForNewValue(value, inputId);
     }
+    else if (input instanceof IdBitSet) {
+      final IdBitSet idBitSet = (IdBitSet)input;
+      if (idBitSet.isDenseWith(inputId)) {
+        idBitSet.add(inputId);
+      }
+      else {
+        // an id far from the others would grow the bitmap more than a hash set takes
+        final IdSet idSet = createIdSet(idBitSet);
+        idSet.add(inputId);
+        resetFileSetForValue(value, idSet);
+      }
+    }
     else {
       final TIntHashSet idSet;
       if (input instanceof Integer) {
@@ -57,10 +72,32 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       else {
         idSet = (TIntHashSet)input;
       }
-      idSet.add(inputId);
+      if (idSet.add(inputId) && isPowerOfTwo(idSet.size()) && IdBitSet.isDense(idSet)) {
+        resetFileSetForValue(value, IdBitSet.create(idSet));
+      }
     }
   }
 
+  /**
+   * Adds ids read in ascending order, dense ids of a new value go directly to {@link IdBitSet}.
+   */
+  void addSortedValues(Value value, int[] sortedIds, int count) {
+    if (count == 0) return;
+    if (count > 1 && getInput(value) == null && IdBitSet.isDense(count, sortedIds[0], sortedIds[count - 1])) {
+      attachFileSetForNewValue(value, IdBitSet.create(sortedIds, count));
+      return;
+    }
+    ensureFileSetCapacityForValue(value, count);
+    for (int i = 0; i < count; i++) {
+      addValue(sortedIds[i], value);
+    }
+  }
+
+  // check for representation change only when set size doubles or halves, so that its cost is amortized
+  private static boolean isPowerOfTwo(int size) {
+    return (size & (size - 1)) == 0;
+  }
+
   private void resetFileSetForValue(Value value, Object fileSet) {
     if (!(myInputIdMapping instanceof THashMap)) myInputIdMappingValue = fileSet;
     else ((THashMap<Value, Object>)myInputIdMapping).put(value, fileSet);
@@ -99,7 +136,17 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       return false;
     }
 
-    if (input instanceof TIntHashSet) {
+    if (input instanceof IdBitSet) {
+      final IdBitSet idSet = (IdBitSet)input;
+      final boolean reallyRemoved = idSet.remove(inputId);
+      if (!idSet.isEmpty()) {
+        if (reallyRemoved && isPowerOfTwo(idSet.size()) && !idSet.isDense()) {
+          resetFileSetForValue(value, createIdSet(idSet));
+        }
+        return reallyRemoved;
+      }
+    }
+    else if (input instanceof TIntHashSet) {
       final TIntHashSet idSet = (TIntHashSet)input;
       final boolean reallyRemoved = idSet.remove(inputId);
       if (reallyRemoved) {
@@ -198,6 +245,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input instanceof TIntHashSet) {
       return ((TIntHashSet)input).contains(inputId);
     }
+    if (input instanceof IdBitSet) {
+      return ((IdBitSet)input).contains(inputId);
+    }
     if (input instanceof Integer ){
       return inputId == ((Integer)input).intValue();
     }
@@ -217,6 +267,15 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         }
       };
     }
+    if (input instanceof IdBitSet) {
+      return new IntPredicate() {
+        final IdBitSet mySet = (IdBitSet)input;
+        @Override
+        boolean contains(int id) {
+          return mySet.contains(id);
+        }
+      };
+    }
     return new IntPredicate() {
       final TIntHashSet mySet = (TIntHashSet)input;
       @Override
@@ -233,6 +292,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input instanceof TIntHashSet) {
       it = new IntSetIterator((TIntHashSet)input);
     }
+    else if (input instanceof IdBitSet) {
+      it = ((IdBitSet)input).iterator();
+    }
     else if (input instanceof Integer ){
       it = new SingleValueIterator(((Integer)input).intValue());
     }
@@ -242,6 +304,11 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     return it;
   }
 
+  @TestOnly
+  boolean isKeptAsBitSet(Value value) {
+    return getInput(value) instanceof IdBitSet;
+  }
+
   private Object getInput(Value value) {
     if (myInputIdMapping == null) return null;
 
@@ -265,6 +332,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         clone.myInputIdMapping = mapCopy((THashMap<Value, Object>)myInputIdMapping);
       } else if (myInputIdMappingValue instanceof TIntHashSet) {
         clone.myInputIdMappingValue = ((TIntHashSet)myInputIdMappingValue).clone();
+      } else if (myInputIdMappingValue instanceof IdBitSet) {
+        clone.myInputIdMappingValue = ((IdBitSet)myInputIdMappingValue).clone();
       }
       return clone;
     }
@@ -304,6 +373,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
           if (val instanceof TIntHashSet) {
             newMapping.put(key, ((TIntHashSet)val).clone());
           }
+          else if (val instanceof IdBitSet) {
+            newMapping.put(key, ((IdBitSet)val).clone());
+          }
           else {
             newMapping.put(key, val);
           }
@@ -313,7 +385,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     } else {
       container.myInputIdMapping = myInputIdMapping;
       container.myInputIdMappingValue = myInputIdMappingValue instanceof TIntHashSet ?
-                                        ((TIntHashSet)myInputIdMappingValue).clone():myInputIdMappingValue;
+                                        ((TIntHashSet)myInputIdMappingValue).clone():
+                                        myInputIdMappingValue instanceof IdBitSet ?
+                                        ((IdBitSet)myInputIdMappingValue).clone():myInputIdMappingValue;
     }
     return container;
   }
@@ -414,6 +488,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         if (val instanceof TIntHashSet) {
           cloned.put(key, ((TIntHashSet)val).clone());
         }
+        else if (val instanceof IdBitSet) {
+          cloned.put(key, ((IdBitSet)val).clone());
+        }
         return true;
       }
     });
@@ -428,6 +505,15 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     }
   };
 
+  @NotNull
+  private static IdSet createIdSet(@NotNull IdBitSet ids) {
+    final IdSet set = new IdSet(ids.size() + 1);
+    for (IntIterator iterator = ids.iterator(); iterator.hasNext();) {
+      set.add(iterator.next());
+    }
+    return set;
+  }
+
   private static class IdSet extends TIntHashSet {
 
     private IdSet(final int initialCapacity) {
@@ -7,6 +7,7 @@ import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -86,7 +87,10 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
         myExternalizer.save(out, value);
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
-        if (ids != null) {
+        if (ids != null && ids.size() > 1) {
+          saveSortedIds(out, ids);
+        }
+        else if (ids != null) {
           DataInputOutputUtil.writeSINT(out, ids.size());
           while (ids.hasNext()) {
             final int id = ids.next();
@@ -99,6 +103,27 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
       }
     }
 
+    /**
+     * Several ids are written in ascending order as deltas, negative count distinguishes this encoding from the plain one
+     */
+    private static void saveSortedIds(final DataOutput out, @NotNull ValueContainer.IntIterator ids) throws IOException {
+      final int size = ids.size();
+      final int[] sorted = new int[size];
+      boolean ascending = true;
+      for (int i = 0; i < size; i++) {
+        sorted[i] = ids.next();
+        if (i > 0 && sorted[i] < sorted[i - 1]) ascending = false;
+      }
+      if (!ascending) Arrays.sort(sorted);
+
+      DataInputOutputUtil.writeSINT(out, -size);
+      int prev = 0;
+      for (int id : sorted) {
+        DataInputOutputUtil.writeINT(out, id - prev);
+        prev = id;
+      }
+    }
+
     @NotNull
     @Override
     public ValueContainerImpl<T> read(final DataInput in) throws IOException {
@@ -115,6 +140,16 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
+            if (idCount < 0) {
+              final int[] ids = new int[-idCount];
+              int prev = 0;
+              for (int i = 0; i < ids.length; i++) {
+                prev += DataInputOutputUtil.readINT(in);
+                ids[i] = prev;
+              }
+              valueContainer.addSortedValues(value, ids, ids.length);
+              continue;
+            }
             valueContainer.ensureFileSetCapacityForValue(value, idCount);
             for (int i = 0; i < idCount; i++) {
               final int id = DataInputOutputUtil.readSINT(in);
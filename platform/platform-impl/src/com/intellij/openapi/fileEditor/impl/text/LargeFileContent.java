@@ -0,0 +1,278 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.progress.ProgressIndicatorProvider;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.io.ByteBufferWrapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Read-only content of a file which is too large to be loaded into a document. The file is memory-mapped, and is shown
+ * by pages of about {@link #getPageSize()} bytes starting at line boundaries, so only the current page is ever decoded.
+ * <p/>
+ * Line numbers are computed lazily: line breaks are counted per chunk of {@link #CHUNK_SIZE} bytes when a chunk is first
+ * needed, and only the counts are kept. Lines are separated by '\n' byte, so only charsets encoding it as a single byte
+ * are {@link #isSupported(Charset) supported}.
+ */
+class LargeFileContent implements Disposable {
+  static final int CHUNK_SIZE = 1 << 22;
+  private static final int MAPPING_SHIFT = 28;
+  private static final int MAPPING_SIZE = 1 << MAPPING_SHIFT;
+  private static final byte LINE_BREAK = '\n';
+
+  private final File myFile;
+  private final Charset myCharset;
+  private final int myPageSize;
+  private final long myLength;
+  private final ByteBufferWrapper[] myMappings;
+  private final int[] myChunkLineBreaks; // -1 for chunks not counted yet
+
+  LargeFileContent(@NotNull File file, @NotNull Charset charset, int pageSize) {
+    myFile = file;
+    myCharset = charset;
+    myPageSize = pageSize;
+    myLength = file.length();
+    myMappings = new ByteBufferWrapper[(int)((myLength + MAPPING_SIZE - 1) >> MAPPING_SHIFT)];
+    myChunkLineBreaks = new int[(int)((myLength + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+    Arrays.fill(myChunkLineBreaks, -1);
+  }
+
+  static boolean isSupported(@NotNull Charset charset) {
+    byte[] bytes = "\n".getBytes(charset);
+    return bytes.length == 1 && bytes[0] == LINE_BREAK;
+  }
+
+  long getLength() {
+    return myLength;
+  }
+
+  int getPageSize() {
+    return myPageSize;
+  }
+
+  int getPageCount() {
+    return (int)Math.max(1, (myLength + myPageSize - 1) / myPageSize);
+  }
+
+  /**
+   * @return offset of the first line starting in the page, or a char boundary inside the line if it is longer than a page
+   */
+  long getPageStart(int page) throws IOException {
+    if (page <= 0) return 0;
+    long start = (long)page * myPageSize;
+    if (start >= myLength) return myLength;
+
+    long lineBreak = indexOf(LINE_BREAK, start - 1, Math.min(myLength, start + myPageSize - 1));
+    if (lineBreak >= 0) return lineBreak + 1;
+    // too long line, don't split UTF-8 sequence at least
+    while (start < myLength && (getByte(start) & 0xC0) == 0x80) start++;
+    return start;
+  }
+
+  long getPageEnd(int page) throws IOException {
+    return page >= getPageCount() - 1 ? myLength : getPageStart(page + 1);
+  }
+
+  int getPageOfOffset(long offset) throws IOException {
+    int page = (int)Math.min(offset / myPageSize, getPageCount() - 1);
+    return page > 0 && offset < getPageStart(page) ? page - 1 : page;
+  }
+
+  /**
+   * @return text of the page with line separators converted to '\n'
+   */
+  @NotNull
+  String getPageText(int page) throws IOException {
+    return getText(getPageStart(page), getPageEnd(page));
+  }
+
+  @NotNull
+  String getText(long start, long end) throws IOException {
+    byte[] bytes = new byte[(int)(end - start)];
+    getBytes(start, bytes);
+    return StringUtil.convertLineSeparators(new String(bytes, myCharset));
+  }
+
+  /**
+   * @return zero-based number of the line containing the given offset
+   */
+  long getLineNumber(long offset) throws IOException {
+    int chunk = (int)(offset / CHUNK_SIZE);
+    long line = 0;
+    for (int i = 0; i < chunk; i++) {
+      line += getLineBreakCount(i);
+    }
+    return line + countLineBreaks((long)chunk * CHUNK_SIZE, offset);
+  }
+
+  /**
+   * @return offset of the given zero-based line or -1 if there are less lines in the file
+   */
+  long getLineStartOffset(long line) throws IOException {
+    if (line <= 0) return 0;
+    long before = 0;
+    for (int chunk = 0; chunk < myChunkLineBreaks.length; chunk++) {
+      int count = getLineBreakCount(chunk);
+      if (before + count >= line) {
+        long offset = (long)chunk * CHUNK_SIZE;
+        long end = Math.min(myLength, offset + CHUNK_SIZE);
+        for (long remaining = line - before; ; remaining--) {
+          offset = indexOf(LINE_BREAK, offset, end) + 1;
+          if (remaining == 1) return offset;
+        }
+      }
+      before += count;
+    }
+    return -1;
+  }
+
+  long getLineCount() throws IOException {
+    long count = 1;
+    for (int chunk = 0; chunk < myChunkLineBreaks.length; chunk++) {
+      count += getLineBreakCount(chunk);
+    }
+    return count;
+  }
+
+  /**
+   * @return offset of the next occurrence of the text starting not before <code>from</code>, or -1 if there are none.
+   * Case-insensitive search ignores case of ASCII letters only.
+   */
+  long find(@NotNull String text, boolean caseSensitive, long from) throws IOException {
+    byte[] pattern = StringUtil.convertLineSeparators(text).getBytes(myCharset);
+    if (pattern.length == 0) return -1;
+    if (!caseSensitive) {
+      toLowerCase(pattern);
+    }
+
+    byte first = pattern[0];
+    long last = myLength - pattern.length;
+    for (long offset = Math.max(from, 0); offset <= last; ) {
+      ProgressIndicatorProvider.checkCanceled();
+      ByteBuffer buffer = getBuffer(offset);
+      int index = (int)(offset & (MAPPING_SIZE - 1));
+      int limit = (int)Math.min(buffer.limit(), index + Math.min(CHUNK_SIZE, last + 1 - offset));
+      for (int i = index; i < limit; i++) {
+        byte b = buffer.get(i);
+        if ((caseSensitive ? b : toLowerCase(b)) == first && matches(pattern, offset + i - index, caseSensitive)) {
+          return offset + i - index;
+        }
+      }
+      offset += limit - index;
+    }
+    return -1;
+  }
+
+  private boolean matches(@NotNull byte[] pattern, long offset, boolean caseSensitive) throws IOException {
+    for (int i = 0; i < pattern.length; i++) {
+      byte b = getByte(offset + i);
+      if (!caseSensitive) b = toLowerCase(b);
+      if (b != pattern[i]) return false;
+    }
+    return true;
+  }
+
+  private static void toLowerCase(@NotNull byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = toLowerCase(bytes[i]);
+    }
+  }
+
+  private static byte toLowerCase(byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte)(b + ('a' - 'A')) : b;
+  }
+
+  private synchronized int getLineBreakCount(int chunk) throws IOException {
+    int count = myChunkLineBreaks[chunk];
+    if (count < 0) {
+      long start = (long)chunk * CHUNK_SIZE;
+      myChunkLineBreaks[chunk] = count = countLineBreaks(start, Math.min(myLength, start + CHUNK_SIZE));
+    }
+    return count;
+  }
+
+  private int countLineBreaks(long start, long end) throws IOException {
+    ProgressIndicatorProvider.checkCanceled();
+    int count = 0;
+    for (long offset = start; offset < end; ) {
+      ByteBuffer buffer = getBuffer(offset);
+      int index = (int)(offset & (MAPPING_SIZE - 1));
+      int limit = (int)Math.min(buffer.limit(), index + end - offset);
+      for (int i = index; i < limit; i++) {
+        if (buffer.get(i) == LINE_BREAK) count++;
+      }
+      offset += limit - index;
+    }
+    return count;
+  }
+
+  private long indexOf(byte b, long start, long end) throws IOException {
+    for (long offset = start; offset < end; ) {
+      ByteBuffer buffer = getBuffer(offset);
+      int index = (int)(offset & (MAPPING_SIZE - 1));
+      int limit = (int)Math.min(buffer.limit(), index + end - offset);
+      for (int i = index; i < limit; i++) {
+        if (buffer.get(i) == b) return offset + i - index;
+      }
+      offset += limit - index;
+    }
+    return -1;
+  }
+
+  private byte getByte(long offset) throws IOException {
+    return getBuffer(offset).get((int)(offset & (MAPPING_SIZE - 1)));
+  }
+
+  private void getBytes(long offset, @NotNull byte[] bytes) throws IOException {
+    int copied = 0;
+    while (copied < bytes.length) {
+      ByteBuffer buffer = getBuffer(offset + copied).duplicate();
+      buffer.position((int)((offset + copied) & (MAPPING_SIZE - 1)));
+      int length = Math.min(buffer.remaining(), bytes.length - copied);
+      buffer.get(bytes, copied, length);
+      copied += length;
+    }
+  }
+
+  @NotNull
+  private synchronized ByteBuffer getBuffer(long offset) throws IOException {
+    int index = (int)(offset >> MAPPING_SHIFT);
+    ByteBufferWrapper mapping = myMappings[index];
+    if (mapping == null) {
+      long start = (long)index << MAPPING_SHIFT;
+      myMappings[index] = mapping = ByteBufferWrapper.readOnly(myFile, start, (int)Math.min(MAPPING_SIZE, myLength - start));
+    }
+    return mapping.getBuffer();
+  }
+
+  @Override
+  public synchronized void dispose() {
+    for (int i = 0; i < myMappings.length; i++) {
+      if (myMappings[i] != null) {
+        myMappings[i].dispose();
+        myMappings[i] = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.codeHighlighting.BackgroundEditorHighlighter;
+import com.intellij.icons.AllIcons;
+import com.intellij.ide.structureView.StructureViewBuilder;
+import com.intellij.openapi.actionSystem.*;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ApplicationNamesInfo;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.ScrollType;
+import com.intellij.openapi.editor.ex.EditorGutterComponentEx;
+import com.intellij.openapi.fileEditor.*;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.DumbAwareAction;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.ThrowableComputable;
+import com.intellij.openapi.util.UserDataHolderBase;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.containers.Convertor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
+
+/**
+ * Read-only viewer for files too large to be loaded into a document. The file is shown by pages of {@link #PAGE_SIZE}
+ * bytes (see {@link LargeFileContent}); only the current page is loaded into the editor, while navigation to a line and
+ * search work on the whole file.
+ */
+class LargeFileEditor extends UserDataHolderBase implements FileEditor {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.fileEditor.impl.text.LargeFileEditor");
+  static final int PAGE_SIZE = 1024 * 1024;
+
+  private final Project myProject;
+  private final VirtualFile myFile;
+  private final JComponent myComponent;
+  @Nullable private final LargeFileContent myContent;
+  private Editor myEditor;
+  private JLabel myPageLabel;
+  private JTextField myFindField;
+  private JCheckBox myCaseSensitive;
+
+  private int myPage = -1;
+  private long myPageStart;
+  private long myLastFound = -1;
+
+  LargeFileEditor(@NotNull Project project, @NotNull VirtualFile file) {
+    myProject = project;
+    myFile = file;
+    if (file.getFileType().isBinary() || !file.isInLocalFileSystem() || !LargeFileContent.isSupported(file.getCharset())) {
+      myContent = null;
+      JLabel label = new JLabel(
+        "File " + file.getPath() + " is too large for " + ApplicationNamesInfo.getInstance().getFullProductName() + " editor");
+      label.setHorizontalAlignment(SwingConstants.CENTER);
+      myComponent = label;
+    }
+    else {
+      myContent = new LargeFileContent(VfsUtilCore.virtualToIoFile(file), file.getCharset(), PAGE_SIZE);
+      myComponent = createViewerComponent();
+      showPage(0, 0);
+    }
+  }
+
+  @NotNull
+  private JComponent createViewerComponent() {
+    Document document = EditorFactory.getInstance().createDocument("");
+    myEditor = EditorFactory.getInstance().createViewer(document, myProject);
+
+    DefaultActionGroup pageActions = new DefaultActionGroup();
+    pageActions.add(new DumbAwareAction("Previous Page", null, AllIcons.Actions.Back) {
+      @Override
+      public void actionPerformed(AnActionEvent e) {
+        showPage(myPage - 1, -1);
+      }
+
+      @Override
+      public void update(AnActionEvent e) {
+        e.getPresentation().setEnabled(myPage > 0);
+      }
+    });
+    pageActions.add(new DumbAwareAction("Next Page", null, AllIcons.Actions.Forward) {
+      @Override
+      public void actionPerformed(AnActionEvent e) {
+        showPage(myPage + 1, -1);
+      }
+
+      @Override
+      public void update(AnActionEvent e) {
+        e.getPresentation().setEnabled(myContent != null && myPage < myContent.getPageCount() - 1);
+      }
+    });
+
+    DefaultActionGroup findActions = new DefaultActionGroup();
+    findActions.add(new DumbAwareAction("Find Next", null, AllIcons.Actions.NextOccurence) {
+      @Override
+      public void actionPerformed(AnActionEvent e) {
+        findNext();
+      }
+
+      @Override
+      public void update(AnActionEvent e) {
+        e.getPresentation().setEnabled(myFindField.getText().length() > 0);
+      }
+    });
+
+    myPageLabel = new JLabel();
+    final JTextField lineField = new JTextField(8);
+    lineField.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        int line = StringUtil.parseInt(lineField.getText().trim(), -1);
+        if (line > 0) {
+          gotoLine(line - 1);
+        }
+      }
+    });
+    myFindField = new JTextField(20);
+    myFindField.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        findNext();
+      }
+    });
+    myCaseSensitive = new JCheckBox("Match case");
+
+    ActionManager actionManager = ActionManager.getInstance();
+    JPanel toolbar = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+    toolbar.add(actionManager.createActionToolbar(ActionPlaces.UNKNOWN, pageActions, true).getComponent());
+    toolbar.add(myPageLabel);
+    toolbar.add(new JLabel("Go to line:"));
+    toolbar.add(lineField);
+    toolbar.add(new JLabel("Find:"));
+    toolbar.add(myFindField);
+    toolbar.add(actionManager.createActionToolbar(ActionPlaces.UNKNOWN, findActions, true).getComponent());
+    toolbar.add(myCaseSensitive);
+
+    JPanel panel = new JPanel(new BorderLayout());
+    panel.add(toolbar, BorderLayout.NORTH);
+    panel.add(myEditor.getComponent(), BorderLayout.CENTER);
+    return panel;
+  }
+
+  /**
+   * Loads the page into the editor and moves caret to the given file offset, if it is inside the page.
+   */
+  private void showPage(final int page, final long offset) {
+    assert myContent != null;
+    if (page < 0 || page >= myContent.getPageCount()) return;
+
+    if (page != myPage) {
+      ThrowableComputable<Pair<String, Long>, IOException> load = new ThrowableComputable<Pair<String, Long>, IOException>() {
+        @Override
+        public Pair<String, Long> compute() throws IOException {
+          long start = myContent.getPageStart(page);
+          return Pair.create(myContent.getPageText(page), myContent.getLineNumber(start));
+        }
+      };
+      // the first page doesn't need line breaks to be counted, so it's loaded without progress when the editor is opened
+      Pair<String, Long> loaded = page == 0 ? computeWithoutProgress(load) : compute("Loading Page", load);
+      if (loaded == null) return;
+
+      final String text = loaded.first;
+      ApplicationManager.getApplication().runWriteAction(new Runnable() {
+        @Override
+        public void run() {
+          CommandProcessor.getInstance().runUndoTransparentAction(new Runnable() {
+            @Override
+            public void run() {
+              myEditor.getDocument().setText(text);
+            }
+          });
+        }
+      });
+      final long firstLine = loaded.second;
+      ((EditorGutterComponentEx)myEditor.getGutter()).setLineNumberConvertor(new Convertor<Integer, Integer>() {
+        @Override
+        public Integer convert(Integer line) {
+          return (int)Math.min(Integer.MAX_VALUE - 1, firstLine + line);
+        }
+      });
+      myPage = page;
+      try {
+        myPageStart = myContent.getPageStart(page);
+      }
+      catch (IOException e) {
+        LOG.warn(e);
+      }
+      myPageLabel.setText("Page " + (page + 1) + " of " + myContent.getPageCount());
+    }
+
+    int documentOffset = offset < 0 ? 0 : toDocumentOffset(offset);
+    myEditor.getCaretModel().moveToOffset(documentOffset);
+    myEditor.getSelectionModel().removeSelection();
+    myEditor.getScrollingModel().scrollToCaret(offset < 0 ? ScrollType.MAKE_VISIBLE : ScrollType.CENTER);
+  }
+
+  private int toDocumentOffset(long offset) {
+    assert myContent != null;
+    try {
+      long pageEnd = myContent.getPageEnd(myPage);
+      return myContent.getText(myPageStart, Math.max(myPageStart, Math.min(offset, pageEnd))).length();
+    }
+    catch (IOException e) {
+      LOG.warn(e);
+      return 0;
+    }
+  }
+
+  private void gotoLine(final long line) {
+    assert myContent != null;
+    Long offset = compute("Searching for Line", new ThrowableComputable<Long, IOException>() {
+      @Override
+      public Long compute() throws IOException {
+        long offset = myContent.getLineStartOffset(line);
+        return offset < 0 ? null : offset;
+      }
+    });
+    if (offset != null) {
+      showOffset(offset);
+    }
+  }
+
+  private void findNext() {
+    assert myContent != null;
+    final String text = myFindField.getText();
+    if (text.isEmpty()) return;
+
+    final boolean caseSensitive = myCaseSensitive.isSelected();
+    final long from = myLastFound >= myPageStart && myLastFound < myContent.getLength() ? myLastFound + 1 : myPageStart;
+    Long found = compute("Searching", new ThrowableComputable<Long, IOException>() {
+      @Override
+      public Long compute() throws IOException {
+        long offset = myContent.find(text, caseSensitive, from);
+        return offset < 0 ? null : offset;
+      }
+    });
+    if (found == null) {
+      Messages.showInfoMessage(myProject, "'" + text + "' not found till the end of file", "Find");
+      return;
+    }
+
+    myLastFound = found;
+    showOffset(found);
+    int start = myEditor.getCaretModel().getOffset();
+    int end = Math.min(myEditor.getDocument().getTextLength(), start + StringUtil.convertLineSeparators(text).length());
+    myEditor.getSelectionModel().setSelection(start, end);
+  }
+
+  private void showOffset(long offset) {
+    assert myContent != null;
+    try {
+      showPage(myContent.getPageOfOffset(offset), offset);
+    }
+    catch (IOException e) {
+      LOG.warn(e);
+    }
+  }
+
+  @Nullable
+  private <T> T compute(@NotNull String title, @NotNull ThrowableComputable<T, IOException> computable) {
+    try {
+      return ProgressManager.getInstance().runProcessWithProgressSynchronously(computable, title, true, myProject);
+    }
+    catch (ProcessCanceledException e) {
+      return null;
+    }
+    catch (IOException e) {
+      Messages.showErrorDialog(myProject, e.getMessage(), title);
+      return null;
+    }
+  }
+
+  @Nullable
+  private <T> T computeWithoutProgress(@NotNull ThrowableComputable<T, IOException> computable) {
+    try {
+      return computable.compute();
+    }
+    catch (IOException e) {
+      LOG.warn(e);
+      return null;
+    }
+  }
+
+  @NotNull
+  @Override
+  public JComponent getComponent() {
+    return myComponent;
+  }
+
+  @Override
+  public JComponent getPreferredFocusedComponent() {
+    return myEditor != null ? myEditor.getContentComponent() : null;
+  }
+
+  @NotNull
+  @Override
+  public String getName() {
+    return "Large file editor";
+  }
+
+  @NotNull
+  @Override
+  public FileEditorState getState(@NotNull FileEditorStateLevel level) {
+    return new TextEditorState();
+  }
+
+  @Override
+  public void setState(@NotNull FileEditorState state) {
+  }
+
+  @Override
+  public boolean isModified() {
+    return false;
+  }
+
+  @Override
+  public boolean isValid() {
+    return myFile.isValid();
+  }
+
+  @Override
+  public void selectNotify() {
+  }
+
+  @Override
+  public void deselectNotify() {
+  }
+
+  @Override
+  public void addPropertyChangeListener(@NotNull PropertyChangeListener listener) {
+  }
+
+  @Override
+  public void removePropertyChangeListener(@NotNull PropertyChangeListener listener) {
+  }
+
+  @Override
+  public BackgroundEditorHighlighter getBackgroundHighlighter() {
+    return null;
+  }
+
+  @Override
+  public FileEditorLocation getCurrentLocation() {
+    return null;
+  }
+
+  @Override
+  public StructureViewBuilder getStructureViewBuilder() {
+    return null;
+  }
+
+  @Override
+  public void dispose() {
+    if (myEditor != null) {
+      EditorFactory.getInstance().releaseEditor(myEditor);
+      myEditor = null;
+    }
+    if (myContent != null) {
+      Disposer.dispose(myContent);
+    }
+  }
+}
@@ -15,22 +15,15 @@
  */
 package com.intellij.openapi.fileEditor.impl.text;
 
-import com.intellij.codeHighlighting.BackgroundEditorHighlighter;
-import com.intellij.ide.structureView.StructureViewBuilder;
-import com.intellij.openapi.application.ApplicationNamesInfo;
 import com.intellij.openapi.fileEditor.*;
 import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
-import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.SingleRootFileViewProvider;
 import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
 
-import javax.swing.*;
-import java.beans.PropertyChangeListener;
-
 /**
  * @author peter
  */
@@ -47,7 +40,7 @@ public class LargeFileEditorProvider implements FileEditorProvider, DumbAware {
   @Override
   @NotNull
   public FileEditor createEditor(@NotNull Project project, @NotNull final VirtualFile file) {
-    return new LargeFileEditor(file);
+    return new LargeFileEditor(project, file);
   }
 
   @Override
@@ -76,88 +69,4 @@ public class LargeFileEditorProvider implements FileEditorProvider, DumbAware {
   public FileEditorPolicy getPolicy() {
     return FileEditorPolicy.NONE;
   }
-
-  private static class LargeFileEditor extends UserDataHolderBase implements FileEditor {
-    private final VirtualFile myFile;
-
-    public LargeFileEditor(VirtualFile file) {
-      myFile = file;
-    }
-
-    @NotNull
-    @Override
-    public JComponent getComponent() {
-      JLabel label = new JLabel(
-        "File " + myFile.getPath() + " is too large for " + ApplicationNamesInfo.getInstance().getFullProductName() + " editor");
-      label.setHorizontalAlignment(SwingConstants.CENTER);
-      return label;
-    }
-
-    @Override
-    public JComponent getPreferredFocusedComponent() {
-      return null;
-    }
-
-    @NotNull
-    @Override
-    public String getName() {
-      return "Large file editor";
-    }
-
-    @NotNull
-    @Override
-    public FileEditorState getState(@NotNull FileEditorStateLevel level) {
-      return new TextEditorState();
-    }
-
-    @Override
-    public void setState(@NotNull FileEditorState state) {
-    }
-
-    @Override
-    public boolean isModified() {
-      return false;
-    }
-
-    @Override
-    public boolean isValid() {
-      return myFile.isValid();
-    }
-
-    @Override
-    public void selectNotify() {
-    }
-
-    @Override
-    public void deselectNotify() {
-    }
-
-    @Override
-    public void addPropertyChangeListener(@NotNull PropertyChangeListener listener) {
-    }
-
-    @Override
-    public void removePropertyChangeListener(@NotNull PropertyChangeListener listener) {
-    }
-
-    @Override
-    public BackgroundEditorHighlighter getBackgroundHighlighter() {
-      return null;
-    }
-
-    @Override
-    public FileEditorLocation getCurrentLocation() {
-      return null;
-    }
-
-    @Override
-    public StructureViewBuilder getStructureViewBuilder() {
-      return null;
-    }
-
-    @Override
-    public void dispose() {
-    }
-
-  }
 }
@@ -20,19 +20,26 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.InvalidVirtualFileAccessException;
 import com.intellij.openapi.vfs.VFileProperty;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
 import com.intellij.util.SystemProperties;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author peter
@@ -40,23 +47,45 @@ import java.util.concurrent.TimeUnit;
 @SuppressWarnings({"SynchronizeOnThis"})
 public class FileContentQueue {
   private static final Logger LOG = Logger.getInstance("#com.intellij.ide.startup.FileContentQueue");
-  private static final long MAX_SIZE_OF_BYTES_IN_QUEUE = 1024 * 1024;
+  private static final int PROC_COUNT = Runtime.getRuntime().availableProcessors();
   private static final long PROCESSED_FILE_BYTES_THRESHOLD = 1024 * 1024 * 3;
   private static final long LARGE_SIZE_REQUEST_THRESHOLD = PROCESSED_FILE_BYTES_THRESHOLD - 1024 * 300; // 300k for other threads
 
   // Unbounded (!)
   private final LinkedBlockingDeque<FileContent> myLoadedContentsQueue = new LinkedBlockingDeque<FileContent>();
   private final LinkedBlockingQueue<VirtualFile> myFilesToLoadQueue = new LinkedBlockingQueue<VirtualFile>();
+  // files larger than per loader share of the queue budget, they are read by indexing threads themselves
+  private final LinkedBlockingQueue<VirtualFile> myLargeFilesToLoadQueue = new LinkedBlockingQueue<VirtualFile>();
   private volatile boolean myContentLoadingThreadTerminated = false;
+  private final AtomicInteger myActiveLoadersCount = new AtomicInteger();
+  private final AtomicBoolean myLoadingCanceled = new AtomicBoolean();
 
+  private final int myLoadersCount;
+  private final long myMaxSizeOfBytesInQueue;
+  private final long myLargeFileThreshold;
   private volatile long myLoadedBytesInQueue;
   private final Object myProceedWithLoadingLock = new Object();
 
+  private final AtomicLong myLoadersIdleNanos = new AtomicLong();
+  private final AtomicLong myIndexersIdleNanos = new AtomicLong();
+  private final AtomicInteger myFilesLoadedByIndexers = new AtomicInteger();
+
   private volatile long myBytesBeingProcessed;
   private volatile boolean myLargeSizeRequested;
   private final Object myProceedWithProcessingLock = new Object();
   private static final boolean ourAllowParallelFileReading = SystemProperties.getBooleanProperty("idea.allow.parallel.file.reading", true);
 
+  public FileContentQueue() {
+    int loadersCount = Registry.intValue("caches.contentLoaderThreadsCount");
+    if (loadersCount <= 0) {
+      loadersCount = Math.min(PROC_COUNT, 2);
+    }
+    // loading files in parallel makes sense only when indexing threads are allowed to read files as well
+    myLoadersCount = ourAllowParallelFileReading ? loadersCount : 1;
+    myMaxSizeOfBytesInQueue = Math.max(1, Registry.intValue("caches.contentLoadingQueueSizeKb")) * 1024L;
+    myLargeFileThreshold = ourAllowParallelFileReading ? myMaxSizeOfBytesInQueue / myLoadersCount : Long.MAX_VALUE;
+  }
+
   public void queue(final Collection<VirtualFile> files, @NotNull final ProgressIndicator indicator) {
     myFilesToLoadQueue.addAll(files);
     final Runnable contentLoadingRunnable = new Runnable() {
@@ -69,34 +98,46 @@ public class FileContentQueue {
             addLast(file, indicator);
             file = myFilesToLoadQueue.poll();
           }
-
-          // put end-of-queue marker only if not canceled
-          try {
-            myLoadedContentsQueue.put(new FileContent(null));
-          }
-          catch (InterruptedException e) {
-            LOG.error(e);
-          }
         }
         catch (ProcessCanceledException e) {
-          // Do nothing, exit the thread.
+          myLoadingCanceled.set(true);
         }
         catch (InterruptedException e) {
+          myLoadingCanceled.set(true);
           LOG.error(e);
         }
         finally {
-          myContentLoadingThreadTerminated = true;
+          if (myActiveLoadersCount.decrementAndGet() == 0) {
+            // put end-of-queue marker only if not canceled
+            if (!myLoadingCanceled.get()) {
+              try {
+                myLoadedContentsQueue.put(new FileContent(null));
+              }
+              catch (InterruptedException e) {
+                LOG.error(e);
+              }
+            }
+            myContentLoadingThreadTerminated = true;
+          }
         }
       }
     };
 
-    ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    myActiveLoadersCount.set(myLoadersCount);
+    for (int i = 0; i < myLoadersCount; i++) {
+      ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    }
   }
 
   private void addLast(VirtualFile file, @NotNull final ProgressIndicator indicator) throws InterruptedException {
     FileContent content = new FileContent(file);
 
     if (isValidFile(file)) {
+      if (content.getLength() > myLargeFileThreshold) {
+        // do not occupy the whole budget with single file, indexing thread which takes it will read it
+        myLargeFilesToLoadQueue.put(file);
+        return;
+      }
       if (!doLoadContent(content, indicator)) {
         content.setEmptyContent();
       }
@@ -119,15 +160,23 @@ public class FileContentQueue {
     boolean counterUpdated = false;
     try {
       synchronized (myProceedWithLoadingLock) {
-        while (myLoadedBytesInQueue > MAX_SIZE_OF_BYTES_IN_QUEUE) {
-          indicator.checkCanceled();
-          myProceedWithLoadingLock.wait(300);
+        if (myLoadedBytesInQueue > myMaxSizeOfBytesInQueue) {
+          final long started = System.nanoTime();
+          try {
+            while (myLoadedBytesInQueue > myMaxSizeOfBytesInQueue) {
+              indicator.checkCanceled();
+              myProceedWithLoadingLock.wait(300);
+            }
+          }
+          finally {
+            myLoadersIdleNanos.addAndGet(System.nanoTime() - started);
+          }
         }
         myLoadedBytesInQueue += contentLength;
         counterUpdated = true;
       }
 
-      content.getBytes(); // Reads the content bytes and caches them.
+      loadBytes(content);
 
       return true;
     }
@@ -207,30 +256,14 @@ public class FileContentQueue {
       if (ourAllowParallelFileReading) {
         result = myLoadedContentsQueue.poll();
         if (result == null) {
-          VirtualFile virtualFileToLoad = myFilesToLoadQueue.poll();
+          VirtualFile virtualFileToLoad = myLargeFilesToLoadQueue.poll();
+          if (virtualFileToLoad == null) virtualFileToLoad = myFilesToLoadQueue.poll();
           if (virtualFileToLoad != null) {
-            FileContent content = new FileContent(virtualFileToLoad);
-            if (isValidFile(virtualFileToLoad)) {
-              try {
-                content.getBytes();
-              }
-              catch (Throwable t) {
-                if (t instanceof IOException || t instanceof InvalidVirtualFileAccessException) {
-                  LOG.info(t);
-                }
-                else {
-                  LOG.error(t);
-                }
-                content.setEmptyContent();
-              }
-            }
-            else {
-              content.setEmptyContent();
-            }
-            return content;
+            return loadContent(virtualFileToLoad);
           }
 
           // take last content which is loaded by another thread
+          final long started = System.nanoTime();
           do {
             try {
               result = myLoadedContentsQueue.poll(10, TimeUnit.MILLISECONDS);
@@ -241,15 +274,20 @@ public class FileContentQueue {
             }
           }
           while (!myContentLoadingThreadTerminated);
+          myIndexersIdleNanos.addAndGet(System.nanoTime() - started);
         }
       }
       else {
+        final long started = System.nanoTime();
         try {
           result = myLoadedContentsQueue.poll(300, TimeUnit.MILLISECONDS);
         }
         catch (InterruptedException ex) {
           throw new RuntimeException(ex);
         }
+        finally {
+          myIndexersIdleNanos.addAndGet(System.nanoTime() - started);
+        }
       }
       if (result == null && myContentLoadingThreadTerminated) {
         return null;
@@ -258,6 +296,12 @@ public class FileContentQueue {
 
     final VirtualFile file = result.getVirtualFile();
     if (file == null) {
+      VirtualFile largeFile = myLargeFilesToLoadQueue.poll();
+      if (largeFile != null) {
+        // end-of-queue marker can outrun large files postponed by loaders
+        myLoadedContentsQueue.addFirst(result);
+        return loadContent(largeFile);
+      }
       try {
         myLoadedContentsQueue.put(result); // put it back to notify the others
       }
@@ -269,7 +313,7 @@ public class FileContentQueue {
 
     synchronized (myProceedWithLoadingLock) {
       myLoadedBytesInQueue -= result.getLength();
-      if (myLoadedBytesInQueue < MAX_SIZE_OF_BYTES_IN_QUEUE) {
+      if (myLoadedBytesInQueue < myMaxSizeOfBytesInQueue) {
         myProceedWithLoadingLock
           .notifyAll(); // we actually ask only content loading thread to proceed, so there should not be much difference with plain notify
       }
@@ -278,6 +322,50 @@ public class FileContentQueue {
     return result;
   }
 
+  // Reads the content bytes and caches them. Contents cached by VFS are taken as read-only buffers without copying
+  private static void loadBytes(@NotNull FileContent content) throws IOException {
+    VirtualFile file = content.getVirtualFile();
+    if (file instanceof VirtualFileWithId) {
+      ByteBuffer buffer = PersistentFS.getInstance().getCachedContentBuffer(file);
+      if (buffer != null) {
+        content.setBuffer(buffer);
+        return;
+      }
+    }
+    content.getBytes();
+  }
+
+  @NotNull
+  private FileContent loadContent(@NotNull VirtualFile virtualFileToLoad) {
+    myFilesLoadedByIndexers.incrementAndGet();
+    FileContent content = new FileContent(virtualFileToLoad);
+    if (isValidFile(virtualFileToLoad)) {
+      try {
+        loadBytes(content);
+      }
+      catch (Throwable t) {
+        if (t instanceof IOException || t instanceof InvalidVirtualFileAccessException) {
+          LOG.info(t);
+        }
+        else {
+          LOG.error(t);
+        }
+        content.setEmptyContent();
+      }
+    }
+    else {
+      content.setEmptyContent();
+    }
+    return content;
+  }
+
+  public void logStatistics() {
+    LOG.info("Content loading: " + myLoadersCount + " loader(s), queue budget " + myMaxSizeOfBytesInQueue / 1024 + "kb" +
+             ", loaders idle " + TimeUnit.NANOSECONDS.toMillis(myLoadersIdleNanos.get()) + " ms" +
+             ", indexers idle " + TimeUnit.NANOSECONDS.toMillis(myIndexersIdleNanos.get()) + " ms" +
+             ", files loaded by indexers " + myFilesLoadedByIndexers.get());
+  }
+
   public void release(@NotNull FileContent content) {
     synchronized (myProceedWithProcessingLock) {
       myBytesBeingProcessed -= content.getLength();
@@ -43,6 +43,7 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -93,8 +94,17 @@ public class FSRecords implements Forceable {
 
   private static final String CHILDREN_ATT = "FsRecords.DIRECTORY_CHILDREN";
 
+  // w is held for changes of storage structure (record allocation and deletion, roots, flushing and closing), everything else holds r.
+  // Fields, children and attributes of a record are additionally guarded by its striped record lock,
+  // so attribute writes of one file do not block readers and writers of other files.
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
+  private static final int RECORD_LOCK_STRIPES = 64;
+  private static final ReentrantReadWriteLock[] ourRecordLocks = new ReentrantReadWriteLock[RECORD_LOCK_STRIPES];
+  // mod counts of the record and its parents together with global mod count
+  private static final Object ourModCountLock = new Object();
+  // content hashes digest and enumerator
+  private static final Object ourContentLock = new Object();
 
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
@@ -109,11 +119,38 @@ public class FSRecords implements Forceable {
     ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     r = lock.readLock();
     w = lock.writeLock();
+    for (int i = 0; i < ourRecordLocks.length; i++) {
+      ourRecordLocks[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  private static ReentrantReadWriteLock getRecordLock(int id) {
+    return ourRecordLocks[id & (RECORD_LOCK_STRIPES - 1)];
+  }
+
+  private static void lockRecordForRead(int id) {
+    r.lock();
+    getRecordLock(id).readLock().lock();
+  }
+
+  private static void unlockRecordForRead(int id) {
+    getRecordLock(id).readLock().unlock();
+    r.unlock();
+  }
+
+  private static void lockRecordForWrite(int id) {
+    r.lock();
+    getRecordLock(id).writeLock().lock();
+  }
+
+  private static void unlockRecordForWrite(int id) {
+    getRecordLock(id).writeLock().unlock();
+    r.unlock();
   }
 
   static void writeAttributesToRecord(int id, int parentId, FileAttributes attributes, String name) {
     try {
-      w.lock();
+      lockRecordForWrite(id);
       setName(id, name);
 
       setTimestamp(id, attributes.lastModified);
@@ -128,7 +165,7 @@ public class FSRecords implements Forceable {
     } catch (Throwable e) {
       throw DbConnection.handleError(e);
     } finally {
-      w.unlock();
+      unlockRecordForWrite(id);
     }
   }
 
@@ -258,7 +295,7 @@ public class FSRecords implements Forceable {
             return super.getLargestId() / SIGNATURE_LENGTH;
           }
 
-          private boolean myProcessingKeyAtIndex;   // currently protected by w.lock of FSRecords
+          private boolean myProcessingKeyAtIndex;   // currently protected by ourContentLock of FSRecords
 
           @Override
           protected boolean isKeyAtIndex(byte[] value, int idx) throws IOException {
@@ -532,11 +569,21 @@ public class FSRecords implements Forceable {
     }
 
     private static class AttrPageAwareCapacityAllocationPolicy extends CapacityAllocationPolicy {
-      boolean myAttrPageRequested;
+      // per thread, as attributes of different records are written concurrently
+      private final ThreadLocal<Boolean> myAttrPageRequested = new ThreadLocal<Boolean>();
+
+      void setAttrPageRequested(boolean requested) {
+        if (requested) {
+          myAttrPageRequested.set(Boolean.TRUE);
+        }
+        else {
+          myAttrPageRequested.remove();
+        }
+      }
 
       @Override
       public int calculateCapacity(int requiredLength) {   // 20% for growth
-        return Math.max(myAttrPageRequested ? 8:32, Math.min((int)(requiredLength * 1.2), (requiredLength / 1024 + 1) * 1024));
+        return Math.max(myAttrPageRequested.get() != null ? 8:32, Math.min((int)(requiredLength * 1.2), (requiredLength / 1024 + 1) * 1024));
       }
     }
 
@@ -703,7 +750,7 @@ public class FSRecords implements Forceable {
   static int[] listRoots() {
     try {
       try {
-        r.lock();
+        lockRecordForRead(1);
         final DataInputStream input = readAttribute(1, CHILDREN_ATT);
         if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
 
@@ -721,7 +768,7 @@ public class FSRecords implements Forceable {
         }
       }
       finally {
-        r.unlock();
+        unlockRecordForRead(1);
       }
     }
     catch (Throwable e) {
@@ -851,7 +898,7 @@ public class FSRecords implements Forceable {
 
   public static int[] list(int id) {
     try {
-      r.lock();
+      lockRecordForRead(id);
       try {
         final DataInputStream input = readAttribute(id, CHILDREN_ATT);
         if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
@@ -867,7 +914,7 @@ public class FSRecords implements Forceable {
         return result;
       }
       finally {
-        r.unlock();
+        unlockRecordForRead(id);
       }
     }
     catch (Throwable e) {
@@ -894,7 +941,7 @@ public class FSRecords implements Forceable {
   @NotNull
   public static NameId[] listAll(int parentId) {
     try {
-      r.lock();
+      lockRecordForRead(parentId);
       try {
         final DataInputStream input = readAttribute(parentId, CHILDREN_ATT);
         if (input == null) return NameId.EMPTY_ARRAY;
@@ -910,7 +957,7 @@ public class FSRecords implements Forceable {
         return result;
       }
       finally {
-        r.unlock();
+        unlockRecordForRead(parentId);
       }
     }
     catch (Throwable e) {
@@ -920,11 +967,11 @@ public class FSRecords implements Forceable {
 
   public static boolean wereChildrenAccessed(int id) {
     try {
-      r.lock();
+      lockRecordForRead(id);
       try {
         return findAttributePage(id, CHILDREN_ATT, false) != 0;
       } finally {
-        r.unlock();
+        unlockRecordForRead(id);
       }
     }
     catch (Throwable e) {
@@ -934,7 +981,7 @@ public class FSRecords implements Forceable {
 
   public static void updateList(int id, @NotNull int[] children) {
     try {
-      w.lock();
+      lockRecordForWrite(id);
       DbConnection.markDirty();
       final DataOutputStream record = writeAttribute(id, CHILDREN_ATT, false);
       DataInputOutputUtil.writeINT(record, children.length);
@@ -953,24 +1000,28 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      unlockRecordForWrite(id);
     }
   }
 
+  // should be called under r or w lock
   private static void incModCount(int id) {
     DbConnection.markDirty();
-    ourLocalModificationCount++;
-    final int count = getModCount() + 1;
-    getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
-
-    int parent = id;
-    int depth = 10000;
-    while (parent != 0) {
-      setModCount(parent, count);
-      parent = getParent(parent);
-      if (depth -- == 0) {
-        LOG.error("Cyclic parent child relation? file: " + getName(id));
-        return;
+    synchronized (ourModCountLock) {
+      ourLocalModificationCount++;
+      final int count = getModCount() + 1;
+      getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+
+      // callers hold r, parents are read without their record locks to avoid lock ordering issues between stripes
+      int parent = id;
+      int depth = 10000;
+      while (parent != 0) {
+        setModCount(parent, count);
+        parent = getRecordInt(parent, PARENT_OFFSET);
+        if (depth -- == 0) {
+          LOG.error("Cyclic parent child relation? file: " + getName(id));
+          return;
+        }
       }
     }
   }
@@ -989,21 +1040,29 @@ public class FSRecords implements Forceable {
     }
   }
 
-  public static int getParent(int id) {
+  /**
+   * Reads single int field of the record under shared locks, so concurrent readers don't block each other.
+   * The storage may be resized or unmapped by structure changes, so the field can't be read without r lock.
+   */
+  private static int getRecordIntUnderReadLock(int id, int offset) {
     try {
-      r.lock();
-      try {
-        final int parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id) {
-          LOG.error("Cyclic parent child relations in the database. id = " + id);
-          return 0;
-        }
+      lockRecordForRead(id);
+      return getRecordInt(id, offset);
+    }
+    finally {
+      unlockRecordForRead(id);
+    }
+  }
 
-        return parentId;
-      }
-      finally {
-        r.unlock();
+  public static int getParent(int id) {
+    try {
+      final int parentId = getRecordIntUnderReadLock(id, PARENT_OFFSET);
+      if (parentId == id) {
+        LOG.error("Cyclic parent child relations in the database. id = " + id);
+        return 0;
       }
+
+      return parentId;
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1017,7 +1076,7 @@ public class FSRecords implements Forceable {
     }
 
     try {
-      w.lock();
+      lockRecordForWrite(id);
       incModCount(id);
       putRecordInt(id, PARENT_OFFSET, parent);
     }
@@ -1025,19 +1084,13 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      unlockRecordForWrite(id);
     }
   }
 
   public static int getNameId(int id) {
     try {
-      r.lock();
-      try {
-        return getRecordInt(id, NAME_OFFSET);
-      }
-      finally {
-        r.unlock();
-      }
+      return getRecordIntUnderReadLock(id, NAME_OFFSET);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1092,7 +1145,7 @@ public class FSRecords implements Forceable {
 
   public static void setName(int id, String name) {
     try {
-      w.lock();
+      lockRecordForWrite(id);
       incModCount(id);
       putRecordInt(id, NAME_OFFSET, getNames().enumerate(name));
     }
@@ -1100,23 +1153,17 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      unlockRecordForWrite(id);
     }
   }
 
   public static int getFlags(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, FLAGS_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return getRecordIntUnderReadLock(id, FLAGS_OFFSET);
   }
 
   public static void setFlags(int id, int flags, final boolean markAsChange) {
     try {
-      w.lock();
+      lockRecordForWrite(id);
       if (markAsChange) {
         incModCount(id);
       }
@@ -1126,23 +1173,23 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      unlockRecordForWrite(id);
     }
   }
 
   public static long getLength(int id) {
     try {
-      r.lock();
+      lockRecordForRead(id);
       return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
     }
     finally {
-      r.unlock();
+      unlockRecordForRead(id);
     }
   }
 
   public static void setLength(int id, long len) {
     try {
-      w.lock();
+      lockRecordForWrite(id);
       incModCount(id);
       getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
     }
@@ -1150,23 +1197,23 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      unlockRecordForWrite(id);
     }
   }
 
   public static long getTimestamp(int id) {
     try {
-      r.lock();
+      lockRecordForRead(id);
       return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
     }
     finally {
-      r.unlock();
+      unlockRecordForRead(id);
     }
   }
 
   public static void setTimestamp(int id, long value) {
     try {
-      w.lock();
+      lockRecordForWrite(id);
       incModCount(id);
       getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
     }
@@ -1174,18 +1221,12 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      unlockRecordForWrite(id);
     }
   }
 
   public static int getModCount(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, MOD_COUNT_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return getRecordIntUnderReadLock(id, MOD_COUNT_OFFSET);
   }
 
   private static void setModCount(int id, int value) {
@@ -1225,14 +1266,14 @@ public class FSRecords implements Forceable {
     try {
       int page;
       try {
-        r.lock();
+        lockRecordForRead(fileId);
         checkFileIsValid(fileId);
 
         page = getContentRecordId(fileId);
         if (page == 0) return null;
       }
       finally {
-        r.unlock();
+        unlockRecordForRead(fileId);
       }
       return getContentStorage().readStream(page);
     }
@@ -1241,6 +1282,30 @@ public class FSRecords implements Forceable {
     }
   }
 
+  /**
+   * @return read-only view of the cached file content or null if the content is not cached, see {@link RefCountingStorage#readBuffer(int)}
+   */
+  @Nullable
+  public static ByteBuffer readContentBuffer(int fileId) {
+    try {
+      int page;
+      try {
+        lockRecordForRead(fileId);
+        checkFileIsValid(fileId);
+
+        page = getContentRecordId(fileId);
+        if (page == 0) return null;
+      }
+      finally {
+        unlockRecordForRead(fileId);
+      }
+      return getContentStorage().readBuffer(page);
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
+
   @Nullable
   public static DataInputStream readContentById(int contentId) {
     try {
@@ -1254,14 +1319,12 @@ public class FSRecords implements Forceable {
   @Nullable
   static DataInputStream readAttributeWithLock(int fileId, String attId) {
     try {
-      synchronized (attId) {
-        try {
-          r.lock();
-          return readAttribute(fileId, attId);
-        }
-        finally {
-          r.unlock();
-        }
+      try {
+        lockRecordForRead(fileId);
+        return readAttribute(fileId, attId);
+      }
+      finally {
+        unlockRecordForRead(fileId);
       }
     }
     catch (Throwable e) {
@@ -1269,7 +1332,7 @@ public class FSRecords implements Forceable {
     }
   }
 
-  // should be called under r or w lock
+  // should be called under record lock or w lock
   @Nullable
   private static DataInputStream readAttribute(int fileId, String attId) throws IOException {
     int page = findAttributePage(fileId, attId, false);
@@ -1311,11 +1374,11 @@ public class FSRecords implements Forceable {
       DataInputOutputUtil.writeINT(appender, encodedAttrId);
       int attrAddress = storage.createNewRecord();
       DataInputOutputUtil.writeINT(appender, attrAddress);
-      DbConnection.REASONABLY_SMALL.myAttrPageRequested = true;
+      DbConnection.REASONABLY_SMALL.setAttrPageRequested(true);
       try {
         appender.close();
       } finally {
-        DbConnection.REASONABLY_SMALL.myAttrPageRequested = false;
+        DbConnection.REASONABLY_SMALL.setAttrPageRequested(false);
       }
       return attrAddress;
     }
@@ -1331,7 +1394,7 @@ public class FSRecords implements Forceable {
 
   public static int acquireFileContent(int fileId) {
     try {
-      w.lock();
+      lockRecordForRead(fileId);
       int record = getContentRecordId(fileId);
       if (record > 0) getContentStorage().acquireRecord(record);
       return record;
@@ -1340,13 +1403,13 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      unlockRecordForRead(fileId);
     }
   }
 
   public static void releaseContent(int contentId) {
     try {
-      w.lock();
+      r.lock();
       RefCountingStorage contentStorage = getContentStorage();
       if (weHaveContentHashes) {
         contentStorage.releaseRecord(contentId, false);
@@ -1357,18 +1420,18 @@ public class FSRecords implements Forceable {
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     } finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
   public static int getContentId(int fileId) {
     try {
-      r.lock();
+      lockRecordForRead(fileId);
       try {
         return getContentRecordId(fileId);
       }
       finally {
-        r.unlock();
+        unlockRecordForRead(fileId);
       }
     }
     catch (Throwable e) {
@@ -1400,11 +1463,13 @@ public class FSRecords implements Forceable {
 
   public static int storeUnlinkedContent(byte[] bytes) {
     try {
-      w.lock();
+      r.lock();
       int recordId;
 
       if (weHaveContentHashes) {
-        recordId = findOrCreateContentRecord(bytes, 0, bytes.length);
+        synchronized (ourContentLock) {
+          recordId = findOrCreateContentRecord(bytes, 0, bytes.length);
+        }
         if (recordId > 0) return recordId;
         recordId = -recordId;
       } else {
@@ -1418,7 +1483,7 @@ public class FSRecords implements Forceable {
     catch (IOException e) {
       throw DbConnection.handleError(e);
     } finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
@@ -1455,13 +1520,15 @@ public class FSRecords implements Forceable {
       RefCountingStorage contentStorage = getContentStorage();
       final boolean fixedSize;
       try {
-        w.lock();
+        lockRecordForWrite(myFileId);
         incModCount(myFileId);
 
         checkFileIsValid(myFileId);
 
         if (weHaveContentHashes) {
-          page = findOrCreateContentRecord(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+          synchronized (ourContentLock) {
+            page = findOrCreateContentRecord(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+          }
 
           incModCount(myFileId);
           checkFileIsValid(myFileId);
@@ -1481,7 +1548,7 @@ public class FSRecords implements Forceable {
         }
       }
       finally {
-        w.unlock();
+        unlockRecordForWrite(myFileId);
       }
 
       contentStorage.writeBytes(page, bytes, fixedSize);
@@ -1493,6 +1560,7 @@ public class FSRecords implements Forceable {
   private static long totalContents, totalReuses, time;
   private static int contents, reuses;
 
+  // should be called under ourContentLock
   private static int findOrCreateContentRecord(byte[] bytes, int offset, int length) throws IOException {
     assert weHaveContentHashes;
     byte[] digest;
@@ -1570,19 +1638,16 @@ public class FSRecords implements Forceable {
       super.close();
 
       try {
-        synchronized (myAttributeId) {
-          final BufferExposingByteArrayOutputStream _out = (BufferExposingByteArrayOutputStream)out;
-          final int page;
-          try {
-            w.lock();
-            incModCount(myFileId);
-            page = findAttributePage(myFileId, myAttributeId, true);
-          }
-          finally {
-            w.unlock();
-          }
+        final BufferExposingByteArrayOutputStream _out = (BufferExposingByteArrayOutputStream)out;
+        try {
+          lockRecordForWrite(myFileId);
+          incModCount(myFileId);
+          final int page = findAttributePage(myFileId, myAttributeId, true);
           getAttributesStorage().writeBytes(page, new ByteSequence(_out.getInternalBuffer(), 0, _out.size()), myFixedSize);
         }
+        finally {
+          unlockRecordForWrite(myFileId);
+        }
       }
       catch (Throwable e) {
         throw DbConnection.handleError(e);
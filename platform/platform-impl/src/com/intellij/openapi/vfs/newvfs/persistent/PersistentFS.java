@@ -28,6 +28,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import static com.intellij.util.BitUtil.isSet;
@@ -88,6 +89,13 @@ public abstract class PersistentFS extends ManagingFS {
   @NotNull
   public abstract byte[] contentsToByteArray(@NotNull VirtualFile file, boolean cacheContent) throws IOException;
 
+  /**
+   * @return read-only view of the content cached for the file or null if it's not cached or outdated,
+   *         in which case {@link #contentsToByteArray(VirtualFile, boolean)} should be used
+   */
+  @Nullable
+  public abstract ByteBuffer getCachedContentBuffer(@NotNull VirtualFile file);
+
   public abstract int acquireContent(@NotNull VirtualFile file);
 
   public abstract void releaseContent(int contentId);
@@ -46,6 +46,7 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -555,6 +556,22 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
     }
   }
 
+  @Override
+  @Nullable
+  public ByteBuffer getCachedContentBuffer(@NotNull VirtualFile file) {
+    ByteBuffer buffer;
+    synchronized (myInputLock) {
+      if (mustReloadContent(file)) return null;
+      buffer = FSRecords.readContentBuffer(getFileId(file));
+    }
+    if (buffer != null) {
+      final int length = (int)file.getLength();
+      assert length >= 0 : file;
+      if (buffer.remaining() > length) buffer.limit(buffer.position() + length);
+    }
+    return buffer;
+  }
+
   @Override
   @NotNull
   public byte[] contentsToByteArray(int contentId) throws IOException {
@@ -15,12 +15,14 @@
  */
 package com.intellij.openapi.vfs.newvfs.persistent;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileAttributes;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VFileProperty;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -32,6 +34,9 @@ import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.OpenTHashSet;
 import com.intellij.util.containers.Queue;
+import jsr166e.ForkJoinPool;
+import jsr166e.ForkJoinTask;
+import jsr166e.RecursiveTask;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -46,14 +51,32 @@ import static com.intellij.util.containers.ContainerUtil.newTroveSet;
 public class RefreshWorker {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker");
 
+  private static ForkJoinPool ourPool;
+
   private final boolean myIsRecursive;
   private final Queue<Pair<NewVirtualFile, FileAttributes>> myRefreshQueue = new Queue<Pair<NewVirtualFile, FileAttributes>>(100);
   private final List<VFileEvent> myEvents = new ArrayList<VFileEvent>();
   private volatile boolean myCancelled = false;
+  private final RefreshWorker myRootWorker; // the one cancelled by refresh session
+  // directories to be scanned by separate subtree scans, null when subtrees are scanned sequentially
+  @Nullable private final List<Pair<NewVirtualFile, FileAttributes>> mySubtreesToScan;
+  // directories marked clean by recursive scans of the root worker, to be marked dirty again if the refresh is cancelled
+  @Nullable private final List<NewVirtualFile> myCleanedDirectories;
 
   public RefreshWorker(@NotNull NewVirtualFile refreshRoot, boolean isRecursive) {
     myIsRecursive = isRecursive;
     myRefreshQueue.addLast(Pair.create(refreshRoot, (FileAttributes)null));
+    myRootWorker = this;
+    mySubtreesToScan = null;
+    myCleanedDirectories = isRecursive ? Collections.synchronizedList(new ArrayList<NewVirtualFile>()) : null;
+  }
+
+  private RefreshWorker(@NotNull RefreshWorker rootWorker, @NotNull Pair<NewVirtualFile, FileAttributes> subtreeRoot) {
+    myIsRecursive = true;
+    myRefreshQueue.addLast(subtreeRoot);
+    myRootWorker = rootWorker;
+    mySubtreesToScan = new ArrayList<Pair<NewVirtualFile, FileAttributes>>();
+    myCleanedDirectories = null;
   }
 
   @NotNull
@@ -84,10 +107,102 @@ public class RefreshWorker {
 
     myRefreshQueue.addLast(Pair.create(root, rootAttributes));
     try {
-      processQueue(fs, PersistentFS.getInstance());
+      ForkJoinPool pool = myIsRecursive && rootAttributes.isDirectory() ? getPool() : null;
+      if (pool != null) {
+        // cancelled subtree scans return the events found so far, so they are all merged here
+        myEvents.addAll(pool.invoke(new SubtreeScan(this, myRefreshQueue.pullFirst(), fs, PersistentFS.getInstance())));
+        if (myCancelled) {
+          onCancelled();
+        }
+      }
+      else {
+        processQueue(fs, PersistentFS.getInstance());
+      }
     }
     catch (RefreshCancelledException e) {
-      LOG.debug("refresh cancelled");
+      onCancelled();
+    }
+  }
+
+  /**
+   * Events found before cancellation are still fired by the refresh session, but directories already marked clean
+   * may have dirty descendants which weren't scanned and would be skipped by the next refresh.
+   * So all of them are marked dirty again and the next refresh rescans them.
+   */
+  private void onCancelled() {
+    LOG.debug("refresh cancelled");
+    if (myCleanedDirectories != null) {
+      for (NewVirtualFile dir : myCleanedDirectories) {
+        dir.markDirty();
+      }
+      myCleanedDirectories.clear();
+    }
+  }
+
+  /**
+   * @return pool for scanning independent subtrees in parallel during recursive refresh or null if they should be scanned sequentially
+   */
+  @Nullable
+  private static ForkJoinPool getPool() {
+    // synchronous refresh can scan under write action and scanning threads must not wait for the write action to finish
+    if (ApplicationManager.getApplication().isWriteAccessAllowed()) return null;
+
+    synchronized (RefreshWorker.class) {
+      if (ourPool == null) {
+        int threadsCount = Registry.intValue("vfs.refresh.threadsCount");
+        if (threadsCount <= 0) {
+          threadsCount = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+        }
+        if (threadsCount == 1) return null;
+        ourPool = new ForkJoinPool(threadsCount);
+      }
+      return ourPool;
+    }
+  }
+
+  /**
+   * Scans files of a directory with its own worker and then its subdirectories with forked scans.
+   * Events are merged in the order subdirectories were scheduled, so they don't depend on scheduling of the scans.
+   * A cancelled scan doesn't fork further scans and returns the events found before cancellation.
+   */
+  private static class SubtreeScan extends RecursiveTask<List<VFileEvent>> {
+    private final RefreshWorker myRootWorker;
+    private final Pair<NewVirtualFile, FileAttributes> mySubtreeRoot;
+    private final NewVirtualFileSystem myFs;
+    private final PersistentFS myPersistence;
+
+    private SubtreeScan(@NotNull RefreshWorker rootWorker,
+                        @NotNull Pair<NewVirtualFile, FileAttributes> subtreeRoot,
+                        @NotNull NewVirtualFileSystem fs,
+                        @NotNull PersistentFS persistence) {
+      myRootWorker = rootWorker;
+      mySubtreeRoot = subtreeRoot;
+      myFs = fs;
+      myPersistence = persistence;
+    }
+
+    @Override
+    protected List<VFileEvent> compute() {
+      RefreshWorker worker = new RefreshWorker(myRootWorker, mySubtreeRoot);
+      try {
+        worker.processQueue(myFs, myPersistence);
+      }
+      catch (RefreshCancelledException e) {
+        return worker.myEvents;
+      }
+
+      assert worker.mySubtreesToScan != null;
+      List<SubtreeScan> scans = new ArrayList<SubtreeScan>(worker.mySubtreesToScan.size());
+      for (Pair<NewVirtualFile, FileAttributes> subtree : worker.mySubtreesToScan) {
+        scans.add(new SubtreeScan(myRootWorker, subtree, myFs, myPersistence));
+      }
+      ForkJoinTask.invokeAll(scans);
+
+      List<VFileEvent> events = worker.myEvents;
+      for (SubtreeScan scan : scans) {
+        events.addAll(scan.getRawResult());
+      }
+      return events;
     }
   }
 
@@ -230,6 +345,10 @@ public class RefreshWorker {
 
       if (myIsRecursive || !file.isDirectory()) {
         file.markClean();
+        List<NewVirtualFile> cleanedDirectories = myRootWorker.myCleanedDirectories;
+        if (cleanedDirectories != null && file.isDirectory()) {
+          cleanedDirectories.add(file);
+        }
       }
     }
   }
@@ -247,7 +366,7 @@ public class RefreshWorker {
   private static class RefreshCancelledException extends RuntimeException { }
 
   private void checkCancelled() {
-    if (myCancelled) {
+    if (myRootWorker.myCancelled) {
       throw new RefreshCancelledException();
     }
   }
@@ -257,7 +376,10 @@ public class RefreshWorker {
                                             @NotNull FileAttributes childAttributes) {
     if (!checkAndScheduleFileTypeChange(parent, child, childAttributes)) {
       boolean upToDateIsDirectory = childAttributes.isDirectory();
-      if (myIsRecursive || !upToDateIsDirectory) {
+      if (mySubtreesToScan != null && upToDateIsDirectory) {
+        mySubtreesToScan.add(Pair.create((NewVirtualFile)child, childAttributes));
+      }
+      else if (myIsRecursive || !upToDateIsDirectory) {
         myRefreshQueue.addLast(Pair.create((NewVirtualFile)child, childAttributes));
       }
     }
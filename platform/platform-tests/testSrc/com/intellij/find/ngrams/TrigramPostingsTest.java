@@ -0,0 +1,162 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class TrigramPostingsTest extends TestCase {
+  private static final int FILES = 500000;
+
+  public void testCursor() {
+    int[] ids = {1000, 3, 7, 7, 200, 129, 130, 131, 5000000, 64, 65};
+    TrigramPostings postings = TrigramPostings.create(ids.clone(), ids.length);
+    assertEquals(10, postings.size());
+    int[] expected = {3, 7, 64, 65, 129, 130, 131, 200, 1000, 5000000};
+    assertTrue(Arrays.equals(expected, postings.toArray()));
+
+    TrigramPostings.Cursor cursor = postings.cursor();
+    assertTrue(cursor.advanceTo(0));
+    assertEquals(3, cursor.current());
+    assertTrue(cursor.advanceTo(131));
+    assertEquals(131, cursor.current());
+    assertTrue(cursor.advanceTo(132));
+    assertEquals(200, cursor.current());
+    assertTrue(cursor.advanceTo(100)); // does not move back
+    assertEquals(200, cursor.current());
+    assertTrue(cursor.advanceTo(5000000));
+    assertFalse(cursor.advanceTo(5000001));
+
+    assertEquals(0, TrigramPostings.EMPTY.toArray().length);
+    assertFalse(TrigramPostings.EMPTY.cursor().advanceTo(0));
+  }
+
+  public void testSkipsOverBlocks() {
+    Random random = new Random(17);
+    TIntHashSet set = new TIntHashSet();
+    while (set.size() < TrigramPostings.BLOCK_SIZE * 20 + 5) {
+      set.add(random.nextInt(100000));
+    }
+    int[] sorted = set.toArray();
+    Arrays.sort(sorted);
+    TrigramPostings postings = TrigramPostings.create(set.toArray(), set.size());
+    assertTrue(Arrays.equals(sorted, postings.toArray()));
+
+    TrigramPostings.Cursor cursor = postings.cursor();
+    for (int target = 0; target < 100000; target += 1 + random.nextInt(500)) {
+      int index = Arrays.binarySearch(sorted, target);
+      if (index < 0) index = -index - 1;
+      if (index == sorted.length) {
+        assertFalse(cursor.advanceTo(target));
+        break;
+      }
+      assertTrue(cursor.advanceTo(target));
+      assertEquals(sorted[index], cursor.current());
+    }
+  }
+
+  public void testIntersect() {
+    Random random = new Random(42);
+    List<TrigramPostings> postings = new ArrayList<TrigramPostings>();
+    List<TIntHashSet> sets = new ArrayList<TIntHashSet>();
+    for (int density : new int[]{2, 10, 300}) {
+      TIntHashSet set = randomIds(random, 100000, density);
+      sets.add(set);
+      postings.add(TrigramPostings.create(set.toArray(), set.size()));
+    }
+
+    TIntArrayList expected = new TIntArrayList();
+    for (int id = 0; id < 100000; id++) {
+      boolean all = true;
+      for (TIntHashSet set : sets) {
+        all &= set.contains(id);
+      }
+      if (all) expected.add(id);
+    }
+    assertTrue(Arrays.equals(expected.toNativeArray(), TrigramPostings.intersect(postings)));
+
+    postings.add(TrigramPostings.EMPTY);
+    assertEquals(0, TrigramPostings.intersect(postings).length);
+  }
+
+  /**
+   * Trigrams of a literal usually are a mix of common ones (present in most files) and a few rare ones.
+   */
+  public void testLiteralQueryPerformance() {
+    Random random = new Random(1);
+    int[][] queries = {
+      {2, 3, 5, 3, 2, 2},          // common identifier, e.g. "getName"
+      {2, 2, 1000, 3, 5000, 2},    // rare identifier among common trigrams
+      {20000, 2, 3, 50000, 2, 4},  // very rare word
+    };
+
+    final List<List<TrigramPostings>> postings = new ArrayList<List<TrigramPostings>>();
+    for (int[] query : queries) {
+      List<TrigramPostings> queryPostings = new ArrayList<TrigramPostings>();
+      List<TIntHashSet> sets = new ArrayList<TIntHashSet>();
+      for (int density : query) {
+        TIntHashSet set = randomIds(random, FILES, density);
+        sets.add(set);
+        queryPostings.add(TrigramPostings.create(set.toArray(), set.size()));
+      }
+      assertEquals(intersectSets(sets).size(), TrigramPostings.intersect(queryPostings).length);
+      postings.add(queryPostings);
+    }
+
+    PlatformTestUtil.startPerformanceTest("literal queries over " + FILES + " files", 300, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 10; i++) {
+          for (List<TrigramPostings> queryPostings : postings) {
+            TrigramPostings.intersect(queryPostings);
+          }
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private static TIntHashSet intersectSets(List<TIntHashSet> sets) {
+    TIntHashSet smallest = sets.get(0);
+    for (TIntHashSet set : sets) {
+      if (set.size() < smallest.size()) smallest = set;
+    }
+    TIntHashSet result = new TIntHashSet();
+    nextId:
+    for (int id : smallest.toArray()) {
+      for (TIntHashSet set : sets) {
+        if (!set.contains(id)) continue nextId;
+      }
+      result.add(id);
+    }
+    return result;
+  }
+
+  private static TIntHashSet randomIds(Random random, int files, int density) {
+    TIntHashSet set = new TIntHashSet();
+    for (int id = 1; id < files; id++) {
+      if (random.nextInt(density) == 0) set.add(id);
+    }
+    return set;
+  }
+}
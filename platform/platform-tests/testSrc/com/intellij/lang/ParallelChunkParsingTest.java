@@ -0,0 +1,365 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.lang;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.concurrency.JobLauncherImpl;
+import com.intellij.concurrency.JobSchedulerImpl;
+import com.intellij.extapi.psi.ASTWrapperPsiElement;
+import com.intellij.extapi.psi.PsiFileBase;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.mock.MockApplicationEx;
+import com.intellij.mock.MockLanguageFileType;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.fileTypes.FileTypeRegistry;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Getter;
+import com.intellij.openapi.vfs.encoding.EncodingManager;
+import com.intellij.openapi.vfs.encoding.EncodingManagerImpl;
+import com.intellij.openapi.vfs.encoding.EncodingRegistry;
+import com.intellij.psi.FileViewProvider;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiLock;
+import com.intellij.psi.TokenType;
+import com.intellij.psi.impl.DebugUtil;
+import com.intellij.psi.impl.source.tree.FileElement;
+import com.intellij.psi.impl.source.tree.LazyParseableElement;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IFileElementType;
+import com.intellij.psi.tree.IParallelParseableElementType;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.testFramework.ParsingTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class ParallelChunkParsingTest extends ParsingTestCase {
+  private static final Language LANGUAGE = new Language("ParallelChunks") {};
+  private static final IFileElementType FILE = new IFileElementType(LANGUAGE);
+  private static final IElementType LBRACE = new IElementType("LBRACE", LANGUAGE);
+  private static final IElementType RBRACE = new IElementType("RBRACE", LANGUAGE);
+  private static final IElementType WORD = new IElementType("WORD", LANGUAGE);
+  private static final IElementType STATEMENT = new IElementType("STATEMENT", LANGUAGE);
+  private static final IElementType CHUNK = new IParallelParseableElementType("CHUNK", LANGUAGE);
+
+  // threads which parsed chunks
+  private static final Set<Thread> ourParsingThreads = Collections.synchronizedSet(new HashSet<Thread>());
+
+  public ParallelChunkParsingTest() {
+    super("", "chunks", new MyParserDefinition());
+  }
+
+  @Override
+  public void initApplication() {
+    // unlike the default mock application, allow worker threads of the job launcher to run read actions
+    MockApplicationEx instance = new MockApplicationEx(getTestRootDisposable()) {
+      @Override
+      public boolean tryRunReadAction(@NotNull Runnable runnable) {
+        runnable.run();
+        return true;
+      }
+    };
+    ApplicationManager.setApplication(instance,
+                                      new Getter<FileTypeRegistry>() {
+                                        @Override
+                                        public FileTypeRegistry get() {
+                                          return FileTypeManager.getInstance();
+                                        }
+                                      },
+                                      new Getter<EncodingRegistry>() {
+                                        @Override
+                                        public EncodingRegistry get() {
+                                          return EncodingManager.getInstance();
+                                        }
+                                      },
+                                      getTestRootDisposable());
+    getApplication().registerService(EncodingManager.class, EncodingManagerImpl.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    registerApplicationService(JobLauncher.class, new JobLauncherImpl());
+    ourParsingThreads.clear();
+  }
+
+  public void testChunksStayLazyWhenFileIsParsed() {
+    PsiFile file = createPsiFile("a", createText(2000));
+    ASTNode[] chunks = file.getNode().getChildren(TokenSet.create(CHUNK));
+    assertEquals(2000, chunks.length);
+    for (ASTNode chunk : chunks) {
+      assertFalse(((LazyParseableElement)chunk).isParsed());
+    }
+
+    assertEquals(3, chunks[0].getChildren(TokenSet.create(STATEMENT)).length);
+    assertTrue(((LazyParseableElement)chunks[0]).isParsed());
+    assertFalse(((LazyParseableElement)chunks[1]).isParsed());
+    assertTrue(ourParsingThreads.isEmpty() || ourParsingThreads.equals(Collections.singleton(Thread.currentThread())));
+  }
+
+  public void testChunksOfLargeFileAreParsedConcurrently() {
+    String text = createText(2000);
+    PsiFile file = createPsiFile("a", text);
+    LazyParseableElement.parseChunksConcurrently((FileElement)file.getNode());
+    assertAllChunksParsed(file, 2000);
+    if (JobSchedulerImpl.CORES_COUNT > 1) {
+      assertTrue(ourParsingThreads.toString(), ourParsingThreads.size() > 1);
+    }
+
+    assertEquals(text, file.getText());
+    PsiFile sequential = createPsiFile("b", text);
+    ensureParsed(sequential);
+    assertEquals(DebugUtil.treeToString(sequential.getNode(), false), DebugUtil.treeToString(file.getNode(), false));
+  }
+
+  public void testChunksAreParsedInCallingThreadUnderPsiLock() {
+    PsiFile file = createPsiFile("a", createText(2000));
+    synchronized (PsiLock.LOCK) {
+      LazyParseableElement.parseChunksConcurrently((FileElement)file.getNode());
+    }
+    assertAllChunksParsed(file, 2000);
+    assertEquals(Collections.singleton(Thread.currentThread()), ourParsingThreads);
+  }
+
+  public void testChunksOfSmallFileAreParsedInCallingThread() {
+    PsiFile file = createPsiFile("a", createText(10));
+    LazyParseableElement.parseChunksConcurrently((FileElement)file.getNode());
+    assertAllChunksParsed(file, 10);
+    assertEquals(Collections.singleton(Thread.currentThread()), ourParsingThreads);
+  }
+
+  public void testParsingPerformance() throws Throwable {
+    final String text = createText(50000);
+    PlatformTestUtil.startPerformanceTest("parsing chunks of a large file one by one", 2000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        for (int i = 0; i < 5; i++) {
+          PsiFile file = createPsiFile("a", text);
+          for (ASTNode chunk : file.getNode().getChildren(TokenSet.create(CHUNK))) {
+            chunk.getFirstChildNode();
+          }
+        }
+      }
+    }).cpuBound().assertTiming();
+    PlatformTestUtil.startPerformanceTest("parsing chunks of a large file concurrently", 2000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        for (int i = 0; i < 5; i++) {
+          LazyParseableElement.parseChunksConcurrently((FileElement)createPsiFile("a", text).getNode());
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private static void assertAllChunksParsed(PsiFile file, int count) {
+    ASTNode[] chunks = file.getNode().getChildren(TokenSet.create(CHUNK));
+    assertEquals(count, chunks.length);
+    for (ASTNode chunk : chunks) {
+      assertTrue(((LazyParseableElement)chunk).isParsed());
+    }
+  }
+
+  private static String createText(int chunkCount) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < chunkCount; i++) {
+      builder.append("chunk").append(i).append(" {\n  first word ").append(i).append(";\n  second { nested };\n  third;\n}\n");
+    }
+    return builder.toString();
+  }
+
+  private static class MyParserDefinition implements ParserDefinition {
+    @NotNull
+    @Override
+    public Lexer createLexer(Project project) {
+      return new MyLexer();
+    }
+
+    @Override
+    public PsiParser createParser(Project project) {
+      return new PsiParser() {
+        @NotNull
+        @Override
+        public ASTNode parse(IElementType root, PsiBuilder builder) {
+          PsiBuilder.Marker rootMarker = builder.mark();
+          if (root == CHUNK) {
+            ourParsingThreads.add(Thread.currentThread());
+            parseChunkContents(builder);
+          }
+          else {
+            while (!builder.eof()) {
+              if (builder.getTokenType() == LBRACE) {
+                PsiBuilder.Marker chunk = builder.mark();
+                skipBraces(builder);
+                chunk.collapse(CHUNK);
+              }
+              else {
+                builder.advanceLexer();
+              }
+            }
+          }
+          rootMarker.done(root);
+          return builder.getTreeBuilt();
+        }
+      };
+    }
+
+    private static void parseChunkContents(PsiBuilder builder) {
+      builder.advanceLexer();
+      while (!builder.eof() && builder.getTokenType() != RBRACE) {
+        PsiBuilder.Marker statement = builder.mark();
+        while (!builder.eof() && builder.getTokenType() != RBRACE && !";".equals(builder.getTokenText())) {
+          if (builder.getTokenType() == LBRACE) {
+            skipBraces(builder);
+          }
+          else {
+            builder.advanceLexer();
+          }
+        }
+        builder.advanceLexer();
+        statement.done(STATEMENT);
+      }
+      builder.advanceLexer();
+    }
+
+    private static void skipBraces(PsiBuilder builder) {
+      int depth = 0;
+      do {
+        if (builder.getTokenType() == LBRACE) depth++;
+        if (builder.getTokenType() == RBRACE) depth--;
+        builder.advanceLexer();
+      }
+      while (depth > 0 && !builder.eof());
+    }
+
+    @Override
+    public IFileElementType getFileNodeType() {
+      return FILE;
+    }
+
+    @NotNull
+    @Override
+    public TokenSet getWhitespaceTokens() {
+      return TokenSet.create(TokenType.WHITE_SPACE);
+    }
+
+    @NotNull
+    @Override
+    public TokenSet getCommentTokens() {
+      return TokenSet.EMPTY;
+    }
+
+    @NotNull
+    @Override
+    public TokenSet getStringLiteralElements() {
+      return TokenSet.EMPTY;
+    }
+
+    @NotNull
+    @Override
+    public PsiElement createElement(ASTNode node) {
+      return new ASTWrapperPsiElement(node);
+    }
+
+    @Override
+    public PsiFile createFile(FileViewProvider viewProvider) {
+      return new PsiFileBase(viewProvider, LANGUAGE) {
+        @NotNull
+        @Override
+        public FileType getFileType() {
+          return new MockLanguageFileType(LANGUAGE, "chunks");
+        }
+      };
+    }
+
+    @Override
+    public SpaceRequirements spaceExistanceTypeBetweenTokens(ASTNode left, ASTNode right) {
+      return SpaceRequirements.MAY;
+    }
+  }
+
+  private static class MyLexer extends LexerBase {
+    private CharSequence myBuffer;
+    private int myEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myEnd = endOffset;
+      myTokenEnd = startOffset;
+      advance();
+    }
+
+    @Override
+    public int getState() {
+      return 0;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      if (myTokenStart >= myEnd) return null;
+      char c = myBuffer.charAt(myTokenStart);
+      if (c == '{') return LBRACE;
+      if (c == '}') return RBRACE;
+      if (Character.isWhitespace(c)) return TokenType.WHITE_SPACE;
+      return WORD;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      myTokenStart = myTokenEnd;
+      if (myTokenStart >= myEnd) return;
+      char c = myBuffer.charAt(myTokenStart);
+      myTokenEnd = myTokenStart + 1;
+      if (Character.isWhitespace(c)) {
+        while (myTokenEnd < myEnd && Character.isWhitespace(myBuffer.charAt(myTokenEnd))) myTokenEnd++;
+      }
+      else if (Character.isLetterOrDigit(c)) {
+        while (myTokenEnd < myEnd && Character.isLetterOrDigit(myBuffer.charAt(myTokenEnd))) myTokenEnd++;
+      }
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEnd;
+    }
+  }
+}
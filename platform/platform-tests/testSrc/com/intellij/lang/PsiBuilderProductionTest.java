@@ -0,0 +1,465 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.lang;
+
+import com.intellij.lang.impl.PsiBuilderImpl;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.openapi.util.Ref;
+import com.intellij.psi.PsiErrorElement;
+import com.intellij.psi.TokenType;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IFileElementType;
+import com.intellij.psi.tree.ILazyParseableElementType;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.testFramework.ParsingTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.diff.FlyweightCapableTreeStructure;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs random marker sequences through {@link PsiBuilderImpl} and checks that the AST and the light tree built from them agree.
+ */
+public class PsiBuilderProductionTest extends ParsingTestCase {
+  private static final Language LANGUAGE = new Language("PsiBuilderProduction") {};
+  private static final IFileElementType FILE = new IFileElementType(LANGUAGE);
+  private static final IElementType WORD = new IElementType("WORD", LANGUAGE);
+  private static final IElementType COMMENT = new IElementType("COMMENT", LANGUAGE);
+  private static final IElementType COMPOSITE = new IElementType("COMPOSITE", LANGUAGE);
+  private static final IElementType PRECEDING = new IElementType("PRECEDING", LANGUAGE);
+  private static final IElementType BEFORE = new IElementType("BEFORE", LANGUAGE);
+  private static final IElementType LEFT_BOUND = new IElementType("LEFT_BOUND", LANGUAGE) {
+    @Override
+    public boolean isLeftBound() {
+      return true;
+    }
+  };
+  private static final IElementType COLLAPSED = new ILazyParseableElementType("COLLAPSED", LANGUAGE);
+
+  private static final WhitespacesAndCommentsBinder GREEDY_LEFT = new WhitespacesAndCommentsBinder() {
+    @Override
+    public int getEdgePosition(List<IElementType> tokens, boolean atStreamEdge, TokenTextGetter getter) {
+      return 0;
+    }
+  };
+  private final MyParserDefinition myDefinition;
+
+  public PsiBuilderProductionTest() {
+    this(new MyParserDefinition());
+  }
+
+  private PsiBuilderProductionTest(MyParserDefinition definition) {
+    super("", "production", definition);
+    myDefinition = definition;
+  }
+
+  public void testAstAndLightTreeAgree() {
+    Random random = new Random(1);
+    for (int i = 0; i < 300; i++) {
+      String text = createText(random, 200);
+      long seed = random.nextLong();
+
+      ASTNode root = createBuilder(text, seed).getTreeBuilt();
+      assertEquals(text, root.getText());
+      FlyweightCapableTreeStructure<LighterASTNode> lightTree = createBuilder(text, seed).getLightTree();
+      assertEquals(toString(root), toString(lightTree, lightTree.getRoot()));
+    }
+  }
+
+  public void testDoneMarkers() {
+    PsiBuilder builder = new PsiBuilderImpl(getProject(), null, myDefinition, myDefinition.createLexer(getProject()), null,
+                                            "a b /c d", null, null);
+    PsiBuilder.Marker root = builder.mark();
+    assertNull(builder.getLatestDoneMarker());
+    advance(builder);
+    PsiBuilder.Marker first = builder.mark();
+    advance(builder);
+    first.done(COMPOSITE);
+    assertSame(first, builder.getLatestDoneMarker());
+    PsiBuilder.Marker preceding = first.precede();
+    preceding.done(PRECEDING);
+    assertSame(preceding, builder.getLatestDoneMarker());
+
+    PsiBuilder.Marker dropped = builder.mark();
+    dropped.done(COMPOSITE);
+    assertSame(dropped, builder.getLatestDoneMarker());
+    dropped.drop();
+    assertSame(preceding, builder.getLatestDoneMarker());
+
+    PsiBuilder.Marker last = builder.mark();
+    advance(builder);
+    last.done(COMPOSITE);
+    last.setCustomEdgeTokenBinders(GREEDY_LEFT, null);
+    root.done(FILE);
+    assertEquals("FILE[WORD'a' PRECEDING[COMPOSITE[WORD'b']] COMPOSITE[COMMENT'/c' WORD'd']]", toString(builder.getTreeBuilt()));
+  }
+
+  /**
+   * A done marker must not cost an object of its own: each marker used to allocate a StartMarker and a DoneMarker,
+   * 131 bytes per marker with compressed oops, and now allocates 116.
+   */
+  public void testAllocationPerMarker() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    long allocatedBefore = getAllocatedBytes(bean);
+    Object[] references = new Object[1024];
+    long referencesAllocated = getAllocatedBytes(bean) - allocatedBefore;
+    if (referencesAllocated <= 0 || referencesAllocated > 8 * references.length) return; // no allocation counter or no compressed oops
+
+    String text = createText(new Random(2), 1024 * 1024);
+    PsiBuilderImpl builder =
+      new PsiBuilderImpl(getProject(), null, myDefinition, myDefinition.createLexer(getProject()), null, text, null, null);
+    int markers = 0;
+    allocatedBefore = getAllocatedBytes(bean);
+    PsiBuilder.Marker root = builder.mark();
+    while (!builder.eof()) {
+      PsiBuilder.Marker marker = builder.mark();
+      builder.advanceLexer();
+      marker.done(COMPOSITE);
+      markers++;
+    }
+    root.done(FILE);
+    long perMarker = (getAllocatedBytes(bean) - allocatedBefore) / markers;
+    assertTrue("allocated " + perMarker + " bytes per marker", perMarker <= 124);
+  }
+
+  public void testPerformance() {
+    final String text = createText(new Random(2), 1024 * 1024);
+    PlatformTestUtil.startPerformanceTest("building light tree of 1 MB", 4000, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        for (int i = 1; i <= 5; i++) {
+          FlyweightCapableTreeStructure<LighterASTNode> lightTree = createBuilder(text, i).getLightTree();
+          visit(lightTree, lightTree.getRoot());
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private static long getAllocatedBytes(ThreadMXBean bean) {
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+
+  private PsiBuilderImpl createBuilder(String text, long seed) {
+    myDefinition.mySeed = seed;
+    PsiBuilderImpl builder =
+      new PsiBuilderImpl(getProject(), null, myDefinition, myDefinition.createLexer(getProject()), null, text, null, null);
+    myDefinition.createParser(getProject()).parse(FILE, builder);
+    return builder;
+  }
+
+  private static void advance(PsiBuilder builder) {
+    if (!builder.eof()) builder.advanceLexer();
+  }
+
+  private static String createText(Random random, int length) {
+    StringBuilder builder = new StringBuilder(length + 20);
+    while (builder.length() < length) {
+      int kind = random.nextInt(10);
+      if (kind < 6) {
+        builder.append("word".substring(random.nextInt(4)));
+      }
+      else if (kind < 8) {
+        builder.append(' ');
+      }
+      else if (kind < 9) {
+        builder.append("\n ");
+      }
+      else {
+        builder.append("/comment".substring(0, 2 + random.nextInt(6)));
+      }
+    }
+    return builder.toString();
+  }
+
+  private static String toString(ASTNode node) {
+    StringBuilder builder = new StringBuilder();
+    append(node, builder);
+    return builder.toString();
+  }
+
+  private static void append(ASTNode node, StringBuilder builder) {
+    if (node instanceof PsiErrorElement) {
+      builder.append("ERROR<").append(((PsiErrorElement)node).getErrorDescription()).append(">");
+    }
+    else {
+      builder.append(node.getElementType());
+    }
+    if (node.getElementType() == COLLAPSED || node.getFirstChildNode() == null && node.getTextLength() > 0) {
+      builder.append("'").append(node.getText()).append("'");
+      return;
+    }
+    builder.append("[");
+    boolean first = true;
+    for (ASTNode child = node.getFirstChildNode(); child != null; child = child.getTreeNext()) {
+      if (child.getElementType() == TokenType.WHITE_SPACE) continue;
+      if (child.getElementType() == COLLAPSED && child.getTextLength() == 0) continue; // not a light tree token
+      if (!first) builder.append(' ');
+      append(child, builder);
+      first = false;
+    }
+    builder.append("]");
+  }
+
+  private static String toString(FlyweightCapableTreeStructure<LighterASTNode> tree, LighterASTNode node) {
+    StringBuilder builder = new StringBuilder();
+    append(tree, node, builder);
+    return builder.toString();
+  }
+
+  private static void append(FlyweightCapableTreeStructure<LighterASTNode> tree, LighterASTNode node, StringBuilder builder) {
+    if (node.getTokenType() == TokenType.ERROR_ELEMENT) {
+      builder.append("ERROR<").append(PsiBuilderImpl.getErrorMessage(node)).append(">");
+    }
+    else {
+      builder.append(node.getTokenType());
+    }
+    if (node instanceof LighterASTTokenNode) {
+      builder.append("'").append(((LighterASTTokenNode)node).getText()).append("'");
+      return;
+    }
+    builder.append("[");
+    Ref<LighterASTNode[]> children = new Ref<LighterASTNode[]>();
+    int count = tree.getChildren(tree.prepareForGetChildren(node), children);
+    boolean first = true;
+    for (int i = 0; i < count; i++) {
+      LighterASTNode child = children.get()[i];
+      if (child.getTokenType() == TokenType.WHITE_SPACE) continue;
+      if (!first) builder.append(' ');
+      append(tree, child, builder);
+      first = false;
+    }
+    tree.disposeChildren(children.get(), count);
+    builder.append("]");
+  }
+
+  private static void visit(FlyweightCapableTreeStructure<LighterASTNode> tree, LighterASTNode node) {
+    Ref<LighterASTNode[]> children = new Ref<LighterASTNode[]>();
+    int count = tree.getChildren(tree.prepareForGetChildren(node), children);
+    for (int i = 0; i < count; i++) {
+      visit(tree, children.get()[i]);
+    }
+    tree.disposeChildren(children.get(), count);
+  }
+
+  private static class MyParserDefinition implements ParserDefinition {
+    private long mySeed;
+
+    @NotNull
+    @Override
+    public Lexer createLexer(com.intellij.openapi.project.Project project) {
+      return new MyLexer();
+    }
+
+    @Override
+    public PsiParser createParser(com.intellij.openapi.project.Project project) {
+      return new PsiParser() {
+        @NotNull
+        @Override
+        public ASTNode parse(IElementType root, PsiBuilder builder) {
+          Random random = new Random(mySeed);
+          PsiBuilder.Marker rootMarker = builder.mark();
+          while (!builder.eof()) {
+            parseSequence(builder, random, 0);
+            advance(builder);
+          }
+          rootMarker.done(root);
+          return null;
+        }
+      };
+    }
+
+    private static void parseSequence(PsiBuilder builder, Random random, int depth) {
+      int count = random.nextInt(depth < 8 ? 6 : 2);
+      for (int i = 0; i < count && !builder.eof(); i++) {
+        int kind = random.nextInt(12);
+        if (kind < 3) {
+          advance(builder);
+        }
+        else if (kind == 3) {
+          builder.error("error " + depth);
+        }
+        else if (kind == 4) {
+          PsiBuilder.Marker before = builder.mark();
+          parseSequence(builder, random, depth + 1);
+          PsiBuilder.Marker marker = builder.mark();
+          parseSequence(builder, random, depth + 1);
+          before.rollbackTo();
+          advance(builder);
+          marker = builder.mark();
+          advance(builder);
+          marker.done(COMPOSITE);
+        }
+        else if (kind == 5) {
+          PsiBuilder.Marker marker = builder.mark();
+          parseSequence(builder, random, depth + 1);
+          PsiBuilder.Marker before = builder.mark();
+          parseSequence(builder, random, depth + 1);
+          if (random.nextBoolean()) {
+            if (random.nextBoolean()) {
+              marker.doneBefore(BEFORE, before);
+            }
+            else {
+              marker.doneBefore(BEFORE, before, "before " + depth);
+            }
+          }
+          else {
+            marker.errorBefore("error before " + depth, before);
+          }
+          before.done(COMPOSITE);
+        }
+        else {
+          PsiBuilder.Marker marker = builder.mark();
+          parseSequence(builder, random, depth + 1);
+          switch (random.nextInt(6)) {
+            case 0:
+              marker.drop();
+              break;
+            case 1:
+              marker.collapse(COLLAPSED);
+              break;
+            case 2:
+              marker.error("marker " + depth);
+              break;
+            case 3:
+              marker.done(COMPOSITE);
+              marker.precede().done(PRECEDING);
+              break;
+            case 4:
+              marker.done(LEFT_BOUND);
+              break;
+            default:
+              marker.done(COMPOSITE);
+              if (random.nextBoolean()) marker.drop();
+          }
+        }
+      }
+    }
+
+    @Override
+    public IFileElementType getFileNodeType() {
+      return FILE;
+    }
+
+    @NotNull
+    @Override
+    public TokenSet getWhitespaceTokens() {
+      return TokenSet.create(TokenType.WHITE_SPACE);
+    }
+
+    @NotNull
+    @Override
+    public TokenSet getCommentTokens() {
+      return TokenSet.create(COMMENT);
+    }
+
+    @NotNull
+    @Override
+    public TokenSet getStringLiteralElements() {
+      return TokenSet.EMPTY;
+    }
+
+    @NotNull
+    @Override
+    public com.intellij.psi.PsiElement createElement(ASTNode node) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public com.intellij.psi.PsiFile createFile(com.intellij.psi.FileViewProvider viewProvider) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SpaceRequirements spaceExistanceTypeBetweenTokens(ASTNode left, ASTNode right) {
+      return SpaceRequirements.MAY;
+    }
+  }
+
+  private static class MyLexer extends LexerBase {
+    private CharSequence myBuffer;
+    private int myEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private IElementType myTokenType;
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myEnd = endOffset;
+      myTokenEnd = startOffset;
+      advance();
+    }
+
+    @Override
+    public int getState() {
+      return 0;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      myTokenStart = myTokenEnd;
+      if (myTokenStart >= myEnd) {
+        myTokenType = null;
+        return;
+      }
+      char c = myBuffer.charAt(myTokenStart);
+      myTokenEnd = myTokenStart + 1;
+      if (Character.isWhitespace(c)) {
+        myTokenType = TokenType.WHITE_SPACE;
+        while (myTokenEnd < myEnd && Character.isWhitespace(myBuffer.charAt(myTokenEnd))) myTokenEnd++;
+      }
+      else {
+        myTokenType = c == '/' ? COMMENT : WORD;
+        while (myTokenEnd < myEnd && Character.isLetter(myBuffer.charAt(myTokenEnd)) && myBuffer.charAt(myTokenEnd) != 'w') myTokenEnd++;
+      }
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEnd;
+    }
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.mock.MockApplication;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.colors.impl.EditorColorsSchemeImpl;
+import com.intellij.openapi.editor.highlighter.HighlighterClient;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import gnu.trove.TIntArrayList;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class LazyLexerEditorHighlighterTest extends TestCase {
+  private static final IElementType WORD = new IElementType("WORD", Language.ANY);
+  private static final IElementType SPACE = new IElementType("SPACE", Language.ANY);
+  private static final IElementType COMMENT = new IElementType("COMMENT", Language.ANY);
+  private static final IElementType OTHER = new IElementType("OTHER", Language.ANY);
+
+  private Disposable myDisposable;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDisposable = Disposer.newDisposable();
+    ApplicationManager.setApplication(new MockApplication(myDisposable), myDisposable);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Disposer.dispose(myDisposable);
+    super.tearDown();
+  }
+
+  public void testOnlyBeginningIsLexed() {
+    String text = generateText(new Random(1), 3 * 1024 * 1024);
+    DocumentImpl document = new DocumentImpl(text, true);
+    LexerEditorHighlighter highlighter = createHighlighter(document);
+
+    assertTrue(highlighter.getSegments().getLastValidOffset() < text.length());
+    assertTokens(text, highlighter, text.length() - 1000, 100);
+    assertTokens(text, highlighter, 0, 1000);
+  }
+
+  public void testRandomChanges() {
+    Random random = new Random(2);
+    DocumentImpl document = new DocumentImpl(generateText(random, 3 * 1024 * 1024), true);
+    LexerEditorHighlighter highlighter = createHighlighter(document);
+    String[] insertions = {"/*", "*/", "word", " ", "\n", "+", "/* comment\n line */"};
+
+    for (int i = 0; i < 300; i++) {
+      int length = document.getTextLength();
+      int offset = random.nextInt(4) == 0 ? random.nextInt(length) : random.nextInt(Math.min(length, 100000));
+      if (random.nextBoolean()) {
+        document.insertString(offset, insertions[random.nextInt(insertions.length)]);
+      }
+      else {
+        document.deleteString(offset, Math.min(length, offset + random.nextInt(20)));
+      }
+      if (i % 30 == 0) {
+        String text = document.getText();
+        assertTokens(text, highlighter, random.nextInt(text.length()), 500);
+      }
+    }
+    String text = document.getText();
+    assertTokens(text, highlighter, 0, Integer.MAX_VALUE);
+  }
+
+  public void testTypingPerformance() {
+    final String text = generateText(new Random(3), 10 * 1024 * 1024);
+    PlatformTestUtil.startPerformanceTest("opening 10 MB document and typing in it", 2000, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        DocumentImpl document = new DocumentImpl(text, true);
+        LexerEditorHighlighter highlighter = createHighlighter(document);
+        highlighter.createIterator(0);
+
+        Random random = new Random(4);
+        for (int i = 0; i < 1000; i++) {
+          int offset = random.nextInt(100000);
+          document.insertString(offset, i % 10 == 0 ? "\n" : "a");
+          HighlighterIterator iterator = highlighter.createIterator(offset);
+          for (int j = 0; j < 100 && !iterator.atEnd(); j++) {
+            iterator.advance();
+          }
+        }
+        document.removeDocumentListener(highlighter);
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private static void assertTokens(String text, LexerEditorHighlighter highlighter, int offset, int count) {
+    TIntArrayList starts = new TIntArrayList();
+    List<IElementType> types = new ArrayList<IElementType>();
+    Lexer lexer = new MyLexer();
+    lexer.start(text);
+    while (lexer.getTokenType() != null) {
+      starts.add(lexer.getTokenStart());
+      types.add(lexer.getTokenType());
+      lexer.advance();
+    }
+
+    HighlighterIterator iterator = highlighter.createIterator(offset);
+    int index = starts.binarySearch(iterator.getStart());
+    assertTrue("No token at " + iterator.getStart(), index >= 0);
+    assertTrue(iterator.getStart() <= offset && offset < Math.max(iterator.getEnd(), 1));
+    for (int i = 0; i < count && index < starts.size(); i++, index++) {
+      assertFalse(iterator.atEnd());
+      assertEquals(starts.get(index), iterator.getStart());
+      assertEquals(types.get(index), iterator.getTokenType());
+      iterator.advance();
+    }
+    if (index == starts.size()) {
+      assertTrue(iterator.atEnd());
+    }
+  }
+
+  private static LexerEditorHighlighter createHighlighter(final Document document) {
+    LexerEditorHighlighter highlighter = new LexerEditorHighlighter(new MySyntaxHighlighter(), new EditorColorsSchemeImpl(null, null)) {
+      @Override
+      protected boolean isLazyLexingSupported() {
+        return true;
+      }
+    };
+    highlighter.setEditor(new HighlighterClient() {
+      @Override
+      public Project getProject() {
+        return null;
+      }
+
+      @Override
+      public void repaint(int start, int end) {
+      }
+
+      @Override
+      public Document getDocument() {
+        return document;
+      }
+    });
+    highlighter.setText(document.getCharsSequence());
+    document.addDocumentListener(highlighter);
+    return highlighter;
+  }
+
+  private static String generateText(Random random, int length) {
+    StringBuilder builder = new StringBuilder(length + 100);
+    while (builder.length() < length) {
+      switch (random.nextInt(10)) {
+        case 0:
+          builder.append("/* comment\n * spanning lines */\n");
+          break;
+        case 1:
+          builder.append("  value = value + 1;\n");
+          break;
+        default:
+          builder.append("word").append(random.nextInt(1000)).append(' ');
+      }
+    }
+    return builder.toString();
+  }
+
+  private static class MySyntaxHighlighter extends SyntaxHighlighterBase {
+    @NotNull
+    @Override
+    public Lexer getHighlightingLexer() {
+      return new MyLexer();
+    }
+
+    @NotNull
+    @Override
+    public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
+      return EMPTY;
+    }
+  }
+
+  /**
+   * Lexes words, spaces and other chars; block comments are split into a token per line, lines after the first one
+   * start in a non-initial state.
+   */
+  private static class MyLexer extends LexerBase {
+    private static final int IN_COMMENT = 1;
+
+    private CharSequence myBuffer;
+    private int myEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private int myState;
+    private int myNextState;
+    private IElementType myTokenType;
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myEnd = endOffset;
+      myTokenEnd = startOffset;
+      myNextState = initialState;
+      advance();
+    }
+
+    @Override
+    public int getState() {
+      return myState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      myTokenStart = myTokenEnd;
+      myState = myNextState;
+      if (myTokenStart >= myEnd) {
+        myTokenType = null;
+        return;
+      }
+
+      int offset = myTokenStart;
+      char c = myBuffer.charAt(offset);
+      if (myState == IN_COMMENT || c == '/' && offset + 1 < myEnd && myBuffer.charAt(offset + 1) == '*') {
+        if (myState != IN_COMMENT) offset += 2;
+        myTokenType = COMMENT;
+        myNextState = IN_COMMENT;
+        while (offset < myEnd) {
+          c = myBuffer.charAt(offset++);
+          if (c == '\n') break;
+          if (c == '*' && offset < myEnd && myBuffer.charAt(offset) == '/') {
+            offset++;
+            myNextState = 0;
+            break;
+          }
+        }
+      }
+      else if (Character.isLetterOrDigit(c)) {
+        myTokenType = WORD;
+        while (offset < myEnd && Character.isLetterOrDigit(myBuffer.charAt(offset))) offset++;
+      }
+      else if (Character.isWhitespace(c)) {
+        myTokenType = SPACE;
+        while (offset < myEnd && Character.isWhitespace(myBuffer.charAt(offset))) offset++;
+      }
+      else {
+        myTokenType = OTHER;
+        offset++;
+      }
+      myTokenEnd = offset;
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEnd;
+    }
+  }
+}
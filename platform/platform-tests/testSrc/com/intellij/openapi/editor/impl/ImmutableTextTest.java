@@ -0,0 +1,136 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ImmutableTextTest extends TestCase {
+  public void testRandomModifications() {
+    Random random = new Random(239);
+    StringBuilder expected = new StringBuilder(randomText(random, 10000));
+    ImmutableText text = ImmutableText.valueOf(expected);
+    assertEquals(expected.toString(), text.toString());
+
+    for (int i = 0; i < 3000; i++) {
+      int start = random.nextInt(expected.length() + 1);
+      int end = Math.min(expected.length(), start + random.nextInt(3000));
+      switch (random.nextInt(3)) {
+        case 0:
+          String inserted = randomText(random, random.nextInt(2000));
+          text = text.insert(start, inserted);
+          expected.insert(start, inserted);
+          break;
+        case 1:
+          text = text.delete(start, end);
+          expected.delete(start, end);
+          break;
+        default:
+          String replacement = randomText(random, random.nextInt(100));
+          text = text.replace(start, end, replacement);
+          expected.replace(start, end, replacement);
+      }
+      assertEquals(expected.length(), text.length());
+      if (i % 100 == 0) {
+        assertEquals(expected.toString(), text.toString());
+        int from = random.nextInt(expected.length() + 1);
+        int to = from + random.nextInt(expected.length() - from + 1);
+        assertEquals(expected.substring(from, to), text.subSequence(from, to).toString());
+      }
+    }
+    assertEquals(expected.toString(), text.toString());
+    for (int i = 0; i < expected.length(); i += 7) {
+      assertEquals(expected.charAt(i), text.charAt(i));
+    }
+  }
+
+  public void testSnapshotsAreNotAffectedByChanges() {
+    ImmutableText original = ImmutableText.valueOf(randomText(new Random(1), 50000));
+    String originalString = original.toString();
+    ImmutableText changed = original.insert(25000, "inserted").delete(0, 100).replace(1000, 2000, "");
+    assertEquals(originalString, original.toString());
+    assertEquals(50000 + "inserted".length() - 100 - 1000, changed.length());
+  }
+
+  public void testTypingKeepsTreeShallow() {
+    ImmutableText text = ImmutableText.valueOf(randomText(new Random(2), 1000000));
+    int offset = 500000;
+    for (int i = 0; i < 100000; i++) {
+      text = text.insert(offset++, "a");
+      if (i % 80 == 0) {
+        text = text.insert(offset++, "\n");
+      }
+    }
+    assertTrue(String.valueOf(text.getDepth()), text.getDepth() < 40);
+  }
+
+  public void testTypingAtRandomPlacesDoesNotFragmentLeaves() {
+    Random random = new Random(4);
+    ImmutableText text = ImmutableText.valueOf(randomText(random, 1000000));
+    int initialDepth = text.getDepth();
+    for (int i = 0; i < 20000; i++) {
+      text = text.insert(random.nextInt(text.length() + 1), "a");
+    }
+    assertTrue(initialDepth + " -> " + text.getDepth(), text.getDepth() <= initialDepth + 4);
+  }
+
+  /**
+   * Replays typing and bulk replace (like reformat or 'Replace All') on a big file.
+   */
+  public void testTypingAndBulkReplacePerformance() {
+    Random random = new Random(3);
+    final String initial = randomText(random, 10 * 1024 * 1024);
+    final int[] typingOffsets = new int[2000];
+    for (int i = 0; i < typingOffsets.length; i++) {
+      typingOffsets[i] = random.nextInt(initial.length());
+    }
+
+    final StringBuilder expected = new StringBuilder(initial);
+    for (int offset : typingOffsets) {
+      expected.insert(offset, "x");
+    }
+    for (int i = 0; i < 2000; i++) {
+      int offset = i * (initial.length() / 2000);
+      expected.replace(offset, offset + 5, "replaced");
+    }
+
+    PlatformTestUtil.startPerformanceTest("typing and bulk replace in 10 MB text", 250, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        ImmutableText text = ImmutableText.valueOf(initial);
+        for (int offset : typingOffsets) {
+          text = text.insert(offset, "x");
+        }
+        for (int i = 0; i < 2000; i++) {
+          int offset = i * (initial.length() / 2000);
+          text = text.replace(offset, offset + 5, "replaced");
+        }
+        assertEquals(expected.length(), text.length());
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private static String randomText(Random random, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = random.nextInt(40) == 0 ? '\n' : (char)('a' + random.nextInt(26));
+    }
+    return new String(chars);
+  }
+}
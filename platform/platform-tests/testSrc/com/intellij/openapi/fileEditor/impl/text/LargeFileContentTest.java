@@ -0,0 +1,102 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.io.UnsyncByteArrayOutputStream;
+import gnu.trove.TLongArrayList;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.charset.Charset;
+
+public class LargeFileContentTest extends TestCase {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private File myFile;
+  private LargeFileContent myContent;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (myContent != null) myContent.dispose();
+    if (myFile != null) FileUtil.delete(myFile);
+    super.tearDown();
+  }
+
+  public void testPagesStartAtLines() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append("line ").append(i).append(i % 3 == 0 ? "\r\n" : "\n");
+    }
+    text.append(StringUtil.repeat("лонг", 200)); // long line of two-byte chars, split between pages
+    createContent(text.toString(), 100);
+
+    StringBuilder pages = new StringBuilder();
+    for (int page = 0; page < myContent.getPageCount(); page++) {
+      long start = myContent.getPageStart(page);
+      assertTrue(start >= 0 && start <= myContent.getLength());
+      if (start > 0 && start < 1000 * 8) {
+        assertEquals("\n", myContent.getText(start - 1, start));
+      }
+      assertEquals(page, myContent.getPageOfOffset(start));
+      pages.append(myContent.getPageText(page));
+    }
+    assertEquals(StringUtil.convertLineSeparators(text.toString()), pages.toString());
+  }
+
+  public void testLines() throws Exception {
+    UnsyncByteArrayOutputStream bytes = new UnsyncByteArrayOutputStream();
+    TLongArrayList lineStarts = new TLongArrayList();
+    lineStarts.add(0);
+    for (int i = 0; bytes.size() < LargeFileContent.CHUNK_SIZE * 2 + 1000; i++) {
+      bytes.write(("some line number " + i + StringUtil.repeat(" ", i % 50) + "\n").getBytes(UTF_8));
+      lineStarts.add(bytes.size());
+    }
+    myFile = FileUtil.createTempFile("largeFile", ".txt");
+    FileUtil.writeToFile(myFile, bytes.toByteArray());
+    myContent = new LargeFileContent(myFile, UTF_8, 1024 * 1024);
+
+    assertEquals(lineStarts.size(), myContent.getLineCount());
+    for (int line = 0; line < lineStarts.size(); line += 997) {
+      assertEquals(lineStarts.get(line), myContent.getLineStartOffset(line));
+      assertEquals(line, myContent.getLineNumber(lineStarts.get(line)));
+      if (line > 0) {
+        assertEquals(line - 1, myContent.getLineNumber(lineStarts.get(line) - 1));
+      }
+    }
+    assertEquals(-1, myContent.getLineStartOffset(lineStarts.size()));
+  }
+
+  public void testFind() throws Exception {
+    createContent("first line\r\nSecond Line\nthird line\nsecond line again", 16);
+    assertEquals(12, myContent.find("Second", true, 0));
+    assertEquals(12, myContent.find("second", false, 0));
+    assertEquals(35, myContent.find("second", true, 0));
+    assertEquals(35, myContent.find("second", false, 13));
+    assertEquals(-1, myContent.find("fourth", false, 0));
+    assertEquals(-1, myContent.find("line\nthird", true, 0));
+    assertEquals(19, myContent.find("line\nthird", false, 0));
+    assertEquals(-1, myContent.find("line\nSecond", true, 0)); // "\r\n" in the file is not converted
+    assertEquals(-1, myContent.find("again!", true, 0));
+  }
+
+  private void createContent(String text, int pageSize) throws Exception {
+    myFile = FileUtil.createTempFile("largeFile", ".txt");
+    FileUtil.writeToFile(myFile, text.getBytes(UTF_8));
+    myContent = new LargeFileContent(myFile, UTF_8, pageSize);
+  }
+}
@@ -16,6 +16,7 @@
 package com.intellij.openapi.vfs.local;
 
 import com.intellij.ide.GeneralSettings;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileAttributes;
 import com.intellij.openapi.util.io.FileUtil;
@@ -26,18 +27,23 @@ import com.intellij.openapi.vfs.newvfs.ManagingFS;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
 import com.intellij.openapi.vfs.newvfs.RefreshQueue;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
 import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
 import com.intellij.openapi.vfs.newvfs.impl.FakeVirtualFile;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFSImpl;
+import com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker;
 import com.intellij.testFramework.PlatformLangTestCase;
 import com.intellij.testFramework.PlatformTestUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 public class LocalFileSystemTest extends PlatformLangTestCase {
@@ -299,6 +305,110 @@ public class LocalFileSystemTest extends PlatformLangTestCase {
     checkChildCount(virtualDir, 2);
   }
 
+  public void testRecursiveRefreshOfManyDirectories() throws Exception {
+    File top = createTempDirectory(false);
+    for (int i = 0; i < 20; i++) {
+      File dir = IoTestUtil.createTestDir(top, "dir" + i);
+      for (int j = 0; j < 5; j++) {
+        IoTestUtil.createTestFile(IoTestUtil.createTestDir(dir, "sub" + j), "old.txt");
+      }
+    }
+
+    VirtualFile topDir = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(top);
+    assertNotNull(topDir);
+    VfsUtilCore.visitChildrenRecursively(topDir, new VirtualFileVisitor() { });
+
+    for (int i = 0; i < 20; i++) {
+      for (int j = 0; j < 5; j++) {
+        File sub = new File(top, "dir" + i + "/sub" + j);
+        FileUtil.delete(new File(sub, "old.txt"));
+        IoTestUtil.createTestFile(sub, "new.txt");
+      }
+    }
+    topDir.refresh(false, true);
+
+    for (int i = 0; i < 20; i++) {
+      for (int j = 0; j < 5; j++) {
+        VirtualFile sub = topDir.findFileByRelativePath("dir" + i + "/sub" + j);
+        assertNotNull(sub);
+        checkChildCount(sub, 1);
+        assertNotNull(sub.findChild("new.txt"));
+      }
+    }
+  }
+
+  public void testCancelledRecursiveRefreshLeavesChangesForNextRefresh() throws Exception {
+    File top = createTempDirectory(false);
+    for (int i = 0; i < 20; i++) {
+      File dir = IoTestUtil.createTestDir(top, "dir" + i);
+      for (int j = 0; j < 5; j++) {
+        IoTestUtil.createTestFile(IoTestUtil.createTestDir(dir, "sub" + j), "old.txt");
+      }
+    }
+
+    final NewVirtualFile topDir = (NewVirtualFile)LocalFileSystem.getInstance().refreshAndFindFileByIoFile(top);
+    assertNotNull(topDir);
+    VfsUtilCore.visitChildrenRecursively(topDir, new VirtualFileVisitor() { });
+
+    for (int i = 0; i < 20; i++) {
+      for (int j = 0; j < 5; j++) {
+        File sub = new File(top, "dir" + i + "/sub" + j);
+        FileUtil.delete(new File(sub, "old.txt"));
+        IoTestUtil.createTestFile(sub, "new.txt");
+      }
+    }
+    topDir.markDirtyRecursively();
+
+    // cancel as soon as the top directory is scanned, while its subdirectories are being scanned
+    final RefreshWorker cancelled = new RefreshWorker(topDir, true);
+    Thread canceller = new Thread("refresh canceller") {
+      @Override
+      public void run() {
+        while (topDir.isDirty()) {
+          Thread.yield();
+        }
+        cancelled.cancel();
+      }
+    };
+    canceller.start();
+    cancelled.scan();
+    canceller.join();
+    List<VFileEvent> events = new ArrayList<VFileEvent>(scanAndApply(cancelled));
+
+    // the next refresh doesn't mark anything dirty by itself, so it sees only what the cancelled one left unscanned
+    events.addAll(scanAndApply(new RefreshWorker(topDir, true)));
+
+    int created = 0;
+    int deleted = 0;
+    for (VFileEvent event : events) {
+      if (event instanceof VFileCreateEvent && ((VFileCreateEvent)event).getChildName().equals("new.txt")) created++;
+      if (event instanceof VFileDeleteEvent && ((VFileDeleteEvent)event).getFile().getName().equals("old.txt")) deleted++;
+    }
+    assertEquals(100, created);
+    assertEquals(100, deleted);
+
+    for (int i = 0; i < 20; i++) {
+      for (int j = 0; j < 5; j++) {
+        VirtualFile sub = topDir.findFileByRelativePath("dir" + i + "/sub" + j);
+        assertNotNull(sub);
+        checkChildCount(sub, 1);
+        assertNotNull(sub.findChild("new.txt"));
+      }
+    }
+  }
+
+  private static List<VFileEvent> scanAndApply(RefreshWorker worker) {
+    worker.scan();
+    final List<VFileEvent> events = worker.getEvents();
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        PersistentFS.getInstance().processEvents(events);
+      }
+    });
+    return events;
+  }
+
   private static void checkChildCount(VirtualFile virtualDir, int expectedCount) {
     VirtualFile[] children = virtualDir.getChildren();
     if (children.length != expectedCount) {
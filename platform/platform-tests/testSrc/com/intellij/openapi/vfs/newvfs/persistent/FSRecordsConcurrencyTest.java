@@ -0,0 +1,143 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.testFramework.PlatformTestCase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Refresh-like load: several threads update timestamps, lengths, flags and attributes of files
+ * while others read them, see {@link FSRecords} locking.
+ */
+public class FSRecordsConcurrencyTest extends PlatformTestCase {
+  private static final int FILES = 2000;
+  private static final int WRITERS = 4;
+  private static final int READERS = 4;
+  private static final int ITERATIONS = 20;
+  private static final String ATTRIBUTE = "FSRecordsConcurrencyTest.attribute";
+
+  private int myParent;
+  private int[] myChildren;
+
+  @Override
+  public void setUp() throws Exception {
+    initPlatformLangPrefix();
+    super.setUp();
+
+    myParent = FSRecords.createRecord();
+    myChildren = new int[FILES];
+    for (int i = 0; i < FILES; i++) {
+      int child = FSRecords.createRecord();
+      FSRecords.setParent(child, myParent);
+      FSRecords.setName(child, "file" + i);
+      myChildren[i] = child;
+    }
+    FSRecords.updateList(myParent, myChildren);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    try {
+      FSRecords.deleteRecordRecursively(myParent);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testConcurrentRefreshAndReads() throws Exception {
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[WRITERS + READERS];
+
+    for (int t = 0; t < WRITERS; t++) {
+      final int writer = t;
+      threads[t] = new Thread("FSRecordsConcurrencyTest writer " + t) {
+        @Override
+        public void run() {
+          try {
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+              for (int i = writer; i < FILES; i += WRITERS) {
+                int id = myChildren[i];
+                FSRecords.setTimestamp(id, iteration);
+                FSRecords.setLength(id, i);
+                FSRecords.setFlags(id, FSRecords.getFlags(id), true);
+                DataOutputStream stream = FSRecords.writeAttribute(id, ATTRIBUTE, false);
+                stream.writeInt(i);
+                stream.writeInt(iteration);
+                stream.close();
+              }
+              if (writer == 0) {
+                FSRecords.updateList(myParent, myChildren);
+              }
+            }
+          }
+          catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+    }
+
+    for (int t = 0; t < READERS; t++) {
+      final int reader = t;
+      threads[WRITERS + t] = new Thread("FSRecordsConcurrencyTest reader " + t) {
+        @Override
+        public void run() {
+          try {
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+              for (int i = reader; i < FILES; i += READERS) {
+                int id = myChildren[i];
+                assertEquals(myParent, FSRecords.getParent(id));
+                assertEquals(0, FSRecords.getFlags(id));
+                assertEquals("file" + i, FSRecords.getNameByNameId(FSRecords.getNameId(id)));
+                checkAttribute(id, i);
+              }
+              assertEquals(FILES, FSRecords.list(myParent).length);
+            }
+          }
+          catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Throwable throwable = failure.get();
+    if (throwable != null) throw new RuntimeException(throwable);
+  }
+
+  private static void checkAttribute(int id, int expected) throws IOException {
+    DataInputStream stream = FSRecords.readAttributeWithLock(id, ATTRIBUTE);
+    if (stream == null) return; // not written yet
+    try {
+      assertEquals(expected, stream.readInt());
+    }
+    finally {
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source.resolve;
+
+import com.intellij.mock.MockApplication;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiReference;
+import com.intellij.psi.impl.PsiManagerImpl;
+import com.intellij.util.messages.MessageBus;
+import com.intellij.util.messages.MessageBusFactory;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ResolveCacheTest extends TestCase {
+  private Disposable myDisposable;
+  private MessageBus myBus;
+  private int myResolveCount;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDisposable = Disposer.newDisposable();
+    ApplicationManager.setApplication(new MockApplication(myDisposable), myDisposable);
+    myBus = MessageBusFactory.newMessageBus(this);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myBus.dispose();
+    Disposer.dispose(myDisposable);
+    super.tearDown();
+  }
+
+  public void testResultsAreCachedAndCounted() {
+    ResolveCache cache = new ResolveCache(myBus, 0);
+    PsiFile file = createFile(true, null);
+    PsiReference ref = createReference(file);
+    PsiElement target = createElement(file);
+
+    assertSame(target, resolve(cache, ref, target));
+    assertSame(target, resolve(cache, ref, target));
+    assertSame(target, resolve(cache, createReference(file), target));
+    assertEquals(2, myResolveCount);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  public void testPhysicalChangeDropsAllResults() {
+    ResolveCache cache = new ResolveCache(myBus, 0);
+    PsiFile physical = createFile(true, null);
+    PsiFile nonPhysical = createFile(false, null);
+    List<PsiReference> refs = createReferences(physical, nonPhysical);
+
+    resolveAll(cache, refs);
+    myBus.syncPublisher(PsiManagerImpl.ANY_PSI_CHANGE_TOPIC).beforePsiChanged(false);
+    assertEquals(1, resolveAll(cache, refs));
+    myBus.syncPublisher(PsiManagerImpl.ANY_PSI_CHANGE_TOPIC).beforePsiChanged(true);
+    assertEquals(2, resolveAll(cache, refs));
+  }
+
+  public void testLeastRecentlyUsedFilesAreEvicted() {
+    ResolveCache cache = new ResolveCache(myBus, 20);
+    List<PsiReference> first = createReferences(createFile(true, null), 8);
+    List<PsiReference> second = createReferences(createFile(true, null), 8);
+    List<PsiReference> third = createReferences(createFile(false, null), 5);
+
+    resolveAll(cache, first);
+    resolveAll(cache, second);
+    resolveAll(cache, first.subList(0, 1));
+    resolveAll(cache, third);
+    assertEquals(8, cache.getEvictionCount());
+
+    assertEquals(0, resolveAll(cache, first));
+    assertEquals(0, resolveAll(cache, third));
+    assertEquals(8, resolveAll(cache, second));
+  }
+
+  public void testEvictionDuringConcurrentResolve() throws Exception {
+    final ResolveCache cache = new ResolveCache(myBus, 100);
+    final List<PsiReference> refs = new ArrayList<PsiReference>();
+    for (int i = 0; i < 200; i++) {
+      refs.addAll(createReferences(createFile(true, null), 3));
+    }
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final Random random = new Random(t);
+      threads[t] = new Thread("ResolveCacheTest " + t) {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 20000; i++) {
+              PsiReference ref = refs.get(random.nextInt(refs.size()));
+              assertNotNull(cache.resolveWithCaching(ref, new ResolveCache.Resolver() {
+                @Override
+                public PsiElement resolve(@NotNull PsiReference ref, boolean incompleteCode) {
+                  return createElement(ref.getElement().getContainingFile());
+                }
+              }, false, false));
+            }
+          }
+          catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (error.get() != null) throw new RuntimeException(error.get());
+    assertTrue(cache.getEvictionCount() > 0);
+  }
+
+  private PsiElement resolve(@NotNull ResolveCache cache, @NotNull PsiReference ref, @Nullable final PsiElement target) {
+    return cache.resolveWithCaching(ref, new ResolveCache.Resolver() {
+      @Override
+      public PsiElement resolve(@NotNull PsiReference ref, boolean incompleteCode) {
+        myResolveCount++;
+        return target == null ? createElement(ref.getElement().getContainingFile()) : target;
+      }
+    }, false, false);
+  }
+
+  private int resolveAll(@NotNull ResolveCache cache, @NotNull List<PsiReference> refs) {
+    int count = myResolveCount;
+    for (PsiReference ref : refs) {
+      resolve(cache, ref, null);
+    }
+    return myResolveCount - count;
+  }
+
+  private static List<PsiReference> createReferences(@NotNull PsiFile... files) {
+    List<PsiReference> refs = new ArrayList<PsiReference>();
+    for (PsiFile file : files) {
+      refs.add(createReference(file));
+    }
+    return refs;
+  }
+
+  private static List<PsiReference> createReferences(@NotNull PsiFile file, int count) {
+    List<PsiReference> refs = new ArrayList<PsiReference>();
+    for (int i = 0; i < count; i++) {
+      refs.add(createReference(file));
+    }
+    return refs;
+  }
+
+  private static PsiFile createFile(boolean physical, @Nullable PsiElement context) {
+    Map<String, Object> results = new HashMap<String, Object>();
+    results.put("isPhysical", physical);
+    results.put("getContext", context);
+    return create(PsiFile.class, results);
+  }
+
+  private static PsiElement createElement(@NotNull PsiFile file) {
+    Map<String, Object> results = new HashMap<String, Object>();
+    results.put("getContainingFile", file);
+    results.put("isPhysical", file.isPhysical());
+    return create(PsiElement.class, results);
+  }
+
+  private static PsiReference createReference(@NotNull PsiFile file) {
+    Map<String, Object> results = new HashMap<String, Object>();
+    results.put("getElement", createElement(file));
+    return create(PsiReference.class, results);
+  }
+
+  private static <T> T create(@NotNull Class<T> aClass, @NotNull final Map<String, Object> results) {
+    return aClass.cast(Proxy.newProxyInstance(ResolveCacheTest.class.getClassLoader(), new Class[]{aClass}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("getContainingFile") && !results.containsKey(name)) return proxy;
+        if (name.equals("isValid")) return true;
+        if (name.equals("equals")) return proxy == args[0];
+        if (name.equals("hashCode")) return System.identityHashCode(proxy);
+        if (name.equals("toString")) return "proxy " + System.identityHashCode(proxy);
+        return results.get(name);
+      }
+    }));
+  }
+}
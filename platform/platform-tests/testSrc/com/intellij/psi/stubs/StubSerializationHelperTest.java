@@ -0,0 +1,215 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.io.AbstractStringEnumerator;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class StubSerializationHelperTest extends TestCase {
+  private StubSerializationHelper myHelper;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myHelper = new StubSerializationHelper(new MyNameStorage());
+    myHelper.assignId(MySerializer.INSTANCE);
+  }
+
+  public void testWholeTree() throws Exception {
+    MyStub root = createTree(new Random(1), 3, 5);
+    MyStub read = (MyStub)myHelper.deserialize(new UnsyncByteArrayInputStream(serialize(root)));
+    assertEquals(root.toString(), read.toString());
+  }
+
+  public void testReusedBuffersDontLeakBetweenTrees() throws Exception {
+    MyStub large = createTree(new Random(5), 3, 8);
+    MyStub small = createTree(new Random(6), 2, 2);
+    byte[] expected = serialize(small);
+
+    serialize(large);
+    assertTrue(Arrays.equals(expected, serialize(small)));
+    MyStub read = (MyStub)myHelper.deserialize(new UnsyncByteArrayInputStream(serialize(small)));
+    assertEquals(small.toString(), read.toString());
+  }
+
+  public void testSingleStubs() throws Exception {
+    MyStub root = createTree(new Random(2), 4, 6);
+    List<Stub> stubs = new ObjectStubTree(root, false).getPlainList();
+    byte[] bytes = serialize(root);
+
+    for (int i = 0; i < stubs.size(); i++) {
+      MyStub stub = (MyStub)myHelper.deserializeStub(bytes, bytes.length, i);
+      assertEquals(i, stub.id);
+      assertTrue(stub.getChildrenStubs().isEmpty());
+
+      Stub expected = stubs.get(i);
+      for (MyStub each = stub; each != null; each = each.getParentStub()) {
+        assertEquals(((MyStub)expected).myName, each.myName);
+        assertEquals(((MyStub)expected).id, each.id);
+        expected = expected.getParentStub();
+      }
+      assertNull(expected);
+    }
+
+    try {
+      myHelper.deserializeStub(bytes, bytes.length, stubs.size());
+      fail();
+    }
+    catch (IndexOutOfBoundsException ignored) {
+    }
+  }
+
+  /**
+   * Reads stubs from a tree of about the size of the tree of <code>StubPerformanceTest.java</code>.
+   */
+  public void testSingleStubPerformance() throws Exception {
+    MyStub root = createTree(new Random(3), 3, 40);
+    final int count = new ObjectStubTree(root, false).getPlainList().size();
+    final byte[] bytes = serialize(root);
+
+    PlatformTestUtil.startPerformanceTest("reading single stubs from a tree of " + count + " stubs", 1000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        Random random = new Random(4);
+        for (int i = 0; i < 2000; i++) {
+          myHelper.deserializeStub(bytes, bytes.length, random.nextInt(count));
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private byte[] serialize(MyStub root) throws IOException {
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    myHelper.serialize(root, out);
+    return out.toByteArray();
+  }
+
+  private static MyStub createTree(Random random, int depth, int maxChildren) {
+    MyStub root = new MyStub(null, "root");
+    addChildren(root, random, depth, maxChildren);
+    return root;
+  }
+
+  private static void addChildren(MyStub parent, Random random, int depth, int maxChildren) {
+    if (depth == 0) return;
+    int count = random.nextInt(maxChildren + 1);
+    for (int i = 0; i < count; i++) {
+      MyStub child = new MyStub(parent, parent.myName + "." + i + "_" + random.nextInt(100));
+      addChildren(child, random, depth - 1, maxChildren);
+    }
+  }
+
+  private static class MyStub extends ObjectStubBase<MyStub> {
+    private final String myName;
+    private final List<MyStub> myChildren = new ArrayList<MyStub>();
+
+    private MyStub(@Nullable MyStub parent, @NotNull String name) {
+      super(parent);
+      myName = name;
+      if (parent != null) {
+        parent.myChildren.add(this);
+      }
+    }
+
+    @Override
+    public List<MyStub> getChildrenStubs() {
+      return myChildren;
+    }
+
+    @Override
+    public ObjectStubSerializer getStubType() {
+      return MySerializer.INSTANCE;
+    }
+
+    @Override
+    public String toString() {
+      return myName + myChildren;
+    }
+  }
+
+  private static class MySerializer implements ObjectStubSerializer<MyStub, MyStub> {
+    private static final MySerializer INSTANCE = new MySerializer();
+
+    @NotNull
+    @Override
+    public String getExternalId() {
+      return "test.stub";
+    }
+
+    @Override
+    public void serialize(@NotNull MyStub stub, @NotNull StubOutputStream dataStream) throws IOException {
+      dataStream.writeName(stub.myName);
+    }
+
+    @NotNull
+    @Override
+    public MyStub deserialize(@NotNull StubInputStream dataStream, MyStub parentStub) throws IOException {
+      return new MyStub(parentStub, dataStream.readName().getString());
+    }
+
+    @Override
+    public void indexStub(@NotNull MyStub stub, @NotNull IndexSink sink) {
+    }
+  }
+
+  private static class MyNameStorage implements AbstractStringEnumerator {
+    private final List<String> myNames = new ArrayList<String>();
+
+    @Override
+    public int enumerate(@Nullable String value) throws IOException {
+      int index = myNames.indexOf(value);
+      if (index < 0) {
+        myNames.add(value);
+        index = myNames.size() - 1;
+      }
+      return index + 1;
+    }
+
+    @Override
+    public String valueOf(int idx) throws IOException {
+      return myNames.get(idx - 1);
+    }
+
+    @Override
+    public void markCorrupted() {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public boolean isDirty() {
+      return false;
+    }
+
+    @Override
+    public void force() {
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.StubBasedPsiElement;
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+public class StubTreeCacheTest extends TestCase {
+  private final PsiFile myFile = createPsi(PsiFile.class, null);
+
+  public void testHitsForSameFileAndSerializedTree() {
+    StubTreeCache cache = new StubTreeCache(1000);
+    SerializedStubTree serialized = createSerialized(100, 1);
+    StubTree tree = createTree(myFile);
+    cache.put(1, serialized, tree);
+
+    assertSame(tree, cache.get(1, serialized, myFile));
+    assertSame(tree, cache.get(1, createSerialized(100, 1), myFile));
+    assertNull(cache.get(2, serialized, myFile));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testChangedSerializedTreeIsNotReused() {
+    StubTreeCache cache = new StubTreeCache(1000);
+    cache.put(1, createSerialized(100, 1), createTree(myFile));
+
+    assertNull(cache.get(1, createSerialized(100, 2), myFile));
+    assertEquals(0, cache.getSize());
+  }
+
+  public void testTreeIsReusedOnlyForFileItIsBoundTo() {
+    StubTreeCache cache = new StubTreeCache(1000);
+    SerializedStubTree serialized = createSerialized(100, 1);
+    StubTree tree = createTree(myFile);
+    cache.put(1, serialized, tree);
+
+    assertNull(cache.get(1, serialized, createPsi(PsiFile.class, null)));
+
+    cache.put(1, serialized, tree);
+    ((PsiFileStubImpl<PsiFile>)tree.getRoot()).setPsi(null);
+    assertNull(cache.get(1, serialized, myFile));
+  }
+
+  public void testTreeWithPsiSwitchedToAstIsNotReused() {
+    StubTreeCache cache = new StubTreeCache(1000);
+    SerializedStubTree serialized = createSerialized(100, 1);
+    StubTree tree = createTree(myFile);
+    StubBase<PsiElement> child = (StubBase<PsiElement>)tree.getPlainList().get(1);
+    StubElement<?>[] psiStub = {child};
+    child.setPsi(createPsi(StubBasedPsiElement.class, psiStub));
+    cache.put(1, serialized, tree);
+
+    assertSame(tree, cache.get(1, serialized, myFile));
+    psiStub[0] = null;
+    assertNull(cache.get(1, serialized, myFile));
+  }
+
+  public void testLeastRecentlyUsedTreesAreEvicted() {
+    StubTreeCache cache = new StubTreeCache(1000);
+    SerializedStubTree[] serialized = new SerializedStubTree[5];
+    for (int i = 0; i < serialized.length; i++) {
+      serialized[i] = createSerialized(300, i);
+      cache.put(i, serialized[i], createTree(myFile));
+      assertNotNull(cache.get(0, serialized[0], myFile));
+    }
+
+    assertEquals(900, cache.getSize());
+    assertNotNull(cache.get(0, serialized[0], myFile));
+    assertNull(cache.get(1, serialized[1], myFile));
+    assertNull(cache.get(2, serialized[2], myFile));
+    assertNotNull(cache.get(3, serialized[3], myFile));
+    assertNotNull(cache.get(4, serialized[4], myFile));
+
+    cache.put(5, createSerialized(2000, 5), createTree(myFile));
+    assertEquals(900, cache.getSize());
+  }
+
+  private static SerializedStubTree createSerialized(int length, int seed) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte)(i * 31 + seed);
+    }
+    return new SerializedStubTree(bytes, length, null, length, length);
+  }
+
+  private static StubTree createTree(PsiFile file) {
+    PsiFileStubImpl<PsiFile> root = new PsiFileStubImpl<PsiFile>(file);
+    new StubBase<PsiElement>(root, null) {};
+    new StubBase<PsiElement>(root, null) {};
+    return new StubTree(root);
+  }
+
+  private static <T> T createPsi(Class<T> aClass, final StubElement<?>[] stub) {
+    return aClass.cast(Proxy.newProxyInstance(StubTreeCacheTest.class.getClassLoader(), new Class[]{aClass}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("getStub")) return stub[0];
+        if (method.getName().equals("equals")) return proxy == args[0];
+        if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+        return null;
+      }
+    }));
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ValueContainerImplTest extends TestCase {
+  private static final String VALUE = "value";
+
+  public void testDenseIdsSwitchToBitSet() {
+    ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    TIntHashSet expected = new TIntHashSet();
+    for (int id = 1000; id < 5000; id += 3) {
+      container.addValue(id, VALUE);
+      expected.add(id);
+    }
+    container.addValue(7, "other");
+
+    assertEquals(2, container.size());
+    assertIds(expected, container);
+    assertTrue(container.isAssociated(VALUE, 1003));
+    assertFalse(container.isAssociated(VALUE, 1004));
+    assertTrue(container.getValueAssociationPredicate(VALUE).contains(4999));
+    assertFalse(container.getValueAssociationPredicate(VALUE).contains(7));
+
+    // ids below the first one and far after the last one
+    container.addValue(3, VALUE);
+    container.addValue(100000, VALUE);
+    expected.add(3);
+    expected.add(100000);
+    assertIds(expected, container);
+
+    ValueContainerImpl<String> copy = container.copy();
+    for (int id = 1000; id < 5000; id += 3) {
+      container.removeValue(id, VALUE);
+      expected.remove(id);
+    }
+    assertIds(expected, container);
+    assertEquals(1336, copy.getInputIdsIterator(VALUE).size());
+
+    container.removeValue(3, VALUE);
+    container.removeValue(100000, VALUE);
+    assertEquals(1, container.size());
+    assertFalse(container.getInputIdsIterator(VALUE).hasNext());
+  }
+
+  public void testOutlierIdSwitchesBitSetBackToHashSet() {
+    ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    TIntHashSet expected = new TIntHashSet();
+    for (int id = 1; id <= 1024; id++) {
+      container.addValue(id, VALUE);
+      expected.add(id);
+    }
+    assertTrue(container.isKeptAsBitSet(VALUE));
+
+    container.addValue(2000, VALUE);
+    expected.add(2000);
+    assertTrue(container.isKeptAsBitSet(VALUE));
+
+    container.addValue(10000000, VALUE);
+    expected.add(10000000);
+    assertFalse(container.isKeptAsBitSet(VALUE));
+    assertIds(expected, container);
+    assertTrue(container.isAssociated(VALUE, 10000000));
+    assertTrue(container.isAssociated(VALUE, 512));
+  }
+
+  public void testSaveAndLoad() throws IOException {
+    File file = FileUtil.createTempFile("valueContainer", "map");
+    try {
+      ValueContainerMap<String, String> map =
+        new ValueContainerMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+      ChangeTrackingValueContainer<String> container = new ChangeTrackingValueContainer<String>(null);
+      TIntHashSet expected = new TIntHashSet();
+      for (int id = 5000; id > 0; id -= 7) {
+        container.addValue(id, VALUE);
+        expected.add(id);
+      }
+      container.addValue(42, "single");
+      map.put("key", container);
+
+      ChangeTrackingValueContainer<String> appended = new ChangeTrackingValueContainer<String>(null);
+      appended.addValue(100001, VALUE);
+      expected.add(100001);
+      map.put("key", appended);
+      map.close();
+
+      map = new ValueContainerMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+      try {
+        ValueContainer<String> loaded = map.get("key");
+        assertEquals(2, loaded.size());
+        assertIds(expected, loaded);
+        assertTrue(loaded.isAssociated("single", 42));
+      }
+      finally {
+        map.close();
+      }
+    }
+    finally {
+      FileUtil.delete(file);
+    }
+  }
+
+  private static void assertIds(TIntHashSet expected, ValueContainer<String> container) {
+    ValueContainer.IntIterator iterator = container.getInputIdsIterator(VALUE);
+    assertEquals(expected.size(), iterator.size());
+    TIntHashSet actual = new TIntHashSet();
+    while (iterator.hasNext()) {
+      assertTrue(actual.add(iterator.next()));
+    }
+    assertEquals(expected, actual);
+  }
+}
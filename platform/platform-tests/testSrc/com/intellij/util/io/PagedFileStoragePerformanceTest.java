@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Runs only in the performance suite: the over-2Gb case grows a real 3Gb file.
+ */
+public class PagedFileStoragePerformanceTest extends TestCase {
+  private final PagedFileStorage.StorageLock lock = new PagedFileStorage.StorageLock();
+  private File f;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    f = FileUtil.createTempFile("storage", ".tmp");
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    FileUtil.delete(new File(f.getPath() + ".len"));
+    FileUtil.delete(f);
+    super.tearDown();
+  }
+
+  public void testResizeableMappedFileOver2Gb() throws Exception {
+    final long max = 3L * Integer.MAX_VALUE / 2;
+    PlatformTestUtil.startPerformanceTest("growing ResizeableMappedFile over 2Gb", 15000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        lock.lock();
+        try {
+          ResizeableMappedFile file = new ResizeableMappedFile(f, 2000000, lock);
+          try {
+            for (long index = 0; index <= max; index += 30000000) {
+              file.putLong(index, index);
+              assertTrue(file.length() > index);
+            }
+            file.putInt(max + 20, 1234);
+            assertEquals(1234, file.getInt(max + 20));
+
+            for (long index = 0; index <= max; index += 30000000) {
+              assertEquals(index, file.getLong(index));
+            }
+          }
+          finally {
+            file.close();
+          }
+        }
+        finally {
+          lock.unlock();
+        }
+      }
+    }).ioBound().assertTiming();
+  }
+
+  public void testSmallFile() throws Exception {
+    PlatformTestUtil.startPerformanceTest("small ResizeableMappedFile reads and writes", 500, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        lock.lock();
+        try {
+          ResizeableMappedFile file = new ResizeableMappedFile(f, 1024, lock);
+          try {
+            for (int pass = 0; pass < 100; pass++) {
+              for (int index = 0; index < 64 * 1024; index += 4) {
+                file.putInt(index, index + pass);
+              }
+              for (int index = 0; index < 64 * 1024; index += 4) {
+                assertEquals(index + pass, file.getInt(index));
+              }
+            }
+          }
+          finally {
+            file.close();
+          }
+        }
+        finally {
+          lock.unlock();
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+}
@@ -11,6 +11,8 @@ import junit.framework.TestCase;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.intellij.util.io.StringEnumeratorTest.createRandomString;
 
@@ -471,4 +473,141 @@ public class PersistentMapTest extends TestCase {
     map.close();
     assertEquals(1400000000L, len);
   }
+
+  public void testConcurrentReadsWhileWriting() throws Exception {
+    File file = FileUtil.createTempFile("persistent", "map");
+    PersistentHashMap<String, int[]> map =
+      new PersistentHashMap<String, int[]>(file, new EnumeratorStringDescriptor(), new IntArrayExternalizer(), 1024, true);
+    try {
+      runReadersAndWriter(map, 4, 20000);
+    }
+    finally {
+      clearMap(file, map);
+    }
+  }
+
+  /**
+   * Compares throughput of concurrent gets, with one thread rewriting values, when values are deserialized under the map lock
+   * and outside of it.
+   */
+  public void testConcurrentGetThroughput() throws Exception {
+    for (final boolean concurrent : new boolean[]{false, true}) {
+      final File file = FileUtil.createTempFile("persistent", "map");
+      final PersistentHashMap<String, int[]> map =
+        new PersistentHashMap<String, int[]>(file, new EnumeratorStringDescriptor(), new IntArrayExternalizer(), 1024, concurrent);
+      try {
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        final int reads = 100000;
+        PlatformTestUtil.startPerformanceTest("concurrent gets, values read " + (concurrent ? "outside of" : "under") + " map lock", 5000,
+                                              new ThrowableRunnable() {
+          @Override
+          public void run() throws Exception {
+            long started = System.currentTimeMillis();
+            runReadersAndWriter(map, threads, reads);
+            long elapsed = Math.max(1, System.currentTimeMillis() - started);
+            System.out.printf("%d threads, values read %s map lock: %d gets/s\n", threads, concurrent ? "outside of" : "under",
+                              (long)threads * reads * 1000 / elapsed);
+          }
+        }).cpuBound().assertTiming();
+      }
+      finally {
+        clearMap(file, map);
+      }
+    }
+  }
+
+  private static final int KEYS_COUNT = 1000;
+  private static final int VALUE_LENGTH = 200;
+
+  /**
+   * Each value of key i is an array of equal elements i * KEYS_COUNT + version, readers check that they see a consistent value.
+   */
+  private static void runReadersAndWriter(final PersistentHashMap<String, int[]> map, int readersCount, final int readsPerReader)
+    throws Exception {
+    for (int i = 0; i < KEYS_COUNT; i++) {
+      map.put(String.valueOf(i), createValue(i, 0));
+    }
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final AtomicBoolean readersDone = new AtomicBoolean();
+    Thread writer = new Thread("writer") {
+      @Override
+      public void run() {
+        try {
+          Random random = new Random(0);
+          for (int version = 1; !readersDone.get() && failure.get() == null; version++) {
+            int i = random.nextInt(KEYS_COUNT);
+            map.put(String.valueOf(i), createValue(i, version % KEYS_COUNT));
+          }
+        }
+        catch (Throwable t) {
+          failure.compareAndSet(null, t);
+        }
+      }
+    };
+    List<Thread> readers = new ArrayList<Thread>();
+    for (int r = 0; r < readersCount; r++) {
+      final long seed = r;
+      readers.add(new Thread("reader " + r) {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random(seed);
+            for (int n = 0; n < readsPerReader && failure.get() == null; n++) {
+              int i = random.nextInt(KEYS_COUNT);
+              int[] value = map.get(String.valueOf(i));
+              assertNotNull(value);
+              assertEquals(VALUE_LENGTH, value.length);
+              assertEquals(i, value[0] / KEYS_COUNT);
+              for (int element : value) {
+                assertEquals(value[0], element);
+              }
+            }
+          }
+          catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      });
+    }
+
+    writer.start();
+    for (Thread reader : readers) {
+      reader.start();
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    readersDone.set(true);
+    writer.join();
+
+    Throwable t = failure.get();
+    if (t instanceof Exception) throw (Exception)t;
+    if (t != null) throw (Error)t;
+  }
+
+  private static int[] createValue(int key, int version) {
+    int[] value = new int[VALUE_LENGTH];
+    Arrays.fill(value, key * KEYS_COUNT + version);
+    return value;
+  }
+
+  private static class IntArrayExternalizer implements DataExternalizer<int[]> {
+    @Override
+    public void save(DataOutput out, int[] value) throws IOException {
+      DataInputOutputUtil.writeINT(out, value.length);
+      for (int element : value) {
+        DataInputOutputUtil.writeINT(out, element);
+      }
+    }
+
+    @Override
+    public int[] read(DataInput in) throws IOException {
+      int[] value = new int[DataInputOutputUtil.readINT(in)];
+      for (int i = 0; i < value.length; i++) {
+        value[i] = DataInputOutputUtil.readINT(in);
+      }
+      return value;
+    }
+  }
 }
@@ -54,11 +54,11 @@ public abstract class ByteBufferWrapper {
     unmap();
   }
 
-  public static ByteBufferWrapper readWrite(final File file, final int offset, final int length) {
+  public static ByteBufferWrapper readWrite(final File file, final long offset, final int length) {
     return new ReadWriteDirectBufferWrapper(file, offset, length);
   }
 
-  public static ByteBufferWrapper readWriteDirect(final File file, final int offset, final int length) {
+  public static ByteBufferWrapper readWriteDirect(final File file, final long offset, final int length) {
     return new ReadWriteDirectBufferWrapper(file, offset, length);
   }
 
@@ -66,6 +66,10 @@ public abstract class ByteBufferWrapper {
     return new ReadOnlyMappedBufferWrapper(file, offset);
   }
 
+  public static ByteBufferWrapper readOnly(final File file, final long offset, final int length) {
+    return new ReadOnlyMappedBufferWrapper(file, offset, length);
+  }
+
   @Override
   public String toString() {
     return "Buffer for " + myFile + " size: " + myLength;
@@ -26,7 +26,7 @@ import java.io.InputStream;
 
 public class MappedFileInputStream extends InputStream {
   private ResizeableMappedFile raf;
-  private int cur;
+  private long cur;
   private long limit;
 
   public MappedFileInputStream(final ResizeableMappedFile raf, final long pos, final long limit) {
@@ -35,7 +35,7 @@ public class MappedFileInputStream extends InputStream {
   }
 
   public void setup(final long pos, final long limit) {
-    this.cur = (int)pos;
+    this.cur = pos;
     this.limit = limit;
   }
 
@@ -46,7 +46,7 @@ public class MappedFileInputStream extends InputStream {
   @Override
   public int available()
   {
-      return (int)(limit - cur);
+      return (int)Math.min(Integer.MAX_VALUE, limit - cur);
   }
 
   @Override
@@ -462,6 +462,10 @@ public abstract class PersistentEnumeratorBase<Data> implements Forceable, Close
       myDataDescriptor.save(out, value);
       final int size = bos.size();
       final byte[] buffer = bos.getInternalBuffer();
+      if ((long)dataOff + size > Integer.MAX_VALUE) {
+        // key references in enumerator records are 32 bit wide, key storage itself is long addressed
+        throw new IOException("Key storage for " + myFile + " can't grow over 2Gb");
+      }
 
       if (size > myInitialSize) {
         flushKeyStoreBuffer();
@@ -64,6 +64,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private final boolean myCanReEnumerate;
   private int myLargeIndexWatermarkId;  // starting with this id we store offset in adjacent file in long format
   private boolean myIntAddressForNewRecord;
+  private final boolean myReadValuesConcurrently;
   private static final boolean doHardConsistencyChecks = true;
 
   private static class AppendStream extends DataOutputStream {
@@ -107,7 +108,21 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
   
   public PersistentHashMap(@NotNull final File file, @NotNull KeyDescriptor<Key> keyDescriptor, @NotNull DataExternalizer<Value> valueExternalizer, final int initialSize) throws IOException {
+    this(file, keyDescriptor, valueExternalizer, initialSize, false);
+  }
+
+  /**
+   * @param readValuesConcurrently whether {@link #get} may deserialize values outside of the map lock, so that readers block
+   *                               each other only while the value bytes are read. Requires a thread-safe value externalizer,
+   *                               e.g. not the one which reuses a buffer as {@link EnumeratorStringDescriptor} does.
+   */
+  public PersistentHashMap(@NotNull final File file,
+                           @NotNull KeyDescriptor<Key> keyDescriptor,
+                           @NotNull DataExternalizer<Value> valueExternalizer,
+                           final int initialSize,
+                           boolean readValuesConcurrently) throws IOException {
     super(checkDataFiles(file), keyDescriptor, initialSize);
+    myReadValuesConcurrently = readValuesConcurrently;
     myAppendCache = createAppendCache(keyDescriptor);
     final PersistentEnumeratorBase.RecordBufferHandler<PersistentEnumeratorBase> recordHandler = myEnumerator.getRecordHandler();
     myParentValueRefOffset = recordHandler.getRecordBuffer(myEnumerator).length;
@@ -394,13 +409,27 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   @Override
   public final Value get(Key key) throws IOException {
+    if (!myReadValuesConcurrently) {
+      synchronized (myEnumerator) {
+        return doGet(key);
+      }
+    }
+
+    final byte[] bytes;
     synchronized (myEnumerator) {
-      return doGet(key);
+      bytes = readValueBytes(key);
     }
+    return bytes == null ? null : readValue(bytes);
   }
 
   @Nullable
   protected Value doGet(Key key) throws IOException {
+    final byte[] bytes = readValueBytes(key);
+    return bytes == null ? null : readValue(bytes);
+  }
+
+  @Nullable
+  private byte[] readValueBytes(Key key) throws IOException {
     myEnumerator.lockStorage();
     try {
       myAppendCache.remove(key);
@@ -421,20 +450,23 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         myLiveAndGarbageKeysCounter++;
         myReadCompactionGarbageSize += readResult.buffer.length;
       }
-
-      final DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(readResult.buffer));
-      try {
-        return myValueExternalizer.read(input);
-      }
-      finally {
-        input.close();
-      }
+      return readResult.buffer;
     }
     finally {
       myEnumerator.unlockStorage();
     }
   }
 
+  private Value readValue(@NotNull byte[] bytes) throws IOException {
+    final DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(bytes));
+    try {
+      return myValueExternalizer.read(input);
+    }
+    finally {
+      input.close();
+    }
+  }
+
   public final boolean containsMapping(Key key) throws IOException {
     synchronized (myEnumerator) {
       return doContainsMapping(key);
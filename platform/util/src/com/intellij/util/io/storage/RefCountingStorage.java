@@ -27,11 +27,13 @@ import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.containers.ConcurrentHashMap;
 import com.intellij.util.io.PagePool;
 import com.intellij.util.io.UnsyncByteArrayInputStream;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.zip.DeflaterOutputStream;
@@ -67,6 +69,16 @@ public class RefCountingStorage extends AbstractStorage {
     return internalReadStream(record).toByteArray();
   }
 
+  /**
+   * @return read-only view of the record content, backed by an array which is not shared, so no further copying is needed
+   */
+  @NotNull
+  public ByteBuffer readBuffer(int record) throws IOException {
+    if (myDoNotZipCaches) return ByteBuffer.wrap(super.readBytes(record)).asReadOnlyBuffer();
+    BufferExposingByteArrayOutputStream stream = internalReadStream(record);
+    return ByteBuffer.wrap(stream.getInternalBuffer(), 0, stream.size()).asReadOnlyBuffer();
+  }
+
   private BufferExposingByteArrayOutputStream internalReadStream(int record) throws IOException {
     waitForPendingWriteForRecord(record);
 
@@ -450,6 +450,29 @@ public class JBZipEntry implements Cloneable {
     setData(bytes, time);
   }
 
+  /**
+   * Sets the data of the entry to the data of an entry of another archive. The data is copied as is, without being decompressed and
+   * compressed again.
+   */
+  public void setRawDataFrom(JBZipEntry source) throws IOException {
+    if (source.size == -1) throw new IOException("no data");
+
+    method = source.method;
+    crc = source.crc;
+    size = source.size;
+    csize = source.csize;
+    if (time == -1) {
+      time = source.time;
+    }
+    final InputStream stream = source.new BoundedInputStream(source.calcDataOffset(), source.csize);
+    try {
+      myFile.getOutputStream().putNextEntryContent(this, stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+
   public byte[] getData() throws IOException {
     if (size == -1) throw new IOException("no data");
 
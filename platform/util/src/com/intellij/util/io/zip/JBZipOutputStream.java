@@ -23,6 +23,7 @@ package com.intellij.util.io.zip;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
@@ -401,6 +402,7 @@ class JBZipOutputStream {
     final byte[] outputBytes;
     final int outputBytesLength;
     if (entry.getMethod() == ZipEntry.DEFLATED) {
+      def.reset();
       def.setLevel(level);
       final BufferExposingByteArrayOutputStream compressedBytesStream = new BufferExposingByteArrayOutputStream();
       final DeflaterOutputStream stream = new DeflaterOutputStream(compressedBytesStream, def);
@@ -422,4 +424,21 @@ class JBZipOutputStream {
     writeLocalFileHeader(entry);
     writeOut(outputBytes, 0, outputBytesLength);
   }
+
+  /**
+   * Writes the entry with the given data, which is already compressed according to the method, size and crc set in the entry.
+   */
+  public void putNextEntryContent(JBZipEntry entry, InputStream compressedContent) throws IOException {
+    writeLocalFileHeader(entry);
+    final byte[] buffer = new byte[8192];
+    long remaining = entry.getCompressedSize();
+    while (remaining > 0) {
+      final int read = compressedContent.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+      if (read < 0) {
+        throw new ZipException("Unexpected end of data of entry " + entry.getName());
+      }
+      writeOut(buffer, 0, read);
+      remaining -= read;
+    }
+  }
 }
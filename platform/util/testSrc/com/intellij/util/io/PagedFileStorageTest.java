@@ -20,6 +20,7 @@ import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -118,6 +119,56 @@ public class PagedFileStorageTest extends TestCase {
     }
   }
 
+  public void testAddressesOver2Gb() throws Exception {
+    final long max = 3L * Integer.MAX_VALUE / 2;
+    // a sparse file: growing it through the storage would write gigabytes of zeros
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    try {
+      raf.setLength(max + 4096);
+    }
+    finally {
+      raf.close();
+    }
+
+    lock.lock();
+    try {
+      assertEquals(max + 4096, s.length());
+      for (long index = Integer.MAX_VALUE - 100L; index <= max; index += 300000000) {
+        s.putLong(index, index);
+      }
+      s.putInt(max + 20, 1234);
+      s.putLong(Integer.MAX_VALUE - 3L, Long.MAX_VALUE);
+
+      for (long index = Integer.MAX_VALUE - 100L; index <= max; index += 300000000) {
+        assertEquals(index, s.getLong(index));
+      }
+      assertEquals(1234, s.getInt(max + 20));
+      assertEquals(Long.MAX_VALUE, s.getLong(Integer.MAX_VALUE - 3L));
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public void testAddressBeyondPageLimit() throws Exception {
+    lock.lock();
+    try {
+      PagedFileStorage storage = new PagedFileStorage(f, lock, Page.PAGE_SIZE, true);
+      try {
+        storage.getInt(0x10000L * Page.PAGE_SIZE);
+        fail("page 0x10000 must not be addressable");
+      }
+      catch (IndexOutOfBoundsException ignored) {
+      }
+      finally {
+        storage.close();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
   private static final SimpleDateFormat FORMATTER = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
 
   private static void printPct(int pct) {
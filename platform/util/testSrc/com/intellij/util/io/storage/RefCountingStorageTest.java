@@ -0,0 +1,71 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io.storage;
+
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+
+public class RefCountingStorageTest extends TestCase {
+  private RefCountingStorage myStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myStorage = new RefCountingStorage(getFileName());
+  }
+
+  private String getFileName() {
+    return FileUtil.getTempDirectory() + File.separatorChar + getName();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Disposer.dispose(myStorage);
+    RefCountingStorage.deleteFiles(getFileName());
+    super.tearDown();
+  }
+
+  public void testReadBuffer() throws Exception {
+    byte[] content = new byte[100000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte)(i % 31);
+    }
+    final int record = myStorage.acquireNewRecord();
+    myStorage.writeBytes(record, new ByteSequence(content), false);
+
+    ByteBuffer buffer = myStorage.readBuffer(record);
+    assertTrue(buffer.isReadOnly());
+    assertEquals(content.length, buffer.remaining());
+    byte[] read = new byte[buffer.remaining()];
+    buffer.duplicate().get(read);
+    assertTrue(Arrays.equals(content, read));
+
+    try {
+      buffer.put(0, (byte)1);
+      fail();
+    }
+    catch (ReadOnlyBufferException ignored) {
+    }
+    assertTrue(Arrays.equals(content, myStorage.readBytes(record)));
+  }
+}
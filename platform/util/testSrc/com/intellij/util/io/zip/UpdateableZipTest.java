@@ -107,7 +107,47 @@ public class UpdateableZipTest extends TestCase {
     assertNull(removedEntry);
     utilZip.close();
   }
-  
+
+  public void testCopyRawData() throws Exception {
+    File sourceFile = FileUtil.createTempFile("source", ".zip");
+    ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(sourceFile)));
+    zos.putNextEntry(new ZipEntry("/deflated"));
+    zos.write("deflated deflated deflated".getBytes());
+    zos.closeEntry();
+    appendEntry(zos, "/stored", "stored".getBytes());
+    zos.close();
+
+    File copyFile = FileUtil.createTempFile("copy", ".zip");
+    JBZipFile source = new JBZipFile(sourceFile);
+    JBZipFile copy = new JBZipFile(copyFile);
+    try {
+      copy.getOrCreateEntry("/deflated").setRawDataFrom(source.getEntry("/deflated"));
+      copy.getOrCreateEntry("/stored").setRawDataFrom(source.getEntry("/stored"));
+      for (String name : new String[]{"/new1", "/new2"}) {
+        JBZipEntry entry = copy.getOrCreateEntry(name);
+        entry.setMethod(ZipEntry.DEFLATED);
+        entry.setData((name + name + name).getBytes());
+      }
+    }
+    finally {
+      source.close();
+      copy.close();
+    }
+
+    ZipFile utilZip = new ZipFile(copyFile);
+    try {
+      assertEquals(ZipEntry.DEFLATED, utilZip.getEntry("/deflated").getMethod());
+      assertEquals("deflated deflated deflated", FileUtil.loadTextAndClose(new InputStreamReader(utilZip.getInputStream(utilZip.getEntry("/deflated")))));
+      assertEquals("stored", FileUtil.loadTextAndClose(new InputStreamReader(utilZip.getInputStream(utilZip.getEntry("/stored")))));
+      assertEquals("/new2/new2/new2", FileUtil.loadTextAndClose(new InputStreamReader(utilZip.getInputStream(utilZip.getEntry("/new2")))));
+    }
+    finally {
+      utilZip.close();
+      FileUtil.delete(sourceFile);
+      FileUtil.delete(copyFile);
+    }
+  }
+
   /*
   public void testAppendToIdeaJar() throws Exception {
     //ProfilingUtil.startCPUProfiling();